@@ -0,0 +1,288 @@
+/*
+ *  Copyright (C) 2011 Axel Morgner, structr <structr@structr.org>
+ * 
+ *  This file is part of structr <http://structr.org>.
+ * 
+ *  structr is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ * 
+ *  structr is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ * 
+ *  You should have received a copy of the GNU General Public License
+ *  along with structr.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.structr.common;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.apache.commons.lang.StringUtils;
+
+/**
+ * A template with <code>%{key}</code> placeholders, parsed once into a
+ * list of literal and placeholder segments.
+ *
+ * <p>
+ * Placeholder syntax:
+ * <ul>
+ * <li><code>%{key}</code>: render the node(s) found by key
+ * <li><code>%{key,templatePath}</code>: render with a custom template
+ * <li><code>%{key.method}</code>: append the value of the node's getter
+ * </ul>
+ * </p>
+ *
+ * <p>
+ * Compiled templates are cached by their content, up to a total of
+ * {@see #MaxCachedCharacters} characters of template content, and getter
+ * methods are cached per class.
+ * </p>
+ *
+ * @author amorgner
+ */
+public class CompiledTemplate {
+
+    private static final Logger logger = Logger.getLogger(CompiledTemplate.class.getName());
+    public static final String NODE_KEY_PREFIX = "%{";
+    public static final String NODE_KEY_SUFFIX = "}";
+    public static final int MaxCachedCharacters = 4 * 1024 * 1024;
+    private static final Map<String, CompiledTemplate> templateCache = new LinkedHashMap<String, CompiledTemplate>(64, 0.75f, true);
+    private static long cachedCharacters = 0;
+    private static final Map<Class, Map<String, Method>> getterCache = new ConcurrentHashMap<Class, Map<String, Method>>();
+    private static final Method NO_GETTER;
+
+    static {
+        Method noGetter = null;
+        try {
+            noGetter = Object.class.getMethod("toString");
+        } catch (NoSuchMethodException nsme) {
+        }
+        NO_GETTER = noGetter;
+    }
+    private final List<Segment> segments;
+    private final boolean hasPlaceholders;
+
+    private CompiledTemplate(final List<Segment> segments) {
+
+        boolean placeholders = false;
+        for (Segment segment : segments) {
+            placeholders |= (segment instanceof Placeholder);
+        }
+
+        this.segments = Collections.unmodifiableList(segments);
+        this.hasPlaceholders = placeholders;
+    }
+
+    /**
+     * Return the (cached) compiled template for the given content.
+     *
+     * @param content
+     * @return
+     */
+    public static CompiledTemplate compile(final String content) {
+
+        CompiledTemplate compiled = null;
+
+        synchronized (templateCache) {
+            compiled = templateCache.get(content);
+        }
+
+        if (compiled == null) {
+
+            compiled = parse(content);
+
+            // don't let a single huge template flush the cache
+            if (content.length() <= MaxCachedCharacters / 16) {
+
+                synchronized (templateCache) {
+
+                    if (templateCache.put(content, compiled) == null) {
+                        cachedCharacters += content.length();
+                    }
+
+                    evict();
+                }
+            }
+        }
+
+        return compiled;
+    }
+
+    /**
+     * Return the public no-argument method with the given name of the given
+     * class, or null if there is none.
+     *
+     * @param type
+     * @param name
+     * @return
+     */
+    public static Method getGetter(final Class type, final String name) {
+
+        Map<String, Method> methods = getterCache.get(type);
+
+        if (methods == null) {
+            methods = new ConcurrentHashMap<String, Method>();
+            getterCache.put(type, methods);
+        }
+
+        Method getter = methods.get(name);
+
+        if (getter == null) {
+
+            try {
+                getter = type.getMethod(name);
+
+            } catch (Exception ex) {
+                logger.log(Level.FINE, "Cannot find method {0} on {1}", new Object[]{name, type});
+                getter = NO_GETTER;
+            }
+
+            methods.put(name, getter);
+        }
+
+        return (getter != NO_GETTER ? getter : null);
+    }
+
+    public List<Segment> getSegments() {
+        return segments;
+    }
+
+    public boolean hasPlaceholders() {
+        return hasPlaceholders;
+    }
+
+    // <editor-fold defaultstate="collapsed" desc="private methods">
+    /**
+     * Remove the least recently used templates until the cache fits
+     * into {@see #MaxCachedCharacters}. Must be called with the cache lock held.
+     */
+    private static void evict() {
+
+        Iterator<String> it = templateCache.keySet().iterator();
+
+        while (cachedCharacters > MaxCachedCharacters && it.hasNext()) {
+
+            cachedCharacters -= it.next().length();
+            it.remove();
+        }
+    }
+
+    private static CompiledTemplate parse(final String content) {
+
+        List<Segment> segments = new ArrayList<Segment>();
+        int pos = 0;
+        int start = content.indexOf(NODE_KEY_PREFIX);
+
+        while (start > -1) {
+
+            int end = content.indexOf(NODE_KEY_SUFFIX, start + NODE_KEY_PREFIX.length());
+
+            if (end < 0) {
+                logger.log(Level.WARNING, "Node key suffix {0} not found", NODE_KEY_SUFFIX);
+                break;
+            }
+
+            if (start > pos) {
+                segments.add(new Literal(content.substring(pos, start)));
+            }
+
+            segments.add(Placeholder.parse(content.substring(start + NODE_KEY_PREFIX.length(), end)));
+
+            pos = end + NODE_KEY_SUFFIX.length();
+            start = content.indexOf(NODE_KEY_PREFIX, pos);
+        }
+
+        if (pos < content.length()) {
+            segments.add(new Literal(content.substring(pos)));
+        }
+
+        return new CompiledTemplate(segments);
+    }
+    // </editor-fold>
+
+    // <editor-fold defaultstate="collapsed" desc="segments">
+    public static abstract class Segment {
+    }
+
+    public static class Literal extends Segment {
+
+        private final String text;
+
+        private Literal(final String text) {
+            this.text = text;
+        }
+
+        public String getText() {
+            return text;
+        }
+    }
+
+    public static class Placeholder extends Segment {
+
+        private final String key;
+        private final String templateKey;
+        private final String getterName;
+
+        private Placeholder(final String key, final String templateKey, final String getterName) {
+            this.key = key;
+            this.templateKey = templateKey;
+            this.getterName = getterName;
+        }
+
+        private static Placeholder parse(final String rawKey) {
+
+            String key = rawKey;
+            String templateKey = null;
+            String getterName = null;
+
+            if (rawKey.indexOf(",") > 0) {
+
+                String[] splitted = StringUtils.split(rawKey, ",");
+                key = splitted[0];
+                templateKey = (splitted.length > 1 && StringUtils.isNotEmpty(splitted[1]) ? splitted[1] : null);
+
+            } else if (rawKey.indexOf(".") > 0) {
+
+                String[] splitted = StringUtils.split(rawKey, ".");
+                key = splitted[0];
+
+                if (splitted.length > 1 && StringUtils.isNotEmpty(splitted[1])) {
+                    String methodKey = splitted[1];
+                    getterName = "get".concat(methodKey.substring(0, 1).toUpperCase()).concat(methodKey.substring(1));
+                }
+            }
+
+            return new Placeholder(key, templateKey, getterName);
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        /**
+         * Path of the custom template, or null.
+         */
+        public String getTemplateKey() {
+            return templateKey;
+        }
+
+        /**
+         * Name of the getter to invoke, or null.
+         */
+        public String getGetterName() {
+            return getterName;
+        }
+    }
+    // </editor-fold>
+}
@@ -23,6 +23,7 @@ import java.io.IOException;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
@@ -53,6 +54,8 @@ public class CurrentRequest
 	private HttpServletRequest internalRequest = null;
 	private String currentNodePath = null;
         private User currentUser = null;
+	private PermissionCache permissionCache = null;
+	private volatile Map<Long, AbstractNode> cachedNodes = null;
         
 	private CurrentRequest()
 	{
@@ -142,6 +145,80 @@ public class CurrentRequest
 		return(null);
 	}
 
+	/**
+	 * Returns the node instances cached for the current request, or null
+	 * if there is no servlet request on the current thread. The returned
+	 * map is access-ordered and must be synchronized on when used, as
+	 * {@see #removeCachedNode} can be called from other threads.
+	 *
+	 * @param create create the map if it does not exist yet
+	 * @return the cached nodes of the current request, keyed by node id
+	 */
+	public static Map<Long, AbstractNode> getCachedNodes(final boolean create)
+	{
+		CurrentRequest request = getRequestContext();
+		if(request != null)
+		{
+			return(request.getCachedNodesInternal(create));
+		}
+
+		return(null);
+	}
+
+	/**
+	 * Removes the node with the given id from the node instances cached
+	 * for all current requests.
+	 *
+	 * @param id
+	 * @return true if a cached instance was removed
+	 */
+	public static boolean removeCachedNode(final long id)
+	{
+		boolean removed = false;
+
+		synchronized(contextMap)
+		{
+			for(CurrentRequest request : contextMap.values())
+			{
+				Map<Long, AbstractNode> nodes = request.cachedNodes;
+				if(nodes != null)
+				{
+					synchronized(nodes)
+					{
+						removed |= (nodes.remove(id) != null);
+					}
+				}
+			}
+		}
+
+		return(removed);
+	}
+
+	/**
+	 * Removes all node instances cached for current requests.
+	 */
+	public static void clearCachedNodes()
+	{
+		synchronized(contextMap)
+		{
+			for(CurrentRequest request : contextMap.values())
+			{
+				request.cachedNodes = null;
+			}
+		}
+	}
+
+	public static PermissionCache getPermissionCache()
+	{
+		CurrentRequest request = getRequestContext();
+		if(request != null)
+		{
+			return(request.getPermissionCacheInternal());
+		}
+
+		return(null);
+	}
+
 	public static void setCurrentNodePath(final String currentNodePath)
 	{
 		CurrentRequest request = getRequestContext();
@@ -176,6 +253,24 @@ public class CurrentRequest
 		}
 	}
 
+	/**
+	 * Return the number of request cycle listeners registered for the
+	 * current request, e.g. to detect rendering with side effects.
+	 */
+	public static int getRequestCycleListenerCount()
+	{
+		CurrentRequest request = getRequestContext();
+		if(request != null)
+		{
+			synchronized(request.requestCycleListener)
+			{
+				return(request.requestCycleListener.size());
+			}
+		}
+
+		return(0);
+	}
+
 	public static void setAttribute(final String key, final Object value)
 	{
 		CurrentRequest request = getRequestContext();
@@ -233,6 +328,7 @@ public class CurrentRequest
 	private void setRequestInternal(final HttpServletRequest request)
 	{
 		this.internalRequest = request;
+		this.cachedNodes = null;
 	}
 
 	private HttpServletRequest getRequestInternal()
@@ -257,6 +353,12 @@ public class CurrentRequest
 
 	private void setCurrentUserInternal(final User currentUser)
 	{
+		// cached node instances belong to the user they were created for
+		if(currentUser != this.currentUser)
+		{
+			this.cachedNodes = null;
+		}
+
 		this.currentUser = currentUser;
 	}
 
@@ -265,6 +367,32 @@ public class CurrentRequest
 		return(currentUser);
 	}
 
+	private PermissionCache getPermissionCacheInternal()
+	{
+		if(permissionCache == null)
+		{
+			permissionCache = new PermissionCache();
+		}
+
+		return(permissionCache);
+	}
+
+	private Map<Long, AbstractNode> getCachedNodesInternal(final boolean create)
+	{
+		// threads without a servlet request have no end to release nodes at
+		if(internalRequest == null)
+		{
+			return(null);
+		}
+
+		if(cachedNodes == null && create)
+		{
+			cachedNodes = new LinkedHashMap<Long, AbstractNode>(64, 0.75f, true);
+		}
+
+		return(cachedNodes);
+	}
+
 	private void setCurrentNodePathInternal(final String currentNodePath)
 	{
 		this.currentNodePath = currentNodePath;
@@ -290,6 +418,12 @@ public class CurrentRequest
 
 	private void callOnRequestStart()
 	{
+		// permission decisions are only valid within one request
+		if(permissionCache != null)
+		{
+			permissionCache.clear();
+		}
+
 		if(CurrentSession.wasJustRedirected())
 		{
 			CurrentSession.setJustRedirected(false);
@@ -343,6 +477,9 @@ public class CurrentRequest
 
 	private void callOnRequestEnd()
 	{
+		permissionCache = null;
+		cachedNodes = null;
+
 		synchronized(requestCycleListener)
 		{
 			for(Iterator<RequestCycleListener> it = requestCycleListener.iterator(); it.hasNext();)
@@ -0,0 +1,275 @@
+/*
+ *  Copyright (C) 2011 Axel Morgner, structr <structr@structr.org>
+ * 
+ *  This file is part of structr <http://structr.org>.
+ * 
+ *  structr is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ * 
+ *  structr is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ * 
+ *  You should have received a copy of the GNU General Public License
+ *  along with structr.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.structr.common;
+
+import freemarker.cache.MruCacheStorage;
+import freemarker.cache.TemplateLoader;
+import freemarker.template.Configuration;
+import freemarker.template.ObjectWrapper;
+import freemarker.template.Template;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import org.structr.core.Command;
+import org.structr.core.Services;
+import org.structr.core.entity.AbstractNode;
+import org.structr.core.node.FindNodeCommand;
+import org.structr.core.node.search.Search;
+import org.structr.core.node.search.SearchAttribute;
+import org.structr.core.node.search.SearchNodeCommand;
+
+/**
+ * Process-wide FreeMarker configuration for rendering node content.
+ *
+ * <p>
+ * Templates are loaded through a template loader that serves the content
+ * of structr nodes, keyed by content hash and length, so the same template
+ * content is parsed only once, no matter which node renders it. The
+ * configuration, its object wrapper and the template cache are shared by
+ * all requests.
+ * </p>
+ *
+ * <p>
+ * Search results for the <code>search</code> request parameter are cached
+ * for a short time, so several templates on a page can use them without
+ * searching again.
+ * </p>
+ *
+ * @author amorgner
+ */
+public class FreeMarkerSupport {
+
+    private static final int MaxCachedTemplates = 1000;
+    private static final int MaxCachedSearches = 100;
+    private static final long SearchResultsTimeToLive = 5000L;
+    private static final ThreadLocal<Map<String, TemplateSource>> sources = new ThreadLocal<Map<String, TemplateSource>>();
+    private static final Configuration configuration = createConfiguration();
+    private static final Map<String, SearchResults> searchCache = new LinkedHashMap<String, SearchResults>(16, 0.75f, true) {
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, SearchResults> eldest) {
+            return size() > MaxCachedSearches;
+        }
+    };
+
+    /**
+     * Return the shared configuration.
+     *
+     * @return
+     */
+    public static Configuration getConfiguration() {
+        return configuration;
+    }
+
+    /**
+     * Return the compiled template for the given content.
+     *
+     * @param name the name of the template, used in log messages
+     * @param content the template content
+     * @return
+     * @throws IOException
+     */
+    public static Template getTemplate(final String name, final String content) throws IOException {
+
+        // the template is defined by its content only, whichever node renders it
+        String templateName = "content/" + Integer.toHexString(content.hashCode()) + "/" + content.length();
+
+        Map<String, TemplateSource> threadSources = sources.get();
+
+        if (threadSources == null) {
+            threadSources = new HashMap<String, TemplateSource>();
+            sources.set(threadSources);
+        }
+
+        threadSources.put(templateName, new TemplateSource(name, content));
+
+        try {
+            return configuration.getTemplate(templateName);
+
+        } finally {
+            threadSources.remove(templateName);
+        }
+    }
+
+    /**
+     * Return the public nodes matching the given search string,
+     * searching in content, too, if <code>inContent</code> is true.
+     *
+     * @param searchString
+     * @param inContent
+     * @return
+     */
+    public static List<AbstractNode> getSearchResults(final String searchString, final boolean inContent) {
+
+        String key = (inContent ? "c:" : "n:") + searchString;
+        List<Long> ids = null;
+
+        synchronized (searchCache) {
+
+            SearchResults cached = searchCache.get(key);
+
+            if (cached != null && (System.currentTimeMillis() - cached.created) <= SearchResultsTimeToLive) {
+                ids = cached.ids;
+            }
+        }
+
+        if (ids != null) {
+
+            // node instances are request-specific, so only ids are cached
+            Command findNode = Services.command(FindNodeCommand.class);
+            List<AbstractNode> result = new ArrayList<AbstractNode>(ids.size());
+
+            for (Long id : ids) {
+
+                AbstractNode node = (AbstractNode) findNode.execute(null, id);
+
+                if (node != null) {
+                    result.add(node);
+                }
+            }
+
+            return result;
+        }
+
+        List<SearchAttribute> searchAttrs = new LinkedList<SearchAttribute>();
+        searchAttrs.add(Search.orName(searchString)); // search in name
+
+        if (inContent) {
+            searchAttrs.add(Search.orContent(searchString)); // search in content
+        }
+
+        Command search = Services.command(SearchNodeCommand.class);
+        List<AbstractNode> result = (List<AbstractNode>) search.execute(
+                null, // user => null means super user
+                null, // top node => null means search all
+                false, // include hidden
+                true, // public only
+                searchAttrs);
+
+        List<Long> resultIds = new ArrayList<Long>(result.size());
+
+        for (AbstractNode node : result) {
+            resultIds.add(node.getId());
+        }
+
+        synchronized (searchCache) {
+            searchCache.put(key, new SearchResults(Collections.unmodifiableList(resultIds)));
+        }
+
+        return result;
+    }
+
+    // <editor-fold defaultstate="collapsed" desc="private methods">
+    private static Configuration createConfiguration() {
+
+        Configuration cfg = new Configuration();
+
+        cfg.setObjectWrapper(ObjectWrapper.DEFAULT_WRAPPER);
+        cfg.setTemplateLoader(new NodeTemplateLoader());
+        cfg.setCacheStorage(new MruCacheStorage(MaxCachedTemplates / 5, MaxCachedTemplates));
+        cfg.setLocalizedLookup(false);
+
+        // ask the loader on every lookup, it only compares numbers
+        cfg.setTemplateUpdateDelay(0);
+
+        return cfg;
+    }
+    // </editor-fold>
+
+    // <editor-fold defaultstate="collapsed" desc="private classes">
+    /**
+     * Serves the template sources registered by the current thread.
+     */
+    private static class NodeTemplateLoader implements TemplateLoader {
+
+        @Override
+        public Object findTemplateSource(String name) throws IOException {
+
+            Map<String, TemplateSource> threadSources = sources.get();
+
+            return (threadSources != null ? threadSources.get(name) : null);
+        }
+
+        @Override
+        public long getLastModified(Object templateSource) {
+            return ((TemplateSource) templateSource).version;
+        }
+
+        @Override
+        public Reader getReader(Object templateSource, String encoding) throws IOException {
+            return new StringReader(((TemplateSource) templateSource).content);
+        }
+
+        @Override
+        public void closeTemplateSource(Object templateSource) throws IOException {
+        }
+    }
+
+    private static class TemplateSource {
+
+        private final String name;
+        private final String content;
+        private final long version;
+
+        private TemplateSource(final String name, final String content) {
+
+            this.name = name;
+            this.content = content;
+            this.version = content.hashCode() * 31L + content.length();
+        }
+
+        /**
+         * Different contents with the same name (hash collision) are not equal,
+         * so the template cache parses the template again.
+         */
+        @Override
+        public boolean equals(Object obj) {
+            return (obj instanceof TemplateSource && ((TemplateSource) obj).content.equals(content));
+        }
+
+        @Override
+        public int hashCode() {
+            return content.hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+
+    private static class SearchResults {
+
+        private final List<Long> ids;
+        private final long created;
+
+        private SearchResults(final List<Long> ids) {
+            this.ids = ids;
+            this.created = System.currentTimeMillis();
+        }
+    }
+    // </editor-fold>
+}
@@ -0,0 +1,238 @@
+/*
+ *  Copyright (C) 2011 Axel Morgner, structr <structr@structr.org>
+ * 
+ *  This file is part of structr <http://structr.org>.
+ * 
+ *  structr is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ * 
+ *  structr is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ * 
+ *  You should have received a copy of the GNU General Public License
+ *  along with structr.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.structr.common;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import org.structr.core.Services;
+import org.structr.core.entity.AbstractNode;
+import org.structr.core.entity.Group;
+import org.structr.core.entity.Principal;
+import org.structr.core.entity.StructrRelationship;
+
+/**
+ * Memoizes permission checks.
+ *
+ * <p>
+ * Each request has its own cache of (node, principal, permission)
+ * decisions, see {@see CurrentRequest#getPermissionCache}. The group
+ * memberships of principals are shared between requests.
+ * </p>
+ *
+ * <p>
+ * After a transaction has committed changes of security relationships or
+ * group memberships, {@see PermissionChangeTracker} calls {@see #invalidate},
+ * which discards all cached decisions and memberships. In addition, cached data expires after a time-to-live
+ * (see {@see Services#PERMISSION_CACHE_TTL}), which bounds the lifetime of
+ * caches of threads without request boundaries.
+ * </p>
+ *
+ * @author amorgner
+ */
+public class PermissionCache {
+
+    public static final long DefaultTimeToLive = 60000L;
+    private static final int MaxDecisions = 50000;
+    private static final int MaxPrincipals = 10000;
+    private static final AtomicLong securityVersion = new AtomicLong(0);
+    private static final Map<Long, Memberships> memberships = new LinkedHashMap<Long, Memberships>(64, 0.75f, true) {
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, Memberships> eldest) {
+            return size() > MaxPrincipals;
+        }
+    };
+    private static long timeToLive = -1;
+    private final Map<String, Boolean> decisions = new HashMap<String, Boolean>();
+    private long version = securityVersion.get();
+    private long created = System.currentTimeMillis();
+
+    /**
+     * Discard all cached permission decisions and group memberships.
+     */
+    public static void invalidate() {
+        securityVersion.incrementAndGet();
+    }
+
+    /**
+     * Return the current security version, which changes on every
+     * call of {@see #invalidate}.
+     *
+     * @return
+     */
+    public static long getSecurityVersion() {
+        return securityVersion.get();
+    }
+
+    /**
+     * Return the ids of the groups the given principal is a member of.
+     *
+     * @param principal
+     * @return
+     */
+    public static List<Long> getGroupIds(final Principal principal) {
+
+        long principalId = principal.getId();
+        long currentVersion = securityVersion.get();
+
+        synchronized (memberships) {
+
+            Memberships entry = memberships.get(principalId);
+
+            if (entry != null && entry.version == currentVersion && !isExpired(entry.created)) {
+                return entry.groupIds;
+            }
+        }
+
+        List<Long> groupIds = new ArrayList<Long>();
+
+        // We cannot use getParent() here because it uses hasPermission itself,
+        // that would lead to an infinite loop
+        for (StructrRelationship sr : principal.getIncomingChildRelationships()) {
+
+            AbstractNode node = sr.getStartNode();
+
+            if (node instanceof Group) {
+                groupIds.add(node.getId());
+            }
+        }
+
+        groupIds = Collections.unmodifiableList(groupIds);
+
+        if (principalId >= 0) {
+
+            synchronized (memberships) {
+                memberships.put(principalId, new Memberships(groupIds, currentVersion));
+            }
+        }
+
+        return groupIds;
+    }
+
+    /**
+     * Return the cached decision, or null if there is none.
+     *
+     * @param nodeId
+     * @param principalId
+     * @param permission
+     * @return
+     */
+    public Boolean getDecision(final long nodeId, final long principalId, final String permission) {
+
+        validate();
+
+        return decisions.get(key(nodeId, principalId, permission));
+    }
+
+    /**
+     * Store the given decision, unless the security version has changed
+     * since it was resolved. Otherwise, a decision resolved from the state
+     * before a concurrent security change would be cached as valid.
+     *
+     * @param nodeId
+     * @param principalId
+     * @param permission
+     * @param allowed
+     * @param resolvedVersion the security version captured before resolving the decision
+     */
+    public void putDecision(final long nodeId, final long principalId, final String permission, final boolean allowed, final long resolvedVersion) {
+
+        validate();
+
+        if (version != resolvedVersion) {
+            return;
+        }
+
+        if (decisions.size() >= MaxDecisions) {
+            decisions.clear();
+        }
+
+        decisions.put(key(nodeId, principalId, permission), allowed);
+    }
+
+    public void clear() {
+
+        decisions.clear();
+        version = securityVersion.get();
+        created = System.currentTimeMillis();
+    }
+
+    // <editor-fold defaultstate="collapsed" desc="private methods">
+    private void validate() {
+
+        if (version != securityVersion.get() || isExpired(created)) {
+            clear();
+        }
+    }
+
+    private static String key(final long nodeId, final long principalId, final String permission) {
+        return new StringBuilder(32).append(nodeId).append(':').append(principalId).append(':').append(permission).toString();
+    }
+
+    private static boolean isExpired(final long created) {
+
+        long ttl = getTimeToLive();
+
+        return ttl > 0 && (System.currentTimeMillis() - created) > ttl;
+    }
+
+    private static long getTimeToLive() {
+
+        if (timeToLive < 0) {
+
+            long ttl = DefaultTimeToLive;
+            Map<String, Object> context = Services.getContext();
+
+            // try to parse time-to-live, set to default otherwise
+            if (context != null && context.containsKey(Services.PERMISSION_CACHE_TTL)) {
+                try {
+                    ttl = Long.parseLong(context.get(Services.PERMISSION_CACHE_TTL).toString());
+
+                } catch (Throwable t) {
+                    ttl = DefaultTimeToLive;
+                }
+            }
+
+            timeToLive = ttl;
+        }
+
+        return timeToLive;
+    }
+    // </editor-fold>
+
+    // <editor-fold defaultstate="collapsed" desc="private classes">
+    private static class Memberships {
+
+        private final List<Long> groupIds;
+        private final long version;
+        private final long created;
+
+        private Memberships(final List<Long> groupIds, final long version) {
+            this.groupIds = groupIds;
+            this.version = version;
+            this.created = System.currentTimeMillis();
+        }
+    }
+    // </editor-fold>
+}
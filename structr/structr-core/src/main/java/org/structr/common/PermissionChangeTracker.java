@@ -0,0 +1,122 @@
+/*
+ *  Copyright (C) 2011 Axel Morgner, structr <structr@structr.org>
+ * 
+ *  This file is part of structr <http://structr.org>.
+ * 
+ *  structr is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ * 
+ *  structr is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ * 
+ *  You should have received a copy of the GNU General Public License
+ *  along with structr.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.structr.common;
+
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.NotFoundException;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.event.PropertyEntry;
+import org.neo4j.graphdb.event.TransactionData;
+import org.neo4j.graphdb.event.TransactionEventHandler;
+import org.structr.core.entity.AbstractNode;
+import org.structr.core.entity.Group;
+import org.structr.core.entity.StructrRelationship;
+
+/**
+ * Invalidates the {@see PermissionCache} after a transaction has committed
+ * changes of security relationships or group memberships (child
+ * relationships of groups).
+ *
+ * <p>
+ * Invalidating after commit makes sure that no concurrent reader
+ * caches the permissions of the old state again, and it covers every
+ * write path, including raw relationship changes like moving a node.
+ * </p>
+ *
+ * @author amorgner
+ */
+public class PermissionChangeTracker implements TransactionEventHandler<Boolean> {
+
+    @Override
+    public Boolean beforeCommit(TransactionData data) throws Exception {
+
+        for (Relationship rel : data.createdRelationships()) {
+            if (isSecurityRelevant(rel)) {
+                return Boolean.TRUE;
+            }
+        }
+
+        for (Relationship rel : data.deletedRelationships()) {
+            if (isSecurityRelevant(rel)) {
+                return Boolean.TRUE;
+            }
+        }
+
+        for (PropertyEntry<Relationship> entry : data.assignedRelationshipProperties()) {
+            if (isPermissionKey(entry.key())) {
+                return Boolean.TRUE;
+            }
+        }
+
+        for (PropertyEntry<Relationship> entry : data.removedRelationshipProperties()) {
+            if (isPermissionKey(entry.key())) {
+                return Boolean.TRUE;
+            }
+        }
+
+        return Boolean.FALSE;
+    }
+
+    @Override
+    public void afterCommit(TransactionData data, Boolean changed) {
+
+        if (Boolean.TRUE.equals(changed)) {
+            PermissionCache.invalidate();
+        }
+    }
+
+    @Override
+    public void afterRollback(TransactionData data, Boolean changed) {
+    }
+
+    // <editor-fold defaultstate="collapsed" desc="private methods">
+    private static boolean isSecurityRelevant(final Relationship rel) {
+
+        try {
+            if (rel.isType(RelType.SECURITY)) {
+                return true;
+            }
+
+            // group memberships
+            if (rel.isType(RelType.HAS_CHILD)) {
+
+                Node startNode = rel.getStartNode();
+
+                return Group.class.getSimpleName().equals(startNode.getProperty(AbstractNode.TYPE_KEY, null));
+            }
+
+            return false;
+
+        } catch (NotFoundException nfe) {
+
+            // type of a deleted relationship or node is unknown, be safe
+            return true;
+
+        } catch (IllegalStateException ise) {
+
+            // start node was deleted in this transaction, be safe
+            return true;
+        }
+    }
+
+    private static boolean isPermissionKey(final String key) {
+        return StructrRelationship.ALLOWED_KEY.equals(key) || StructrRelationship.DENIED_KEY.equals(key);
+    }
+    // </editor-fold>
+}
@@ -18,11 +18,22 @@
  */
 package org.structr.common;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.apache.commons.lang.StringUtils;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.NotFoundException;
+import org.structr.core.CommandHandle;
+import org.structr.core.Services;
 import org.structr.core.entity.AbstractNode;
+import org.structr.core.entity.User;
+import org.structr.core.node.GetPathIndexCommand;
+import org.structr.core.node.GraphDatabaseCommand;
+import org.structr.core.node.NodeFactoryCommand;
+import org.structr.core.node.PathIndex;
 
 /**
  *
@@ -31,11 +42,44 @@ import org.structr.core.entity.AbstractNode;
 public abstract class TreeHelper {
 
     private static final Logger logger = Logger.getLogger(TreeHelper.class.getName());
+    private static final CommandHandle pathIndexHandle = Services.handle(GetPathIndexCommand.class);
+    private static final CommandHandle graphDbHandle = Services.handle(GraphDatabaseCommand.class);
+    private static final CommandHandle nodeFactoryHandle = Services.handle(NodeFactoryCommand.class);
 
+    /**
+     * Return the node at the given path below the start node.
+     *
+     * Paths without "..", "*" and empty segments are resolved via
+     * the {@see PathIndex} if possible.
+     *
+     * @param startNode
+     * @param path
+     * @param includeLinks
+     * @return
+     */
     public static AbstractNode getNodeByPath(final AbstractNode startNode,
             final String path, final boolean includeLinks) {
-        AbstractNode currentNode = startNode;
         String[] names = StringUtils.split(path, "/");
+        PathIndex pathIndex = (startNode != null && isIndexable(names) ? getPathIndex() : null);
+        User user = CurrentRequest.getCurrentUser();
+        String normalizedPath = null;
+        long generation = 0;
+
+        if (pathIndex != null) {
+
+            normalizedPath = StringUtils.join(names, "/");
+            generation = pathIndex.getGeneration();
+
+            AbstractNode indexedNode = getIndexedNode(pathIndex.getPath(user, startNode.getId(), normalizedPath, includeLinks));
+            if (indexedNode != null) {
+                return indexedNode;
+            }
+        }
+
+        AbstractNode currentNode = startNode;
+        long[] ids = new long[names.length];
+        int depth = 0;
+
         for (String name : names) {
 
             if ("..".equals(name)) {
@@ -72,10 +116,95 @@ public abstract class TreeHelper {
                 logger.log(Level.FINE, "Node not found at {0}", path);
                 return null;
             }
+
+            ids[depth++] = currentNode.getId();
         }
+
+        if (pathIndex != null && depth > 0) {
+            pathIndex.putPath(user, startNode.getId(), normalizedPath, includeLinks, ids, generation);
+        }
+
         return currentNode;
     }
 
+    /**
+     * Return the given node and its ancestors up to (excluding) the root
+     * node, starting with the top-level node, i.e. the nodes of the path
+     * of the given node.
+     *
+     * The ancestors are taken from the {@see PathIndex} if possible.
+     *
+     * @param node
+     * @return
+     */
+    public static List<AbstractNode> getPathNodes(final AbstractNode node) {
+
+        List<AbstractNode> nodes = new ArrayList<AbstractNode>();
+
+        if (node == null || node.getId() <= 0) {
+            return nodes;
+        }
+
+        PathIndex pathIndex = getPathIndex();
+        User user = CurrentRequest.getCurrentUser();
+        long generation = 0;
+
+        if (pathIndex != null) {
+
+            generation = pathIndex.getGeneration();
+
+            long[] ids = pathIndex.getAncestors(user, node.getId());
+
+            if (ids != null) {
+
+                nodes.add(node);
+
+                for (int i = 1; i < ids.length; i++) {
+
+                    AbstractNode ancestor = getIndexedNode(ids[i]);
+                    if (ancestor == null) {
+                        break;
+                    }
+
+                    nodes.add(ancestor);
+                }
+
+                if (nodes.size() == ids.length) {
+
+                    Collections.reverse(nodes);
+                    return nodes;
+                }
+
+                nodes.clear();
+            }
+        }
+
+        AbstractNode currentNode = node;
+
+        // stop at root node
+        while (currentNode != null && currentNode.getId() > 0) {
+
+            nodes.add(currentNode);
+            currentNode = currentNode.getParentNode();
+        }
+
+        // only index complete paths, the parent of the top-level node
+        // may not be readable for the current user
+        if (pathIndex != null && currentNode != null) {
+
+            long[] ids = new long[nodes.size()];
+
+            for (int i = 0; i < ids.length; i++) {
+                ids[i] = nodes.get(i).getId();
+            }
+
+            pathIndex.putAncestors(user, node.getId(), ids, generation);
+        }
+
+        Collections.reverse(nodes);
+        return nodes;
+    }
+
     public static Iterable<AbstractNode> getNodesByPath(final AbstractNode startNode,
             final String path, final boolean includeLinks) {
 
@@ -120,4 +249,70 @@ public abstract class TreeHelper {
 
         return null;
     }
+
+    // <editor-fold defaultstate="collapsed" desc="private methods">
+    private static PathIndex getPathIndex() {
+
+        try {
+            return (PathIndex) pathIndexHandle.execute();
+
+        } catch (Throwable t) {
+            logger.log(Level.FINE, "Path index not available", t);
+        }
+
+        return null;
+    }
+
+    private static boolean isIndexable(final String[] names) {
+
+        for (String name : names) {
+
+            if ("..".equals(name) || "*".equals(name)) {
+                return false;
+            }
+        }
+
+        return names.length > 0;
+    }
+
+    /**
+     * Return the last node of the given indexed path, or null if one of
+     * the nodes along the path is not readable for the current user.
+     */
+    private static AbstractNode getIndexedNode(final long[] ids) {
+
+        if (ids == null) {
+            return null;
+        }
+
+        AbstractNode node = null;
+
+        for (long id : ids) {
+
+            node = getIndexedNode(id);
+            if (node == null) {
+                return null;
+            }
+        }
+
+        return node;
+    }
+
+    private static AbstractNode getIndexedNode(final long id) {
+
+        try {
+            GraphDatabaseService graphDb = (GraphDatabaseService) graphDbHandle.execute();
+            AbstractNode node = (AbstractNode) nodeFactoryHandle.execute(graphDb.getNodeById(id));
+
+            if (node != null && node.readAllowed()) {
+                return node;
+            }
+
+        } catch (NotFoundException nfe) {
+            logger.log(Level.FINE, "Indexed node {0} not found", id);
+        }
+
+        return null;
+    }
+    // </editor-fold>
 }
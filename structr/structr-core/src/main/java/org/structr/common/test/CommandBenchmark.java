@@ -0,0 +1,183 @@
+/*
+ *  Copyright (C) 2011 Axel Morgner, structr <structr@structr.org>
+ * 
+ *  This file is part of structr <http://structr.org>.
+ * 
+ *  structr is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ * 
+ *  structr is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ * 
+ *  You should have received a copy of the GNU General Public License
+ *  along with structr.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.structr.common.test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.structr.common.StandaloneTestHelper;
+import org.structr.core.CommandHandle;
+import org.structr.core.Services;
+import org.structr.core.node.GraphDatabaseCommand;
+import org.structr.core.node.NodeFactoryCommand;
+
+/**
+ * Compares the cost of obtaining and executing a command by creating a
+ * new command for every call, by using the per-thread command pool of
+ * Services.command, and by using a pre-bound command handle.
+ *
+ * Usage: CommandBenchmark [iterations] [threads]
+ *
+ * @author amorgner
+ */
+public class CommandBenchmark
+{
+	private static final Logger logger = Logger.getLogger(CommandBenchmark.class.getName());
+	private static final CommandHandle nodeFactoryHandle = Services.handle(NodeFactoryCommand.class);
+	private static final AtomicInteger errors = new AtomicInteger(0);
+
+	public static void main(String[] args)
+	{
+		int iterations = 1000000;
+		int threads = 1;
+
+		try { iterations = Integer.parseInt(args[0]); } catch(Throwable t) {}
+		try { threads = Integer.parseInt(args[1]); } catch(Throwable t) {}
+
+		StandaloneTestHelper.prepareStandaloneTest("/tmp/structr-test/");
+
+		try
+		{
+			GraphDatabaseService graphDb = (GraphDatabaseService)Services.command(GraphDatabaseCommand.class).execute();
+			final Node node = graphDb.getReferenceNode();
+
+			Benchmark newCommand = new Benchmark("new command")
+			{
+				@Override
+				public void run(int count)
+				{
+					for(int i=0; i<count; i++)
+					{
+						Services.createCommand(NodeFactoryCommand.class).execute(node);
+					}
+				}
+			};
+
+			Benchmark pooledCommand = new Benchmark("pooled command")
+			{
+				@Override
+				public void run(int count)
+				{
+					for(int i=0; i<count; i++)
+					{
+						Services.command(NodeFactoryCommand.class).execute(node);
+					}
+				}
+			};
+
+			Benchmark commandHandle = new Benchmark("command handle")
+			{
+				@Override
+				public void run(int count)
+				{
+					for(int i=0; i<count; i++)
+					{
+						nodeFactoryHandle.execute(node);
+					}
+				}
+			};
+
+			Benchmark[] benchmarks = new Benchmark[] { newCommand, pooledCommand, commandHandle };
+
+			// warm up
+			for(Benchmark benchmark : benchmarks)
+			{
+				measure(benchmark, iterations / 10, threads);
+			}
+
+			logger.log(Level.INFO, "NodeFactoryCommand, {0} iterations, {1} thread(s)", new Object[] { iterations, threads });
+
+			for(Benchmark benchmark : benchmarks)
+			{
+				long nanos = measure(benchmark, iterations, threads);
+
+				logger.log(Level.INFO, String.format("%-16s %8d ms %10.1f ns/op", benchmark.name, nanos / 1000000, (double)nanos / iterations));
+			}
+
+			// timings of failed runs are meaningless
+			if(errors.get() > 0)
+			{
+				logger.log(Level.SEVERE, "{0} benchmark run(s) failed, results are invalid", errors.get());
+			}
+
+		} catch(Throwable t)
+		{
+			logger.log(Level.SEVERE, "Benchmark failed", t);
+		}
+
+		StandaloneTestHelper.finishStandaloneTest();
+	}
+
+	// ----- private methods -----
+	private static long measure(final Benchmark benchmark, final int iterations, final int threads) throws InterruptedException
+	{
+		final CountDownLatch start = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(threads);
+		final int count = iterations / threads;
+
+		for(int i=0; i<threads; i++)
+		{
+			new Thread(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					try
+					{
+						start.await();
+						benchmark.run(count);
+
+					} catch(Throwable t)
+					{
+						logger.log(Level.SEVERE, "Benchmark run failed", t);
+						errors.incrementAndGet();
+
+					} finally
+					{
+						done.countDown();
+					}
+				}
+
+			}).start();
+		}
+
+		long t0 = System.nanoTime();
+
+		start.countDown();
+		done.await();
+
+		return(System.nanoTime() - t0);
+	}
+
+	// ----- nested classes -----
+	private static abstract class Benchmark
+	{
+		private String name = null;
+
+		public Benchmark(String name)
+		{
+			this.name = name;
+		}
+
+		public abstract void run(int count);
+	}
+}
@@ -31,6 +31,7 @@ import javax.servlet.ServletContextEvent;
 import javax.servlet.ServletContextListener;
 import javax.servlet.http.HttpSession;
 import javax.servlet.http.HttpSessionListener;
+import org.structr.core.agent.StartAgentService;
 import org.structr.core.cloud.StartCloudService;
 import org.structr.ui.page.StructrPage;
 
@@ -160,6 +161,9 @@ public class ApplicationContextListener implements ServletContextListener, HttpS
         // Initialize cloud service
         Services.command(StartCloudService.class);
 
+        // Initialize agent service, restores pending tasks
+        Services.command(StartAgentService.class);
+
         logger.log(Level.INFO, "structr application context initialized (structr started successfully)");
 
     }
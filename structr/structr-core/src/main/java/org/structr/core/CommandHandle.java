@@ -0,0 +1,74 @@
+/*
+ *  Copyright (C) 2011 Axel Morgner, structr <structr@structr.org>
+ * 
+ *  This file is part of structr <http://structr.org>.
+ * 
+ *  structr is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ * 
+ *  structr is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ * 
+ *  You should have received a copy of the GNU General Public License
+ *  along with structr.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.structr.core;
+
+/**
+ * A pre-bound handle for commands of a given type. A handle can be
+ * created once, e.g. in a static field, and executed many times by any
+ * thread. Stateless commands are taken from the per-thread command pool,
+ * all other commands are created for each execution.
+ *
+ * @author amorgner
+ */
+public final class CommandHandle {
+
+    private final Class commandType;
+    private final boolean stateless;
+
+    CommandHandle(final Class commandType) {
+
+        this.commandType = commandType;
+        this.stateless = StatelessCommand.class.isAssignableFrom(commandType);
+    }
+
+    /**
+     * Execute a command of the handle's type with the given parameters.
+     *
+     * @param parameters
+     * @return the result of the command, or null if the command could not be created
+     */
+    public Object execute(Object... parameters) {
+
+        Command command = getCommand();
+
+        if (command != null) {
+            return command.execute(parameters);
+        }
+
+        return null;
+    }
+
+    /**
+     * Return a command of the handle's type, bound to the current
+     * instance of its service.
+     *
+     * @return
+     */
+    public Command getCommand() {
+        return (stateless ? Services.pooledCommand(commandType) : Services.createCommand(commandType));
+    }
+
+    public Class getCommandType() {
+        return commandType;
+    }
+
+    public boolean isStateless() {
+        return stateless;
+    }
+}
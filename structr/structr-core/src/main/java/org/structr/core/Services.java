@@ -18,6 +18,7 @@
  */
 package org.structr.core;
 
+import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.Iterator;
 import java.util.List;
@@ -57,6 +58,39 @@ public class Services {
     // LogService-related constants
     public static final String LOG_SERVICE_INTERVAL = "structr.logging.interval";
     public static final String LOG_SERVICE_THRESHOLD = "structr.logging.threshold";
+    public static final String LOG_SERVICE_QUEUE_SIZE = "structr.logging.queuesize";
+    public static final String LOG_SERVICE_OVERFLOW = "structr.logging.overflow";
+    public static final String LOG_SERVICE_STORE = "structr.logging.store";
+    public static final String LOG_SERVICE_ROLLUP_INTERVAL = "structr.logging.rollupinterval";
+    // CacheService-related constants
+    public static final String CACHE_MAX_SIZE = "structr.cache.maxsize";
+    public static final String FRAGMENT_CACHE_MAX_SIZE = "structr.fragmentcache.maxsize";
+    public static final String FRAGMENT_CACHE_TIME_TO_LIVE = "structr.fragmentcache.ttl";
+    public static final String PATH_INDEX_MAX_SIZE = "structr.pathindex.maxsize";
+    public static final String PATH_INDEX_TIME_TO_LIVE = "structr.pathindex.ttl";
+    public static final String PERMISSION_CACHE_TTL = "structr.permissioncache.ttl";
+
+    public static final String INDEX_BATCH_SIZE = "structr.index.batchsize";
+    public static final String INDEX_INTERVAL = "structr.index.interval";
+    public static final String TRANSACTION_BATCH_SIZE = "structr.transaction.batchsize";
+    public static final String REBUILD_INDEX_CHUNK_SIZE = "structr.rebuildindex.chunksize";
+    public static final String REBUILD_INDEX_THREADS = "structr.rebuildindex.threads";
+    public static final String CSV_IMPORT_BATCH_SIZE = "structr.csvimport.batchsize";
+    // AgentService-related constants
+    public static final String AGENT_THREADS = "structr.agent.threads";
+    public static final String AGENT_QUEUE_SIZE = "structr.agent.queuesize";
+    public static final String AGENT_OFFER_TIMEOUT = "structr.agent.offertimeout";
+    public static final String AGENT_MAX_RETRIES = "structr.agent.retries";
+    public static final String AGENT_RETRY_DELAY = "structr.agent.retrydelay";
+    public static final String AGENT_CONCURRENCY = "structr.agent.concurrency";
+    public static final String AGENT_JOURNAL = "structr.agent.journal";
+    public static final String AGENT_JOURNAL_SYNC_INTERVAL = "structr.agent.journal.syncinterval";
+    // CloudService-related constants
+    public static final String CLOUD_THREADS = "structr.cloud.threads";
+    // Map render cache constants (GIS module)
+    public static final String MAP_CACHE_MAX_MEMORY = "structr.mapcache.maxmemory";
+    public static final String MAP_CACHE_MAX_DISK_ENTRIES = "structr.mapcache.maxdiskentries";
+    public static final String MAP_CACHE_TTL = "structr.mapcache.ttl";
     // ModuleService-related constants
     public static final String MODULES_PATH = "modules.path";
 //    public static final String ENTITY_PACKAGES = "entity.packages";
@@ -68,6 +102,13 @@ public class Services {
 
     private static final Map<Class, Class> serviceClassCache = new ConcurrentHashMap<Class, Class>(5, 0.75f, 100);
     private static final Map<Class, Service> serviceCache = new ConcurrentHashMap<Class, Service>(5, 0.75f, 100);
+    private static final ThreadLocal<Map<Class, PooledCommand>> commandPool = new ThreadLocal<Map<Class, PooledCommand>>() {
+
+        @Override
+        protected Map<Class, PooledCommand> initialValue() {
+            return new HashMap<Class, PooledCommand>();
+        }
+    };
     private static Map<String, Object> context = null;
     private static String basePath;// = "/opt/structr";
     private static String databasePath;// = "/opt/structr/structr-tfs2/files";
@@ -185,12 +226,78 @@ public class Services {
      * Creates and returns a command of the given <code>type</code>. If a command is
      * found, the corresponding service will be discovered and activated.
      *
+     * Commands implementing {@see StatelessCommand} are reused by the
+     * calling thread as long as their service is running.
+     *
      * @param commandType the runtime type of the desired command
      * @return the command
      * @throws NoSuchCommandException
      */
     public static Command command(Class commandType) {
 
+        if (StatelessCommand.class.isAssignableFrom(commandType)) {
+            return pooledCommand(commandType);
+        }
+
+        return createCommand(commandType);
+    }
+
+    /**
+     * Returns a handle for commands of the given <code>type</code>, which
+     * can be stored and executed many times by any thread.
+     *
+     * @param commandType the runtime type of the desired command
+     * @return the command handle
+     */
+    public static CommandHandle handle(Class commandType) {
+        return new CommandHandle(commandType);
+    }
+
+    /**
+     * Returns the command of the given <code>type</code> from the command
+     * pool of the current thread, creating it if there is no command
+     * bound to the current instance of its service.
+     *
+     * @param commandType
+     * @return
+     */
+    static Command pooledCommand(Class commandType) {
+
+        Map<Class, PooledCommand> pool = commandPool.get();
+        PooledCommand pooled = pool.get(commandType);
+
+        if (pooled != null && pooled.isValid()) {
+            return pooled.command;
+        }
+
+        Command command = createCommand(commandType);
+
+        if (command != null) {
+
+            Class serviceClass = command.getServiceClass();
+            Service service = (serviceClass != null ? serviceCache.get(serviceClass) : null);
+
+            // commands of services that are not cached can't be reused
+            if (serviceClass == null || service != null) {
+                pool.put(commandType, new PooledCommand(command, serviceClass, service));
+            } else {
+                pool.remove(commandType);
+            }
+        }
+
+        return command;
+    }
+
+    /**
+     * Creates a new command of the given <code>type</code> and injects the
+     * arguments of its service, regardless of whether the command is
+     * stateless.
+     *
+     * @param commandType
+     * @return
+     */
+    public static Command createCommand(Class commandType) {
+
         logger.log(Level.FINER, "Creating command ", commandType.getName());
 
         Class serviceClass = null;
@@ -415,6 +522,19 @@ public class Services {
         return service;
     }
 
+    private static boolean isCurrentService(final Class serviceClass, final Service service) {
+
+        if (serviceClass == null) {
+            return true;
+        }
+
+        if (service == null || serviceCache.get(serviceClass) != service) {
+            return false;
+        }
+
+        return !(service instanceof RunnableService) || ((RunnableService) service).isRunning();
+    }
+
     private static String getAbsolutePath(String path) {
         if (path.startsWith("/")) {
             return (path);
@@ -429,4 +549,24 @@ public class Services {
         return (ret.toString());
     }
     // </editor-fold>
+
+    // <editor-fold defaultstate="collapsed" desc="private classes">
+    private static class PooledCommand {
+
+        private final Command command;
+        private final Class serviceClass;
+        private final Service service;
+
+        private PooledCommand(final Command command, final Class serviceClass, final Service service) {
+
+            this.command = command;
+            this.serviceClass = serviceClass;
+            this.service = service;
+        }
+
+        private boolean isValid() {
+            return isCurrentService(serviceClass, service);
+        }
+    }
+    // </editor-fold>
 }
@@ -20,36 +20,41 @@ package org.structr.core.agent;
 
 import java.util.LinkedList;
 import java.util.List;
-import java.util.Queue;
-import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * An experimental interface description for a structr agent.
  * To be discussed..
  *
+ * <p>
+ * Agents are executed by the worker threads of the {@see AgentService},
+ * one task at a time. The service keeps a pool of agents per task type.
+ * While an agent is suspended, the tasks of its type are held back until
+ * it is resumed. As worker threads are shared, killing an agent does not
+ * interrupt its thread; long-running tasks should check {@see #isKilled}
+ * and return early.
+ * </p>
+ *
  * @author cmorgner
  */
-public abstract class Agent extends Thread implements StatusInfo {
+public abstract class Agent implements StatusInfo {
 
     public static final String MAX_QUEUE_SIZE = "max_queue_size";
     public static final String AVERAGE_EXECUTION_TIME = "average_execution_time";
     public static final String EXECUTION_STATUS = "execution_status";
     private final AtomicBoolean acceptingTasks = new AtomicBoolean(true);
     private final AtomicBoolean suspended = new AtomicBoolean(false);
-    private final Queue<Task> taskQueue = new ConcurrentLinkedQueue<Task>();
+    private final AtomicBoolean killed = new AtomicBoolean(false);
     private AgentService agentService = null;
-    private Task currentTask = null;
+    private volatile Task currentTask = null;
     private long averageExecutionTime = 0;
     private long lastStartTime = 0;
-    private int maxQueueSize = 10;
     private int maxAgents = 4;
+    private String name = getClass().getSimpleName();
+    private final TaskMetrics metrics = new TaskMetrics(name);
 
     // <editor-fold defaultstate="expanded" desc="public methods">
     public final void setAgentService(AgentService service) {
-        // NOTE: this is important! We do not want running tasks to die when the
-        // server is going down!
-        this.setDaemon(false);
 
         this.agentService = service;
 
@@ -57,96 +62,67 @@ public abstract class Agent extends Thread implements StatusInfo {
         lastStartTime = System.nanoTime();
     }
 
-    @Override
-    public final void run() {
-        agentService.notifyAgentStart(this);
-
-        do {
-            while (suspended.get()) {
-                Thread.yield();
-            }
-
-            synchronized (taskQueue) {
-                currentTask = taskQueue.poll();
-            }
-
-            if (currentTask != null) {
-                lastStartTime = System.nanoTime();
-                ReturnValue ret = null;
-
-                try {
-                    ret = processTask(currentTask);
-
-                } catch (Throwable t) {
-                    // someone killed us or the task processing failed..
-                }
-
-                if (ret != null) {
-                    // handle return value
-                    switch (ret) {
-                        case Success:
-                        case Abort:
-                            // task finished, nothing to do in these cases
-                            break;
-
-                        case Retry:
-                            // TODO: schedule task for re-execution
-                            break;
-                    }
-                }
+    /**
+     * Process the given task on the calling (worker) thread.
+     *
+     * @param task
+     * @return the return value of {@see #processTask}, or null if
+     * processing failed
+     */
+    public final ReturnValue execute(Task task) {
 
-                long endTime = System.nanoTime();
+        ReturnValue ret = null;
 
-                // calc. average execution time
-                averageExecutionTime += endTime;
-                averageExecutionTime /= 2;
+        long startTime = System.nanoTime();
 
-            } else {
-                // queue is empty, quit.
-                acceptingTasks.set(false);
-            }
+        currentTask = task;
+        lastStartTime = startTime;
 
-        } while (acceptingTasks.get());
+        try {
+            ret = processTask(task);
 
-        agentService.notifyAgentStop(this);
-    }
+        } catch (Throwable t) {
+            // the task processing failed..
+        } finally {
+            currentTask = null;
+        }
 
-    public final boolean assignTask(Task task) {
-        // TODO: do type check here
+        long duration = System.nanoTime() - startTime;
 
-        if (canHandleMore() && acceptingTasks.get()) {
-            synchronized (taskQueue) {
-                taskQueue.add(task);
-            }
+        // exponentially weighted average of the execution time
+        averageExecutionTime = (averageExecutionTime == 0 ? duration : (averageExecutionTime + duration) / 2);
 
-            return (true);
-        }
-
-        return (false);
+        return (ret);
     }
 
     public final Task getCurrentTask() {
         return (currentTask);
     }
 
+    /**
+     * Returns the task this agent is working on, as a list.
+     *
+     * @return
+     */
     public final List<Task> getTaskQueue() {
         List<Task> ret = new LinkedList<Task>();
-        ret.addAll(taskQueue);
+        Task task = currentTask;
+
+        if (task != null) {
+            ret.add(task);
+        }
 
         return (ret);
     }
 
+    /**
+     * Stop accepting tasks and ask the current task to stop. The worker
+     * thread may be running tasks of other agents later, so it is not
+     * interrupted; see {@see #isKilled}.
+     */
     public final void killAgent() {
-        // stop accepting tasks
         acceptingTasks.set(false);
-
-        // clear queue
-        taskQueue.clear();
-
-        // interrupt running process..
-        // not sure if this works... see Thread.interrupt()'s description!
-        // may not work if the processTask method itself catches the interrupt..
-        this.interrupt();
+        killed.set(true);
     }
 
     public final void suspendAgent() {
@@ -156,30 +132,95 @@ public abstract class Agent extends Thread implements StatusInfo {
     }
 
     public final void resumeAgent() {
+
+        // killed agents can not be resumed
+        if (killed.get()) {
+            return;
+        }
+
         acceptingTasks.set(true);
         suspended.set(false);
+
+        // hand over the tasks that were held back while suspended
+        if (agentService != null) {
+            agentService.resumeTasks(getSupportedTaskType());
+        }
     }
 
     public final boolean isSuspended() {
         return (suspended.get());
     }
 
+    /**
+     * Indicates whether this agent was killed. Long-running implementations
+     * of {@see #processTask} should check this regularly and stop early.
+     *
+     * @return
+     */
+    public final boolean isKilled() {
+        return (killed.get());
+    }
+
     public final boolean isAcceptingTasks() {
         return (acceptingTasks.get());
     }
 
     public final int getMaxQueueSize() {
-        return (maxQueueSize);
+        return (agentService != null ? agentService.getQueueCapacity() : 0);
     }
 
+    /**
+     * Returns the weighted average execution time of the recent
+     * tasks, in nanoseconds.
+     *
+     * @return
+     */
     public final long getAverageExecutionTime() {
         return (averageExecutionTime);
     }
 
+    /**
+     * Returns the nanoTime at which the current or last task was started.
+     *
+     * @return
+     */
+    public final long getLastStartTime() {
+        return (lastStartTime);
+    }
+
+    /**
+     * Returns the execution metrics of this agent.
+     *
+     * @return
+     */
+    public final TaskMetrics getMetrics() {
+        return (metrics);
+    }
+
+    /**
+     * Returns the default number of tasks of the supported type that may
+     * be processed concurrently. Can be overridden by configuration,
+     * see {@see AgentService}.
+     *
+     * @return
+     */
     public int getMaxAgents() {
         return (maxAgents);
     }
 
+    public final String getName() {
+        return (name);
+    }
+
+    public final void setName(String name) {
+        this.name = name;
+    }
+
+    @Override
+    public String toString() {
+        return (name);
+    }
+
     // ----- interface StatusInfo -----
     @Override
     public Object getStatusProperty(String key) {
@@ -190,10 +231,14 @@ public abstract class Agent extends Thread implements StatusInfo {
             return (getMaxQueueSize());
 
         } else if (key.equals(EXECUTION_STATUS)) {
-            // TODO.
+            if (isSuspended()) {
+                return ("suspended");
+            }
+
+            return (currentTask != null ? "running" : "idle");
         }
 
-        return (null);
+        return (metrics.getStatusProperty(key));
     }
     // </editor-fold>
 
@@ -203,54 +248,6 @@ public abstract class Agent extends Thread implements StatusInfo {
     }
     // </editor-fold>
 
-    // <editor-fold defaultstate="collapsed" desc="private methods">
-    private boolean canHandleMore() {
-//        return (taskQueue.isEmpty());
-		int size = 0;
-
-		synchronized(taskQueue)
-		{
-			// FIXME: size may not be a constant time operation! slow?
-			size = taskQueue.size();
-		}
-
-		// queue is empty, assume new agent
-		if(size == 0)
-		{
-			return(true);
-		}
-
-		long actualExecutionTime = System.nanoTime() - lastStartTime;
-
-		// calculate thresholds for queue size adaption
-		long upperThreshold = averageExecutionTime + (averageExecutionTime / 2);
-		long lowerThreshold = averageExecutionTime - (averageExecutionTime / 2);
-
-		if(actualExecutionTime > upperThreshold && maxQueueSize > 2)
-		{
-			// FIXME
-
-			maxQueueSize -= 2;
-
-			// do not take the next task
-			return(false);
-
-		} else
-		if(actualExecutionTime < lowerThreshold && maxQueueSize < 200)
-		{
-			// FIXME
-
-			maxQueueSize += 2;
-
-			// can take the next task
-			return(true);
-		}
-
-
-		return(size < maxQueueSize);
-    }
-    // </editor-fold>
-
     // <editor-fold defaultstate="collapsed" desc="abstract methods">
     public abstract Class getSupportedTaskType();
 
@@ -18,36 +18,105 @@
  */
 package org.structr.core.agent;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Iterator;
 import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.Queue;
+import java.util.PriorityQueue;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import org.structr.common.Path;
 import org.structr.core.Command;
 import org.structr.core.RunnableService;
 import org.structr.core.Services;
 import org.structr.core.module.GetAgentsCommand;
 
 /**
+ * Dispatches tasks to agents.
+ *
+ * <p>
+ * Tasks are queued by priority (higher values first, FIFO within the same
+ * priority) and handed to a fixed pool of worker threads by a dispatcher
+ * thread that blocks while the queue is empty. Tasks with a delay are held
+ * back until they are due.
+ * </p>
+ *
+ * <p>
+ * The number of tasks of the same type processed concurrently is limited by
+ * {@see Services#AGENT_CONCURRENCY}<code>.&lt;TaskType&gt;</code>, or
+ * {@see Agent#getMaxAgents} of the responsible agent. Tasks returning
+ * {@see ReturnValue#Retry} are re-queued with exponential backoff, up to
+ * {@see Services#AGENT_MAX_RETRIES} times. When the number of tasks waiting
+ * for execution reaches {@see Services#AGENT_QUEUE_SIZE}, callers of
+ * {@see #processTask} are blocked for up to
+ * {@see Services#AGENT_OFFER_TIMEOUT} milliseconds, after that the task is
+ * rejected.
+ * </p>
+ *
+ * <p>
+ * While an agent of a task type is suspended, the tasks of this type are
+ * held back until the agent is resumed.
+ * </p>
+ *
+ * <p>
+ * Tasks implementing {@see PersistentTask} are written to a
+ * {@see TaskJournal} in the temp directory when queued, and acknowledged
+ * when they are finished, so pending tasks survive a restart or crash and
+ * are queued again when the service starts. A task scheduled for retry is
+ * journaled again, with the state its agent left it in, before the previous
+ * record is acknowledged. Journaling can be disabled by
+ * setting {@see Services#AGENT_JOURNAL} to false.
+ * </p>
  *
  * @author cmorgner
  */
-public class AgentService extends Thread implements RunnableService {
+public class AgentService extends Thread implements RunnableService, StatusInfo {
 
     private static final Logger logger = Logger.getLogger(AgentService.class.getName());
+    public static final int DefaultThreads = 4;
+    public static final int DefaultQueueSize = 1000;
+    public static final long DefaultOfferTimeout = 5000L;
+    public static final int DefaultMaxRetries = 3;
+    public static final long DefaultRetryDelay = 1000L;
+    public static final String QUEUE_SIZE = "queue_size";
+    public static final String QUEUE_CAPACITY = "queue_capacity";
+    public static final String REJECTED_TASKS = "rejected_tasks";
+    private static final String JOURNAL_DIRECTORY = "agent-journal";
     private final Map<Class, List<Agent>> runningAgents = new ConcurrentHashMap<Class, List<Agent>>();
     private final Map<Class, Class> agentClassCache = new ConcurrentHashMap<Class, Class>();
-    private final Queue<Task> taskQueue = new ConcurrentLinkedQueue<Task>();
+    private final Map<Class, TaskType> taskTypes = new ConcurrentHashMap<Class, TaskType>();
+    private final PriorityBlockingQueue<QueuedTask> taskQueue = new PriorityBlockingQueue<QueuedTask>();
+    private final AtomicLong sequence = new AtomicLong(0);
+    private final AtomicLong rejected = new AtomicLong(0);
+    private final Object capacityLock = new Object();
+    private Map<String, Object> context = null;
     private Set<Class> supportedCommands = null;
-    private boolean run = false;
-    private int maxAgents = 4;  // TODO: make configurable
+    private ExecutorService workers = null;
+    private ScheduledExecutorService scheduler = null;
+    private TaskJournal journal = null;
+    private volatile boolean run = false;
+    private int waitingTasks = 0;
+    private int threads = DefaultThreads;
+    private int queueCapacity = DefaultQueueSize;
+    private long offerTimeout = DefaultOfferTimeout;
+    private int maxRetries = DefaultMaxRetries;
+    private long retryDelay = DefaultRetryDelay;
 
     public AgentService() {
         super("AgentService");
@@ -56,18 +125,44 @@ public class AgentService extends Thread implements RunnableService {
         supportedCommands.add(ProcessTaskCommand.class);
     }
 
-    public void processTask(Task task) {
-        synchronized (taskQueue) {
-            logger.log(Level.INFO, "Task {0} added to task queue", task);
-            taskQueue.add(task);
+    /**
+     * Queue the given task for execution. Blocks while the queue is full,
+     * for at most the configured offer timeout.
+     *
+     * @param task
+     * @return true if the task was queued, false if it was rejected
+     */
+    public boolean processTask(Task task) {
+
+        if (!reserve(offerTimeout)) {
+            rejected.incrementAndGet();
+            logger.log(Level.WARNING, "Task queue full ({0} tasks), rejecting task {1}", new Object[]{queueCapacity, task});
+            return (false);
         }
+
+        long journalId = -1;
+
+        if (journal != null && task instanceof PersistentTask) {
+
+            try {
+                journalId = journal.append((PersistentTask) task);
+
+            } catch (IOException ioex) {
+                logger.log(Level.WARNING, "Could not journal task {0}: {1}", new Object[]{task, ioex.getMessage()});
+            }
+        }
+
+        logger.log(Level.FINE, "Task {0} added to task queue", task);
+        taskQueue.add(new QueuedTask(task, 0, sequence.incrementAndGet(), journalId));
+
+        return (true);
     }
 
     public Agent findAgentForTask(Task task) {
         List<Agent> agents = getRunningAgentsForTask(task.getClass());
         synchronized (agents) {
             for (Agent agent : agents) {
-                if (agent.getTaskQueue().contains(task)) {
+                if (agent.getCurrentTask() == task) {
                     return (agent);
                 }
             }
@@ -77,11 +172,111 @@ public class AgentService extends Thread implements RunnableService {
     }
 
     /**
-     * Returns the current queue of remaining tasks.
+     * Returns a snapshot of the tasks waiting for execution.
      * @return
      */
     public Collection<Task> getTaskQueue() {
-        return (taskQueue);
+
+        List<Task> ret = new LinkedList<Task>();
+
+        for (QueuedTask queuedTask : taskQueue) {
+            ret.add(queuedTask.task);
+        }
+
+        for (TaskType type : taskTypes.values()) {
+            synchronized (type) {
+                for (QueuedTask queuedTask : type.waiting) {
+                    ret.add(queuedTask.task);
+                }
+
+                for (QueuedTask queuedTask : type.suspended) {
+                    ret.add(queuedTask.task);
+                }
+            }
+        }
+
+        return (ret);
+    }
+
+    /**
+     * Returns the number of tasks waiting for execution, including
+     * delayed tasks and tasks scheduled for retry.
+     *
+     * @return
+     */
+    public int getQueueSize() {
+        synchronized (capacityLock) {
+            return (waitingTasks);
+        }
+    }
+
+    public int getQueueCapacity() {
+        return (queueCapacity);
+    }
+
+    /**
+     * Returns the execution metrics of all task types seen so far.
+     *
+     * @return
+     */
+    public List<TaskMetrics> getTaskMetrics() {
+
+        List<TaskMetrics> ret = new LinkedList<TaskMetrics>();
+
+        for (TaskType type : taskTypes.values()) {
+            ret.add(type.metrics);
+        }
+
+        return (ret);
+    }
+
+    /**
+     * Queue the tasks of the given type that were held back while an
+     * agent was suspended, unless another agent of this type is still
+     * suspended.
+     *
+     * @param taskClass
+     */
+    void resumeTasks(final Class taskClass) {
+
+        TaskType type = taskTypes.get(taskClass);
+
+        if (type == null) {
+            return;
+        }
+
+        List<QueuedTask> resumedTasks = new LinkedList<QueuedTask>();
+
+        synchronized (type) {
+
+            if (isSuspended(taskClass)) {
+                return;
+            }
+
+            resumedTasks.addAll(type.suspended);
+            type.suspended.clear();
+        }
+
+        for (QueuedTask queuedTask : resumedTasks) {
+            taskQueue.add(queuedTask);
+        }
+    }
+
+    // ----- interface StatusInfo -----
+    @Override
+    public Object getStatusProperty(String key) {
+
+        if (QUEUE_SIZE.equals(key)) {
+            return (getQueueSize());
+
+        } else if (QUEUE_CAPACITY.equals(key)) {
+            return (getQueueCapacity());
+
+        } else if (REJECTED_TASKS.equals(key)) {
+            return (rejected.get());
+        }
+
+        return (null);
     }
 
     /**
@@ -94,43 +289,25 @@ public class AgentService extends Thread implements RunnableService {
 
     @Override
     public void run() {
-        // FIXME: use logger here..
-        // System.out.println("AgentService.run(): started");
-        logger.log(Level.INFO, "AgentService started");
+        logger.log(Level.INFO, "AgentService started ({0} worker threads)", threads);
 
         while (run) {
-            Task nextTask = null;
 
-            synchronized (taskQueue) {
-                nextTask = taskQueue.poll();
+            try {
+                QueuedTask nextTask = taskQueue.poll(1, TimeUnit.SECONDS);
 
                 if (nextTask != null) {
-                    assignNextAgentForTask(nextTask);
+                    dispatch(nextTask);
                 }
 
-                // sleep a bit waiting for tasks..
-                try {
-                    Thread.sleep(10);
-
-                } catch (Exception ex) {
-                }
+            } catch (InterruptedException iex) {
+                // stopService() was called
+            } catch (Throwable t) {
+                logger.log(Level.SEVERE, "Error while dispatching task", t);
             }
         }
-    }
-
-    public void notifyAgentStart(Agent agent) {
-        List<Agent> agents = getRunningAgentsForTask(agent.getSupportedTaskType());
-        synchronized (agents) {
-            agents.add(agent);
-        }
-    }
-
-    public void notifyAgentStop(Agent agent) {
-        List<Agent> agents = getRunningAgentsForTask(agent.getSupportedTaskType());
 
-        synchronized (agents) {
-            agents.remove(agent);
-        }
+        logger.log(Level.INFO, "AgentService stopped, {0} tasks left in queue", getQueueSize());
     }
 
     // <editor-fold defaultstate="collapsed" desc="interface RunnableService">
@@ -146,90 +323,459 @@ public class AgentService extends Thread implements RunnableService {
 
     @Override
     public void initialize(Map<String, Object> context) {
+
+        this.context = context;
+
+        threads = Math.max(parseInt(Services.AGENT_THREADS, DefaultThreads), 1);
+        queueCapacity = Math.max(parseInt(Services.AGENT_QUEUE_SIZE, DefaultQueueSize), 1);
+        offerTimeout = Math.max(parseLong(Services.AGENT_OFFER_TIMEOUT, DefaultOfferTimeout), 0);
+        maxRetries = Math.max(parseInt(Services.AGENT_MAX_RETRIES, DefaultMaxRetries), 0);
+        retryDelay = Math.max(parseLong(Services.AGENT_RETRY_DELAY, DefaultRetryDelay), 0);
+
+        // NOTE: worker threads are not daemon threads. We do not want running
+        // tasks to die when the server is going down!
+        workers = Executors.newFixedThreadPool(threads, new NamedThreadFactory("AgentService-worker", false));
+        scheduler = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("AgentService-scheduler", true));
+
+        if (!"false".equals(Services.getConfigValue(context, Services.AGENT_JOURNAL, "true"))) {
+
+            long syncInterval = parseLong(Services.AGENT_JOURNAL_SYNC_INTERVAL, TaskJournal.DefaultSyncInterval);
+            journal = new TaskJournal(new File(Services.getFilePath(Path.Temp, JOURNAL_DIRECTORY)), syncInterval, TaskJournal.DefaultSegmentSize);
+        }
     }
 
     @Override
     public void shutdown() {
+
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+
+        if (workers != null) {
+            // running tasks are allowed to finish
+            workers.shutdown();
+        }
+
+        if (journal != null) {
+            // unfinished tasks will be restored on next start
+            journal.close();
+        }
     }
 
     @Override
     public void startService() {
         run = true;
+
+        if (journal != null) {
+
+            try {
+                Map<Long, PersistentTask> pendingTasks = journal.open();
+
+                for (Map.Entry<Long, PersistentTask> entry : pendingTasks.entrySet()) {
+
+                    // restored tasks are not subject to back-pressure
+                    synchronized (capacityLock) {
+                        waitingTasks++;
+                    }
+
+                    taskQueue.add(new QueuedTask(entry.getValue(), 0, sequence.incrementAndGet(), entry.getKey()));
+                }
+
+            } catch (IOException ioex) {
+                logger.log(Level.SEVERE, "Could not open task journal, tasks will not be persisted", ioex);
+                journal = null;
+            }
+        }
+
         this.start();
     }
 
     @Override
     public void stopService() {
         run = false;
+        this.interrupt();
     }
     // </editor-fold>
 
     // <editor-fold defaultstate="collapsed" desc="private methods">
-    private void assignNextAgentForTask(Task nextTask) {
-        Class taskClass = nextTask.getClass();
-        List<Agent> agents = getRunningAgentsForTask(taskClass);
+    /**
+     * Start the given task if the concurrency limit of its type allows,
+     * park it otherwise.
+     */
+    private void dispatch(final QueuedTask queuedTask) {
 
-        // need to synchronize on agents
-        synchronized (agents) {
-            // find next free agent (agents should be sorted by load, so one
-            // of the first should do..
+        long delay = queuedTask.task.getDelay(TimeUnit.MILLISECONDS);
 
-            for (Agent agent : agents) {
+        if (delay > 0) {
+            schedule(queuedTask, delay);
+            return;
+        }
+
+        TaskType type = getTaskType(queuedTask.task.getClass());
 
-                if (agent.assignTask(nextTask)) {
-                    // ok, task is assigned
-                    logger.log(Level.INFO, "Task assigned to agent {0}", agent.getName());
+        synchronized (type) {
+
+            if (type.running >= type.limit) {
+                type.waiting.add(queuedTask);
+                return;
+            }
 
-                    return;
+            type.running++;
+        }
+
+        submit(type, queuedTask);
+    }
+
+    private void submit(final TaskType type, final QueuedTask queuedTask) {
+
+        try {
+            workers.execute(new Runnable() {
+
+                @Override
+                public void run() {
+                    work(type, queuedTask);
                 }
+            });
+
+        } catch (RejectedExecutionException rex) {
+
+            synchronized (type) {
+                type.running--;
             }
+
+            logger.log(Level.WARNING, "AgentService is shutting down, task {0} not executed", queuedTask.task);
         }
+    }
+
+    /**
+     * Process the given task, then the tasks of the same type that were
+     * parked in the meantime, on the calling worker thread.
+     */
+    private void work(final TaskType type, final QueuedTask firstTask) {
+
+        QueuedTask queuedTask = firstTask;
+
+        while (queuedTask != null) {
 
-        // FIXME: find better solution for hard limit here!
-        if (agents.size() < maxAgents) {
+            release();
 
-            // if we get here, task was not assigned to any agent, need to
-            // create a new one.
-            Agent agent = createAgent(nextTask);
+            Agent agent = null;
+            boolean held = false;
 
-            if (agent != null && agent.assignTask(nextTask)) {
+            synchronized (type) {
+
+                // a suspended agent pauses the processing of its task type
+                if (isSuspended(queuedTask.task.getClass())) {
+
+                    type.suspended.add(queuedTask);
+                    held = true;
+
+                    // held tasks are still waiting, they were accepted before
+                    synchronized (capacityLock) {
+                        waitingTasks++;
+                    }
+
+                } else {
+                    agent = takeIdleAgent(type);
+                }
+            }
+
+            if (!held && agent == null) {
+                agent = createAgent(queuedTask.task);
+            }
+
+            if (held) {
+
+                logger.log(Level.FINE, "Agent for task {0} is suspended, holding task back", queuedTask.task);
+
+            } else if (agent == null) {
+
+                logger.log(Level.SEVERE, "No agent found for task {0}, dropping task", queuedTask.task);
+                acknowledge(queuedTask);
 
-                agent.start();
             } else {
 
-                // re-add task..
-                synchronized (taskQueue) {
-                    taskQueue.add(nextTask);
+                ReturnValue ret = null;
+                long startTime = System.nanoTime();
+
+                try {
+                    ret = agent.execute(queuedTask.task);
+
+                } finally {
+                    releaseAgent(type, agent);
+                }
+
+                long latency = System.nanoTime() - startTime;
+                long queueWait = startTime - queuedTask.queuedAt;
+
+                type.metrics.record(queueWait, latency, ret);
+                agent.getMetrics().record(queueWait, latency, ret);
+
+                if (ret == null) {
+                    logger.log(Level.WARNING, "Task {0} failed", queuedTask.task);
+                }
+
+                // tasks of killed agents are not retried
+                if (!ReturnValue.Retry.equals(ret) || agent.isKilled() || !retry(queuedTask)) {
+                    acknowledge(queuedTask);
+                }
+            }
+
+            synchronized (type) {
+
+                queuedTask = (run ? type.waiting.poll() : null);
+
+                if (queuedTask == null) {
+                    type.running--;
+                }
+            }
+        }
+    }
+
+    /**
+     * Schedule the given task for another attempt.
+     *
+     * @return false if the task has no attempts left
+     */
+    private boolean retry(final QueuedTask queuedTask) {
+
+        int attempt = queuedTask.attempt + 1;
+
+        if (attempt > maxRetries) {
+            logger.log(Level.WARNING, "Task {0} failed after {1} retries, giving up", new Object[]{queuedTask.task, maxRetries});
+            return (false);
+        }
+
+        // exponential backoff, capped to avoid overflow
+        long delay = retryDelay << Math.min(attempt - 1, 16);
+
+        logger.log(Level.INFO, "Retrying task {0} in {1} ms (attempt {2} of {3})", new Object[]{queuedTask.task, delay, attempt, maxRetries});
+
+        // retries are not subject to back-pressure, they were accepted before
+        synchronized (capacityLock) {
+            waitingTasks++;
+        }
+
+        schedule(new QueuedTask(queuedTask.task, attempt, sequence.incrementAndGet(), rejournal(queuedTask)), delay);
+
+        return (true);
+    }
+
+    /**
+     * Journal the current state of the given task, which may have been
+     * changed by the agent for the next attempt (e.g. to resume from a
+     * checkpoint), and acknowledge the previous record.
+     *
+     * @return the journal id of the new record, or the previous one if the
+     * task could not be journaled again
+     */
+    private long rejournal(final QueuedTask queuedTask) {
+
+        if (journal == null || queuedTask.journalId < 0 || !(queuedTask.task instanceof PersistentTask)) {
+            return (queuedTask.journalId);
+        }
+
+        try {
+            long journalId = journal.append((PersistentTask) queuedTask.task);
+
+            // the new record is written first, so the task is never lost
+            journal.ack(queuedTask.journalId);
+
+            return (journalId);
+
+        } catch (IOException ioex) {
+            logger.log(Level.WARNING, "Could not journal task {0} for retry: {1}", new Object[]{queuedTask.task, ioex.getMessage()});
+        }
+
+        return (queuedTask.journalId);
+    }
+
+    private void acknowledge(final QueuedTask queuedTask) {
+
+        if (journal != null && queuedTask.journalId >= 0) {
+            journal.ack(queuedTask.journalId);
+        }
+    }
+
+    private void schedule(final QueuedTask queuedTask, final long delay) {
+
+        try {
+            scheduler.schedule(new Runnable() {
+
+                @Override
+                public void run() {
+                    taskQueue.add(queuedTask);
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+
+        } catch (RejectedExecutionException rex) {
+            logger.log(Level.WARNING, "AgentService is shutting down, task {0} not scheduled", queuedTask.task);
+        }
+    }
+
+    /**
+     * Reserve a place in the queue, waiting at most <code>timeout</code>
+     * milliseconds for a free place.
+     */
+    private boolean reserve(final long timeout) {
+
+        long deadline = System.currentTimeMillis() + timeout;
+
+        synchronized (capacityLock) {
+
+            while (waitingTasks >= queueCapacity) {
+
+                long remaining = deadline - System.currentTimeMillis();
+
+                if (remaining <= 0) {
+                    return (false);
+                }
+
+                try {
+                    capacityLock.wait(remaining);
+
+                } catch (InterruptedException iex) {
+                    Thread.currentThread().interrupt();
+                    return (false);
+                }
+            }
+
+            waitingTasks++;
+        }
+
+        return (true);
+    }
+
+    private void release() {
+
+        synchronized (capacityLock) {
+            waitingTasks--;
+            capacityLock.notifyAll();
+        }
+    }
+
+    /**
+     * Indicates whether an agent for the given task type is suspended.
+     */
+    private boolean isSuspended(final Class taskClass) {
+
+        List<Agent> agents = getRunningAgentsForTask(taskClass);
+
+        synchronized (agents) {
+
+            for (Agent agent : agents) {
+
+                if (agent.isSuspended()) {
+                    return (true);
                 }
+            }
+        }
+
+        return (false);
+    }
+
+    /**
+     * Take an idle agent that accepts tasks from the pool of the given
+     * type. Must be called while holding the lock of the type.
+     */
+    private Agent takeIdleAgent(final TaskType type) {
+
+        Iterator<Agent> it = type.idle.iterator();
+
+        while (it.hasNext()) {
+
+            Agent agent = it.next();
+
+            if (agent.isAcceptingTasks()) {
+                it.remove();
+                return (agent);
+            }
+        }
+
+        return (null);
+    }
+
+    private void releaseAgent(final TaskType type, final Agent agent) {
 
+        // killed agents are discarded, suspended agents stay in the pool
+        if (agent.isKilled()) {
+
+            List<Agent> agents = getRunningAgentsForTask(agent.getSupportedTaskType());
+
+            synchronized (agents) {
+                agents.remove(agent);
             }
 
-        } else {
+            return;
+        }
+
+        synchronized (type) {
+            type.idle.add(agent);
+        }
+    }
+
+    private TaskType getTaskType(final Class taskClass) {
+
+        TaskType type = taskTypes.get(taskClass);
+
+        if (type == null) {
+
+            int limit = 1;
+            Object value = (context != null ? context.get(Services.AGENT_CONCURRENCY.concat(".").concat(taskClass.getSimpleName())) : null);
+
+            if (value != null) {
 
-            logger.log(Level.FINE, "Overall agents limit readed, re-queueing task");
-            // re-add task..
-            synchronized (taskQueue) {
-                taskQueue.add(nextTask);
+                try {
+                    limit = Integer.parseInt(value.toString());
+
+                } catch (Throwable t) {
+                    logger.log(Level.WARNING, "Invalid concurrency limit {0} for {1}", new Object[]{value, taskClass.getSimpleName()});
+                }
+
+            } else {
+
+                Class agentClass = lookupAgentClass(taskClass);
+
+                if (agentClass != null) {
+
+                    try {
+                        limit = ((Agent) agentClass.newInstance()).getMaxAgents();
+
+                    } catch (Throwable t) {
+                    }
+                }
             }
+
+            type = new TaskType(taskClass.getSimpleName(), Math.max(limit, 1));
+
+            // only the dispatcher thread creates task types
+            taskTypes.put(taskClass, type);
         }
+
+        return (type);
     }
 
     private List<Agent> getRunningAgentsForTask(Class taskClass) {
         List<Agent> agents = runningAgents.get(taskClass);
 
         if (agents == null) {
-            agents = Collections.synchronizedList(new LinkedList<Agent>());
 
-            // Hashtable is synchronized
-            runningAgents.put(taskClass, agents);
+            synchronized (runningAgents) {
+
+                agents = runningAgents.get(taskClass);
+
+                if (agents == null) {
+                    agents = Collections.synchronizedList(new LinkedList<Agent>());
+                    runningAgents.put(taskClass, agents);
+                }
+            }
         }
 
         return (agents);
     }
 
     /**
-     * Creates a new agent for the given Task. Note that the agent must be
-     * started manually after creation.
+     * Creates a new agent for the given Task.
      *
      * @param forTask
      * @return a new agent for the given task
@@ -243,6 +789,12 @@ public class AgentService extends Thread implements RunnableService {
             if (agent != null) {
                 // register us in agent..
                 agent.setAgentService(this);
+
+                List<Agent> agents = getRunningAgentsForTask(forTask.getClass());
+
+                synchronized (agents) {
+                    agents.add(agent);
+                }
             }
 
         } catch (Exception ex) {
@@ -253,9 +805,22 @@ public class AgentService extends Thread implements RunnableService {
     }
 
     private Agent lookupAgent(Task task) {
-        Class taskClass = task.getClass();
         Agent agent = null;
+        Class agentClass = lookupAgentClass(task.getClass());
+
+        if (agentClass != null) {
+            try {
+                agent = (Agent) agentClass.newInstance();
+
+            } catch (IllegalAccessException iaex) {
+            } catch (InstantiationException itex) {
+            }
+        }
+
+        return (agent);
+    }
 
+    private Class lookupAgentClass(Class taskClass) {
         Class agentClass = agentClassCache.get(taskClass);
 
         // cache miss
@@ -283,16 +848,101 @@ public class AgentService extends Thread implements RunnableService {
             }
         }
 
-        if (agentClass != null) {
-            try {
-                agent = (Agent) agentClass.newInstance();
+        return (agentClass);
+    }
 
-            } catch (IllegalAccessException iaex) {
-            } catch (InstantiationException itex) {
+    private int parseInt(final String key, final int defaultValue) {
+
+        try {
+            return Integer.parseInt(Services.getConfigValue(context, key, Integer.toString(defaultValue)));
+
+        } catch (Throwable t) {
+            return defaultValue;
+        }
+    }
+
+    private long parseLong(final String key, final long defaultValue) {
+
+        try {
+            return Long.parseLong(Services.getConfigValue(context, key, Long.toString(defaultValue)));
+
+        } catch (Throwable t) {
+            return defaultValue;
+        }
+    }
+    // </editor-fold>
+
+    // <editor-fold defaultstate="collapsed" desc="private classes">
+    /**
+     * A task waiting for execution, ordered by priority (highest first)
+     * and queueing order.
+     */
+    private static class QueuedTask implements Comparable<QueuedTask> {
+
+        private final Task task;
+        private final int attempt;
+        private final long sequence;
+        private final long journalId;
+        private final long queuedAt = System.nanoTime();
+
+        private QueuedTask(final Task task, final int attempt, final long sequence, final long journalId) {
+            this.task = task;
+            this.attempt = attempt;
+            this.sequence = sequence;
+            this.journalId = journalId;
+        }
+
+        @Override
+        public int compareTo(QueuedTask other) {
+
+            int p1 = task.priority();
+            int p2 = other.task.priority();
+
+            if (p1 != p2) {
+                return (p1 > p2 ? -1 : 1);
             }
+
+            return (sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1));
         }
+    }
 
-        return (agent);
+    /**
+     * Per task type state, guarded by the instance itself.
+     */
+    private static class TaskType {
+
+        private final int limit;
+        private final TaskMetrics metrics;
+        private final PriorityQueue<QueuedTask> waiting = new PriorityQueue<QueuedTask>();
+        private final List<Agent> idle = new LinkedList<Agent>();
+        private final List<QueuedTask> suspended = new LinkedList<QueuedTask>();
+        private int running = 0;
+
+        private TaskType(final String name, final int limit) {
+            this.limit = limit;
+            this.metrics = new TaskMetrics(name);
+        }
+    }
+
+    private static class NamedThreadFactory implements ThreadFactory {
+
+        private final AtomicInteger count = new AtomicInteger(0);
+        private final String prefix;
+        private final boolean daemon;
+
+        private NamedThreadFactory(final String prefix, final boolean daemon) {
+            this.prefix = prefix;
+            this.daemon = daemon;
+        }
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+
+            Thread thread = new Thread(runnable, prefix + "-" + count.incrementAndGet());
+            thread.setDaemon(daemon);
+
+            return (thread);
+        }
     }
     // </editor-fold>
 }
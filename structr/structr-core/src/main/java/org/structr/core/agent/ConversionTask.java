@@ -20,6 +20,8 @@ package org.structr.core.agent;
 
 import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.Delayed;
 import java.util.concurrent.TimeUnit;
@@ -32,12 +34,15 @@ import org.structr.core.entity.User;
  *
  * @author amorgner
  */
-public class ConversionTask implements Task {
+public class ConversionTask implements PersistentTask {
 
     private User user;
     private AbstractNode sourceNode;
     private Class targetNodeClass;
 
+    public ConversionTask() {
+    }
+
     public ConversionTask(final User user, final AbstractNode sourceNode, final Class targetNodeClass) {
         this.user = user;
         this.sourceNode = sourceNode;
@@ -110,6 +115,46 @@ public class ConversionTask implements Task {
         return (d1.compareTo(d2));
     }
 
+    // ----- interface PersistentTask -----
+    @Override
+    public Map<String, String> getParameters() {
+        Map<String, String> parameters = new HashMap<String, String>();
+
+        if (user != null) {
+            parameters.put("user", user.getIdString());
+        }
+
+        if (sourceNode != null) {
+            parameters.put("sourceNode", sourceNode.getIdString());
+        }
+
+        if (targetNodeClass != null) {
+            parameters.put("targetNodeClass", targetNodeClass.getName());
+        }
+
+        return parameters;
+    }
+
+    @Override
+    public void setParameters(Map<String, String> parameters) {
+        AbstractNode userNode = TaskJournal.findNode(parameters.get("user"));
+
+        user = (userNode instanceof User ? (User) userNode : null);
+        sourceNode = TaskJournal.findNode(parameters.get("sourceNode"));
+
+        String className = parameters.get("targetNodeClass");
+
+        if (className != null) {
+
+            try {
+                targetNodeClass = Class.forName(className);
+
+            } catch (ClassNotFoundException cnfex) {
+                throw new IllegalStateException("Unknown target node class " + className);
+            }
+        }
+    }
+
     // ----- interface StatusInfo -----
     @Override
     public Object getStatusProperty(String key) {
@@ -20,6 +20,8 @@
 package org.structr.core.agent;
 
 import java.util.Collection;
+import java.util.LinkedList;
+import java.util.List;
 
 /**
  * Returns a collection of the currently running agents.
@@ -37,7 +39,15 @@ public class ListAgentsCommand extends AgentServiceCommand
 
 		if(agentService != null)
 		{
-			agentService.getRunningAgents();
+			ret = new LinkedList<Agent>();
+
+			for(List<Agent> agents : agentService.getRunningAgents().values())
+			{
+				synchronized(agents)
+				{
+					ret.addAll(agents);
+				}
+			}
 		}
 
 		return(ret);
@@ -0,0 +1,45 @@
+/*
+ *  Copyright (C) 2011 Axel Morgner, structr <structr@structr.org>
+ * 
+ *  This file is part of structr <http://structr.org>.
+ * 
+ *  structr is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ * 
+ *  structr is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ * 
+ *  You should have received a copy of the GNU General Public License
+ *  along with structr.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.structr.core.agent;
+
+import java.util.Map;
+
+/**
+ * A task that can be written to the {@see TaskJournal} and restored after
+ * a restart. Implementations need a public no-arg constructor.
+ *
+ * @author amorgner
+ */
+public interface PersistentTask extends Task {
+
+    /**
+     * Returns the parameters needed to restore this task.
+     *
+     * @return
+     */
+    public Map<String, String> getParameters();
+
+    /**
+     * Restores this task from the given parameters. Called on
+     * a fresh instance created by the no-arg constructor.
+     *
+     * @param parameters
+     */
+    public void setParameters(Map<String, String> parameters);
+}
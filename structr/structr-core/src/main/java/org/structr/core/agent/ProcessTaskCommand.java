@@ -20,6 +20,8 @@
 package org.structr.core.agent;
 
 /**
+ * Queues one or more tasks for execution. Returns false if at least
+ * one task was rejected because the task queue is full.
  *
  * @author cmorgner
  */
@@ -29,6 +31,7 @@ public class ProcessTaskCommand extends AgentServiceCommand
 	public Object execute(Object... parameters)
 	{
 		AgentService agentService = (AgentService)arguments.get("agentService");
+		boolean accepted = true;
 
 		if(agentService != null)
 		{
@@ -37,12 +40,12 @@ public class ProcessTaskCommand extends AgentServiceCommand
 				if(o instanceof Task)
 				{
 					Task task = (Task)o;
-					agentService.processTask(task);
+					accepted &= agentService.processTask(task);
 				}
 
 			}
 		}
 
-		return(null);
+		return(accepted);
 	}
 }
@@ -18,31 +18,75 @@
  */
 package org.structr.core.agent;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import org.apache.commons.io.FileUtils;
 import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.NotFoundException;
+import org.neo4j.graphdb.Transaction;
+import org.structr.common.Path;
 import org.structr.core.Command;
 import org.structr.core.Services;
-import org.structr.core.entity.AbstractNode;
-import org.structr.core.node.GetAllNodes;
 import org.structr.core.node.GraphDatabaseCommand;
 import org.structr.core.node.IndexNodeCommand;
-import org.structr.core.node.StructrTransaction;
-import org.structr.core.node.TransactionCommand;
 
 /**
+ * Rebuilds the node index.
+ *
+ * <p>
+ * All nodes are streamed in id order and split into chunks, which are
+ * indexed in parallel, each chunk in its own transaction. After each
+ * chunk, the highest node id below which all chunks are done is written
+ * to a checkpoint file, so an interrupted rebuild can be resumed (see
+ * {@see RebuildIndexTask#isResume}).
+ * </p>
+ *
+ * <p>
+ * Progress, throughput and estimated time to completion are available
+ * through {@see #getStatusProperty}.
+ * </p>
  *
  * @author amorgner
  */
 public class RebuildIndexAgent extends Agent {
 
     private static final Logger logger = Logger.getLogger(RebuildIndexAgent.class.getName());
+    public static final String PROCESSED_NODES = "processed_nodes";
+    public static final String TOTAL_NODES = "total_nodes";
+    public static final String THROUGHPUT = "throughput";
+    public static final String ETA = "eta";
+    public static final int DefaultChunkSize = 1000;
+    private static final String CHECKPOINT_FILE = "rebuildindex.checkpoint";
+    private final AtomicLong processedNodes = new AtomicLong(0);
+    private volatile long totalNodes = 0;
+    private volatile long startTime = 0;
 
     public RebuildIndexAgent() {
         setName("RebuildIndexAgent");
     }
 
+    /**
+     * Rebuilds are parallelized internally, so only one
+     * rebuild task is processed at a time.
+     */
+    @Override
+    public int getMaxAgents() {
+        return (1);
+    }
+
     @Override
     public Class getSupportedTaskType() {
         return (RebuildIndexTask.class);
@@ -53,43 +97,325 @@ public class RebuildIndexAgent extends Agent {
 
         if (task instanceof RebuildIndexTask) {
 
+            RebuildIndexTask rebuildIndexTask = (RebuildIndexTask) task;
+
             long t0 = System.currentTimeMillis();
             logger.log(Level.INFO, "Starting rebuilding index ...");
 
-            long nodes = rebuildIndex();
+            boolean complete = rebuildIndex(rebuildIndexTask.isResume());
 
             long t1 = System.currentTimeMillis();
-            logger.log(Level.INFO, "Rebuilding index finished, {0} nodes processed in {1} s", new Object[]{nodes, (t1 - t0) / 1000});
+
+            if (!complete) {
+
+                logger.log(Level.WARNING, "Rebuilding index incomplete, {0} nodes processed in {1} s", new Object[]{processedNodes.get(), (t1 - t0) / 1000});
+
+                // the next attempt continues from the checkpoint
+                rebuildIndexTask.setResume(true);
+
+                return (ReturnValue.Retry);
+            }
+
+            logger.log(Level.INFO, "Rebuilding index finished, {0} nodes processed in {1} s", new Object[]{processedNodes.get(), (t1 - t0) / 1000});
 
         }
 
         return (ReturnValue.Success);
     }
 
-    private long rebuildIndex() {
+    // ----- interface StatusInfo -----
+    @Override
+    public Object getStatusProperty(String key) {
+
+        if (key.equals(PROCESSED_NODES)) {
+            return (processedNodes.get());
+
+        } else if (key.equals(TOTAL_NODES)) {
+            return (totalNodes);
+
+        } else if (key.equals(THROUGHPUT)) {
+            return (getThroughput());
+
+        } else if (key.equals(ETA)) {
+
+            double throughput = getThroughput();
+            long remaining = totalNodes - processedNodes.get();
+
+            // estimated time to completion in seconds
+            return (throughput > 0 && remaining > 0 ? (long) (remaining / throughput) : 0L);
+        }
+
+        return (super.getStatusProperty(key));
+    }
+
+    // <editor-fold defaultstate="collapsed" desc="private methods">
+    /**
+     * @return true if all nodes were indexed
+     */
+    private boolean rebuildIndex(final boolean resume) {
+
+        final GraphDatabaseService graphDb = (GraphDatabaseService) Services.command(GraphDatabaseCommand.class).execute();
+
+        if (graphDb == null) {
+            logger.log(Level.SEVERE, "Database not available, index not rebuilt");
+            return false;
+        }
+
+        int chunkSize = parseConfigValue(Services.REBUILD_INDEX_CHUNK_SIZE, DefaultChunkSize);
+        int threads = parseConfigValue(Services.REBUILD_INDEX_THREADS, Runtime.getRuntime().availableProcessors());
+
+        long checkpoint = -1;
+
+        if (resume) {
+            checkpoint = readCheckpoint();
+
+            if (checkpoint >= 0) {
+                logger.log(Level.INFO, "Resuming index rebuild after node {0}", checkpoint);
+            }
+
+        } else {
+            deleteCheckpoint();
+        }
+
+        // count nodes to process (cheap, no properties are loaded)
+        long total = 0;
+        for (Node node : graphDb.getAllNodes()) {
+            if (node.getId() > checkpoint) {
+                total++;
+            }
+        }
+
+        totalNodes = total;
+        processedNodes.set(0);
+        startTime = System.currentTimeMillis();
+
+        logger.log(Level.INFO, "Rebuilding index for {0} nodes ({1} threads, {2} nodes per transaction)", new Object[]{total, threads, chunkSize});
+
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        final Semaphore inFlight = new Semaphore(threads * 2);
+        final CheckpointTracker tracker = new CheckpointTracker(checkpoint);
+        final AtomicBoolean failed = new AtomicBoolean(false);
+
+        int sequence = 0;
+        List<Long> chunk = new ArrayList<Long>(chunkSize);
+
+        try {
+
+            for (Node node : graphDb.getAllNodes()) {
+
+                // stop submitting chunks, the submitted ones are finished below
+                if (isKilled()) {
+
+                    logger.log(Level.WARNING, "Index rebuild killed after {0} nodes", processedNodes.get());
+                    failed.set(true);
+                    break;
+                }
+
+                long id = node.getId();
+
+                if (id <= checkpoint) {
+                    continue;
+                }
+
+                chunk.add(id);
+
+                if (chunk.size() == chunkSize) {
+
+                    submitChunk(executor, inFlight, graphDb, tracker, failed, sequence++, chunk);
+                    chunk = new ArrayList<Long>(chunkSize);
+                }
+            }
+
+            if (!chunk.isEmpty() && !isKilled()) {
+                submitChunk(executor, inFlight, graphDb, tracker, failed, sequence++, chunk);
+            }
+
+            executor.shutdown();
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+
+        } catch (InterruptedException iex) {
+
+            logger.log(Level.WARNING, "Index rebuild interrupted after {0} nodes, can be resumed after node {1}", new Object[]{processedNodes.get(), tracker.getCheckpoint()});
+            executor.shutdownNow();
+            return false;
+        }
+
+        if (failed.get()) {
+
+            logger.log(Level.WARNING, "Index rebuild incomplete, can be resumed after node {0}", tracker.getCheckpoint());
+            return false;
+        }
+
+        deleteCheckpoint();
+
+        return true;
+    }
+
+    private void submitChunk(final ExecutorService executor, final Semaphore inFlight, final GraphDatabaseService graphDb,
+            final CheckpointTracker tracker, final AtomicBoolean failed, final int sequence, final List<Long> chunk) throws InterruptedException {
 
+        // limit the number of chunks waiting in memory
+        inFlight.acquire();
 
-        Command transactionCommand = Services.command(TransactionCommand.class);
-        Long nodes = (Long) transactionCommand.execute(new StructrTransaction() {
+        executor.execute(new Runnable() {
 
             @Override
-            public Object execute() throws Throwable {
+            public void run() {
 
-//                GraphDatabaseService graphDb = (GraphDatabaseService) Services.command(GraphDatabaseCommand.class).execute();
+                try {
 
-                long nodes = 0;
+                    indexChunk(graphDb, chunk);
+                    tracker.done(sequence, chunk.get(chunk.size() - 1));
 
-                Command indexer = Services.command(IndexNodeCommand.class);
-                List<AbstractNode> allNodes = (List<AbstractNode>) Services.command(GetAllNodes.class).execute();
-                for (AbstractNode s : allNodes) {
-                    indexer.execute(s);
-                    nodes++;
+                } catch (Throwable t) {
 
+                    logger.log(Level.SEVERE, "Could not index nodes " + chunk.get(0) + " to " + chunk.get(chunk.size() - 1), t);
+                    failed.set(true);
+
+                } finally {
+                    inFlight.release();
                 }
-                return nodes;
             }
         });
+    }
+
+    private void indexChunk(final GraphDatabaseService graphDb, final List<Long> chunk) {
+
+        Command indexer = Services.command(IndexNodeCommand.class);
+        Transaction tx = graphDb.beginTx();
+
+        try {
+
+            for (Long id : chunk) {
+
+                try {
+                    indexer.execute(id);
+
+                } catch (NotFoundException nfe) {
+                    logger.log(Level.FINE, "Node {0} was deleted, skipping", id);
+                }
+            }
+
+            tx.success();
+
+        } catch (RuntimeException e) {
+
+            tx.failure();
+            throw e;
+
+        } finally {
+            tx.finish();
+        }
+
+        processedNodes.addAndGet(chunk.size());
+    }
+
+    private double getThroughput() {
+
+        long elapsed = System.currentTimeMillis() - startTime;
+
+        // nodes per second
+        return (startTime > 0 && elapsed > 0 ? processedNodes.get() * 1000.0 / elapsed : 0.0);
+    }
+
+    private int parseConfigValue(final String key, final int defaultValue) {
+
+        Map<String, Object> context = Services.getContext();
+
+        if (context != null && context.containsKey(key)) {
+            try {
+                return Math.max(Integer.parseInt(context.get(key).toString()), 1);
+
+            } catch (Throwable t) {
+                logger.log(Level.WARNING, "Invalid value for {0}, using default {1}", new Object[]{key, defaultValue});
+            }
+        }
+
+        return defaultValue;
+    }
+
+    private static File getCheckpointFile() {
+        return new File(Services.getFilePath(Path.Temp, CHECKPOINT_FILE));
+    }
+
+    private static long readCheckpoint() {
+
+        File file = getCheckpointFile();
 
-        return nodes;
+        if (file.exists()) {
+
+            try {
+                return Long.parseLong(FileUtils.readFileToString(file).trim());
+
+            } catch (Throwable t) {
+                logger.log(Level.WARNING, "Could not read index rebuild checkpoint {0}", file.getAbsolutePath());
+            }
+        }
+
+        return -1;
+    }
+
+    private static void writeCheckpoint(final long id) {
+
+        File file = getCheckpointFile();
+        File tmpFile = new File(file.getAbsolutePath() + ".tmp");
+
+        try {
+
+            // write and rename, so a crash never leaves a partial checkpoint
+            FileUtils.writeStringToFile(tmpFile, Long.toString(id));
+
+            if (!tmpFile.renameTo(file)) {
+                file.delete();
+                tmpFile.renameTo(file);
+            }
+
+        } catch (IOException ioex) {
+            logger.log(Level.WARNING, "Could not write index rebuild checkpoint {0}", file.getAbsolutePath());
+        }
+    }
+
+    private static void deleteCheckpoint() {
+        getCheckpointFile().delete();
+    }
+    // </editor-fold>
+
+    // <editor-fold defaultstate="collapsed" desc="private classes">
+    /**
+     * Chunks finish out of order; the checkpoint is the last node id of
+     * the longest run of finished chunks from the start.
+     */
+    private static class CheckpointTracker {
+
+        private final Map<Integer, Long> finished = new HashMap<Integer, Long>();
+        private int nextSequence = 0;
+        private long checkpoint;
+
+        private CheckpointTracker(final long checkpoint) {
+            this.checkpoint = checkpoint;
+        }
+
+        private synchronized void done(final int sequence, final long lastId) {
+
+            finished.put(sequence, lastId);
+
+            boolean advanced = false;
+
+            while (finished.containsKey(nextSequence)) {
+
+                checkpoint = finished.remove(nextSequence);
+                nextSequence++;
+                advanced = true;
+            }
+
+            if (advanced) {
+                writeCheckpoint(checkpoint);
+            }
+        }
+
+        private synchronized long getCheckpoint() {
+            return checkpoint;
+        }
     }
+    // </editor-fold>
 }
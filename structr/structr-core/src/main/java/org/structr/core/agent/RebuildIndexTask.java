@@ -20,6 +20,8 @@ package org.structr.core.agent;
 
 import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.Delayed;
 import java.util.concurrent.TimeUnit;
@@ -32,11 +34,32 @@ import org.structr.core.entity.User;
  *
  * @author amorgner
  */
-public class RebuildIndexTask implements Task {
+public class RebuildIndexTask implements PersistentTask {
 
+    private boolean resume = false;
+
+    /**
+     * Creates a task that rebuilds the whole index.
+     */
     public RebuildIndexTask() {
     }
 
+    /**
+     * @param resume if true, continue an interrupted rebuild from
+     * its last checkpoint; if false, start from scratch
+     */
+    public RebuildIndexTask(final boolean resume) {
+        this.resume = resume;
+    }
+
+    public boolean isResume() {
+        return resume;
+    }
+
+    public void setResume(final boolean resume) {
+        this.resume = resume;
+    }
+
     @Override
     public Set<AbstractNode> getNodes() {
         return Collections.emptySet();
@@ -70,6 +93,20 @@ public class RebuildIndexTask implements Task {
         return (d1.compareTo(d2));
     }
 
+    // ----- interface PersistentTask -----
+    @Override
+    public Map<String, String> getParameters() {
+        Map<String, String> parameters = new HashMap<String, String>();
+        parameters.put("resume", Boolean.toString(resume));
+
+        return parameters;
+    }
+
+    @Override
+    public void setParameters(Map<String, String> parameters) {
+        resume = "true".equals(parameters.get("resume"));
+    }
+
 	// ----- interface StatusInfo -----
 	@Override
 	public Object getStatusProperty(String key)
@@ -20,6 +20,8 @@ package org.structr.core.agent;
 
 import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.Delayed;
 import java.util.concurrent.TimeUnit;
@@ -32,7 +34,7 @@ import org.structr.core.entity.User;
  *
  * @author amorgner
  */
-public class RefreshImageFromUrlTask implements Task {
+public class RefreshImageFromUrlTask implements PersistentTask {
 
     private Set<AbstractNode> nodes = null;
 
@@ -76,6 +78,20 @@ public class RefreshImageFromUrlTask implements Task {
         return (d1.compareTo(d2));
     }
 
+    // ----- interface PersistentTask -----
+    @Override
+    public Map<String, String> getParameters() {
+        Map<String, String> parameters = new HashMap<String, String>();
+        parameters.put("nodes", TaskJournal.toIdList(nodes));
+
+        return parameters;
+    }
+
+    @Override
+    public void setParameters(Map<String, String> parameters) {
+        nodes = TaskJournal.fromIdList(parameters.get("nodes"));
+    }
+
     // ----- interface StatusInfo -----
     @Override
     public Object getStatusProperty(String key) {
@@ -0,0 +1,569 @@
+/*
+ *  Copyright (C) 2011 Axel Morgner, structr <structr@structr.org>
+ * 
+ *  This file is part of structr <http://structr.org>.
+ * 
+ *  structr is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ * 
+ *  structr is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ * 
+ *  You should have received a copy of the GNU General Public License
+ *  along with structr.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.structr.core.agent;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.structr.core.Services;
+import org.structr.core.entity.AbstractNode;
+import org.structr.core.node.FindNodeCommand;
+
+/**
+ * An append-only, on-disk journal of queued {@see PersistentTask}s.
+ *
+ * <p>
+ * Every queued task is appended as a record with its class and parameters,
+ * every finished task as an acknowledgement. Records are written to
+ * numbered segment files. As acknowledgements are written to the current
+ * segment, segments are deleted strictly oldest-first, once all tasks
+ * recorded in them are acknowledged, so an acknowledgement never goes
+ * before the task it refers to. On {@see #open}, the tasks without
+ * acknowledgement are restored and re-journaled into a fresh segment.
+ * </p>
+ *
+ * <p>
+ * Writes are buffered and synced to disk by a background thread every
+ * <code>syncInterval</code> milliseconds, so appending is cheap. Tasks
+ * queued within the last sync interval before a crash can be lost.
+ * </p>
+ *
+ * @author amorgner
+ */
+public class TaskJournal {
+
+    private static final Logger logger = Logger.getLogger(TaskJournal.class.getName());
+    public static final long DefaultSyncInterval = 100L;
+    public static final long DefaultSegmentSize = 4 * 1024 * 1024;
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".journal";
+    private static final char APPEND = '+';
+    private static final char ACK = '-';
+    private final File directory;
+    private final long syncInterval;
+    private final long segmentSize;
+    private final Map<Long, Integer> entrySegments = new HashMap<Long, Integer>();
+    private final Map<Integer, Integer> liveEntries = new HashMap<Integer, Integer>();
+    private FileOutputStream out = null;
+    private Writer writer = null;
+    private int segment = 0;
+    private int firstSegment = 0;
+    private long segmentBytes = 0;
+    private long nextId = 1;
+    private boolean dirty = false;
+    private volatile boolean open = false;
+    private Thread syncer = null;
+
+    public TaskJournal(final File directory, final long syncInterval, final long segmentSize) {
+
+        this.directory = directory;
+        this.syncInterval = Math.max(syncInterval, 1);
+        this.segmentSize = Math.max(segmentSize, 1024);
+    }
+
+    /**
+     * Open the journal and return the tasks that were not acknowledged
+     * before the last shutdown or crash, keyed by their new journal id.
+     *
+     * @return the pending tasks, in the order they were queued
+     * @throws IOException
+     */
+    public synchronized Map<Long, PersistentTask> open() throws IOException {
+
+        if (!directory.exists() && !directory.mkdirs()) {
+            throw new IOException("Could not create journal directory " + directory.getAbsolutePath());
+        }
+
+        int[] segments = listSegments();
+        Map<Long, String[]> pending = new LinkedHashMap<Long, String[]>();
+
+        for (int number : segments) {
+            replay(getSegmentFile(number), pending);
+        }
+
+        segment = (segments.length > 0 ? segments[segments.length - 1] + 1 : 1);
+        firstSegment = segment;
+        openSegment();
+
+        Map<Long, PersistentTask> tasks = new LinkedHashMap<Long, PersistentTask>();
+
+        for (String[] record : pending.values()) {
+
+            PersistentTask task = restore(record[0], record[1]);
+
+            if (task != null) {
+                tasks.put(write(task), task);
+            }
+        }
+
+        // make the new segment durable before the old ones are removed
+        sync();
+
+        for (int number : segments) {
+            delete(number);
+        }
+
+        if (!tasks.isEmpty()) {
+            logger.log(Level.INFO, "Restored {0} pending tasks from journal", tasks.size());
+        }
+
+        open = true;
+
+        syncer = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                syncLoop();
+            }
+        }, "TaskJournal");
+
+        syncer.setDaemon(true);
+        syncer.start();
+
+        return tasks;
+    }
+
+    /**
+     * Append the given task to the journal.
+     *
+     * @param task
+     * @return the journal id of the task
+     * @throws IOException
+     */
+    public synchronized long append(final PersistentTask task) throws IOException {
+
+        if (!open) {
+            throw new IOException("Journal is closed");
+        }
+
+        return write(task);
+    }
+
+    /**
+     * Acknowledge that the task with the given journal id was
+     * processed and need not be restored.
+     *
+     * @param id
+     */
+    public synchronized void ack(final long id) {
+
+        Integer number = entrySegments.remove(id);
+
+        if (number == null || !open) {
+            return;
+        }
+
+        try {
+            writeRecord(ACK + Long.toString(id) + "\n");
+
+        } catch (IOException ioex) {
+            logger.log(Level.WARNING, "Could not acknowledge task {0}: {1}", new Object[]{id, ioex.getMessage()});
+        }
+
+        liveEntries.put(number, liveEntries.get(number) - 1);
+        purgeSegments();
+    }
+
+    /**
+     * Sync pending writes to disk.
+     */
+    public synchronized void sync() {
+
+        if (!dirty || writer == null) {
+            return;
+        }
+
+        try {
+            writer.flush();
+            out.getFD().sync();
+            dirty = false;
+
+        } catch (IOException ioex) {
+            logger.log(Level.WARNING, "Could not sync task journal: {0}", ioex.getMessage());
+        }
+    }
+
+    /**
+     * Sync and close the journal. Tasks that were not acknowledged
+     * are restored by the next {@see #open}.
+     */
+    public void close() {
+
+        open = false;
+
+        if (syncer != null) {
+            syncer.interrupt();
+            syncer = null;
+        }
+
+        synchronized (this) {
+
+            sync();
+            closeSegment();
+        }
+    }
+
+    /**
+     * Returns the number of tasks that were not acknowledged yet.
+     *
+     * @return
+     */
+    public synchronized int size() {
+        return entrySegments.size();
+    }
+
+    // <editor-fold defaultstate="collapsed" desc="node parameter helpers">
+    /**
+     * Encode the ids of the given nodes as a parameter value.
+     *
+     * @param nodes
+     * @return
+     */
+    public static String toIdList(final Set<AbstractNode> nodes) {
+
+        StringBuilder ids = new StringBuilder();
+
+        if (nodes != null) {
+
+            for (AbstractNode node : nodes) {
+
+                if (ids.length() > 0) {
+                    ids.append(',');
+                }
+
+                ids.append(node.getId());
+            }
+        }
+
+        return ids.toString();
+    }
+
+    /**
+     * Load the nodes of an id list created by {@see #toIdList}.
+     * Nodes that do not exist anymore are skipped.
+     *
+     * @param ids
+     * @return
+     */
+    public static Set<AbstractNode> fromIdList(final String ids) {
+
+        Set<AbstractNode> nodes = new LinkedHashSet<AbstractNode>();
+
+        if (ids != null) {
+
+            for (String id : ids.split(",")) {
+
+                AbstractNode node = findNode(id);
+
+                if (node != null) {
+                    nodes.add(node);
+                }
+            }
+        }
+
+        return nodes;
+    }
+
+    /**
+     * Load the node with the given id, or return null if the id
+     * is empty or the node does not exist.
+     *
+     * @param id
+     * @return
+     */
+    public static AbstractNode findNode(final String id) {
+
+        if (id == null || id.length() == 0) {
+            return null;
+        }
+
+        try {
+            return (AbstractNode) Services.command(FindNodeCommand.class).execute(null, Long.parseLong(id));
+
+        } catch (Throwable t) {
+            logger.log(Level.FINE, "Node {0} not found", id);
+        }
+
+        return null;
+    }
+    // </editor-fold>
+
+    // <editor-fold defaultstate="collapsed" desc="private methods">
+    private long write(final PersistentTask task) throws IOException {
+
+        long id = nextId++;
+        StringBuilder record = new StringBuilder(64);
+
+        record.append(APPEND).append(id).append('\t');
+        record.append(task.getClass().getName()).append('\t');
+        record.append(encode(task.getParameters())).append('\n');
+
+        writeRecord(record.toString());
+
+        entrySegments.put(id, segment);
+
+        Integer live = liveEntries.get(segment);
+        liveEntries.put(segment, (live != null ? live + 1 : 1));
+
+        return id;
+    }
+
+    private void writeRecord(final String record) throws IOException {
+
+        if (segmentBytes >= segmentSize) {
+            rollSegment();
+        }
+
+        writer.write(record);
+        segmentBytes += record.length();
+        dirty = true;
+    }
+
+    private void rollSegment() throws IOException {
+
+        sync();
+        closeSegment();
+
+        segment++;
+        openSegment();
+
+        // the previous segment can go if all its tasks are done already
+        purgeSegments();
+    }
+
+    /**
+     * Deletes the oldest segments whose tasks are all acknowledged. A
+     * segment can hold acknowledgements for tasks in older segments, so
+     * it is only deleted after all older segments are gone.
+     */
+    private void purgeSegments() {
+
+        while (firstSegment < segment) {
+
+            Integer live = liveEntries.get(firstSegment);
+
+            if (live != null && live > 0) {
+                break;
+            }
+
+            liveEntries.remove(firstSegment);
+            delete(firstSegment);
+            firstSegment++;
+        }
+    }
+
+    private void openSegment() throws IOException {
+
+        out = new FileOutputStream(getSegmentFile(segment), true);
+        writer = new OutputStreamWriter(out, "UTF-8");
+        segmentBytes = 0;
+    }
+
+    private void closeSegment() {
+
+        if (writer != null) {
+
+            try {
+                writer.close();
+
+            } catch (IOException ioex) {
+                logger.log(Level.WARNING, "Could not close task journal segment: {0}", ioex.getMessage());
+            }
+
+            writer = null;
+            out = null;
+        }
+    }
+
+    private void replay(final File file, final Map<Long, String[]> pending) {
+
+        BufferedReader reader = null;
+
+        try {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+
+            String line = null;
+
+            while ((line = reader.readLine()) != null) {
+
+                if (line.length() < 2) {
+                    continue;
+                }
+
+                try {
+                    if (line.charAt(0) == APPEND) {
+
+                        String[] parts = line.substring(1).split("\t", -1);
+
+                        if (parts.length == 3) {
+                            pending.put(Long.parseLong(parts[0]), new String[]{parts[1], parts[2]});
+                        }
+
+                    } else if (line.charAt(0) == ACK) {
+
+                        pending.remove(Long.parseLong(line.substring(1)));
+                    }
+
+                } catch (NumberFormatException nfex) {
+                    // torn record at the end of a segment
+                    logger.log(Level.FINE, "Skipping corrupt journal record in {0}", file.getName());
+                }
+            }
+
+        } catch (IOException ioex) {
+            logger.log(Level.WARNING, "Could not read task journal segment {0}: {1}", new Object[]{file.getName(), ioex.getMessage()});
+
+        } finally {
+
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException ignore) {
+                }
+            }
+        }
+    }
+
+    private PersistentTask restore(final String className, final String parameters) {
+
+        try {
+            PersistentTask task = (PersistentTask) Class.forName(className).newInstance();
+            task.setParameters(decode(parameters));
+
+            return task;
+
+        } catch (Throwable t) {
+            logger.log(Level.WARNING, "Could not restore task of type {0}: {1}", new Object[]{className, t.getMessage()});
+        }
+
+        return null;
+    }
+
+    private int[] listSegments() {
+
+        String[] names = directory.list();
+        int count = 0;
+        int[] numbers = new int[names != null ? names.length : 0];
+
+        for (int i = 0; i < numbers.length; i++) {
+
+            String name = names[i];
+
+            if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX)) {
+
+                try {
+                    numbers[count] = Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+                    count++;
+
+                } catch (NumberFormatException nfex) {
+                }
+            }
+        }
+
+        numbers = Arrays.copyOf(numbers, count);
+        Arrays.sort(numbers);
+
+        return numbers;
+    }
+
+    private File getSegmentFile(final int number) {
+        return new File(directory, SEGMENT_PREFIX + String.format("%08d", number) + SEGMENT_SUFFIX);
+    }
+
+    private void delete(final int number) {
+
+        File file = getSegmentFile(number);
+
+        if (file.exists() && !file.delete()) {
+            logger.log(Level.WARNING, "Could not delete task journal segment {0}", file.getName());
+        }
+    }
+
+    private void syncLoop() {
+
+        while (open) {
+
+            try {
+                Thread.sleep(syncInterval);
+                sync();
+
+            } catch (InterruptedException iex) {
+                // close() was called
+            }
+        }
+    }
+
+    private static String encode(final Map<String, String> parameters) throws UnsupportedEncodingException {
+
+        StringBuilder encoded = new StringBuilder();
+
+        if (parameters != null) {
+
+            for (Map.Entry<String, String> entry : parameters.entrySet()) {
+
+                if (entry.getValue() == null) {
+                    continue;
+                }
+
+                if (encoded.length() > 0) {
+                    encoded.append('&');
+                }
+
+                encoded.append(URLEncoder.encode(entry.getKey(), "UTF-8"));
+                encoded.append('=');
+                encoded.append(URLEncoder.encode(entry.getValue(), "UTF-8"));
+            }
+        }
+
+        return encoded.toString();
+    }
+
+    private static Map<String, String> decode(final String encoded) throws UnsupportedEncodingException {
+
+        Map<String, String> parameters = new LinkedHashMap<String, String>();
+
+        for (String pair : encoded.split("&")) {
+
+            int pos = pair.indexOf('=');
+
+            if (pos > 0) {
+                parameters.put(URLDecoder.decode(pair.substring(0, pos), "UTF-8"), URLDecoder.decode(pair.substring(pos + 1), "UTF-8"));
+            }
+        }
+
+        return parameters;
+    }
+    // </editor-fold>
+}
@@ -0,0 +1,241 @@
+/*
+ *  Copyright (C) 2011 Axel Morgner, structr <structr@structr.org>
+ * 
+ *  This file is part of structr <http://structr.org>.
+ * 
+ *  structr is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ * 
+ *  structr is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ * 
+ *  You should have received a copy of the GNU General Public License
+ *  along with structr.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.structr.core.agent;
+
+import java.util.Arrays;
+
+/**
+ * Execution metrics of an agent or a task type.
+ *
+ * <p>
+ * Counters cover the whole lifetime, latency and queue wait percentiles
+ * and the throughput are computed from the most recent
+ * {@see #SampleSize} executions. All times are in milliseconds.
+ * </p>
+ *
+ * @author amorgner
+ */
+public class TaskMetrics implements StatusInfo {
+
+    public static final String COUNT = "count";
+    public static final String FAILURES = "failures";
+    public static final String RETRIES = "retries";
+    public static final String THROUGHPUT = "throughput";
+    public static final String AVERAGE_LATENCY = "average_latency";
+    public static final String LATENCY_P50 = "latency_p50";
+    public static final String LATENCY_P95 = "latency_p95";
+    public static final String LATENCY_P99 = "latency_p99";
+    public static final String QUEUE_WAIT_P50 = "queue_wait_p50";
+    public static final String QUEUE_WAIT_P95 = "queue_wait_p95";
+    public static final String QUEUE_WAIT_P99 = "queue_wait_p99";
+    public static final int SampleSize = 1024;
+    private final String name;
+    private final long[] latencies = new long[SampleSize];
+    private final long[] queueWaits = new long[SampleSize];
+    private final long[] finishTimes = new long[SampleSize];
+    private int samples = 0;
+    private int next = 0;
+    private long count = 0;
+    private long failures = 0;
+    private long retries = 0;
+    private long totalLatency = 0;
+
+    public TaskMetrics(final String name) {
+        this.name = name;
+    }
+
+    /**
+     * Record one execution.
+     *
+     * @param queueWait time between queueing and start, in nanoseconds
+     * @param latency execution time, in nanoseconds
+     * @param ret the return value of the agent, null if processing failed
+     */
+    public synchronized void record(final long queueWait, final long latency, final ReturnValue ret) {
+
+        latencies[next] = latency;
+        queueWaits[next] = queueWait;
+        finishTimes[next] = System.nanoTime();
+
+        next = (next + 1) % SampleSize;
+        samples = Math.min(samples + 1, SampleSize);
+
+        count++;
+        totalLatency += latency;
+
+        if (ret == null) {
+            failures++;
+
+        } else if (ReturnValue.Retry.equals(ret)) {
+            retries++;
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public synchronized long getCount() {
+        return count;
+    }
+
+    public synchronized long getFailureCount() {
+        return failures;
+    }
+
+    public synchronized long getRetryCount() {
+        return retries;
+    }
+
+    /**
+     * Returns the average execution time over the whole lifetime.
+     *
+     * @return
+     */
+    public synchronized double getAverageLatency() {
+        return (count > 0 ? toMillis(totalLatency / count) : 0);
+    }
+
+    /**
+     * Returns the number of executions per second, measured over the
+     * recent executions.
+     *
+     * @return
+     */
+    public synchronized double getThroughput() {
+
+        if (samples < 2) {
+            return 0;
+        }
+
+        int newest = (next + SampleSize - 1) % SampleSize;
+        int oldest = (samples < SampleSize ? 0 : next);
+        long elapsed = finishTimes[newest] - finishTimes[oldest];
+
+        return (elapsed > 0 ? (samples - 1) * 1000000000.0 / elapsed : 0);
+    }
+
+    public double getLatencyP50() {
+        return getLatencyPercentile(50);
+    }
+
+    public double getLatencyP95() {
+        return getLatencyPercentile(95);
+    }
+
+    public double getLatencyP99() {
+        return getLatencyPercentile(99);
+    }
+
+    public double getQueueWaitP50() {
+        return getQueueWaitPercentile(50);
+    }
+
+    public double getQueueWaitP95() {
+        return getQueueWaitPercentile(95);
+    }
+
+    public double getQueueWaitP99() {
+        return getQueueWaitPercentile(99);
+    }
+
+    public synchronized double getLatencyPercentile(final int percentile) {
+        return percentile(latencies, percentile);
+    }
+
+    public synchronized double getQueueWaitPercentile(final int percentile) {
+        return percentile(queueWaits, percentile);
+    }
+
+    // ----- interface StatusInfo -----
+    @Override
+    public Object getStatusProperty(String key) {
+
+        if (COUNT.equals(key)) {
+            return getCount();
+
+        } else if (FAILURES.equals(key)) {
+            return getFailureCount();
+
+        } else if (RETRIES.equals(key)) {
+            return getRetryCount();
+
+        } else if (THROUGHPUT.equals(key)) {
+            return getThroughput();
+
+        } else if (AVERAGE_LATENCY.equals(key)) {
+            return getAverageLatency();
+
+        } else if (LATENCY_P50.equals(key)) {
+            return getLatencyP50();
+
+        } else if (LATENCY_P95.equals(key)) {
+            return getLatencyP95();
+
+        } else if (LATENCY_P99.equals(key)) {
+            return getLatencyP99();
+
+        } else if (QUEUE_WAIT_P50.equals(key)) {
+            return getQueueWaitP50();
+
+        } else if (QUEUE_WAIT_P95.equals(key)) {
+            return getQueueWaitP95();
+
+        } else if (QUEUE_WAIT_P99.equals(key)) {
+            return getQueueWaitP99();
+        }
+
+        return null;
+    }
+
+    @Override
+    public String toString() {
+
+        StringBuilder out = new StringBuilder();
+
+        out.append(name).append(" [count=").append(getCount());
+        out.append(", failures=").append(getFailureCount());
+        out.append(", retries=").append(getRetryCount());
+        out.append(", p50=").append(getLatencyP50()).append(" ms");
+        out.append(", p99=").append(getLatencyP99()).append(" ms");
+        out.append("]");
+
+        return out.toString();
+    }
+
+    // <editor-fold defaultstate="collapsed" desc="private methods">
+    private double percentile(final long[] values, final int percentile) {
+
+        if (samples == 0) {
+            return 0;
+        }
+
+        long[] sorted = Arrays.copyOf(values, samples);
+        Arrays.sort(sorted);
+
+        int index = (int) Math.ceil(percentile / 100.0 * samples) - 1;
+
+        return toMillis(sorted[Math.max(0, Math.min(index, samples - 1))]);
+    }
+
+    private static double toMillis(final long nanos) {
+        return nanos / 1000000.0;
+    }
+    // </editor-fold>
+}
@@ -20,6 +20,8 @@ package org.structr.core.agent;
 
 import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.Delayed;
 import java.util.concurrent.TimeUnit;
@@ -32,7 +34,7 @@ import org.structr.core.entity.User;
  *
  * @author amorgner
  */
-public class UpdateImageMetadataTask implements Task {
+public class UpdateImageMetadataTask implements PersistentTask {
 
     public UpdateImageMetadataTask() {
     }
@@ -70,6 +72,17 @@ public class UpdateImageMetadataTask implements Task {
         return (d1.compareTo(d2));
     }
 
+    // ----- interface PersistentTask -----
+    @Override
+    public Map<String, String> getParameters() {
+        return new HashMap<String, String>();
+    }
+
+    @Override
+    public void setParameters(Map<String, String> parameters) {
+        // no parameters
+    }
+
 	// ----- interface StatusInfo -----
 	@Override
 	public Object getStatusProperty(String key)
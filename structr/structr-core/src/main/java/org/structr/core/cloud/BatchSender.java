@@ -0,0 +1,188 @@
+/*
+ *  Copyright (C) 2011 Axel Morgner, structr <structr@structr.org>
+ * 
+ *  This file is part of structr <http://structr.org>.
+ * 
+ *  structr is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ * 
+ *  structr is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ * 
+ *  You should have received a copy of the GNU General Public License
+ *  along with structr.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.structr.core.cloud;
+
+import com.esotericsoftware.kryonet.Client;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.structr.core.entity.File;
+
+/**
+ * Groups containers into bounded batches and keeps at most
+ * {@link CloudService#WindowSize} batches unacknowledged.
+ *
+ * @author axel
+ */
+class BatchSender {
+
+    private static final Logger logger = Logger.getLogger(BatchSender.class.getName());
+    private final Client client;
+    private final Semaphore window = new Semaphore(CloudService.WindowSize);
+    private List<DataContainer> batch = new LinkedList<DataContainer>();
+    private volatile boolean aborted = false;
+    private volatile int failedBatches = 0;
+    private int batchBytes = 0;
+    private int sequence = 0;
+    private int containerCount = 0;
+
+    BatchSender(final Client client) {
+        this.client = client;
+    }
+
+    void add(final DataContainer container) throws IOException {
+
+        batch.add(container);
+        batchBytes += container.getEstimatedSize();
+        containerCount++;
+
+        if (batch.size() >= CloudService.BatchSize || batchBytes >= CloudService.BatchBytes) {
+            flush();
+        }
+    }
+
+    /**
+     * Send the content of the given file node in chunks
+     */
+    void addFileContent(final File file) throws IOException {
+
+        InputStream in = file.getInputStream();
+        int chunk = 0;
+
+        try {
+
+            if (in != null) {
+
+                byte[] buffer = new byte[CloudService.ChunkSize];
+                int length = 0;
+
+                while ((length = readChunk(in, buffer)) > 0) {
+                    add(new FileChunkContainer(file.getId(), chunk++, Arrays.copyOf(buffer, length), false));
+                }
+            }
+
+        } finally {
+
+            if (in != null) {
+                in.close();
+            }
+        }
+
+        // terminate content, also for empty or unreadable files
+        add(new FileChunkContainer(file.getId(), chunk, null, true));
+    }
+
+    /**
+     * Send the remaining containers and wait for all acknowledgements
+     */
+    void finish() throws IOException {
+
+        flush();
+
+        acquire(CloudService.WindowSize);
+        window.release(CloudService.WindowSize);
+    }
+
+    void acknowledge(final BatchAck ack) {
+
+        if (!ack.isSuccess()) {
+            logger.log(Level.WARNING, "Remote instance could not store batch {0}", ack.getSequence());
+            failedBatches++;
+        }
+
+        window.release();
+    }
+
+    void abort() {
+
+        aborted = true;
+
+        // wake up a waiting sender
+        window.release(CloudService.WindowSize);
+    }
+
+    /**
+     * Return true if all batches sent so far were acknowledged
+     * as stored successfully
+     */
+    boolean isSuccess() {
+        return !aborted && failedBatches == 0;
+    }
+
+    int getBatchCount() {
+        return sequence;
+    }
+
+    int getContainerCount() {
+        return containerCount;
+    }
+
+    // <editor-fold defaultstate="collapsed" desc="private methods">
+    private void flush() throws IOException {
+
+        if (batch.isEmpty()) {
+            return;
+        }
+
+        acquire(1);
+
+        client.sendTCP(new DataContainerBatch(sequence++, batch));
+
+        batch = new LinkedList<DataContainer>();
+        batchBytes = 0;
+    }
+
+    private void acquire(final int permits) throws IOException {
+
+        try {
+            if (!window.tryAcquire(permits, CloudService.AckTimeout, TimeUnit.MILLISECONDS)) {
+                throw new IOException("No acknowledgement from remote instance within " + CloudService.AckTimeout + " ms");
+            }
+
+        } catch (InterruptedException iex) {
+            throw new IOException("Interrupted while waiting for acknowledgement");
+        }
+
+        if (aborted) {
+            throw new IOException("Connection to remote instance lost");
+        }
+    }
+
+    /**
+     * Fill the buffer as far as possible
+     */
+    private int readChunk(final InputStream in, final byte[] buffer) throws IOException {
+
+        int length = 0;
+        int read = 0;
+
+        while (length < buffer.length && (read = in.read(buffer, length, buffer.length - length)) != -1) {
+            length += read;
+        }
+
+        return length;
+    }
+    // </editor-fold>
+}
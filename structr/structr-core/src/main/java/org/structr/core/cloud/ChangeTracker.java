@@ -0,0 +1,154 @@
+/*
+ *  Copyright (C) 2011 Axel Morgner, structr <structr@structr.org>
+ * 
+ *  This file is part of structr <http://structr.org>.
+ * 
+ *  structr is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ * 
+ *  structr is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ * 
+ *  You should have received a copy of the GNU General Public License
+ *  along with structr.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.structr.core.cloud;
+
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.NotFoundException;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.event.PropertyEntry;
+import org.neo4j.graphdb.event.TransactionData;
+import org.neo4j.graphdb.event.TransactionEventHandler;
+import org.structr.core.entity.AbstractNode;
+
+/**
+ * Records the changes needed for incremental synchronization.
+ *
+ * <p>
+ * Before a transaction commits, this handler sets the last modified date
+ * of every created or changed node, and of both nodes of each created or
+ * deleted relationship, so that the relationships of a node are synced
+ * together with it. Stamping at commit time instead of at the time of
+ * the change keeps long running transactions from being stamped before
+ * a sync that doesn't see them yet; the remaining gap up to the actual
+ * commit is covered by {@link SyncState#SYNC_MARGIN}. Assigning a global
+ * id alone doesn't count as a change.
+ * </p>
+ *
+ * <p>
+ * After commit, the global ids of deleted nodes are recorded as
+ * tombstones (see {@link SyncState}).
+ * </p>
+ *
+ * @author axel
+ */
+public class ChangeTracker implements TransactionEventHandler<Set<String>> {
+
+    private static final Logger logger = Logger.getLogger(ChangeTracker.class.getName());
+
+    @Override
+    public Set<String> beforeCommit(TransactionData data) throws Exception {
+
+        Set<Long> deletedNodeIds = new HashSet<Long>();
+        Set<String> tombstones = new LinkedHashSet<String>();
+
+        for (Node node : data.deletedNodes()) {
+            deletedNodeIds.add(node.getId());
+        }
+
+        if (!deletedNodeIds.isEmpty()) {
+
+            // the properties of deleted nodes are reported as removed
+            for (PropertyEntry<Node> entry : data.removedNodeProperties()) {
+
+                if (SyncState.GLOBAL_ID_KEY.equals(entry.key()) && deletedNodeIds.contains(entry.entity().getId())) {
+
+                    String globalId = (String) entry.previouslyCommitedValue();
+
+                    tombstones.add(globalId);
+                    SyncState.removeGlobalId(entry.entity(), globalId);
+                }
+            }
+        }
+
+        Set<Long> touchedNodeIds = new HashSet<Long>(deletedNodeIds);
+        Long now = System.currentTimeMillis();
+
+        Set<Node> changedNodes = new LinkedHashSet<Node>();
+
+        for (Node node : data.createdNodes()) {
+            changedNodes.add(node);
+        }
+
+        for (PropertyEntry<Node> entry : data.assignedNodeProperties()) {
+
+            if (!SyncState.GLOBAL_ID_KEY.equals(entry.key())) {
+                changedNodes.add(entry.entity());
+            }
+        }
+
+        for (PropertyEntry<Node> entry : data.removedNodeProperties()) {
+
+            if (!SyncState.GLOBAL_ID_KEY.equals(entry.key())) {
+                changedNodes.add(entry.entity());
+            }
+        }
+
+        // collected first, stamping adds property entries of its own
+        for (Node node : changedNodes) {
+
+            if (touchedNodeIds.add(node.getId())) {
+                node.setProperty(AbstractNode.LAST_MODIFIED_DATE_KEY, now);
+            }
+        }
+
+        for (Relationship rel : data.createdRelationships()) {
+            touch(rel, touchedNodeIds, now);
+        }
+
+        for (Relationship rel : data.deletedRelationships()) {
+            touch(rel, touchedNodeIds, now);
+        }
+
+        return tombstones;
+    }
+
+    @Override
+    public void afterCommit(TransactionData data, Set<String> tombstones) {
+
+        if (tombstones != null && !tombstones.isEmpty()) {
+            SyncState.addTombstones(tombstones);
+        }
+    }
+
+    @Override
+    public void afterRollback(TransactionData data, Set<String> tombstones) {
+    }
+
+    private void touch(final Relationship rel, final Set<Long> touchedNodeIds, final Long now) {
+
+        try {
+
+            for (Node node : rel.getNodes()) {
+
+                // touch each node only once, and never a deleted one
+                if (touchedNodeIds.add(node.getId())) {
+                    node.setProperty(AbstractNode.LAST_MODIFIED_DATE_KEY, now);
+                }
+            }
+
+        } catch (NotFoundException nfe) {
+            logger.log(Level.FINE, "Nodes of relationship {0} not found", rel.getId());
+        }
+    }
+}
@@ -23,25 +23,45 @@ import com.esotericsoftware.kryonet.Connection;
 import com.esotericsoftware.kryonet.Listener;
 import com.esotericsoftware.kryonet.Server;
 import com.esotericsoftware.minlog.Log;
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.apache.commons.lang.StringUtils;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+import org.structr.common.Path;
 import org.structr.common.RelType;
 import org.structr.core.Command;
+import org.structr.core.CommandHandle;
 import org.structr.core.Services;
 import org.structr.core.entity.AbstractNode;
+import org.structr.core.entity.File;
+import org.structr.core.entity.NodeList;
 import org.structr.core.entity.StructrRelationship;
 import org.structr.core.entity.SuperUser;
 import org.structr.core.node.CreateRelationshipCommand;
+import org.structr.core.node.DeleteRelationshipCommand;
 import org.structr.core.node.FindNodeCommand;
 import org.structr.core.node.NodeFactoryCommand;
+import org.structr.core.node.QueueIndexUpdateCommand;
+import org.structr.core.node.RemoveFromCacheCommand;
 import org.structr.core.node.RunnableNodeService;
 import org.structr.core.node.StructrTransaction;
 import org.structr.core.node.TransactionCommand;
@@ -49,6 +69,17 @@ import org.structr.core.node.TransactionCommand;
 /**
  * The cloud service handles networking between structr instances
  *
+ * <p>
+ * Each connection has its own receive session with its own id mapping
+ * and transfer state. Received objects are queued per session and applied
+ * by a bounded pool of worker threads (see {@link Services#CLOUD_THREADS}),
+ * in order of arrival within a session and concurrently across sessions.
+ * Objects that arrive while a session is busy are applied together in
+ * one transaction, up to {@link #CommitSize} containers. If that
+ * transaction fails, the session state is restored and the objects are
+ * applied again one by one, so only the failing batch is rejected.
+ * </p>
+ *
  * @author axel
  */
 public class CloudService extends RunnableNodeService {
@@ -56,6 +87,24 @@ public class CloudService extends RunnableNodeService {
     private static final Logger logger = Logger.getLogger(CloudService.class.getName());
     public static final Integer BEGIN_TRANSACTION = 0;
     public static final Integer END_TRANSACTION = 1;
+    /** Start of an incremental sync, nodes are identified by their global id */
+    public static final Integer BEGIN_SYNC = 2;
+    /** KryoNet buffer sizes, the object buffer must hold the largest batch */
+    public static final int WriteBufferSize = 4194304;
+    public static final int ObjectBufferSize = 1048576;
+    /** Maximum number of containers per batch */
+    public static final int BatchSize = 100;
+    /** Maximum estimated size of a batch in bytes */
+    public static final int BatchBytes = 262144;
+    /** Size of file content chunks in bytes */
+    public static final int ChunkSize = 65536;
+    /** Maximum number of unacknowledged batches */
+    public static final int WindowSize = 4;
+    /** Maximum time to wait for an acknowledgement */
+    public static final long AckTimeout = 60000L;
+    /** Maximum number of containers applied in one transaction */
+    public static final int CommitSize = 1000;
+    public static final int DefaultThreads = 4;
     /** Containing addresses of all available structr instances */
     private static final Set<InstanceAddress> instanceAddresses = new LinkedHashSet<InstanceAddress>();
     /** Local KryoNet server remote clients can connect to */
@@ -64,12 +113,10 @@ public class CloudService extends RunnableNodeService {
     private final static int DefaultUdpPort = 57555;
     private int tcpPort = DefaultTcpPort;
     private int udpPort = DefaultUdpPort;
-    // Map source id to target id
-    private final Map<Long, Long> idMap = new HashMap<Long, Long>();
-    private boolean linkNode = false;
-    private final Command findNode = Services.command(FindNodeCommand.class);
-    private final Command createRel = Services.command(CreateRelationshipCommand.class);
-    private final Command nodeFactory = Services.command(NodeFactoryCommand.class);
+    private int threads = DefaultThreads;
+    /** Receive sessions by connection id */
+    private final Map<Integer, Session> sessions = new ConcurrentHashMap<Integer, Session>();
+    private ExecutorService workers = null;
     private final AbstractNode rootNode = (AbstractNode) Services.command(FindNodeCommand.class).execute(new SuperUser(), 0L);
 
     public CloudService() {
@@ -92,6 +139,13 @@ public class CloudService extends RunnableNodeService {
         tcpPort = Integer.parseInt(Services.getTcpPort());
         udpPort = Integer.parseInt(Services.getUdpPort());
 
+        try {
+            threads = Math.max(Integer.parseInt(Services.getConfigValue(context, Services.CLOUD_THREADS, Integer.toString(DefaultThreads))), 1);
+
+        } catch (Throwable t) {
+            threads = DefaultThreads;
+        }
+
     }
 
     @Override
@@ -101,6 +155,21 @@ public class CloudService extends RunnableNodeService {
             server.close();
             server = null;
         }
+
+        if (workers != null) {
+
+            workers.shutdown();
+
+            try {
+                workers.awaitTermination(10, TimeUnit.SECONDS);
+
+            } catch (InterruptedException iex) {
+            }
+
+            workers = null;
+        }
+
+        sessions.clear();
     }
 
     @Override
@@ -114,7 +183,21 @@ public class CloudService extends RunnableNodeService {
         // Be quiet
         Log.set(Log.LEVEL_DEBUG);
 
-        server = new Server(4194304, 1048576);
+        workers = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+
+            private final AtomicInteger count = new AtomicInteger(0);
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+
+                Thread thread = new Thread(runnable, "CloudService-worker-" + count.incrementAndGet());
+                thread.setDaemon(true);
+
+                return thread;
+            }
+        });
+
+        server = new Server(WriteBufferSize, ObjectBufferSize);
 
         server.start();
 
@@ -130,183 +213,768 @@ public class CloudService extends RunnableNodeService {
 
             server.addListener(new Listener() {
 
+                @Override
+                public void connected(Connection connection) {
+                    sessions.put(connection.getID(), new Session(connection));
+                }
+
                 @Override
                 public void received(Connection connection, Object object) {
 
                     logger.log(Level.FINE, "Received object {0}", object); // TODO: reduce log level
 
-                    if (object instanceof Integer) {
+                    Session session = sessions.get(connection.getID());
 
-                        // Control signal received
-                        Integer controlSignal = (Integer) object;
+                    if (session != null) {
+                        session.receive(object);
+                    }
+                }
 
-                        if (BEGIN_TRANSACTION.equals(controlSignal)) {
-                            linkNode = true;
-                        }
+                @Override
+                public void disconnected(Connection connection) {
 
-                        if (END_TRANSACTION.equals(controlSignal)) {
-                            idMap.clear();
-                        }
+                    Session session = sessions.remove(connection.getID());
+
+                    if (session != null) {
+                        session.receive(END_TRANSACTION);
+                    }
+                }
+            });
+
+            logger.log(Level.INFO, "KryoNet server listening on TCP port {0} and UDP port {1}", new Object[]{tcpPort, udpPort});
+
+        } catch (IOException ex) {
+            logger.log(Level.SEVERE, "KryoNet server could not bind to TCP port " + tcpPort + " or UDP port " + udpPort, ex);
+        }
+    }
 
-                    } else if (object instanceof NodeDataContainer) {
+    @Override
+    public void stopService() {
+        shutdown();
+    }
+
+    public static void registerClasses(Kryo kryo) {
+
+        kryo.register(HashMap.class);
+        kryo.register(LinkedList.class);
+
+        // structr classes
+        kryo.register(NodeDataContainer.class);
+        kryo.register(FileNodeDataContainer.class);
+        kryo.register(RelationshipDataContainer.class);
+        kryo.register(FileChunkContainer.class);
+        kryo.register(DataContainerBatch.class);
+        kryo.register(BatchAck.class);
+        kryo.register(NodeRelationshipsContainer.class);
+        kryo.register(TombstoneContainer.class);
+
+        // Neo4j array types
+        kryo.register(String[].class);
+        kryo.register(char[].class);
+        kryo.register(byte[].class);
+        kryo.register(boolean[].class);
+        kryo.register(int[].class);
+        kryo.register(long[].class);
+        kryo.register(short[].class);
+        kryo.register(float[].class);
+        kryo.register(double[].class);
+
+    }
 
-                        final NodeDataContainer receivedNodeData = (NodeDataContainer) object;
+    // <editor-fold defaultstate="collapsed" desc="private classes">
+    /**
+     * Receive state of a single connection. Received objects are applied
+     * in order, by at most one worker thread at a time.
+     */
+    private class Session implements Runnable {
+
+        private final Connection connection;
+        private final LinkedList<Object> pending = new LinkedList<Object>();
+        private boolean scheduled = false;
+        // Map source id to target id
+        private final Map<Long, Long> idMap = new HashMap<Long, Long>();
+        private boolean linkNode = false;
+        private boolean syncMode = false;
+        // Map source id of file node to incoming file content
+        private final Map<Long, FileTransfer> fileTransfers = new HashMap<Long, FileTransfer>();
+        // transfers started and files replaced by the current transaction
+        private final List<FileTransfer> startedTransfers = new LinkedList<FileTransfer>();
+        private final List<String> replacedFiles = new LinkedList<String>();
+        // all session state is kept here, commands are taken from the pool
+        // of the worker thread applying the received objects (see CommandHandle)
+        private final CommandHandle findNode = Services.handle(FindNodeCommand.class);
+        private final CommandHandle createRel = Services.handle(CreateRelationshipCommand.class);
+        private final CommandHandle nodeFactory = Services.handle(NodeFactoryCommand.class);
+
+        private Session(final Connection connection) {
+            this.connection = connection;
+        }
 
-                        Command transactionCommand = Services.command(TransactionCommand.class);
-                        transactionCommand.execute(new StructrTransaction() {
+        /**
+         * Queue a received object and schedule the session if it is idle
+         */
+        private void receive(final Object object) {
 
-                            @Override
-                            public Object execute() throws Throwable {
+            if (!(object instanceof Integer || object instanceof DataContainerBatch || object instanceof DataContainer || object instanceof List)) {
+                return;
+            }
 
-                                storeNode(receivedNodeData, linkNode);
+            synchronized (pending) {
 
-                                return null;
-                            }
-                        });
+                pending.add(object);
 
-                        connection.sendTCP("Node data received");
+                if (scheduled) {
+                    return;
+                }
 
-                    } else if (object instanceof RelationshipDataContainer) {
+                scheduled = true;
+            }
 
-                        final RelationshipDataContainer receivedRelationshipData = (RelationshipDataContainer) object;
+            workers.execute(this);
+        }
 
-                        Command transactionCommand = Services.command(TransactionCommand.class);
-                        transactionCommand.execute(new StructrTransaction() {
+        /**
+         * Apply the objects received so far, and reschedule if more
+         * objects arrived in the meantime
+         */
+        @Override
+        public void run() {
 
-                            @Override
-                            public Object execute() throws Throwable {
+            final List<Object> received = new LinkedList<Object>();
+            int containers = 0;
 
-                                storeRelationship(receivedRelationshipData);
+            synchronized (pending) {
 
-                                return null;
-                            }
-                        });
+                while (!pending.isEmpty() && containers < CommitSize) {
 
-                        connection.sendTCP("Relationship data received");
+                    Object object = pending.removeFirst();
 
-                    } else if (object instanceof List) {
+                    received.add(object);
+                    containers += getContainerCount(object);
+                }
+            }
 
-                        final List<DataContainer> dataContainers = (List<DataContainer>) object;
+            try {
 
-                        Command transactionCommand = Services.command(TransactionCommand.class);
-                        transactionCommand.execute(new StructrTransaction() {
+                if (apply(received)) {
 
-                            @Override
-                            public Object execute() throws Throwable {
+                    acknowledge(received, true);
 
+                } else if (received.size() > 1) {
 
-                                boolean linkFirstNode = true;
+                    logger.log(Level.WARNING, "Could not apply {0} received objects together, applying them one by one", received.size());
 
-                                for (DataContainer receivedData : dataContainers) {
+                    // isolate the failing object
+                    for (Object object : received) {
 
-                                    if (receivedData instanceof NodeDataContainer) {
+                        List<Object> single = new LinkedList<Object>();
+                        single.add(object);
 
-                                        storeNode(receivedData, linkFirstNode);
-                                        linkFirstNode = false;
+                        acknowledge(single, apply(single));
+                    }
 
-                                    } else if (receivedData instanceof RelationshipDataContainer) {
+                } else {
 
-                                        storeRelationship(receivedData);
-                                    }
+                    acknowledge(received, false);
+                }
 
+            } catch (Throwable t) {
+                logger.log(Level.SEVERE, "Error while applying received data", t);
+            }
 
-                                }
+            synchronized (pending) {
 
-                                return null;
+                if (pending.isEmpty()) {
+                    scheduled = false;
+                    return;
+                }
+            }
+
+            // give other sessions a chance
+            workers.execute(this);
+        }
+
+        /**
+         * Apply the given objects in one transaction. If the transaction
+         * fails, the session state (id mapping, control flags and file
+         * transfers) is restored to the state before.
+         *
+         * @return true if the transaction was committed
+         */
+        private boolean apply(final List<Object> received) {
+
+            Map<Long, Long> savedIdMap = new HashMap<Long, Long>(idMap);
+            Map<Long, FileTransfer> savedTransfers = new HashMap<Long, FileTransfer>(fileTransfers);
+            Map<FileTransfer, Long> savedSizes = new HashMap<FileTransfer, Long>();
+            boolean savedLinkNode = linkNode;
+            boolean savedSyncMode = syncMode;
+
+            for (FileTransfer transfer : fileTransfers.values()) {
+                savedSizes.put(transfer, transfer.size);
+            }
+
+            startedTransfers.clear();
+            replacedFiles.clear();
+
+            // store all received containers in one transaction
+            Command transactionCommand = Services.command(TransactionCommand.class);
+            Object result = transactionCommand.execute(new StructrTransaction() {
+
+                @Override
+                public Object execute() throws Throwable {
+
+                    for (Object object : received) {
+
+                        if (object instanceof Integer) {
+
+                            control((Integer) object);
+
+                        } else if (object instanceof DataContainerBatch) {
+
+                            for (DataContainer receivedData : ((DataContainerBatch) object).getContainers()) {
+                                store(receivedData);
                             }
-                        });
 
-                        connection.sendTCP("List data received");
+                        } else if (object instanceof DataContainer) {
+
+                            store((DataContainer) object);
+
+                        } else if (object instanceof List) {
+
+                            boolean linkFirstNode = true;
 
+                            for (DataContainer receivedData : (List<DataContainer>) object) {
+
+                                if (receivedData instanceof NodeDataContainer) {
+
+                                    storeNode(receivedData, linkFirstNode);
+                                    linkFirstNode = false;
+
+                                } else if (receivedData instanceof RelationshipDataContainer) {
+
+                                    storeRelationship(receivedData);
+                                }
+                            }
+                        }
                     }
 
+                    return Boolean.TRUE;
                 }
             });
 
-            logger.log(Level.INFO, "KryoNet server listening on TCP port {0} and UDP port {1}", new Object[]{tcpPort, udpPort});
+            boolean success = Boolean.TRUE.equals(result);
 
-        } catch (IOException ex) {
-            logger.log(Level.SEVERE, "KryoNet server could not bind to TCP port " + tcpPort + " or UDP port " + udpPort, ex);
+            if (success) {
+
+                // the previous content of updated file nodes is obsolete now
+                for (String replacedFile : replacedFiles) {
+                    new java.io.File(Services.getFilePath(Path.Files, replacedFile)).delete();
+                }
+
+            } else {
+
+                idMap.clear();
+                idMap.putAll(savedIdMap);
+                linkNode = savedLinkNode;
+                syncMode = savedSyncMode;
+
+                // the nodes of new transfers were rolled back
+                for (FileTransfer transfer : startedTransfers) {
+                    transfer.discard();
+                }
+
+                fileTransfers.clear();
+                fileTransfers.putAll(savedTransfers);
+
+                for (Map.Entry<FileTransfer, Long> entry : savedSizes.entrySet()) {
+
+                    try {
+                        entry.getKey().rewind(entry.getValue());
+
+                    } catch (IOException ioex) {
+                        logger.log(Level.SEVERE, "Could not restore content of file node " + entry.getKey().nodeId, ioex);
+                    }
+                }
+            }
+
+            startedTransfers.clear();
+            replacedFiles.clear();
+
+            return success;
         }
-    }
 
-    @Override
-    public void stopService() {
-        shutdown();
-    }
+        /**
+         * Answer the given objects, in order of arrival
+         */
+        private void acknowledge(final List<Object> received, final boolean success) {
+
+            if (!connection.isConnected()) {
+                return;
+            }
+
+            for (Object object : received) {
+
+                if (object instanceof DataContainerBatch) {
+
+                    connection.sendTCP(new BatchAck(((DataContainerBatch) object).getSequence(), success));
+
+                } else if (object instanceof NodeDataContainer) {
+
+                    connection.sendTCP("Node data received");
+
+                } else if (object instanceof RelationshipDataContainer) {
+
+                    connection.sendTCP("Relationship data received");
+
+                } else if (object instanceof List) {
+
+                    connection.sendTCP("List data received");
+                }
+            }
+        }
+
+        private void control(final Integer controlSignal) {
+
+            if (BEGIN_TRANSACTION.equals(controlSignal)) {
+                linkNode = true;
+                syncMode = false;
+            }
+
+            if (BEGIN_SYNC.equals(controlSignal)) {
+                linkNode = true;
+                syncMode = true;
+            }
+
+            if (END_TRANSACTION.equals(controlSignal)) {
+                syncMode = false;
+                idMap.clear();
+                closeFileTransfers();
+            }
+        }
+
+        private void store(final DataContainer receivedData) throws IOException {
+
+            if (receivedData instanceof NodeDataContainer) {
+
+                if (syncMode) {
+                    upsertNode((NodeDataContainer) receivedData, linkNode);
+                } else {
+                    storeNode(receivedData, linkNode);
+                }
+
+            } else if (receivedData instanceof FileChunkContainer) {
+
+                storeChunk((FileChunkContainer) receivedData);
+
+            } else if (receivedData instanceof NodeRelationshipsContainer) {
 
-    private AbstractNode storeNode(final DataContainer receivedData, final boolean linkToRootNode) {
+                storeRelationships((NodeRelationshipsContainer) receivedData);
 
-        NodeDataContainer receivedNodeData = (NodeDataContainer) receivedData;
+            } else if (receivedData instanceof TombstoneContainer) {
 
-        // Create (dirty) node
-        AbstractNode newNode = (AbstractNode) nodeFactory.execute(receivedNodeData);
+                deleteNode((TombstoneContainer) receivedData);
 
-        // Connect first node with root node
-        if (linkToRootNode) {
-            // TODO: Implement a smart strategy how and where to link nodes in target instance
-            createRel.execute(rootNode, newNode, RelType.HAS_CHILD);
+            } else if (receivedData instanceof RelationshipDataContainer) {
 
-            // Reset link node flag, has to be explicetly set to true!
+                storeRelationship(receivedData);
+            }
+        }
+
+        private int getContainerCount(final Object object) {
+
+            if (object instanceof DataContainerBatch) {
+                return ((DataContainerBatch) object).getContainers().size();
+            }
+
+            if (object instanceof List) {
+                return ((List) object).size();
+            }
+
+            return 1;
+        }
+
+        private AbstractNode storeNode(final DataContainer receivedData, final boolean linkToRootNode) {
+
+            NodeDataContainer receivedNodeData = (NodeDataContainer) receivedData;
+
+            // Create (dirty) node
+            AbstractNode newNode = (AbstractNode) nodeFactory.execute(receivedNodeData);
+
+            // Connect first node with root node
+            if (linkToRootNode) {
+                // TODO: Implement a smart strategy how and where to link nodes in target instance
+                createRel.execute(rootNode, newNode, RelType.HAS_CHILD);
+
+                // Reset link node flag, has to be explicetly set to true!
+                linkNode = false;
+                logger.log(Level.INFO, "First node {0} linked to root node", newNode.getIdString()); // TODO: reduce log level
+            }
+
+            idMap.put(receivedNodeData.getSourceNodeId(), newNode.getId());
+
+            startFileTransfer(receivedNodeData, newNode, null);
+
+            logger.log(Level.INFO, "New node {0} created from remote data", newNode.getIdString()); // TODO: reduce log level
+
+            return newNode;
+
+        }
+
+        /**
+         * Create or update the node with the global id of the received node
+         */
+        private AbstractNode upsertNode(final NodeDataContainer receivedNodeData, final boolean linkToRootNode) {
+
+            String globalId = receivedNodeData.getGlobalId();
+            Node dbNode = SyncState.findByGlobalId(globalId);
+
+            if (dbNode == null) {
+
+                AbstractNode newNode = storeNode(receivedNodeData, linkToRootNode);
+
+                SyncState.setGlobalId(newNode.getNode(), globalId);
+
+                return newNode;
+            }
+
+            // only a new node is linked to the root node
             linkNode = false;
-            logger.log(Level.INFO, "First node {0} linked to root node", newNode.getIdString()); // TODO: reduce log level
+
+            String replacedFilePath = (String) dbNode.getProperty(File.RELATIVE_FILE_PATH_KEY, null);
+            Map<String, Object> properties = receivedNodeData.getProperties();
+            List<String> removedKeys = new LinkedList<String>();
+
+            for (String key : dbNode.getPropertyKeys()) {
+
+                if (!properties.containsKey(key) && !SyncState.GLOBAL_ID_KEY.equals(key)) {
+                    removedKeys.add(key);
+                }
+            }
+
+            for (String key : removedKeys) {
+                dbNode.removeProperty(key);
+            }
+
+            for (Map.Entry<String, Object> entry : properties.entrySet()) {
+
+                if (entry.getValue() != null) {
+                    dbNode.setProperty(entry.getKey(), entry.getValue());
+                }
+            }
+
+            Services.command(QueueIndexUpdateCommand.class).execute(dbNode.getId());
+            Services.command(RemoveFromCacheCommand.class).execute(dbNode.getId());
+
+            AbstractNode node = (AbstractNode) findNode.execute(new SuperUser(), dbNode.getId());
+
+            idMap.put(receivedNodeData.getSourceNodeId(), node.getId());
+
+            startFileTransfer(receivedNodeData, node, replacedFilePath);
+
+            logger.log(Level.FINE, "Node {0} updated from remote data", node.getIdString());
+
+            return node;
         }
 
-        idMap.put(receivedNodeData.getSourceNodeId(), newNode.getId());
+        /**
+         * Content of file nodes follows in chunks
+         */
+        private void startFileTransfer(final NodeDataContainer receivedNodeData, final AbstractNode node, final String replacedFilePath) {
 
-        logger.log(Level.INFO, "New node {0} created from remote data", newNode.getIdString()); // TODO: reduce log level
+            if (receivedNodeData instanceof FileNodeDataContainer && ((FileNodeDataContainer) receivedNodeData).getBinaryContent() == null && node instanceof File) {
 
-        return newNode;
+                String relativeFilePath = node.getId() + "_" + System.currentTimeMillis();
 
-    }
+                try {
+                    FileTransfer transfer = new FileTransfer(node.getId(), relativeFilePath, replacedFilePath);
+
+                    fileTransfers.put(receivedNodeData.getSourceNodeId(), transfer);
+                    startedTransfers.add(transfer);
+
+                } catch (IOException ex) {
+                    logger.log(Level.SEVERE, "Could not create file for node " + node.getId(), ex);
+                }
+            }
+        }
+
+        /**
+         * Replace the relationships between the received node and other
+         * synced nodes with the received relationships
+         */
+        private void storeRelationships(final NodeRelationshipsContainer receivedRelationships) {
+
+            Node dbNode = SyncState.findByGlobalId(receivedRelationships.getGlobalId());
+
+            if (dbNode == null) {
+                logger.log(Level.WARNING, "Received relationships for unknown node {0}", receivedRelationships.getGlobalId());
+                return;
+            }
+
+            Map<String, RelationshipDataContainer> received = new LinkedHashMap<String, RelationshipDataContainer>();
+
+            for (RelationshipDataContainer rel : receivedRelationships.getRelationships()) {
+                received.put(getRelationshipKey(rel.getName(), rel.getStartGlobalId(), rel.getEndGlobalId()), rel);
+            }
+
+            Map<Long, Relationship> existing = new LinkedHashMap<Long, Relationship>();
+
+            for (Relationship rel : dbNode.getRelationships()) {
+                existing.put(rel.getId(), rel);
+            }
+
+            Command deleteRel = Services.command(DeleteRelationshipCommand.class);
+
+            for (Relationship rel : existing.values()) {
+
+                String startGlobalId = SyncState.getGlobalId(rel.getStartNode());
+                String endGlobalId = SyncState.getGlobalId(rel.getEndNode());
+
+                // keep relationships to nodes that were not synced
+                if (startGlobalId == null || endGlobalId == null) {
+                    continue;
+                }
+
+                RelationshipDataContainer receivedRel = received.remove(getRelationshipKey(rel.getType().name(), startGlobalId, endGlobalId));
+
+                if (receivedRel == null) {
+                    deleteRel.execute(rel);
+                } else {
+                    setRelationshipProperties(rel, receivedRel.getProperties());
+                }
+            }
+
+            for (RelationshipDataContainer receivedRel : received.values()) {
+
+                Node startNode = SyncState.findByGlobalId(receivedRel.getStartGlobalId());
+                Node endNode = SyncState.findByGlobalId(receivedRel.getEndGlobalId());
+
+                if (startNode == null || endNode == null) {
+                    logger.log(Level.FINE, "Skipping {0} relationship to a node that was not synced", receivedRel.getName());
+                    continue;
+                }
+
+                AbstractNode targetStartNode = (AbstractNode) findNode.execute(new SuperUser(), startNode.getId());
+                AbstractNode targetEndNode = (AbstractNode) findNode.execute(new SuperUser(), endNode.getId());
 
-    private StructrRelationship storeRelationship(final DataContainer receivedData) {
+                StructrRelationship newRelationship = (StructrRelationship) createRel.execute(targetStartNode, targetEndNode, receivedRel.getName());
 
-        RelationshipDataContainer receivedRelationshipData = (RelationshipDataContainer) receivedData;
+                if (newRelationship != null) {
+                    setRelationshipProperties(newRelationship.getRelationship(), receivedRel.getProperties());
+                }
+            }
+        }
+
+        /**
+         * Delete the node with the global id of the received tombstone,
+         * together with its relationships
+         */
+        private void deleteNode(final TombstoneContainer tombstone) {
 
-        StructrRelationship newRelationship = null;
+            Node dbNode = SyncState.findByGlobalId(tombstone.getGlobalId());
 
-        long sourceStartNodeId = receivedRelationshipData.getSourceStartNodeId();
-        long sourceEndNodeId = receivedRelationshipData.getSourceEndNodeId();
+            // already deleted
+            if (dbNode == null) {
+                return;
+            }
 
-        long targetStartNodeId = idMap.get(sourceStartNodeId);
-        long targetEndNodeId = idMap.get(sourceEndNodeId);
+            Command removeFromCache = Services.command(RemoveFromCacheCommand.class);
 
-        // Get new start and end node
-        AbstractNode targetStartNode = (AbstractNode) findNode.execute(new SuperUser(), targetStartNodeId);
-        AbstractNode targetEndNode = (AbstractNode) findNode.execute(new SuperUser(), targetEndNodeId);
-        String name = receivedRelationshipData.getName();
+            // keep lists containing this node consistent
+            NodeList.removeFromLists(dbNode);
 
-        if (targetStartNode != null && targetEndNode != null && StringUtils.isNotEmpty(name)) {
+            for (Relationship rel : dbNode.getRelationships()) {
 
-            newRelationship = (StructrRelationship) createRel.execute(targetStartNode, targetEndNode, name);
-            logger.log(Level.INFO, "New {3} relationship {0} created from remote data between {1} and {2}", new Object[]{newRelationship.getId(), targetStartNodeId, targetEndNodeId, name}); // TODO: reduce log level
+                removeFromCache.execute(rel.getOtherNode(dbNode).getId());
+                rel.delete();
+            }
 
+            removeFromCache.execute(dbNode.getId());
+            dbNode.delete();
+
+            logger.log(Level.FINE, "Node with global id {0} deleted", tombstone.getGlobalId());
         }
 
-        return newRelationship;
+        private void setRelationshipProperties(final Relationship rel, final Map<String, Object> properties) {
+
+            List<String> removedKeys = new LinkedList<String>();
+
+            for (String key : rel.getPropertyKeys()) {
+
+                if (!properties.containsKey(key)) {
+                    removedKeys.add(key);
+                }
+            }
+
+            for (String key : removedKeys) {
+                rel.removeProperty(key);
+            }
+
+            for (Map.Entry<String, Object> entry : properties.entrySet()) {
+
+                if (entry.getValue() != null) {
+                    rel.setProperty(entry.getKey(), entry.getValue());
+                }
+            }
+        }
+
+        private String getRelationshipKey(final String name, final String startGlobalId, final String endGlobalId) {
+            return name + ":" + startGlobalId + ":" + endGlobalId;
+        }
+
+        private StructrRelationship storeRelationship(final DataContainer receivedData) {
+
+            RelationshipDataContainer receivedRelationshipData = (RelationshipDataContainer) receivedData;
+
+            StructrRelationship newRelationship = null;
+
+            long sourceStartNodeId = receivedRelationshipData.getSourceStartNodeId();
+            long sourceEndNodeId = receivedRelationshipData.getSourceEndNodeId();
+
+            long targetStartNodeId = idMap.get(sourceStartNodeId);
+            long targetEndNodeId = idMap.get(sourceEndNodeId);
+
+            // Get new start and end node
+            AbstractNode targetStartNode = (AbstractNode) findNode.execute(new SuperUser(), targetStartNodeId);
+            AbstractNode targetEndNode = (AbstractNode) findNode.execute(new SuperUser(), targetEndNodeId);
+            String name = receivedRelationshipData.getName();
+
+            if (targetStartNode != null && targetEndNode != null && StringUtils.isNotEmpty(name)) {
+
+                newRelationship = (StructrRelationship) createRel.execute(targetStartNode, targetEndNode, name);
+                logger.log(Level.INFO, "New {3} relationship {0} created from remote data between {1} and {2}", new Object[]{newRelationship.getId(), targetStartNodeId, targetEndNodeId, name}); // TODO: reduce log level
+
+            }
+
+            return newRelationship;
+        }
+
+        /**
+         * Append a chunk to the content of a received file node
+         */
+        private void storeChunk(final FileChunkContainer chunk) throws IOException {
+
+            FileTransfer transfer = fileTransfers.get(chunk.getSourceNodeId());
+
+            if (transfer == null) {
+                logger.log(Level.WARNING, "Received chunk for unknown file node {0}", chunk.getSourceNodeId());
+                return;
+            }
+
+            if (chunk.getBinaryContent() != null) {
+                transfer.write(chunk.getBinaryContent());
+            }
+
+            if (chunk.isLast()) {
+
+                fileTransfers.remove(chunk.getSourceNodeId());
+                transfer.close();
+
+                File fileNode = (File) findNode.execute(new SuperUser(), transfer.nodeId);
+
+                if (fileNode != null) {
+                    fileNode.setSize(transfer.size);
+                    fileNode.setRelativeFilePath(transfer.relativeFilePath);
+                }
+
+                // remove the previous content of an updated file node after commit
+                if (transfer.replacedFilePath != null && !transfer.replacedFilePath.equals(transfer.relativeFilePath)) {
+                    replacedFiles.add(transfer.replacedFilePath);
+                }
+
+                logger.log(Level.FINE, "Received {0} bytes for file node {1}", new Object[]{transfer.size, transfer.nodeId});
+            }
+        }
+
+        private void closeFileTransfers() {
+
+            for (FileTransfer transfer : fileTransfers.values()) {
+
+                logger.log(Level.WARNING, "Incomplete content for file node {0}", transfer.nodeId);
+
+                try {
+                    transfer.close();
+
+                } catch (IOException ignore) {
+                }
+            }
+
+            fileTransfers.clear();
+        }
     }
 
-    public static void registerClasses(Kryo kryo) {
+    /**
+     * Content of a file node being received
+     */
+    private static class FileTransfer {
+
+        private final long nodeId;
+        private final String relativeFilePath;
+        private final String replacedFilePath;
+        private final java.io.File file;
+        private OutputStream out;
+        private long size = 0;
+
+        private FileTransfer(final long nodeId, final String relativeFilePath, final String replacedFilePath) throws IOException {
+
+            this.nodeId = nodeId;
+            this.relativeFilePath = relativeFilePath;
+            this.replacedFilePath = replacedFilePath;
+            this.file = new java.io.File(Services.getFilePath(Path.Files, relativeFilePath));
+            this.out = new BufferedOutputStream(new FileOutputStream(file));
+        }
 
-        kryo.register(HashMap.class);
-        kryo.register(LinkedList.class);
+        private void write(final byte[] data) throws IOException {
 
-        // structr classes
-        kryo.register(NodeDataContainer.class);
-        kryo.register(FileNodeDataContainer.class);
-        kryo.register(RelationshipDataContainer.class);
+            // reopened after a rewind
+            if (out == null) {
+                out = new BufferedOutputStream(new FileOutputStream(file, true));
+            }
 
-        // Neo4j array types
-        kryo.register(String[].class);
-        kryo.register(char[].class);
-        kryo.register(byte[].class);
-        kryo.register(boolean[].class);
-        kryo.register(int[].class);
-        kryo.register(long[].class);
-        kryo.register(short[].class);
-        kryo.register(float[].class);
-        kryo.register(double[].class);
+            out.write(data);
+            size += data.length;
+        }
+
+        private void close() throws IOException {
+
+            if (out != null) {
+                out.close();
+                out = null;
+            }
+        }
+
+        /**
+         * Cut the file back to the given size, e.g. after the transaction
+         * that appended the following chunks was rolled back
+         */
+        private void rewind(final long length) throws IOException {
+
+            close();
+
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
 
+            try {
+                raf.setLength(length);
+
+            } finally {
+                raf.close();
+            }
+
+            size = length;
+        }
+
+        /**
+         * Close and delete the file of a transfer whose node was rolled back
+         */
+        private void discard() {
+
+            try {
+                close();
+
+            } catch (IOException ignore) {
+            }
+
+            file.delete();
+        }
     }
+    // </editor-fold>
 }
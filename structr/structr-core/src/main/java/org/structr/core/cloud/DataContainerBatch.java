@@ -0,0 +1,60 @@
+/*
+ *  Copyright (C) 2011 Axel Morgner, structr <structr@structr.org>
+ * 
+ *  This file is part of structr <http://structr.org>.
+ * 
+ *  structr is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ * 
+ *  structr is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ * 
+ *  You should have received a copy of the GNU General Public License
+ *  along with structr.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.structr.core.cloud;
+
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * A bounded batch of data containers, applied by the receiving instance
+ * in one transaction and acknowledged with a {@link BatchAck}.
+ *
+ * @author axel
+ */
+public class DataContainerBatch {
+
+    protected int sequence;
+    protected List<DataContainer> containers = new LinkedList<DataContainer>();
+
+    public DataContainerBatch() {};
+
+    public DataContainerBatch(final int sequence, final List<DataContainer> containers) {
+
+        this.sequence = sequence;
+        this.containers = containers;
+    }
+
+    /**
+     * Return the sequence number of this batch within a transfer
+     *
+     * @return
+     */
+    public int getSequence() {
+        return sequence;
+    }
+
+    public List<DataContainer> getContainers() {
+        return containers;
+    }
+
+    @Override
+    public String toString() {
+        return "Batch " + sequence + " (" + containers.size() + " containers)";
+    }
+}
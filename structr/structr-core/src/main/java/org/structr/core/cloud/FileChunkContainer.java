@@ -0,0 +1,74 @@
+/*
+ *  Copyright (C) 2011 Axel Morgner, structr <structr@structr.org>
+ * 
+ *  This file is part of structr <http://structr.org>.
+ * 
+ *  structr is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ * 
+ *  structr is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ * 
+ *  You should have received a copy of the GNU General Public License
+ *  along with structr.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.structr.core.cloud;
+
+/**
+ * Transport data container for a chunk of the binary content of a file
+ * node. Chunks follow the {@link FileNodeDataContainer} of their node in
+ * order; the last chunk of a file is marked and may be empty.
+ *
+ * @author axel
+ */
+public class FileChunkContainer extends DataContainer {
+
+    protected long sourceNodeId;
+    protected int sequence;
+    protected boolean last;
+    protected byte[] binaryContent;
+
+    public FileChunkContainer() {};
+
+    public FileChunkContainer(final long sourceNodeId, final int sequence, final byte[] binaryContent, final boolean last) {
+
+        this.sourceNodeId = sourceNodeId;
+        this.sequence = sequence;
+        this.binaryContent = binaryContent;
+        this.last = last;
+
+        if (binaryContent != null) {
+            estimatedSize += binaryContent.length;
+        }
+    }
+
+    /**
+     * Return id of the file node in source instance
+     *
+     * @return
+     */
+    public long getSourceNodeId() {
+        return sourceNodeId;
+    }
+
+    public int getSequence() {
+        return sequence;
+    }
+
+    public boolean isLast() {
+        return last;
+    }
+
+    public byte[] getBinaryContent() {
+        return binaryContent;
+    }
+
+    @Override
+    public String toString() {
+        return "Chunk " + sequence + " of node " + sourceNodeId + (last ? " (last)" : "");
+    }
+}
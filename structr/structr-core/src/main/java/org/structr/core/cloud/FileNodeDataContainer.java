@@ -18,23 +18,24 @@
  */
 package org.structr.core.cloud;
 
-import java.io.IOException;
-import java.io.InputStream;
-import java.util.logging.Level;
-import java.util.logging.Logger;
-import org.apache.commons.io.IOUtils;
 import org.structr.core.entity.AbstractNode;
 import org.structr.core.entity.File;
 
 /**
- * Transport data container for file nodes
+ * Transport data container for file nodes.
+ *
+ * <p>
+ * The binary content is not part of this container, it is streamed in
+ * {@link FileChunkContainer}s following it. Containers sent by older
+ * instances may still carry the complete content.
+ * </p>
  * 
  * @author axel
  */
 public class FileNodeDataContainer extends NodeDataContainer {
 
-    private static final Logger logger = Logger.getLogger(FileNodeDataContainer.class.getName());
     protected byte[] binaryContent;
+    protected long fileSize;
 
     public FileNodeDataContainer() {
     }
@@ -44,27 +45,26 @@ public class FileNodeDataContainer extends NodeDataContainer {
         super(node);
 
         if (node instanceof File) {
-
-            File fileNode = (File) node;
-
-            estimatedSize += fileNode.getSize();
-
-            try {
-
-                InputStream in = fileNode.getInputStream();
-
-                if (in != null) {
-                    binaryContent = IOUtils.toByteArray(in);
-                }
-
-            } catch (IOException ex) {
-                logger.log(Level.SEVERE, "Could not read file", ex);
-            }
-
+            fileSize = ((File) node).getSize();
         }
     }
 
+    /**
+     * Return the embedded binary content, or null if the
+     * content is streamed in chunks
+     *
+     * @return
+     */
     public byte[] getBinaryContent() {
         return binaryContent;
     }
+
+    /**
+     * Return the size of the file in source instance
+     *
+     * @return
+     */
+    public long getFileSize() {
+        return fileSize;
+    }
 }
@@ -61,4 +61,14 @@ public class NodeDataContainer extends DataContainer {
         return sourceNodeId;
     }
 
+    /**
+     * Return the global id of the node, or null if the node
+     * was not sent by a sync
+     *
+     * @return
+     */
+    public String getGlobalId() {
+        return (String) properties.get(SyncState.GLOBAL_ID_KEY);
+    }
+
 }
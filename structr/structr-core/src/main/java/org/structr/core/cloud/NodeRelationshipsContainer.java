@@ -0,0 +1,71 @@
+/*
+ *  Copyright (C) 2011 Axel Morgner, structr <structr@structr.org>
+ * 
+ *  This file is part of structr <http://structr.org>.
+ * 
+ *  structr is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ * 
+ *  structr is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ * 
+ *  You should have received a copy of the GNU General Public License
+ *  along with structr.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.structr.core.cloud;
+
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Serializable data container for the complete set of relationships
+ * between a synced node and other synced nodes.
+ *
+ * <p>
+ * The receiving instance creates missing relationships and deletes
+ * the relationships of the node that are not contained in the set.
+ * </p>
+ *
+ * @author axel
+ */
+public class NodeRelationshipsContainer extends DataContainer {
+
+    protected String globalId;
+    protected List<RelationshipDataContainer> relationships = new LinkedList<RelationshipDataContainer>();
+
+    public NodeRelationshipsContainer() {};
+
+    public NodeRelationshipsContainer(final String globalId) {
+
+        this.globalId = globalId;
+        this.estimatedSize = 0;
+    }
+
+    public void add(final RelationshipDataContainer relationship) {
+
+        relationships.add(relationship);
+        estimatedSize += relationship.getEstimatedSize();
+    }
+
+    /**
+     * Return the global id of the node
+     *
+     * @return
+     */
+    public String getGlobalId() {
+        return globalId;
+    }
+
+    /**
+     * Return the incoming and outgoing relationships of the node
+     *
+     * @return
+     */
+    public List<RelationshipDataContainer> getRelationships() {
+        return relationships;
+    }
+}
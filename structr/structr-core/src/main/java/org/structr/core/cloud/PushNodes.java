@@ -20,14 +20,18 @@ package org.structr.core.cloud;
 
 import com.esotericsoftware.kryo.Kryo;
 import com.esotericsoftware.kryonet.Client;
+import com.esotericsoftware.kryonet.Connection;
+import com.esotericsoftware.kryonet.Listener;
 import com.esotericsoftware.minlog.Log;
 import java.io.IOException;
-import java.util.HashSet;
-import java.util.LinkedList;
-import java.util.List;
+import java.util.LinkedHashSet;
 import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.Node;
+import org.neo4j.kernel.Traversal;
+import org.structr.common.RelType;
 import org.structr.core.Command;
 import org.structr.core.Services;
 import org.structr.core.UnsupportedArgumentError;
@@ -36,8 +40,18 @@ import org.structr.core.entity.File;
 import org.structr.core.entity.StructrRelationship;
 import org.structr.core.entity.User;
 import org.structr.core.node.FindNodeCommand;
+import org.structr.core.node.NodeFactoryCommand;
 
 /**
+ * Pushes a node, or a node and its subtree, to a remote structr instance.
+ *
+ * <p>
+ * The subtree is walked lazily and sent in bounded batches
+ * ({@link DataContainerBatch}): first all nodes, then the relationships
+ * between them. File content is streamed in fixed-size chunks. At most
+ * {@link CloudService#WindowSize} batches are in flight, further batches
+ * are sent when the remote instance acknowledges stored batches.
+ * </p>
  *
  * @author axel
  */
@@ -107,107 +121,116 @@ public class PushNodes extends CloudServiceCommand {
 
     private void pushNodes(final User user, final AbstractNode node, final String remoteHost, final int remoteTcpPort, final int remoteUdpPort, final boolean recursive) {
 
-        List<DataContainer> transportSet = new LinkedList<DataContainer>();
-        Set<RelationshipDataContainer> transportRelationships = new HashSet<RelationshipDataContainer>();
-
-        int maxSize = 4096;
-
-        if (recursive) {
+        // Be quiet
+        Log.set(Log.LEVEL_DEBUG);
 
-            List<AbstractNode> nodes = node.getAllChildren();
+        Client client = new Client(CloudService.WriteBufferSize, CloudService.ObjectBufferSize);
 
-            //Set<StructrRelationship> relationships = new HashSet<StructrRelationship>();
+        client.start();
 
-            for (AbstractNode n : nodes) {
+        logger.log(Level.INFO, "KryoNet client started, buffer sizes {0}, {1}", new Object[]{CloudService.WriteBufferSize, CloudService.ObjectBufferSize});
 
-                DataContainer container;
-                if (n instanceof File) {
-                    container = new FileNodeDataContainer(n);
-                } else {
-                    container = new NodeDataContainer(n);
-                }
-                
-                maxSize = Math.max(maxSize, container.getEstimatedSize());
+        Kryo kryo = client.getKryo();
 
-                transportSet.add(container);
+        CloudService.registerClasses(kryo);
 
-                // Collect all relationships whose start and end nodes are contained in the above list
-                List<StructrRelationship> rels = n.getOutgoingRelationships();
+        final BatchSender sender = new BatchSender(client);
 
-                for (StructrRelationship r : rels) {
+        client.addListener(new Listener() {
 
-                    AbstractNode startNode = r.getStartNode();
-                    AbstractNode endNode = r.getEndNode();
+            @Override
+            public void received(Connection connection, Object object) {
 
-                    if (nodes.contains(startNode) && nodes.contains(endNode)) {
-                        transportRelationships.add(new RelationshipDataContainer(r));
-                    }
+                if (object instanceof BatchAck) {
+                    sender.acknowledge((BatchAck) object);
                 }
             }
 
-            // After all nodes are through, add relationships
-            transportSet.addAll(transportRelationships);
-
-        } else {
+            @Override
+            public void disconnected(Connection connection) {
+                sender.abort();
+            }
+        });
 
-            // If not recursive, add only the node itself
-            transportSet.add(new NodeDataContainer(node));
+        try {
 
-        }
+            client.connect(5000, remoteHost, remoteTcpPort, remoteUdpPort);
+            logger.log(Level.INFO, "Connected to structr instance on {0} (tcp port: {1}, udp port: {2})", new Object[]{remoteHost, remoteTcpPort, remoteUdpPort});
 
+            client.sendTCP(CloudService.BEGIN_TRANSACTION); // mark start of transaction
 
+            // ids of all nodes sent, in order, to select the relationships
+            Set<Long> sentNodeIds = new LinkedHashSet<Long>();
 
-        // Be quiet
-        Log.set(Log.LEVEL_DEBUG);
+            if (recursive) {
 
-        Client client = new Client(maxSize*8, maxSize*2);
+                Command nodeFactory = Services.command(NodeFactoryCommand.class);
 
-        client.start();
+                // walk the subtree lazily instead of collecting it first
+                for (Node dbNode : Traversal.description().breadthFirst().relationships(RelType.HAS_CHILD, Direction.OUTGOING).traverse(node.getNode()).nodes()) {
 
-        logger.log(Level.INFO, "KryoNet client started, buffer sizes {0}, {1}", new Object[]{maxSize*8, maxSize*2});
+                    AbstractNode n = (AbstractNode) nodeFactory.execute(dbNode);
 
-        Kryo kryo = client.getKryo();
+                    if (n != null && n.readAllowed()) {
 
-        CloudService.registerClasses(kryo);
+                        sendNode(sender, n);
+                        sentNodeIds.add(n.getId());
+                    }
+                }
 
+                // After all nodes are through, send relationships whose start
+                // and end nodes were sent
+                Command findNode = Services.command(FindNodeCommand.class);
 
-        try {
+                for (Long id : sentNodeIds) {
 
-            client.connect(5000, remoteHost, remoteTcpPort, remoteUdpPort);
-            logger.log(Level.INFO, "Connected to structr instance on {0} (tcp port: {1}, udp port: {2})", new Object[]{remoteHost, remoteTcpPort, remoteUdpPort});
+                    AbstractNode n = (AbstractNode) findNode.execute(user, id);
 
-            int size = transportSet.size();
+                    if (n == null) {
+                        continue;
+                    }
 
-            if (size < 16) {
+                    for (StructrRelationship r : n.getOutgoingRelationships()) {
 
-                // For small transfers, send all nodes and relationships of the transport set to remote server in one transaction
-                
-                client.sendTCP(transportSet);
+                        if (sentNodeIds.contains(r.getEndNode().getId())) {
+                            sender.add(new RelationshipDataContainer(r));
+                        }
+                    }
+                }
 
             } else {
 
-                // More than 16 nodes => send one by one
-
-                client.sendTCP(CloudService.BEGIN_TRANSACTION); // mark start of transaction
+                // If not recursive, send only the node itself
+                sendNode(sender, node);
+                sentNodeIds.add(node.getId());
+            }
 
-                for (DataContainer container : transportSet) {
+            sender.finish();
 
-                    client.sendTCP(container);
+            client.sendTCP(CloudService.END_TRANSACTION); // mark end of transaction
 
-                }
-                client.sendTCP(CloudService.END_TRANSACTION); // mark end of transaction
+            logger.log(Level.INFO, "{0} nodes and {1} containers sent in {2} batches", new Object[]{sentNodeIds.size(), sender.getContainerCount(), sender.getBatchCount()}); // TODO: Reduce log level, when stable
 
-            }
+        } catch (IOException ex) {
+            logger.log(Level.SEVERE, "Error while sending nodes to remote instance", ex);
 
-            logger.log(Level.INFO, "Transport set with {0} nodes/relationships was sent", transportSet.size()); // TODO: Reduce log level, when stable
+        } finally {
+            client.stop();
+        }
 
+    }
 
-            // TODO: Has the client really to be closed after each transport?
-            //client.close();
+    /**
+     * Send the given node, followed by the content chunks if it is a file
+     */
+    private void sendNode(final BatchSender sender, final AbstractNode n) throws IOException {
 
-        } catch (IOException ex) {
-            logger.log(Level.SEVERE, "Error while sending nodes to remote instance", ex);
+        if (!(n instanceof File)) {
+            sender.add(new NodeDataContainer(n));
+            return;
         }
 
+        sender.add(new FileNodeDataContainer(n));
+        sender.addFileContent((File) n);
     }
 }
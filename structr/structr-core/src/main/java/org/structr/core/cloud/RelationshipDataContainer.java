@@ -32,6 +32,8 @@ public class RelationshipDataContainer extends DataContainer implements Comparab
     protected long sourceStartNodeId;
     protected long sourceEndNodeId;
     protected String name;
+    protected String startGlobalId;
+    protected String endGlobalId;
 
     public RelationshipDataContainer() {};
 
@@ -44,6 +46,14 @@ public class RelationshipDataContainer extends DataContainer implements Comparab
 
     }
 
+    public RelationshipDataContainer(final StructrRelationship relationship, final String startGlobalId, final String endGlobalId) {
+
+        this(relationship);
+
+        this.startGlobalId = startGlobalId;
+        this.endGlobalId = endGlobalId;
+    }
+
     /**
      * Return name
      * 
@@ -71,6 +81,26 @@ public class RelationshipDataContainer extends DataContainer implements Comparab
         return sourceEndNodeId;
     }
 
+    /**
+     * Return global id of start node, or null if the relationship
+     * was not sent by a sync
+     *
+     * @return
+     */
+    public String getStartGlobalId() {
+        return startGlobalId;
+    }
+
+    /**
+     * Return global id of end node, or null if the relationship
+     * was not sent by a sync
+     *
+     * @return
+     */
+    public String getEndGlobalId() {
+        return endGlobalId;
+    }
+
     @Override
     public int compareTo(RelationshipDataContainer t) {
         throw new UnsupportedOperationException("Not supported yet.");
@@ -0,0 +1,323 @@
+/*
+ *  Copyright (C) 2011 Axel Morgner, structr <structr@structr.org>
+ * 
+ *  This file is part of structr <http://structr.org>.
+ * 
+ *  structr is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ * 
+ *  structr is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ * 
+ *  You should have received a copy of the GNU General Public License
+ *  along with structr.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.structr.core.cloud;
+
+import com.esotericsoftware.kryonet.Client;
+import com.esotericsoftware.kryonet.Connection;
+import com.esotericsoftware.kryonet.Listener;
+import com.esotericsoftware.minlog.Log;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.Node;
+import org.neo4j.kernel.Traversal;
+import org.structr.common.RelType;
+import org.structr.core.Command;
+import org.structr.core.Services;
+import org.structr.core.UnsupportedArgumentError;
+import org.structr.core.entity.AbstractNode;
+import org.structr.core.entity.File;
+import org.structr.core.entity.StructrRelationship;
+import org.structr.core.entity.User;
+import org.structr.core.node.FindNodeCommand;
+import org.structr.core.node.NodeFactoryCommand;
+import org.structr.core.node.StructrTransaction;
+import org.structr.core.node.TransactionCommand;
+
+/**
+ * Synchronizes a node and its subtree incrementally with a remote
+ * structr instance.
+ *
+ * <p>
+ * Only the nodes that changed since the last successful sync to the
+ * remote instance are sent, each together with the complete set of its
+ * relationships to other synced nodes, followed by the global ids of
+ * the nodes deleted in the meantime. The remote instance identifies
+ * nodes by their global id (see {@link SyncState}), so applying the same
+ * changes twice has no effect. The first sync to an instance sends the
+ * whole subtree.
+ * </p>
+ *
+ * <p>
+ * The sync time is recorded only if all batches were stored by the
+ * remote instance, otherwise the next sync sends the changes again.
+ * Changes are selected with a safety margin (see {@link SyncState}), so
+ * a few changes may be sent twice, but none are missed.
+ * </p>
+ *
+ * Parameters: user, node (or node id), remote instance address, or user,
+ * node, remote host, tcp port and udp port.
+ *
+ * Returns true if the sync was successful.
+ *
+ * @author axel
+ */
+public class SyncNodes extends CloudServiceCommand {
+
+    private static final Logger logger = Logger.getLogger(SyncNodes.class.getName());
+
+    @Override
+    public Object execute(Object... parameters) {
+
+        User user = null;
+        AbstractNode node = null;
+        String remoteHost = null;
+        int remoteTcpPort = 0;
+        int remoteUdpPort = 0;
+
+        Command findNode = Services.command(FindNodeCommand.class);
+
+        if (parameters.length != 3 && parameters.length != 5) {
+            throw new UnsupportedArgumentError("Wrong number of arguments");
+        }
+
+        if (parameters[0] instanceof User) {
+            user = (User) parameters[0];
+        }
+
+        if (parameters[1] instanceof Long) {
+            long id = ((Long) parameters[1]).longValue();
+            node = (AbstractNode) findNode.execute(null, id);
+
+        } else if (parameters[1] instanceof AbstractNode) {
+            node = ((AbstractNode) parameters[1]);
+
+        } else if (parameters[1] instanceof String) {
+            long id = Long.parseLong((String) parameters[1]);
+            node = (AbstractNode) findNode.execute(null, id);
+        }
+
+        if (parameters.length == 3 && parameters[2] instanceof InstanceAddress) {
+
+            InstanceAddress address = (InstanceAddress) parameters[2];
+
+            remoteHost = address.getHost();
+            remoteTcpPort = Integer.parseInt(address.getTcpPort());
+            remoteUdpPort = Integer.parseInt(address.getUdpPort());
+
+        } else if (parameters.length == 5) {
+
+            if (parameters[2] instanceof String) {
+                remoteHost = (String) parameters[2];
+            }
+
+            if (parameters[3] instanceof Integer) {
+                remoteTcpPort = (Integer) parameters[3];
+            }
+
+            if (parameters[4] instanceof Integer) {
+                remoteUdpPort = (Integer) parameters[4];
+            }
+        }
+
+        if (node == null || remoteHost == null) {
+            throw new UnsupportedArgumentError("Node or remote instance missing");
+        }
+
+        return syncNodes(user, node, remoteHost, remoteTcpPort, remoteUdpPort);
+    }
+
+    private boolean syncNodes(final User user, final AbstractNode node, final String remoteHost, final int remoteTcpPort, final int remoteUdpPort) {
+
+        // changes made while the sync is running are sent next time
+        long syncStart = System.currentTimeMillis();
+        long lastSync = SyncState.getLastSync(remoteHost, remoteTcpPort);
+        long since = Math.max(0L, lastSync - SyncState.SYNC_MARGIN);
+
+        // Be quiet
+        Log.set(Log.LEVEL_DEBUG);
+
+        Client client = new Client(CloudService.WriteBufferSize, CloudService.ObjectBufferSize);
+
+        client.start();
+
+        CloudService.registerClasses(client.getKryo());
+
+        final BatchSender sender = new BatchSender(client);
+        boolean completed = false;
+
+        client.addListener(new Listener() {
+
+            @Override
+            public void received(Connection connection, Object object) {
+
+                if (object instanceof BatchAck) {
+                    sender.acknowledge((BatchAck) object);
+                }
+            }
+
+            @Override
+            public void disconnected(Connection connection) {
+                sender.abort();
+            }
+        });
+
+        try {
+
+            client.connect(5000, remoteHost, remoteTcpPort, remoteUdpPort);
+            logger.log(Level.INFO, "Connected to structr instance on {0} (tcp port: {1}, udp port: {2}), syncing changes since {3}", new Object[]{remoteHost, remoteTcpPort, remoteUdpPort, lastSync});
+
+            client.sendTCP(CloudService.BEGIN_SYNC);
+
+            Command nodeFactory = Services.command(NodeFactoryCommand.class);
+            List<AbstractNode> syncedNodes = new LinkedList<AbstractNode>();
+            List<Node> newNodes = new LinkedList<Node>();
+            List<AbstractNode> changedNodes = new LinkedList<AbstractNode>();
+
+            for (Node dbNode : Traversal.description().breadthFirst().relationships(RelType.HAS_CHILD, Direction.OUTGOING).traverse(node.getNode()).nodes()) {
+
+                AbstractNode n = (AbstractNode) nodeFactory.execute(dbNode);
+
+                if (n == null || !n.readAllowed()) {
+                    continue;
+                }
+
+                if (SyncState.getGlobalId(dbNode) == null) {
+                    newNodes.add(dbNode);
+                }
+
+                syncedNodes.add(n);
+            }
+
+            Set<Long> newNodeIds = assignGlobalIds(newNodes);
+
+            for (AbstractNode n : syncedNodes) {
+
+                Node dbNode = n.getNode();
+                boolean firstSync = newNodeIds.contains(dbNode.getId());
+
+                if (SyncState.getGlobalId(dbNode) == null) {
+                    continue;
+                }
+
+                // the root node is always sent, the remote instance links it if it's new
+                if (firstSync || n.equals(node) || getLastModified(dbNode) >= since) {
+
+                    if (n instanceof File) {
+
+                        sender.add(new FileNodeDataContainer(n));
+                        sender.addFileContent((File) n);
+
+                    } else {
+
+                        sender.add(new NodeDataContainer(n));
+                    }
+
+                    changedNodes.add(n);
+                }
+            }
+
+            // relationships follow after all nodes, so that both nodes exist
+            for (AbstractNode n : changedNodes) {
+
+                NodeRelationshipsContainer rels = new NodeRelationshipsContainer(SyncState.getGlobalId(n.getNode()));
+
+                for (StructrRelationship r : n.getRelationships()) {
+
+                    String startGlobalId = SyncState.getGlobalId(r.getStartNode().getNode());
+                    String endGlobalId = SyncState.getGlobalId(r.getEndNode().getNode());
+
+                    if (startGlobalId != null && endGlobalId != null) {
+                        rels.add(new RelationshipDataContainer(r, startGlobalId, endGlobalId));
+                    }
+                }
+
+                sender.add(rels);
+            }
+
+            int deletedCount = 0;
+
+            if (lastSync > 0) {
+
+                for (String globalId : SyncState.getTombstones(since)) {
+
+                    sender.add(new TombstoneContainer(globalId));
+                    deletedCount++;
+                }
+            }
+
+            sender.finish();
+
+            client.sendTCP(CloudService.END_TRANSACTION);
+            completed = true;
+
+            logger.log(Level.INFO, "{0} changed and {1} deleted nodes synced in {2} batches", new Object[]{changedNodes.size(), deletedCount, sender.getBatchCount()});
+
+        } catch (IOException ex) {
+            logger.log(Level.SEVERE, "Error while syncing nodes with remote instance", ex);
+
+        } finally {
+            client.stop();
+        }
+
+        if (!completed || !sender.isSuccess()) {
+            logger.log(Level.WARNING, "Sync with {0}:{1} was not successful, changes will be sent again", new Object[]{remoteHost, remoteTcpPort});
+            return false;
+        }
+
+        SyncState.setLastSync(remoteHost, remoteTcpPort, syncStart);
+
+        return true;
+    }
+
+    /**
+     * Assign new global ids to the given nodes in a single transaction.
+     *
+     * @param dbNodes
+     * @return the ids of the nodes that got a global id
+     */
+    private Set<Long> assignGlobalIds(final List<Node> dbNodes) {
+
+        if (dbNodes.isEmpty()) {
+            return new HashSet<Long>();
+        }
+
+        Set<Long> nodeIds = (Set<Long>) Services.command(TransactionCommand.class).execute(new StructrTransaction() {
+
+            @Override
+            public Object execute() throws Throwable {
+
+                Set<Long> nodeIds = new HashSet<Long>();
+
+                for (Node dbNode : dbNodes) {
+
+                    SyncState.setGlobalId(dbNode, null);
+                    nodeIds.add(dbNode.getId());
+                }
+
+                return nodeIds;
+            }
+        });
+
+        // the transaction failed, the nodes are tried again next time
+        return (nodeIds != null ? nodeIds : new HashSet<Long>());
+    }
+
+    private long getLastModified(final Node dbNode) {
+
+        Object value = dbNode.getProperty(AbstractNode.LAST_MODIFIED_DATE_KEY, null);
+
+        return (value instanceof Long ? (Long) value : 0L);
+    }
+}
@@ -0,0 +1,412 @@
+/*
+ *  Copyright (C) 2011 Axel Morgner, structr <structr@structr.org>
+ * 
+ *  This file is part of structr <http://structr.org>.
+ * 
+ *  structr is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ * 
+ *  structr is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ * 
+ *  You should have received a copy of the GNU General Public License
+ *  along with structr.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.structr.core.cloud;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Collection;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.NotFoundException;
+import org.neo4j.graphdb.index.Index;
+import org.neo4j.graphdb.index.IndexHits;
+import org.structr.common.Path;
+import org.structr.core.Services;
+import org.structr.core.node.GraphDatabaseCommand;
+
+/**
+ * Change tracking state for incremental synchronization between structr
+ * instances.
+ *
+ * <p>
+ * Nodes taking part in a synchronization carry a stable, instance-independent
+ * global id, which is assigned on first sync and kept in a separate exact
+ * index. Ids of deleted nodes are recorded as tombstones, and the time of
+ * the last successful sync is kept per remote instance. Both are stored in
+ * the files directory and survive restarts.
+ * </p>
+ *
+ * <p>
+ * Changes are selected with a safety margin of {@link #SYNC_MARGIN} before
+ * the last successful sync, which covers transactions that were stamped
+ * before, but committed after the start of that sync. Tombstones older
+ * than the last successful sync to every known instance minus that margin
+ * are discarded.
+ * </p>
+ *
+ * @author axel
+ */
+public class SyncState {
+
+    private static final Logger logger = Logger.getLogger(SyncState.class.getName());
+    public static final String GLOBAL_ID_KEY = "globalId";
+    /** Time in milliseconds between stamping a change and its commit that a sync tolerates */
+    public static final long SYNC_MARGIN = 60L * 1000L;
+    private static final String GLOBAL_ID_INDEX = "globalIds";
+    private static final String STATE_FILE = "sync.properties";
+    private static final String TOMBSTONE_FILE = "sync.tombstones";
+    private static final Object lock = new Object();
+
+    // <editor-fold defaultstate="collapsed" desc="global ids">
+    /**
+     * Return the global id of the given node, or null if the node
+     * did not take part in a sync yet.
+     *
+     * @param dbNode
+     * @return
+     */
+    public static String getGlobalId(final Node dbNode) {
+
+        try {
+            return (String) dbNode.getProperty(GLOBAL_ID_KEY, null);
+
+        } catch (NotFoundException nfe) {
+            return null;
+        }
+    }
+
+    /**
+     * Set and index the global id of the given node. Has to be called
+     * inside a transaction.
+     *
+     * @param dbNode
+     * @param globalId the global id, or null to create a new one
+     * @return the global id
+     */
+    public static String setGlobalId(final Node dbNode, final String globalId) {
+
+        String id = (globalId != null ? globalId : UUID.randomUUID().toString());
+        Index<Node> index = getIndex();
+        String oldId = getGlobalId(dbNode);
+
+        if (oldId != null) {
+            index.remove(dbNode, GLOBAL_ID_KEY, oldId);
+        }
+
+        dbNode.setProperty(GLOBAL_ID_KEY, id);
+        index.add(dbNode, GLOBAL_ID_KEY, id);
+
+        return id;
+    }
+
+    /**
+     * Remove the global id of the given node from the index. Has to be
+     * called inside a transaction.
+     *
+     * @param dbNode
+     * @param globalId
+     */
+    public static void removeGlobalId(final Node dbNode, final String globalId) {
+        getIndex().remove(dbNode, GLOBAL_ID_KEY, globalId);
+    }
+
+    /**
+     * Return the node with the given global id, or null.
+     *
+     * @param globalId
+     * @return
+     */
+    public static Node findByGlobalId(final String globalId) {
+
+        if (globalId == null) {
+            return null;
+        }
+
+        IndexHits<Node> hits = getIndex().get(GLOBAL_ID_KEY, globalId);
+
+        try {
+
+            for (Node dbNode : hits) {
+
+                // skip stale entries of deleted nodes
+                if (globalId.equals(getGlobalId(dbNode))) {
+                    return dbNode;
+                }
+            }
+
+        } finally {
+            hits.close();
+        }
+
+        return null;
+    }
+    // </editor-fold>
+
+    // <editor-fold defaultstate="collapsed" desc="sync times">
+    /**
+     * Return the start time of the last successful sync to the given
+     * instance, or 0 if there was none. Callers selecting changes
+     * subtract {@link #SYNC_MARGIN} from it.
+     *
+     * @param host
+     * @param tcpPort
+     * @return
+     */
+    public static long getLastSync(final String host, final int tcpPort) {
+
+        synchronized (lock) {
+
+            String value = loadState().getProperty(getInstanceKey(host, tcpPort));
+
+            try {
+                return (value != null ? Long.parseLong(value) : 0L);
+
+            } catch (NumberFormatException nfe) {
+                return 0L;
+            }
+        }
+    }
+
+    /**
+     * Record a successful sync to the given instance and discard the
+     * tombstones that all known instances have received.
+     *
+     * @param host
+     * @param tcpPort
+     * @param time the start time of the sync
+     */
+    public static void setLastSync(final String host, final int tcpPort, final long time) {
+
+        synchronized (lock) {
+
+            Properties state = loadState();
+
+            state.setProperty(getInstanceKey(host, tcpPort), Long.toString(time));
+
+            try {
+                FileOutputStream out = new FileOutputStream(getFile(STATE_FILE));
+
+                try {
+                    state.store(out, "Last successful sync per structr instance");
+
+                } finally {
+                    out.close();
+                }
+
+            } catch (IOException ex) {
+                logger.log(Level.SEVERE, "Could not store sync state", ex);
+            }
+
+            long oldest = Long.MAX_VALUE;
+
+            for (String key : state.stringPropertyNames()) {
+
+                try {
+                    oldest = Math.min(oldest, Long.parseLong(state.getProperty(key)));
+
+                } catch (NumberFormatException ignore) {
+                }
+            }
+
+            pruneTombstones(oldest - SYNC_MARGIN);
+        }
+    }
+    // </editor-fold>
+
+    // <editor-fold defaultstate="collapsed" desc="tombstones">
+    /**
+     * Record the global ids of deleted nodes.
+     *
+     * @param globalIds
+     */
+    public static void addTombstones(final Collection<String> globalIds) {
+
+        if (globalIds.isEmpty()) {
+            return;
+        }
+
+        synchronized (lock) {
+
+            long now = System.currentTimeMillis();
+
+            try {
+                Writer writer = new OutputStreamWriter(new FileOutputStream(getFile(TOMBSTONE_FILE), true), "UTF-8");
+
+                try {
+                    for (String globalId : globalIds) {
+                        writer.write(now + "\t" + globalId + "\n");
+                    }
+
+                } finally {
+                    writer.close();
+                }
+
+            } catch (IOException ex) {
+                logger.log(Level.SEVERE, "Could not record tombstones for " + globalIds, ex);
+            }
+        }
+    }
+
+    /**
+     * Return the global ids of all nodes deleted since the given time,
+     * in order of deletion.
+     *
+     * @param since
+     * @return
+     */
+    public static List<String> getTombstones(final long since) {
+
+        List<String> globalIds = new LinkedList<String>();
+
+        synchronized (lock) {
+
+            for (String[] tombstone : readTombstones()) {
+
+                if (Long.parseLong(tombstone[0]) >= since) {
+                    globalIds.add(tombstone[1]);
+                }
+            }
+        }
+
+        return globalIds;
+    }
+    // </editor-fold>
+
+    // <editor-fold defaultstate="collapsed" desc="private methods">
+    private static Index<Node> getIndex() {
+
+        GraphDatabaseService graphDb = (GraphDatabaseService) Services.command(GraphDatabaseCommand.class).execute();
+
+        return graphDb.index().forNodes(GLOBAL_ID_INDEX);
+    }
+
+    private static String getInstanceKey(final String host, final int tcpPort) {
+        return host + ":" + tcpPort;
+    }
+
+    private static File getFile(final String name) {
+        return new File(Services.getFilePath(Path.Files, name));
+    }
+
+    private static Properties loadState() {
+
+        Properties state = new Properties();
+        File file = getFile(STATE_FILE);
+
+        if (file.exists()) {
+
+            try {
+                FileInputStream in = new FileInputStream(file);
+
+                try {
+                    state.load(in);
+
+                } finally {
+                    in.close();
+                }
+
+            } catch (IOException ex) {
+                logger.log(Level.SEVERE, "Could not read sync state", ex);
+            }
+        }
+
+        return state;
+    }
+
+    private static List<String[]> readTombstones() {
+
+        List<String[]> tombstones = new LinkedList<String[]>();
+        File file = getFile(TOMBSTONE_FILE);
+
+        if (!file.exists()) {
+            return tombstones;
+        }
+
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+
+            try {
+                String line = null;
+
+                while ((line = reader.readLine()) != null) {
+
+                    String[] tombstone = line.split("\t");
+
+                    // skip incomplete lines
+                    if (tombstone.length == 2 && tombstone[0].matches("[0-9]+")) {
+                        tombstones.add(tombstone);
+                    }
+                }
+
+            } finally {
+                reader.close();
+            }
+
+        } catch (IOException ex) {
+            logger.log(Level.SEVERE, "Could not read tombstones", ex);
+        }
+
+        return tombstones;
+    }
+
+    private static void pruneTombstones(final long before) {
+
+        List<String[]> tombstones = readTombstones();
+        List<String[]> remaining = new LinkedList<String[]>();
+
+        for (String[] tombstone : tombstones) {
+
+            if (Long.parseLong(tombstone[0]) >= before) {
+                remaining.add(tombstone);
+            }
+        }
+
+        if (remaining.size() == tombstones.size()) {
+            return;
+        }
+
+        File file = getFile(TOMBSTONE_FILE);
+        File tmpFile = getFile(TOMBSTONE_FILE + ".tmp");
+
+        try {
+            Writer writer = new OutputStreamWriter(new FileOutputStream(tmpFile), "UTF-8");
+
+            try {
+                for (String[] tombstone : remaining) {
+                    writer.write(tombstone[0] + "\t" + tombstone[1] + "\n");
+                }
+
+            } finally {
+                writer.close();
+            }
+
+            if (!tmpFile.renameTo(file)) {
+                logger.log(Level.WARNING, "Could not replace tombstone file");
+            }
+
+        } catch (IOException ex) {
+            logger.log(Level.SEVERE, "Could not prune tombstones", ex);
+        }
+
+        logger.log(Level.FINE, "Discarded {0} tombstones", tombstones.size() - remaining.size());
+    }
+    // </editor-fold>
+}
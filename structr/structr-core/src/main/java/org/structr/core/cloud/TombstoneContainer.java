@@ -0,0 +1,47 @@
+/*
+ *  Copyright (C) 2011 Axel Morgner, structr <structr@structr.org>
+ * 
+ *  This file is part of structr <http://structr.org>.
+ * 
+ *  structr is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ * 
+ *  structr is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ * 
+ *  You should have received a copy of the GNU General Public License
+ *  along with structr.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.structr.core.cloud;
+
+/**
+ * Serializable data container for the global id of a node that was
+ * deleted since the last sync.
+ *
+ * @author axel
+ */
+public class TombstoneContainer extends DataContainer {
+
+    protected String globalId;
+
+    public TombstoneContainer() {};
+
+    public TombstoneContainer(final String globalId) {
+
+        this.globalId = globalId;
+        this.estimatedSize = globalId.length();
+    }
+
+    /**
+     * Return the global id of the deleted node
+     *
+     * @return
+     */
+    public String getGlobalId() {
+        return globalId;
+    }
+}
@@ -18,19 +18,19 @@
  */
 package org.structr.core.entity;
 
-import freemarker.template.Configuration;
 import org.structr.core.node.TransactionCommand;
 import org.structr.core.Command;
+import org.structr.core.CommandHandle;
 import org.structr.core.Services;
 import org.structr.core.node.StructrTransaction;
-import org.structr.core.node.NodeFactoryCommand;
+import org.structr.core.node.QueueIndexUpdateCommand;
+import org.structr.core.node.UnitOfWorkCommand;
 import org.structr.core.node.NodeRelationshipsCommand;
 import org.structr.core.node.FindNodeCommand;
 import org.structr.common.RelType;
 
 import java.io.IOException;
 import java.io.OutputStream;
-import java.io.StringReader;
 import java.io.Writer;
 import java.lang.reflect.Method;
 import java.text.ParseException;
@@ -55,18 +55,19 @@ import org.neo4j.graphdb.Direction;
 import org.neo4j.graphdb.Node;
 import org.neo4j.graphdb.RelationshipType;
 import org.structr.common.AbstractNodeComparator;
+import org.structr.common.CompiledTemplate;
 import org.structr.common.CurrentRequest;
+import org.structr.common.FreeMarkerSupport;
+import org.structr.common.PermissionCache;
 import org.structr.common.TemplateHelper;
+import org.structr.common.TreeHelper;
 import org.structr.core.NodeSource;
 import org.structr.core.cloud.NodeDataContainer;
 import org.structr.core.node.CreateNodeCommand;
 import org.structr.core.node.CreateRelationshipCommand;
 import org.structr.core.node.DeleteRelationshipCommand;
-import org.structr.core.node.IndexNodeCommand;
-import org.structr.core.node.search.SearchNodeCommand;
+import org.structr.core.node.RemoveFromCacheCommand;
 import org.structr.core.node.XPath;
-import org.structr.core.node.search.Search;
-import org.structr.core.node.search.SearchAttribute;
 
 /**
  * 
@@ -76,6 +77,9 @@ import org.structr.core.node.search.SearchAttribute;
 public abstract class AbstractNode implements Comparable<AbstractNode> {
 
     private static final Logger logger = Logger.getLogger(AbstractNode.class.getName());
+    private static final CommandHandle nodeRelationshipsHandle = Services.handle(NodeRelationshipsCommand.class);
+    private static final CommandHandle queueIndexUpdateHandle = Services.handle(QueueIndexUpdateCommand.class);
+    private static final CommandHandle removeFromCacheHandle = Services.handle(RemoveFromCacheCommand.class);
     private static final boolean updateIndexDefault = true;
     // request parameters
     //private HttpServletRequest request = null;
@@ -126,8 +130,6 @@ public abstract class AbstractNode implements Comparable<AbstractNode> {
 //    public final static String ACL_KEY = "acl";
     //private final static String keyPrefix = "${";
     //private final static String keySuffix = "}";
-    private final static String NODE_KEY_PREFIX = "%{";
-    private final static String NODE_KEY_SUFFIX = "}";
 //    private final static String REQUEST_KEY_PREFIX = "$[";
 //    private final static String REQUEST_KEY_SUFFIX = "]";
     private final static String CALLING_NODE_SUBNODES_KEY = "*";
@@ -1093,6 +1095,9 @@ public abstract class AbstractNode implements Comparable<AbstractNode> {
                     // save space
                     if (value == null) {
                         dbNode.removeProperty(key);
+
+                        // removals are changes, too (needed for incremental sync)
+                        dbNode.setProperty(AbstractNode.LAST_MODIFIED_DATE_KEY, (new Date()).getTime());
                     } else {
 
                         // Setting last modified date explicetely is not allowed
@@ -1102,25 +1107,28 @@ public abstract class AbstractNode implements Comparable<AbstractNode> {
                                 dbNode.setProperty(key, ((Date) value).getTime());
                             } else {
                                 dbNode.setProperty(key, value);
-
-                                // set last modified date if not already happened
-                                dbNode.setProperty(AbstractNode.LAST_MODIFIED_DATE_KEY, (new Date()).getTime());
                             }
+
+                            // set last modified date if not already happened
+                            dbNode.setProperty(AbstractNode.LAST_MODIFIED_DATE_KEY, (new Date()).getTime());
                         } else {
                             logger.log(Level.FINE, "Tried to set lastModifiedDate explicitely (action was denied)");
                         }
                     }
 
                     // Don't automatically update index
-                    // TODO: Implement something really fast to keep the index automatically in sync
+                    // The index is updated asynchronously after commit
                     if (updateIndex && dbNode.hasProperty(key)) {
-                        Services.command(IndexNodeCommand.class).execute(getId(), key);
+                        queueIndexUpdateHandle.execute(getId(), key);
                     }
 
                     return null;
                 }
             });
 
+            // cached instances of this node may be outdated now
+            removeFromCacheHandle.execute(getId());
+
         }
     }
 
@@ -1139,10 +1147,10 @@ public abstract class AbstractNode implements Comparable<AbstractNode> {
 
         isDirty = false;
 
-        // Create an outer transaction to combine any inner neo4j transactions
-        // to one single transaction
-        Command transactionCommand = Services.command(TransactionCommand.class);
-        transactionCommand.execute(new StructrTransaction() {
+        // Create a unit of work to combine any inner neo4j transactions to
+        // one single transaction, or join the unit of work of the caller
+        Command unitOfWorkCommand = Services.command(UnitOfWorkCommand.class);
+        unitOfWorkCommand.execute(new StructrTransaction() {
 
             @Override
             public Object execute() throws Throwable {
@@ -1159,9 +1167,13 @@ public abstract class AbstractNode implements Comparable<AbstractNode> {
                         setProperty(key, value, false); // Don't update index now!
                     }
                 }
+
+                // index all properties at once
+                Services.command(QueueIndexUpdateCommand.class).execute(getId());
+
                 return null;
             }
-        });
+        }, Integer.MAX_VALUE);
 
     }
 
@@ -1264,32 +1276,14 @@ public abstract class AbstractNode implements Comparable<AbstractNode> {
      */
     public String getNodePath() {
 
-        String path = "";
-
-        // get actual database node
-        AbstractNode node = this;
-
-        // create bean node
-//        Command nodeFactory = Services.command(NodeFactoryCommand.class);
-//        AbstractNode n = (AbstractNode) nodeFactory.execute(node);
-
-        // stop at root node
-        while (node != null && node.getId() > 0) {
-
-            path = node.getName() + (!("".equals(path)) ? "/" + path : "");
-
-            node = node.getParentNode();
-
-            // check parent nodes
-//            Relationship r = node.getSingleRelationship(RelType.HAS_CHILD, Direction.INCOMING);
-//            if (r != null) {
-//                node = r.getStartNode();
-//                n = (AbstractNode) nodeFactory.execute(node);
-//            }
+        StringBuilder path = new StringBuilder();
 
+        // the path nodes stop at the root node
+        for (AbstractNode node : TreeHelper.getPathNodes(this)) {
+            path.append("/").append(node.getName());
         }
 
-        return "/".concat(path); // add leading slash, because we always include the root node
+        return path.length() > 0 ? path.toString() : "/"; // we always include the root node
     }
 
     /**
@@ -1299,26 +1293,14 @@ public abstract class AbstractNode implements Comparable<AbstractNode> {
      */
     public String getNodeXPath() {
 
-        String xpath = "";
-
-        // get actual database node
-        AbstractNode node = this;
-
-        // create bean node
-//        Command nodeFactory = Services.command(NodeFactoryCommand.class);
-//        AbstractNode n = (AbstractNode) nodeFactory.execute(node);
-
-        // stop at root node
-        while (node != null && node.getId() > 0) {
-
-            xpath = node.getType() + "[@name='" + node.getName() + "']" + (!("".equals(xpath)) ? "/" + xpath : "");
-
-            // check parent nodes
-            node = node.getParentNode();
+        StringBuilder xpath = new StringBuilder();
 
+        // the path nodes stop at the root node
+        for (AbstractNode node : TreeHelper.getPathNodes(this)) {
+            xpath.append("/").append(node.getType()).append("[@name='").append(node.getName()).append("']");
         }
 
-        return "/".concat(xpath); // add leading slash, because we always include the root node
+        return xpath.length() > 0 ? xpath.toString() : "/"; // we always include the root node
     }
 
 //
@@ -1371,8 +1353,10 @@ public abstract class AbstractNode implements Comparable<AbstractNode> {
      * @return incoming security relationship
      */
     public StructrRelationship getSecurityRelationship(final Principal principal) {
+        return getSecurityRelationship(principal.getId());
+    }
 
-        long userId = principal.getId();
+    private StructrRelationship getSecurityRelationship(final long userId) {
 
         if (securityRelationships == null) {
             securityRelationships = new HashMap<Long, StructrRelationship>();
@@ -1407,7 +1391,7 @@ public abstract class AbstractNode implements Comparable<AbstractNode> {
      * @return list with relationships
      */
     public List<StructrRelationship> getRelationships(RelationshipType type, Direction dir) {
-        return (List<StructrRelationship>) Services.command(NodeRelationshipsCommand.class).execute(this, type, dir);
+        return (List<StructrRelationship>) nodeRelationshipsHandle.execute(this, type, dir);
     }
 
     /**
@@ -1482,14 +1466,11 @@ public abstract class AbstractNode implements Comparable<AbstractNode> {
         if (parentNode != null) {
 
 
-            Command nodeFactory = Services.command(NodeFactoryCommand.class);
-
-            Command relsCommand = Services.command(NodeRelationshipsCommand.class);
-            List<StructrRelationship> rels = (List<StructrRelationship>) relsCommand.execute(parentNode, RelType.HAS_CHILD, Direction.OUTGOING);
+            List<StructrRelationship> rels = (List<StructrRelationship>) nodeRelationshipsHandle.execute(parentNode, RelType.HAS_CHILD, Direction.OUTGOING);
 
             for (StructrRelationship r : rels) {
 
-                AbstractNode s = (AbstractNode) nodeFactory.execute(r.getEndNode());
+                AbstractNode s = r.getEndNode();
                 if (s.readAllowed()) {
                     nodes.add(s);
                 }
@@ -1524,12 +1505,11 @@ public abstract class AbstractNode implements Comparable<AbstractNode> {
 
         List<AbstractNode> nodes = new LinkedList<AbstractNode>();
 
-        Command nodeFactory = Services.command(NodeFactoryCommand.class);
         List<StructrRelationship> rels = getIncomingChildRelationships();
 
         for (StructrRelationship r : rels) {
 
-            AbstractNode s = (AbstractNode) nodeFactory.execute(r.getStartNode());
+            AbstractNode s = r.getStartNode();
             if (s.readAllowed()) {
                 nodes.add(s);
             }
@@ -1549,12 +1529,11 @@ public abstract class AbstractNode implements Comparable<AbstractNode> {
 
         List<AbstractNode> nodes = new LinkedList<AbstractNode>();
 
-        Command nodeFactory = Services.command(NodeFactoryCommand.class);
         List<StructrRelationship> rels = getIncomingChildRelationships();
 
         for (StructrRelationship r : rels) {
 
-            AbstractNode s = (AbstractNode) nodeFactory.execute(r.getStartNode());
+            AbstractNode s = r.getStartNode();
             if (s.readAllowed()) {
                 nodes.add(s);
             }
@@ -2005,6 +1984,35 @@ public abstract class AbstractNode implements Comparable<AbstractNode> {
             return true;
         }
 
+        long nodeId = getId();
+        long principalId = principal.getId();
+
+        // only decisions about stored nodes can be cached
+        PermissionCache permissionCache = (nodeId >= 0 && principalId >= 0 ? CurrentRequest.getPermissionCache() : null);
+
+        if (permissionCache != null) {
+
+            Boolean decision = permissionCache.getDecision(nodeId, principalId, permission);
+
+            if (decision != null) {
+                return decision;
+            }
+        }
+
+        long securityVersion = PermissionCache.getSecurityVersion();
+        boolean allowed = resolvePermission(permission, principal);
+
+        if (permissionCache != null) {
+            permissionCache.putDecision(nodeId, principalId, permission, allowed, securityVersion);
+        }
+
+        return allowed;
+    }
+
+    /**
+     * Check the security relationships of the principal and its groups.
+     */
+    private boolean resolvePermission(final String permission, final Principal principal) {
 
         StructrRelationship r = getSecurityRelationship(principal);
 
@@ -2013,20 +2021,9 @@ public abstract class AbstractNode implements Comparable<AbstractNode> {
         }
 
         // Check group
+        for (Long groupId : PermissionCache.getGroupIds(principal)) {
 
-        // We cannot use getParent() here because it uses hasPermission itself,
-        // that would lead to an infinite loop
-        List<StructrRelationship> rels = principal.getIncomingChildRelationships();
-        for (StructrRelationship sr : rels) {
-            AbstractNode node = sr.getStartNode();
-
-            if (!(node instanceof Group)) {
-                continue;
-            }
-
-            Group group = (Group) node;
-
-            r = getSecurityRelationship(group);
+            r = getSecurityRelationship(groupId);
 
             if (r != null && r.isAllowed(permission)) {
                 return true;
@@ -2250,7 +2247,31 @@ public abstract class AbstractNode implements Comparable<AbstractNode> {
      */
     protected void replaceBySubnodes(StringBuilder content, final AbstractNode startNode, final String editUrl, final Long editNodeId) {
 
-//        List<AbstractNode> subnodes = getSortedDirectChildAndLinkNodes(user);
+        String source = content.toString();
+
+        content.setLength(0);
+        renderSubnodes(source, content, startNode, editUrl, editNodeId);
+    }
+
+    /**
+     * Append the given content to out, replacing %{key} by the content
+     * rendered by the subnode(s) with name "key"
+     *
+     * @param content
+     * @param out
+     * @param startNode
+     * @param editUrl
+     * @param editNodeId
+     */
+    protected void renderSubnodes(final String content, StringBuilder out, final AbstractNode startNode, final String editUrl, final Long editNodeId) {
+
+        CompiledTemplate compiledTemplate = CompiledTemplate.compile(content);
+
+        if (!compiledTemplate.hasPlaceholders()) {
+            out.append(content);
+            return;
+        }
+
         List<AbstractNode> callingNodeSubnodes = null;
         List<AbstractNode> callingNodeSubnodesAndLinkedNodes = null;
 
@@ -2267,70 +2288,37 @@ public abstract class AbstractNode implements Comparable<AbstractNode> {
 
         Command findNode = Services.command(FindNodeCommand.class);
 
-        int start = content.indexOf(NODE_KEY_PREFIX);
-        while (start > -1) {
+        for (CompiledTemplate.Segment segment : compiledTemplate.getSegments()) {
 
-            int end = content.indexOf(NODE_KEY_SUFFIX, start + NODE_KEY_PREFIX.length());
-
-            if (end < 0) {
-                logger.log(Level.WARNING, "Node key suffix {0} not found in template {1}", new Object[]{NODE_KEY_SUFFIX, template.getName()});
-                break;
+            if (segment instanceof CompiledTemplate.Literal) {
+                out.append(((CompiledTemplate.Literal) segment).getText());
+                continue;
             }
 
-            String key = content.substring(start + NODE_KEY_PREFIX.length(), end);
-
-            int indexOfComma = key.indexOf(",");
-            int indexOfDot = key.indexOf(".");
-
-            String templateKey = null;
-            String methodKey = null;
+            CompiledTemplate.Placeholder placeholder = (CompiledTemplate.Placeholder) segment;
+            String key = placeholder.getKey();
             Template customTemplate = null;
 
-            if (indexOfComma > 0) {
-                String[] splitted = StringUtils.split(key, ",");
-                key = splitted[0];
-                templateKey = splitted[1];
-
-                if (StringUtils.isNotEmpty(templateKey)) {
-                    customTemplate = (Template) findNode.execute(user, this, new XPath(templateKey));
-                }
-
-            } else if (indexOfDot > 0) {
-                String[] splitted = StringUtils.split(key, ".");
-                key = splitted[0];
-                methodKey = splitted[1];
+            if (placeholder.getTemplateKey() != null) {
+                customTemplate = (Template) findNode.execute(user, this, new XPath(placeholder.getTemplateKey()));
             }
 
-            StringBuilder replacement = new StringBuilder();
-
             if (callingNode != null && key.equals(CALLING_NODE_SUBNODES_KEY)) {
 
                 // render subnodes in correct order
                 for (AbstractNode s : callingNodeSubnodes) {
-
-                    // propagate request and template
-//                    s.setRequest(request);
-                    s.renderView(replacement, startNode, editUrl, editNodeId);
+                    s.renderView(out, startNode, editUrl, editNodeId);
                 }
 
             } else if (callingNode != null && key.equals(CALLING_NODE_SUBNODES_AND_LINKED_NODES_KEY)) {
 
                 // render subnodes in correct order
                 for (AbstractNode s : callingNodeSubnodesAndLinkedNodes) {
-
-                    // propagate request and template
-//                    s.setRequest(request);
-                    s.renderView(replacement, startNode, editUrl, editNodeId);
+                    s.renderView(out, startNode, editUrl, editNodeId);
                 }
 
-            } else { //if (key.startsWith("/") || key.startsWith("count(")) {
-                // use XPath notation
-
-
-                // search relative to calling node
-                //List<AbstractNode> nodes = (List<AbstractNode>) findNode.execute(user, callingNode, new XPath(key));
+            } else {
 
-//                Object result = findNode.execute(user, this, new XPath(key));
                 Object result = findNode.execute(user, this, key);
 
                 if (result instanceof List) {
@@ -2338,18 +2326,15 @@ public abstract class AbstractNode implements Comparable<AbstractNode> {
                     // get referenced nodes relative to the template
                     List<AbstractNode> nodes = (List<AbstractNode>) result;
 
-                    if (nodes != null) {
-                        for (AbstractNode s : nodes) {
+                    for (AbstractNode s : nodes) {
 
-                            if (customTemplate != null) {
-                                s.setTemplate(customTemplate);
-                            }
-
-                            // propagate request
-//                            s.setRequest(getRequest());
-                            s.renderView(replacement, startNode, editUrl, editNodeId);
+                        if (customTemplate != null) {
+                            s.setTemplate(customTemplate);
                         }
+
+                        s.renderView(out, startNode, editUrl, editNodeId);
                     }
+
                 } else if (result instanceof AbstractNode) {
 
                     AbstractNode s = (AbstractNode) result;
@@ -2358,59 +2343,28 @@ public abstract class AbstractNode implements Comparable<AbstractNode> {
                         s.setTemplate(customTemplate);
                     }
 
-                    // propagate request
-//                    s.setRequest(getRequest());
-                    if (StringUtils.isNotEmpty(methodKey)) {
+                    if (placeholder.getGetterName() != null) {
 
-                        methodKey = toGetter(methodKey);
+                        Method getter = CompiledTemplate.getGetter(s.getClass(), placeholder.getGetterName());
 
-                        Method getter = null;
-                        try {
-                            getter = s.getClass().getMethod(methodKey);
-                            Object value = null;
+                        if (getter != null) {
                             try {
-                                value = getter.invoke(s);
-                                replacement.append(value);
+                                out.append(getter.invoke(s));
                             } catch (Exception ex) {
                                 logger.log(Level.FINE, "Cannot invoke method {0} on {1}", new Object[]{getter, s});
                             }
-
-                        } catch (Exception ex) {
-                            logger.log(Level.FINE, "Cannot invoke method {0}", methodKey);
                         }
 
                     } else {
-                        s.renderView(replacement, startNode, editUrl, editNodeId);
+                        s.renderView(out, startNode, editUrl, editNodeId);
                     }
 
                 } else {
-                    replacement.append(result);
+                    out.append(result);
 
                 }
-
             }
-//            else {
-//
-//                // subnodes of this object
-//                for (AbstractNode s : subnodes) {
-//
-//                    if (key.equals(s.getName())) {
-//
-//                        // propagate request
-//                        s.setRequest(getRequest());
-//                        s.renderView(replacement, startNode, editUrl, editNodeId, user);
-//
-//                    }
-//                }
-//            }
-            String replaceBy = replacement.toString();
-
-            content.replace(start, end
-                    + NODE_KEY_SUFFIX.length(), replaceBy);
-            // avoid replacing in the replacement again
-            start = content.indexOf(NODE_KEY_PREFIX, start + replaceBy.length() + 1);
         }
-
     }
 
     /**
@@ -2515,8 +2469,6 @@ public abstract class AbstractNode implements Comparable<AbstractNode> {
 //    }
     protected void replaceByFreeMarker(final String templateString, Writer out, final AbstractNode startNode, final String editUrl, final Long editNodeId) {
 
-        Configuration cfg = new Configuration();
-
         // TODO: enable access to content tree, see below (Content variable)
         //cfg.setSharedVariable("Tree", new StructrTemplateNodeModel(this));
 
@@ -2554,23 +2506,7 @@ public abstract class AbstractNode implements Comparable<AbstractNode> {
 
                 // if search string is given, put search results into freemarker model
                 if (searchString != null && !(searchString.isEmpty())) {
-
-                    List<SearchAttribute> searchAttrs = new LinkedList<SearchAttribute>();
-                    searchAttrs.add(Search.orName(searchString)); // search in name
-
-                    if (inContent) {
-                        searchAttrs.add(Search.orContent(searchString)); // search in name
-                    }
-
-                    Command search = Services.command(SearchNodeCommand.class);
-                    List<AbstractNode> result = (List<AbstractNode>) search.execute(
-                            null, // user => null means super user
-                            null, // top node => null means search all
-                            false, // include hidden
-                            true, // public only
-                            searchAttrs);
-
-                    root.put("SearchResults", result);
+                    root.put("SearchResults", FreeMarkerSupport.getSearchResults(searchString, inContent));
                 }
             }
 
@@ -2602,7 +2538,7 @@ public abstract class AbstractNode implements Comparable<AbstractNode> {
 
             String name = template != null ? template.getName() : getName();
 
-            freemarker.template.Template t = new freemarker.template.Template(name, new StringReader(templateString), cfg);
+            freemarker.template.Template t = FreeMarkerSupport.getTemplate(name, templateString);
             t.process(root, out);
 
 
@@ -2616,8 +2552,6 @@ public abstract class AbstractNode implements Comparable<AbstractNode> {
 
     protected static void staticReplaceByFreeMarker(final String templateString, Writer out, final AbstractNode node, final String editUrl, final Long editNodeId) {
 
-        Configuration cfg = new Configuration();
-
         // TODO: enable access to content tree, see below (Content variable)
         //cfg.setSharedVariable("Tree", new StructrTemplateNodeModel(this));
 
@@ -2642,14 +2576,7 @@ public abstract class AbstractNode implements Comparable<AbstractNode> {
                     // if search string is given, put search results into freemarker model
                     String searchString = request.getParameter("search");
                     if (searchString != null && !(searchString.isEmpty())) {
-                        Command search = Services.command(SearchNodeCommand.class);
-                        List<AbstractNode> result = (List<AbstractNode>) search.execute(
-                                null, // user => null means super user
-                                null, // top node => null means search all
-                                false, // include hidden
-                                true, // public only
-                                Search.orName(searchString)); // search in name
-                        root.put("SearchResults", result);
+                        root.put("SearchResults", FreeMarkerSupport.getSearchResults(searchString, false));
                     }
                 }
 
@@ -2672,7 +2599,7 @@ public abstract class AbstractNode implements Comparable<AbstractNode> {
                     }
                 }
 
-                freemarker.template.Template t = new freemarker.template.Template(node.getName(), new StringReader(templateString), cfg);
+                freemarker.template.Template t = FreeMarkerSupport.getTemplate(node.getName(), templateString);
                 t.process(root, out);
 
             } else {
@@ -25,9 +25,11 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.ListIterator;
 import java.util.Set;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.neo4j.graphdb.Direction;
 import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.NotFoundException;
 import org.neo4j.graphdb.Path;
 import org.neo4j.graphdb.Relationship;
 import org.neo4j.graphdb.traversal.Evaluation;
@@ -45,7 +47,7 @@ import org.structr.core.node.IterableAdapter;
 import org.structr.core.node.NodeFactoryCommand;
 import org.structr.core.node.StructrNodeFactory;
 import org.structr.core.node.StructrTransaction;
-import org.structr.core.node.TransactionCommand;
+import org.structr.core.node.UnitOfWorkCommand;
 
 /**
  * A linked list implementation on StructrNodes. In contrast to the default List
@@ -62,6 +64,13 @@ import org.structr.core.node.TransactionCommand;
  * Even the size of the list may vary, and this will alter the results of insert
  * and remove methods.
  * </p>
+ * <p>
+ * The number of elements is stored on the list node and maintained by all
+ * modifying methods, so that size(), contains() and indexOf() don't have to
+ * traverse the list unless evaluators or a maximum length are set. Positional
+ * access walks the list from its start, its end or the position of the last
+ * access, whichever is closest.
+ * </p>
  *
  * @author Christian Morgner
  */
@@ -69,13 +78,19 @@ public class NodeList<T extends AbstractNode> extends DefaultNode implements Lis
 
     private static final Logger logger = Logger.getLogger(NodeList.class.getName());
     private static final String PARENT_KEY = "parent";
+    private static final String SIZE_KEY = "listSize";
+    private static final String VERSION_KEY = "listVersion";
     private static final String ICON_SRC = "/images/application_view_list.png";
     private Set<Decorator<T>> decorators = new LinkedHashSet<Decorator<T>>();
-    private Command transaction = Services.command(TransactionCommand.class);
     private Command factory = Services.command(NodeFactoryCommand.class);
     private Set<Evaluator> evaluators = new LinkedHashSet<Evaluator>();
     private int maxLength = -1;
 
+    // position of the last positional access, valid for the list version it was taken at
+    private Node cursorNode = null;
+    private int cursorIndex = -1;
+    private long cursorVersion = -1;
+
     public NodeList() {
         this(-1);
     }
@@ -152,23 +167,73 @@ public class NodeList<T extends AbstractNode> extends DefaultNode implements Lis
         this.maxLength = maxLength;
     }
 
+    /**
+     * Removes the given node from all lists it is a member of, keeping their
+     * chains and stored sizes intact. Must be called within a transaction,
+     * before the node or its relationships are deleted.
+     *
+     * @param node
+     */
+    public static void removeFromLists(final Node node) {
+        Set<Long> listIds = new LinkedHashSet<Long>();
+
+        for (Relationship rel : node.getRelationships(RelType.NEXT_LIST_ENTRY, Direction.INCOMING)) {
+            Object parent = rel.getProperty(PARENT_KEY, null);
+
+            if (parent instanceof Long) {
+                listIds.add((Long) parent);
+            }
+        }
+
+        StructrNodeFactory nodeFactory = new StructrNodeFactory();
+
+        for (Long listId : listIds) {
+            try {
+                AbstractNode list = nodeFactory.createNode(node.getGraphDatabase().getNodeById(listId));
+
+                if (list instanceof NodeList) {
+                    ((NodeList) list).removeNodeFromList(node);
+                }
+
+            } catch (NotFoundException nfe) {
+                // list node was deleted in the same transaction
+                logger.log(Level.FINE, "List node {0} not found", listId);
+            }
+        }
+    }
+
     // ----- interface List<T> -----
     /**
      * Returns the size of this node list. Note that setting or removing evaluators can change
-     * the value returned by this method. This method will take time proportional to the number
-     * of elements in the list.
+     * the value returned by this method. Without evaluators and maximum length, this method
+     * runs in constant time, otherwise it will take time proportional to the number of elements
+     * in the list.
      *
      * @return the size of this list with the current set of evaluators
      */
     @Override
     public int size() {
-        int ret = 0;
 
-        for (Node node : getRawNodes()) {
-            ret++;
+        if (isFiltered()) {
+            return (countRawNodes());
         }
 
-        return (ret);
+        Node rootNode = getNode();
+
+        if (rootNode.hasProperty(SIZE_KEY)) {
+
+            int size = ((Number) rootNode.getProperty(SIZE_KEY)).intValue();
+
+            // a member was deleted without updating the size, count again
+            if ((size > 0) == isEmpty()) {
+                return (updateSize());
+            }
+
+            return (size);
+        }
+
+        // lists created before the size was stored are counted once
+        return (updateSize());
     }
 
     /**
@@ -187,7 +252,8 @@ public class NodeList<T extends AbstractNode> extends DefaultNode implements Lis
     }
 
     /**
-     * Indicates whether this list contains the given element. This method can take time
+     * Indicates whether this list contains the given element. Without evaluators and
+     * maximum length, this method runs in constant time, otherwise it can take time
      * proportional to the number of elements in the list.
      *
      * @param o
@@ -197,6 +263,10 @@ public class NodeList<T extends AbstractNode> extends DefaultNode implements Lis
     public boolean contains(Object o) {
         T n = (T) o;
 
+        if (!isFiltered()) {
+            return (n != null && isMember(n.getNode()));
+        }
+
         for (T node : getNodes()) {
             if (node.equals(n)) {
                 return (true);
@@ -261,7 +331,7 @@ public class NodeList<T extends AbstractNode> extends DefaultNode implements Lis
      */
     @Override
     public boolean add(final T toAdd) {
-        Boolean returnValue = (Boolean) transaction.execute(new StructrTransaction() {
+        Boolean returnValue = (Boolean) edit(new StructrTransaction() {
 
             @Override
             public Object execute() throws Throwable {
@@ -285,7 +355,7 @@ public class NodeList<T extends AbstractNode> extends DefaultNode implements Lis
      */
     @Override
     public boolean remove(final Object node) {
-        Boolean returnValue = (Boolean) transaction.execute(new StructrTransaction() {
+        Boolean returnValue = (Boolean) edit(new StructrTransaction() {
 
             @Override
             public Object execute() throws Throwable {
@@ -317,7 +387,7 @@ public class NodeList<T extends AbstractNode> extends DefaultNode implements Lis
      */
     @Override
     public boolean addAll(final Collection<? extends T> nodes) {
-        Boolean returnValue = (Boolean) transaction.execute(new StructrTransaction() {
+        Boolean returnValue = (Boolean) edit(new StructrTransaction() {
 
             @Override
             public Object execute() throws Throwable {
@@ -345,7 +415,7 @@ public class NodeList<T extends AbstractNode> extends DefaultNode implements Lis
      */
     @Override
     public boolean addAll(final int index, final Collection<? extends T> nodes) {
-        Boolean returnValue = (Boolean) transaction.execute(new StructrTransaction() {
+        Boolean returnValue = (Boolean) edit(new StructrTransaction() {
 
             @Override
             public Object execute() throws Throwable {
@@ -374,7 +444,7 @@ public class NodeList<T extends AbstractNode> extends DefaultNode implements Lis
      */
     @Override
     public boolean removeAll(final Collection<?> nodes) {
-        Boolean returnValue = (Boolean) transaction.execute(new StructrTransaction() {
+        Boolean returnValue = (Boolean) edit(new StructrTransaction() {
 
             @Override
             public Object execute() throws Throwable {
@@ -404,7 +474,7 @@ public class NodeList<T extends AbstractNode> extends DefaultNode implements Lis
      */
     @Override
     public boolean retainAll(final Collection<?> nodes) {
-        Boolean returnValue = (Boolean) transaction.execute(new StructrTransaction() {
+        Boolean returnValue = (Boolean) edit(new StructrTransaction() {
 
             @Override
             public Object execute() throws Throwable {
@@ -430,7 +500,7 @@ public class NodeList<T extends AbstractNode> extends DefaultNode implements Lis
      */
     @Override
     public void clear() {
-        transaction.execute(new StructrTransaction() {
+        edit(new StructrTransaction() {
 
             @Override
             public Object execute() throws Throwable {
@@ -446,6 +516,9 @@ public class NodeList<T extends AbstractNode> extends DefaultNode implements Lis
     /**
      * Returns the element at the given index, or null if no element exists,
      * with respect to the evaluators that are currently set on this list.
+     * Without evaluators and maximum length, this method takes time proportional
+     * to the distance from the start or the end of the list, or from the position
+     * of the last access, so iterating by index runs in linear time.
      *
      * @param index
      * @return
@@ -475,7 +548,7 @@ public class NodeList<T extends AbstractNode> extends DefaultNode implements Lis
      */
     @Override
     public T set(final int index, final T toSet) {
-        transaction.execute(new StructrTransaction() {
+        edit(new StructrTransaction() {
 
             @Override
             public Object execute() throws Throwable {
@@ -507,7 +580,7 @@ public class NodeList<T extends AbstractNode> extends DefaultNode implements Lis
             throw new ArrayIndexOutOfBoundsException();
         }
 
-        transaction.execute(new StructrTransaction() {
+        edit(new StructrTransaction() {
 
             @Override
             public Object execute() throws Throwable {
@@ -540,7 +613,7 @@ public class NodeList<T extends AbstractNode> extends DefaultNode implements Lis
         final Node node = getNodeAt(index);
 
         if (node != null) {
-            transaction.execute(new StructrTransaction() {
+            edit(new StructrTransaction() {
 
                 @Override
                 public Object execute() throws Throwable {
@@ -653,6 +726,10 @@ public class NodeList<T extends AbstractNode> extends DefaultNode implements Lis
             ret.add(node);
         }
 
+        if (!isFiltered()) {
+            checkSize(ret.size());
+        }
+
         return (ret);
     }
 
@@ -662,6 +739,98 @@ public class NodeList<T extends AbstractNode> extends DefaultNode implements Lis
                 new StructrNodeFactory()));
     }
 
+    private boolean isFiltered() {
+        return (!evaluators.isEmpty() || maxLength >= 0);
+    }
+
+    private int countRawNodes() {
+        int ret = 0;
+
+        for (Node node : getRawNodes()) {
+            ret++;
+        }
+
+        return (ret);
+    }
+
+    /**
+     * Counts the elements of this list and stores the result on the list node.
+     *
+     * @return the size of this list
+     */
+    private int updateSize() {
+        int size = countRawNodes();
+
+        storeSize(size);
+
+        return (size);
+    }
+
+    /**
+     * Compares the number of elements found by a walk over the complete,
+     * unfiltered list with the stored size, and stores the counted size if
+     * they differ, e.g. after a member node was deleted directly.
+     *
+     * @param counted the number of elements found
+     */
+    private void checkSize(int counted) {
+        Node rootNode = getNode();
+
+        if (rootNode.hasProperty(SIZE_KEY) && ((Number) rootNode.getProperty(SIZE_KEY)).intValue() != counted) {
+
+            logger.log(Level.WARNING, "Stored size of list {0} is out of date, correcting", getNodeId());
+            storeSize(counted);
+        }
+    }
+
+    private void storeSize(final int size) {
+
+        edit(new StructrTransaction() {
+
+            @Override
+            public Object execute() throws Throwable {
+                getNode().setProperty(SIZE_KEY, size);
+
+                return (null);
+            }
+        });
+
+        // the chain may have changed without a version change
+        cursorNode = null;
+    }
+
+    private long getVersion() {
+        Node rootNode = getNode();
+
+        if (rootNode.hasProperty(VERSION_KEY)) {
+            return (((Number) rootNode.getProperty(VERSION_KEY)).longValue());
+        }
+
+        return (0);
+    }
+
+    /**
+     * Updates the stored size and version of this list after a modification.
+     * Must be called within the transaction of the modification.
+     *
+     * @param delta the number of elements added (or removed, if negative)
+     * @param wasEmpty true if this list was empty before the modification
+     */
+    private void listModified(int delta, boolean wasEmpty) {
+        Node rootNode = getNode();
+
+        rootNode.setProperty(VERSION_KEY, getVersion() + 1);
+
+        if (rootNode.hasProperty(SIZE_KEY)) {
+            rootNode.setProperty(SIZE_KEY, ((Number) rootNode.getProperty(SIZE_KEY)).intValue() + delta);
+
+        } else if (wasEmpty) {
+            rootNode.setProperty(SIZE_KEY, delta);
+        }
+
+        cursorNode = null;
+    }
+
     private Iterable<Node> getRawNodes() {
         // create traversal description
         TraversalDescription td = createTraversalDescription();
@@ -721,12 +890,26 @@ public class NodeList<T extends AbstractNode> extends DefaultNode implements Lis
                 createRelationship(rootNode, previousNode, RelType.LAST_LIST_ENTRY);
             }
 
+            listModified(-1, false);
             listWasModified = true;
         }
 
         return (listWasModified);
     }
 
+    /**
+     * Run the given modification of this list as a unit of work that is
+     * never committed in between, so all nested transactions share one
+     * database transaction. Within a unit of work of the caller, e.g. a
+     * bulk import, the modification joins that unit instead.
+     *
+     * @param modification
+     * @return the result of the modification
+     */
+    private Object edit(final StructrTransaction modification) {
+        return Services.command(UnitOfWorkCommand.class).execute(modification, Integer.MAX_VALUE);
+    }
+
     /**
      * Appends the given node to this list. Note that this method does not run
      * in a transaction to enable bulk add methods to share a single transaction.
@@ -752,6 +935,7 @@ public class NodeList<T extends AbstractNode> extends DefaultNode implements Lis
                 // create LAST relationship from rootNode to previousNode
                 createRelationship(rootNode, toAdd, RelType.LAST_LIST_ENTRY);
 
+                listModified(1, false);
                 listWasModified = true;
 
             } else {
@@ -759,6 +943,7 @@ public class NodeList<T extends AbstractNode> extends DefaultNode implements Lis
                 createRelationship(rootNode, toAdd, RelType.NEXT_LIST_ENTRY);
                 createRelationship(rootNode, toAdd, RelType.LAST_LIST_ENTRY);
 
+                listModified(1, true);
                 listWasModified = true;
             }
         }
@@ -766,6 +951,45 @@ public class NodeList<T extends AbstractNode> extends DefaultNode implements Lis
         return (listWasModified);
     }
 
+    /**
+     * Appends the given nodes to this list, in the given order. In contrast
+     * to {@see #addAll}, this method does not check whether the nodes are
+     * already members of this list, and it moves the LAST pointer only once,
+     * so it runs in time proportional to the number of nodes appended,
+     * independent of the size of this list. Use it only for nodes that can't
+     * be members of this list yet, e.g. for nodes created in the current
+     * transaction. Note that this method does not run in a transaction.
+     *
+     * @param nodes the nodes to append
+     * @return true if this list was modified as a result of this call
+     */
+    public boolean appendNewNodes(final List<Node> nodes) {
+
+        if (nodes.isEmpty()) {
+            return (false);
+        }
+
+        Node rootNode = getNode();
+        Node lastNode = getRelatedNode(rootNode, RelType.LAST_LIST_ENTRY, Direction.OUTGOING);
+        Node previousNode = (lastNode != null ? lastNode : rootNode);
+
+        // chain the new nodes
+        for (Node node : nodes) {
+            createRelationship(previousNode, node, RelType.NEXT_LIST_ENTRY);
+            previousNode = node;
+        }
+
+        if (lastNode != null) {
+            deleteRelationship(rootNode, RelType.LAST_LIST_ENTRY, Direction.OUTGOING);
+        }
+
+        createRelationship(rootNode, previousNode, RelType.LAST_LIST_ENTRY);
+
+        listModified(nodes.size(), lastNode == null);
+
+        return (true);
+    }
+
     private boolean insertNodeIntoList(int index, Node toInsert) {
         Node node = getNodeAt(index);
         boolean ret = false;
@@ -791,6 +1015,8 @@ public class NodeList<T extends AbstractNode> extends DefaultNode implements Lis
 
             // create relationship from toInsert to node
             ret |= createRelationship(toInsert, node, RelType.NEXT_LIST_ENTRY);
+
+            listModified(1, false);
         }
 
         return (ret);
@@ -837,6 +1063,80 @@ public class NodeList<T extends AbstractNode> extends DefaultNode implements Lis
      * @return the node at index or null
      */
     private Node getNodeAt(int index) {
+
+        if (!isFiltered()) {
+            return (getNodeAtPosition(index));
+        }
+
+        return (findNodeAt(index));
+    }
+
+    /**
+     * Returns the node at the given position of the unfiltered list, starting
+     * from the first node, the last node or the last accessed node, whichever
+     * is closest.
+     *
+     * @param index
+     * @return the node at index or null
+     */
+    private Node getNodeAtPosition(int index) {
+        int size = size();
+
+        if (index < 0 || index >= size) {
+            return (null);
+        }
+
+        Node rootNode = getNode();
+        long version = getVersion();
+        Node node = rootNode;
+        int pos = -1;
+
+        if (size - 1 - index < index + 1) {
+            node = getRelatedNode(rootNode, RelType.LAST_LIST_ENTRY, Direction.OUTGOING);
+            pos = size - 1;
+        }
+
+        if (cursorNode != null && cursorVersion == version && Math.abs(index - cursorIndex) < Math.abs(index - pos)) {
+            node = cursorNode;
+            pos = cursorIndex;
+        }
+
+        while (node != null && pos < index) {
+            node = getRelatedNode(node, RelType.NEXT_LIST_ENTRY, Direction.OUTGOING);
+            pos++;
+        }
+
+        while (node != null && pos > index) {
+            node = getRelatedNode(node, RelType.NEXT_LIST_ENTRY, Direction.INCOMING);
+            pos--;
+        }
+
+        if (node == null || node.equals(rootNode)) {
+
+            // stored size does not match the list, e.g. after a member node was deleted
+            logger.log(Level.WARNING, "Stored size of list {0} is out of date, recounting", getNodeId());
+
+            cursorNode = null;
+            updateSize();
+
+            return (findNodeAt(index));
+        }
+
+        cursorNode = node;
+        cursorIndex = index;
+        cursorVersion = version;
+
+        return (node);
+    }
+
+    /**
+     * Returns the node at the given position by traversing the list with the
+     * current set of evaluators, or null if no node is found.
+     *
+     * @param index
+     * @return the node at index or null
+     */
+    private Node findNodeAt(int index) {
         int pos = 0;
 
         for (Node node : getRawNodes()) {
@@ -849,6 +1149,28 @@ public class NodeList<T extends AbstractNode> extends DefaultNode implements Lis
     }
 
     private int indexOf(Node node) {
+
+        if (!isFiltered()) {
+
+            if (!isMember(node)) {
+                return (-1);
+            }
+
+            // walk back to the list node
+            Node rootNode = getNode();
+            Node previousNode = getRelatedNode(node, RelType.NEXT_LIST_ENTRY, Direction.INCOMING);
+            int pos = 0;
+
+            while (previousNode != null && !previousNode.equals(rootNode)) {
+                previousNode = getRelatedNode(previousNode, RelType.NEXT_LIST_ENTRY, Direction.INCOMING);
+                pos++;
+            }
+
+            if (previousNode != null) {
+                return (pos);
+            }
+        }
+
         int ret = 0;
 
         for (Node n : getRawNodes()) {
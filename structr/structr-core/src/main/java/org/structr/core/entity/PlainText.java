@@ -89,11 +89,8 @@ public class PlainText extends AbstractNode {
                     // process content with Freemarker
                     replaceByFreeMarker(html, content, startNode, editUrl, editNodeId);
 
-                    StringBuilder content2 = new StringBuilder(content.toString());
-
                     // finally, replace %{subnodeKey} by rendered content of subnodes with this name
-                    replaceBySubnodes(content2, startNode, editUrl, editNodeId);
-                    out.append(content2.toString());
+                    renderSubnodes(content.toString(), out, startNode, editUrl, editNodeId);
 
                 }
             }
@@ -24,11 +24,13 @@ import java.util.Map;
 import org.neo4j.graphdb.*;
 import org.structr.common.RelType;
 import org.structr.core.Command;
+import org.structr.core.CommandHandle;
 import org.structr.core.Services;
 import org.structr.core.node.CreateRelationshipCommand;
 import org.structr.core.node.DeleteRelationshipCommand;
 import org.structr.core.node.FindNodeCommand;
 import org.structr.core.node.NodeFactoryCommand;
+import org.structr.core.node.RemoveFromCacheCommand;
 import org.structr.core.node.StructrTransaction;
 import org.structr.core.node.TransactionCommand;
 
@@ -59,6 +61,8 @@ public class StructrRelationship {
         EDIT_PROPERTIES_KEY, ACCESS_CONTROL_KEY
     };
 
+    private static final CommandHandle nodeFactoryHandle = Services.handle(NodeFactoryCommand.class);
+    private static final CommandHandle removeFromCacheHandle = Services.handle(RemoveFromCacheCommand.class);
     ; // reference to database relationship
     protected Relationship dbRelationship;
 
@@ -101,6 +105,8 @@ public class StructrRelationship {
 
     public void setProperty(final String key, final Object value) {
         dbRelationship.setProperty(key, value);
+
+        removeFromCacheHandle.execute(dbRelationship.getStartNode().getId(), dbRelationship.getEndNode().getId());
     }
 
     /**
@@ -113,13 +119,11 @@ public class StructrRelationship {
     }
 
     public AbstractNode getEndNode() {
-        Command nodeFactory = Services.command(NodeFactoryCommand.class);
-        return (AbstractNode) nodeFactory.execute(dbRelationship.getEndNode());
+        return (AbstractNode) nodeFactoryHandle.execute(dbRelationship.getEndNode());
     }
 
     public AbstractNode getStartNode() {
-        Command nodeFactory = Services.command(NodeFactoryCommand.class);
-        return (AbstractNode) nodeFactory.execute(dbRelationship.getStartNode());
+        return (AbstractNode) nodeFactoryHandle.execute(dbRelationship.getStartNode());
     }
 
     public RelationshipType getRelType() {
@@ -18,6 +18,9 @@
  */
 package org.structr.core.entity.log;
 
+import java.util.LinkedList;
+import java.util.List;
+import org.neo4j.graphdb.Node;
 import org.structr.core.entity.NodeList;
 import org.structr.core.entity.AbstractNode;
 
@@ -46,4 +49,21 @@ public class LogNodeList<T extends AbstractNode> extends NodeList<T> {
 //            }
 //        });
     }
+
+    /**
+     * Append newly created entries to this log, in the given order.
+     * Must be called within a transaction.
+     *
+     * @param entries
+     */
+    public void appendEntries(final List<T> entries) {
+
+        List<Node> nodes = new LinkedList<Node>();
+
+        for (T entry : entries) {
+            nodes.add(entry.getNode());
+        }
+
+        appendNewNodes(nodes);
+    }
 }
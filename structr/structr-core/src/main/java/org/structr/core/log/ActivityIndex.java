@@ -0,0 +1,318 @@
+/*
+ *  Copyright (C) 2011 Axel Morgner, structr <structr@structr.org>
+ * 
+ *  This file is part of structr <http://structr.org>.
+ * 
+ *  structr is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ * 
+ *  structr is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ * 
+ *  You should have received a copy of the GNU General Public License
+ *  along with structr.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.structr.core.log;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause.Occur;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.TermQuery;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.index.Index;
+import org.neo4j.graphdb.index.IndexHits;
+import org.structr.core.Command;
+import org.structr.core.Services;
+import org.structr.core.entity.AbstractNode;
+import org.structr.core.entity.User;
+import org.structr.core.entity.log.Activity;
+import org.structr.core.node.GraphDatabaseCommand;
+import org.structr.core.node.NodeFactoryCommand;
+
+/**
+ * Time-partitioned index of logged activities.
+ *
+ * <p>
+ * Each activity stored by the {@see LogService} is indexed with the day,
+ * hour and minute of its start timestamp, its user and its type. Counts
+ * are answered from the index, and a page of activities is found by
+ * walking the partitions newest-first, skipping whole days, hours and
+ * minutes by their counts, so only the activities of the minutes that
+ * overlap the requested page are loaded.
+ * </p>
+ *
+ * @author amorgner
+ */
+public class ActivityIndex {
+
+    private static final Logger logger = Logger.getLogger(ActivityIndex.class.getName());
+    public static final String ANONYMOUS = "anonymous";
+    /** Maximum number of days to walk back for a page of activities */
+    public static final int MaxDays = 3660;
+    private static final String INDEX_NAME = "activities";
+    private static final String ALL_KEY = "all";
+    private static final String USER_KEY = "user";
+    private static final String TYPE_KEY = "type";
+    private static final String[] PARTITION_KEYS = new String[]{"day", "hour", "minute"};
+    private static final String[] PARTITION_FORMATS = new String[]{"yyyyMMdd", "yyyyMMddHH", "yyyyMMddHHmm"};
+    /** Number of sub-partitions of a day and of an hour */
+    private static final int[] PARTITION_CHILDREN = new int[]{24, 60};
+
+    /**
+     * Index the given, committed activity. Has to be called inside a
+     * transaction.
+     *
+     * @param activity
+     * @param user the user who caused the activity, or null
+     */
+    public static void add(final Activity activity, final User user) {
+
+        Index<Node> index = getIndex();
+        Node node = activity.getNode();
+        Date start = activity.getStartTimestamp();
+
+        if (start == null) {
+            start = new Date();
+        }
+
+        index.add(node, ALL_KEY, ALL_KEY);
+        index.add(node, USER_KEY, (user != null ? user.getName() : ANONYMOUS));
+        index.add(node, TYPE_KEY, activity.getType());
+
+        for (int level = 0; level < PARTITION_KEYS.length; level++) {
+            index.add(node, PARTITION_KEYS[level], new SimpleDateFormat(PARTITION_FORMATS[level]).format(start));
+        }
+    }
+
+    /**
+     * Return the number of indexed activities.
+     *
+     * @param userName the name of the user, or null for all users
+     * @return
+     */
+    public static int getCount(final String userName) {
+        return count(ALL_KEY, ALL_KEY, userName);
+    }
+
+    /**
+     * Return the number of activities per day for the given number of
+     * days, starting with today.
+     *
+     * @param days
+     * @param userName the name of the user, or null for all users
+     * @return the counts, keyed by day (yyyyMMdd)
+     */
+    public static Map<String, Integer> getDailyCounts(final int days, final String userName) {
+
+        Map<String, Integer> counts = new LinkedHashMap<String, Integer>();
+        Calendar day = Calendar.getInstance();
+
+        for (int i = 0; i < days; i++) {
+
+            String partition = new SimpleDateFormat(PARTITION_FORMATS[0]).format(day.getTime());
+
+            counts.put(partition, count(PARTITION_KEYS[0], partition, userName));
+            day.add(Calendar.DAY_OF_MONTH, -1);
+        }
+
+        return counts;
+    }
+
+    /**
+     * Return a page of activities, newest first.
+     *
+     * @param offset the number of activities to skip
+     * @param pageSize the maximum number of activities to return
+     * @param userName the name of the user, or null for all users
+     * @return
+     */
+    public static List<Activity> getActivities(final int offset, final int pageSize, final String userName) {
+
+        Page page = new Page(offset, pageSize, userName);
+        int total = getCount(userName);
+        int seen = 0;
+
+        // start tomorrow to include activities of clocks running ahead
+        Calendar day = Calendar.getInstance();
+        day.add(Calendar.DAY_OF_MONTH, 1);
+
+        // the sum of the daily counts reaches the total at the oldest day,
+        // unless the counts disagree (e.g. activities with a broken timestamp)
+        for (int days = 0; seen < total && !page.isFull(); days++) {
+
+            if (days >= MaxDays) {
+
+                logger.log(Level.WARNING, "Found only {0} of {1} activities within {2} days", new Object[]{seen, total, MaxDays});
+                break;
+            }
+
+            String partition = new SimpleDateFormat(PARTITION_FORMATS[0]).format(day.getTime());
+            int count = count(PARTITION_KEYS[0], partition, userName);
+
+            if (count > 0) {
+
+                collect(0, partition, count, page);
+                seen += count;
+            }
+
+            day.add(Calendar.DAY_OF_MONTH, -1);
+        }
+
+        return page.activities;
+    }
+
+    // <editor-fold defaultstate="collapsed" desc="private methods">
+    private static void collect(final int level, final String partition, final int count, final Page page) {
+
+        // skip the whole partition
+        if (page.skipped + count <= page.offset) {
+
+            page.skipped += count;
+            return;
+        }
+
+        if (level == PARTITION_KEYS.length - 1) {
+
+            for (Activity activity : load(partition, page.userName)) {
+
+                if (page.isFull()) {
+                    return;
+                }
+
+                if (page.skipped < page.offset) {
+                    page.skipped++;
+                } else {
+                    page.activities.add(activity);
+                }
+            }
+
+            return;
+        }
+
+        for (int child = PARTITION_CHILDREN[level] - 1; child >= 0 && !page.isFull(); child--) {
+
+            String childPartition = partition + (child < 10 ? "0" : "") + child;
+            int childCount = count(PARTITION_KEYS[level + 1], childPartition, page.userName);
+
+            if (childCount > 0) {
+                collect(level + 1, childPartition, childCount, page);
+            }
+        }
+    }
+
+    /**
+     * Load the activities of the given minute, newest first
+     */
+    private static List<Activity> load(final String minute, final String userName) {
+
+        Command factory = Services.command(NodeFactoryCommand.class);
+        List<Activity> activities = new ArrayList<Activity>();
+        IndexHits<Node> hits = query(PARTITION_KEYS[PARTITION_KEYS.length - 1], minute, userName);
+
+        try {
+
+            for (Node node : hits) {
+
+                AbstractNode activity = (AbstractNode) factory.execute(node);
+
+                if (activity instanceof Activity) {
+                    activities.add((Activity) activity);
+                }
+            }
+
+        } finally {
+            hits.close();
+        }
+
+        Collections.sort(activities, new Comparator<Activity>() {
+
+            @Override
+            public int compare(Activity a1, Activity a2) {
+
+                long t1 = (a1.getStartTimestamp() != null ? a1.getStartTimestamp().getTime() : 0L);
+                long t2 = (a2.getStartTimestamp() != null ? a2.getStartTimestamp().getTime() : 0L);
+
+                if (t1 != t2) {
+                    return (t1 > t2 ? -1 : 1);
+                }
+
+                return Long.valueOf(a2.getId()).compareTo(a1.getId());
+            }
+        });
+
+        return activities;
+    }
+
+    private static int count(final String key, final String value, final String userName) {
+
+        IndexHits<Node> hits = query(key, value, userName);
+
+        try {
+            return hits.size();
+
+        } finally {
+            hits.close();
+        }
+    }
+
+    private static IndexHits<Node> query(final String key, final String value, final String userName) {
+
+        if (userName == null) {
+            return getIndex().get(key, value);
+        }
+
+        BooleanQuery query = new BooleanQuery();
+
+        query.add(new TermQuery(new Term(key, value)), Occur.MUST);
+        query.add(new TermQuery(new Term(USER_KEY, userName)), Occur.MUST);
+
+        return getIndex().query(query);
+    }
+
+    private static Index<Node> getIndex() {
+
+        GraphDatabaseService graphDb = (GraphDatabaseService) Services.command(GraphDatabaseCommand.class).execute();
+
+        return graphDb.index().forNodes(INDEX_NAME);
+    }
+    // </editor-fold>
+
+    // <editor-fold defaultstate="collapsed" desc="private classes">
+    private static class Page {
+
+        private final int offset;
+        private final int pageSize;
+        private final String userName;
+        private final List<Activity> activities = new LinkedList<Activity>();
+        private int skipped = 0;
+
+        private Page(final int offset, final int pageSize, final String userName) {
+
+            this.offset = Math.max(offset, 0);
+            this.pageSize = Math.max(pageSize, 0);
+            this.userName = userName;
+        }
+
+        private boolean isFull() {
+            return activities.size() >= pageSize;
+        }
+    }
+    // </editor-fold>
+}
@@ -0,0 +1,234 @@
+/*
+ *  Copyright (C) 2011 Axel Morgner, structr <structr@structr.org>
+ * 
+ *  This file is part of structr <http://structr.org>.
+ * 
+ *  structr is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ * 
+ *  structr is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ * 
+ *  You should have received a copy of the GNU General Public License
+ *  along with structr.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.structr.core.log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.structr.core.entity.User;
+import org.structr.core.entity.log.Activity;
+
+/**
+ * A compact, append-only store for logged activities.
+ *
+ * <p>
+ * Activities are written as tab-separated lines to one file per day,
+ * <code>activities-yyyyMMdd.log</code>, with the columns start timestamp,
+ * end timestamp, type, user, session id, name and activity text.
+ * </p>
+ *
+ * <p>
+ * In addition, the number of activities per type and user is counted in
+ * time buckets of <code>rollupInterval</code> milliseconds. When a bucket
+ * is complete, its counts are appended to <code>rollups-yyyyMMdd.log</code>
+ * with the columns bucket start, bucket end, type, user and count. Counts
+ * of activities arriving late are written as additional lines for the same
+ * bucket, so readers have to sum up lines with equal keys.
+ * </p>
+ *
+ * @author amorgner
+ */
+public class ActivityLogFile {
+
+    private static final Logger logger = Logger.getLogger(ActivityLogFile.class.getName());
+    public static final long DefaultRollupInterval = 3600000L;
+    private final File directory;
+    private final long rollupInterval;
+    private final Map<String, Integer> bucketCounts = new TreeMap<String, Integer>();
+    private long bucket = -1;
+    private String day = null;
+    private Writer writer = null;
+
+    public ActivityLogFile(final File directory, final long rollupInterval) {
+
+        this.directory = directory;
+        this.rollupInterval = Math.max(rollupInterval, 1000);
+    }
+
+    /**
+     * Append the given activities and flush the file.
+     *
+     * @param activities
+     */
+    public synchronized void append(final List<Activity> activities) {
+
+        try {
+
+            for (Activity activity : activities) {
+
+                long start = getTime(activity.getProperty(Activity.START_TIMESTAMP_KEY));
+                long end = getTime(activity.getProperty(Activity.END_TIMESTAMP_KEY));
+                String type = activity.getType();
+                String userName = getUserName(activity.getUser());
+
+                if (start == 0) {
+                    start = System.currentTimeMillis();
+                }
+
+                count(start, type, userName);
+
+                StringBuilder line = new StringBuilder();
+
+                line.append(start).append('\t');
+                line.append(end).append('\t');
+                line.append(escape(type)).append('\t');
+                line.append(escape(userName)).append('\t');
+                line.append(escape(activity.getProperty(Activity.SESSION_ID_KEY))).append('\t');
+                line.append(escape(activity.getProperty(Activity.NAME_KEY))).append('\t');
+                line.append(escape(activity.getProperty(Activity.ACTIVITY_TEXT_KEY))).append('\n');
+
+                getWriter(start).write(line.toString());
+            }
+
+            if (writer != null) {
+                writer.flush();
+            }
+
+        } catch (IOException ex) {
+            logger.log(Level.SEVERE, "Could not write activity log", ex);
+        }
+    }
+
+    /**
+     * Write the counts of the current bucket and close the file.
+     */
+    public synchronized void close() {
+
+        writeRollup();
+
+        if (writer != null) {
+
+            try {
+                writer.close();
+
+            } catch (IOException ignore) {
+            }
+
+            writer = null;
+            day = null;
+        }
+    }
+
+    // <editor-fold defaultstate="collapsed" desc="private methods">
+    private void count(final long time, final String type, final String userName) {
+
+        long timeBucket = time - (time % rollupInterval);
+
+        if (timeBucket != bucket) {
+
+            writeRollup();
+            bucket = timeBucket;
+        }
+
+        String key = escape(type) + "\t" + escape(userName);
+        Integer count = bucketCounts.get(key);
+
+        bucketCounts.put(key, (count != null ? count + 1 : 1));
+    }
+
+    private void writeRollup() {
+
+        if (bucketCounts.isEmpty()) {
+            return;
+        }
+
+        try {
+            Writer rollupWriter = new OutputStreamWriter(new FileOutputStream(getFile("rollups-", bucket), true), "UTF-8");
+
+            try {
+                for (Map.Entry<String, Integer> entry : bucketCounts.entrySet()) {
+                    rollupWriter.write(bucket + "\t" + (bucket + rollupInterval) + "\t" + entry.getKey() + "\t" + entry.getValue() + "\n");
+                }
+
+            } finally {
+                rollupWriter.close();
+            }
+
+        } catch (IOException ex) {
+            logger.log(Level.SEVERE, "Could not write activity rollup", ex);
+        }
+
+        bucketCounts.clear();
+    }
+
+    private Writer getWriter(final long time) throws IOException {
+
+        String currentDay = formatDay(time);
+
+        if (!currentDay.equals(day)) {
+
+            if (writer != null) {
+                writer.close();
+            }
+
+            if (!directory.exists() && !directory.mkdirs()) {
+                throw new IOException("Could not create activity log directory " + directory.getAbsolutePath());
+            }
+
+            writer = new OutputStreamWriter(new FileOutputStream(getFile("activities-", time), true), "UTF-8");
+            day = currentDay;
+        }
+
+        return writer;
+    }
+
+    private File getFile(final String prefix, final long time) {
+        return new File(directory, prefix + formatDay(time) + ".log");
+    }
+
+    private String formatDay(final long time) {
+        return new SimpleDateFormat("yyyyMMdd").format(new Date(time));
+    }
+
+    private long getTime(final Object value) {
+
+        if (value instanceof Date) {
+            return ((Date) value).getTime();
+        }
+
+        if (value instanceof Long) {
+            return (Long) value;
+        }
+
+        return 0L;
+    }
+
+    private String getUserName(final User user) {
+        return (user != null ? user.getName() : "anonymous");
+    }
+
+    private String escape(final Object value) {
+
+        if (value == null) {
+            return "";
+        }
+
+        return value.toString().replace("\\", "\\\\").replace("\t", "\\t").replace("\n", "\\n").replace("\r", "\\r");
+    }
+    // </editor-fold>
+}
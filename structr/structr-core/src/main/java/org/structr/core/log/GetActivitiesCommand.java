@@ -0,0 +1,52 @@
+/*
+ *  Copyright (C) 2011 Axel Morgner, structr <structr@structr.org>
+ * 
+ *  This file is part of structr <http://structr.org>.
+ * 
+ *  structr is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ * 
+ *  structr is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ * 
+ *  You should have received a copy of the GNU General Public License
+ *  along with structr.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.structr.core.log;
+
+/**
+ * Returns a page of logged activities, newest first.
+ *
+ * @param offset the number of activities to skip
+ * @param pageSize the maximum number of activities to return
+ * @param userName (optional) the name of the user whose activities should be returned
+ *
+ * @author amorgner
+ */
+public class GetActivitiesCommand extends LogServiceCommand
+{
+	@Override
+	public Object execute(Object... parameters)
+	{
+		int offset = 0;
+		int pageSize = 0;
+		String userName = null;
+
+		if(parameters.length > 1 && parameters[0] instanceof Integer && parameters[1] instanceof Integer)
+		{
+			offset = (Integer)parameters[0];
+			pageSize = (Integer)parameters[1];
+		}
+
+		if(parameters.length > 2 && parameters[2] instanceof String)
+		{
+			userName = (String)parameters[2];
+		}
+
+		return(ActivityIndex.getActivities(offset, pageSize, userName));
+	}
+}
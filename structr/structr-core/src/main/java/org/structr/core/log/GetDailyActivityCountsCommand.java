@@ -0,0 +1,50 @@
+/*
+ *  Copyright (C) 2011 Axel Morgner, structr <structr@structr.org>
+ * 
+ *  This file is part of structr <http://structr.org>.
+ * 
+ *  structr is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ * 
+ *  structr is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ * 
+ *  You should have received a copy of the GNU General Public License
+ *  along with structr.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.structr.core.log;
+
+/**
+ * Returns the number of logged activities per day, keyed by day
+ * (yyyyMMdd), starting with today.
+ *
+ * @param days the number of days
+ * @param userName (optional) the name of the user whose activities should be counted
+ *
+ * @author amorgner
+ */
+public class GetDailyActivityCountsCommand extends LogServiceCommand
+{
+	@Override
+	public Object execute(Object... parameters)
+	{
+		int days = 7;
+		String userName = null;
+
+		if(parameters.length > 0 && parameters[0] instanceof Integer)
+		{
+			days = (Integer)parameters[0];
+		}
+
+		if(parameters.length > 1 && parameters[1] instanceof String)
+		{
+			userName = (String)parameters[1];
+		}
+
+		return(ActivityIndex.getDailyCounts(days, userName));
+	}
+}
@@ -19,9 +19,9 @@
 
 package org.structr.core.log;
 
-import java.util.Queue;
-
 /**
+ * Queues the given objects for logging. Objects may be dropped
+ * when the log queue is full.
  *
  * @author Christian Morgner
  */
@@ -30,12 +30,12 @@ public class LogCommand extends LogServiceCommand
 	@Override
 	public Object execute(Object... parameters)
 	{
-		Queue queue = (Queue)getArgument("queue");
-		if(queue != null)
+		LogService service = (LogService)getArgument("service");
+		if(service != null)
 		{
 			for(Object param : parameters)
 			{
-				queue.add(param);
+				service.log(param);
 			}
 		}
 
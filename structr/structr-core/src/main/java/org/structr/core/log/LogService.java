@@ -18,13 +18,21 @@
  */
 package org.structr.core.log;
 
+import java.io.File;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.neo4j.graphdb.GraphDatabaseService;
+import org.structr.common.Path;
 import org.structr.common.RelType;
 import org.structr.core.Command;
 import org.structr.core.Services;
@@ -42,12 +50,35 @@ import org.structr.core.node.NodeFactoryCommand;
 import org.structr.core.node.RunnableNodeService;
 import org.structr.core.node.StructrTransaction;
 import org.structr.core.node.TransactionCommand;
+import org.structr.core.node.UnitOfWorkCommand;
+import org.structr.core.node.UnitOfWorkFailedException;
 
 /**
  * A logging service that will asynchronously persist log messages of type
  * {@see org.structr.core.entity.log.Activity}.
- * 
- * FIXME: javadoc..
+ *
+ * <p>
+ * Activities are queued in a bounded queue (see
+ * {@see Services#LOG_SERVICE_QUEUE_SIZE}). When the queue is full, new
+ * activities are dropped, or, with {@see Services#LOG_SERVICE_OVERFLOW}
+ * set to <code>block</code>, the logging thread waits up to one second
+ * for free space before dropping the activity.
+ * </p>
+ *
+ * <p>
+ * The queue is flushed every <code>interval</code> milliseconds, or as soon
+ * as it holds more than <code>threshold</code> activities. Each flush
+ * stores up to {@see #MaxFlushSize} activities in one transaction and
+ * appends them to the global and per-user logs in one step per log.
+ * With {@see Services#LOG_SERVICE_STORE} set to <code>file</code> or
+ * <code>both</code>, activities are (also) written to a compact, append-only
+ * {@see ActivityLogFile} with time-bucketed rollups.
+ * </p>
+ *
+ * <p>
+ * On shutdown, the logging thread stores the remaining activities and
+ * closes the log file itself, so that no flush runs concurrently.
+ * </p>
  *
  * @author Christian Morgner
  */
@@ -55,14 +86,24 @@ public class LogService extends RunnableNodeService {
 
     private static final Logger logger = Logger.getLogger(LogService.class.getName());
     private static final ConcurrentHashMap<User, LogNodeList<Activity>> loggerCache = new ConcurrentHashMap<User, LogNodeList<Activity>>();
-    private static final ConcurrentLinkedQueue queue = new ConcurrentLinkedQueue();
     private static final long DefaultInterval = TimeUnit.SECONDS.toMillis(10);
     private static final int DefaultThreshold = 10;
+    public static final int DefaultQueueSize = 10000;
+    public static final int MaxFlushSize = 1000;
+    private static final long OfferTimeout = 1000L;
+    /** Set on the global log once the activities logged before the activity index existed are indexed */
+    private static final String ActivitiesIndexedKey = "activitiesIndexed";
     private long interval = DefaultInterval;
     private int threshold = DefaultThreshold;
+    private BlockingQueue<Object> queue = new LinkedBlockingQueue<Object>(DefaultQueueSize);
+    private final Object flushLock = new Object();
+    private final AtomicLong dropped = new AtomicLong(0);
+    private boolean blockOnOverflow = false;
+    private boolean storeInGraph = true;
+    private ActivityLogFile logFile = null;
     // the global log (will be created)
     private LogNodeList<Activity> globalLogNodeList = null;
-    private boolean run = false;
+    private volatile boolean run = false;
 
     public LogService() {
         super("LogService");
@@ -80,6 +121,10 @@ public class LogService extends RunnableNodeService {
             // initialize global log..
             //getGlobalLog();
 
+            if (storeInGraph) {
+                indexExistingActivities();
+            }
+
             while (run || !queue.isEmpty()) {
 
                 logger.log(Level.FINER, "Checking queue..");
@@ -87,7 +132,13 @@ public class LogService extends RunnableNodeService {
                 flushQueue();
 
                 try {
-                    Thread.sleep(interval);
+                    synchronized (flushLock) {
+
+                        // wait for the interval or until the threshold is reached
+                        if (run && queue.size() <= threshold) {
+                            flushLock.wait(interval);
+                        }
+                    }
 
                 } catch (Throwable t) {
                     logger.log(Level.INFO, "LogService interrupted while sleeping");
@@ -95,7 +146,68 @@ public class LogService extends RunnableNodeService {
             }
         } catch (Throwable t) {
             t.printStackTrace(System.out);
+
+        } finally {
+
+            if (logFile != null) {
+                logFile.close();
+            }
+        }
+    }
+
+    /**
+     * Queue the given object for logging, according to the overflow policy.
+     *
+     * @param object
+     * @return true if the object was queued, false if it was dropped
+     */
+    public boolean log(final Object object) {
+
+        boolean queued = false;
+
+        try {
+            queued = (blockOnOverflow ? queue.offer(object, OfferTimeout, TimeUnit.MILLISECONDS) : queue.offer(object));
+
+        } catch (InterruptedException iex) {
+            queued = false;
         }
+
+        if (!queued) {
+
+            // log only the first of a series of dropped activities
+            if (dropped.getAndIncrement() == 0) {
+                logger.log(Level.WARNING, "Log queue full, dropping activities");
+            }
+
+            return false;
+        }
+
+        if (queue.size() > threshold) {
+
+            synchronized (flushLock) {
+                flushLock.notifyAll();
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Return the number of activities waiting to be stored.
+     *
+     * @return
+     */
+    public int getQueueSize() {
+        return queue.size();
+    }
+
+    /**
+     * Return the number of activities dropped because the queue was full.
+     *
+     * @return
+     */
+    public long getDroppedCount() {
+        return dropped.get();
     }
 
     private void flushQueue() {
@@ -104,40 +216,178 @@ public class LogService extends RunnableNodeService {
 
             logger.log(Level.FINEST, "+++ LogService active ... +++");
 
-            while (!queue.isEmpty()) {
-                Object o = queue.poll();
-                if (o != null && o instanceof Activity) {
+            List<Object> batch = new ArrayList<Object>(Math.min(queue.size(), MaxFlushSize));
 
-                    Activity activity = (Activity) o;
-                    User user = activity.getUser();
+            while (queue.drainTo(batch, MaxFlushSize) > 0) {
 
-                    // Commit to database so node will have id and owner
-                    activity.commit(user);
+                final List<Activity> activities = new ArrayList<Activity>(batch.size());
 
-                    // append to global log
-                    LogNodeList globalLog = getGlobalLog();
-                    if (globalLog != null) {
-                        globalLog.add(activity);
-                        logger.log(Level.FINEST, "Added activity {0} to global log.", activity.getId());
+                for (Object o : batch) {
+                    if (o instanceof Activity) {
+                        activities.add((Activity) o);
                     }
+                }
 
-                    // append to user-specific log
-                    LogNodeList userLog = getUserLog(activity.getOwnerNode());
-                    if (userLog != null) {
-                        userLog.add(activity);
-                        logger.log(Level.FINEST, "Added activity {0} to {1}''s log.", new Object[]{activity.getId(), user.getName()});
-                    }
+                batch.clear();
+
+                if (storeInGraph && !activities.isEmpty()) {
+                    storeActivities(activities);
+                }
 
+                if (logFile != null && !activities.isEmpty()) {
+                    logFile.append(activities);
                 }
 
                 // cooperative multitasking :)
                 Thread.yield();
             }
 
+            if (dropped.get() > 0) {
+                logger.log(Level.WARNING, "{0} activities dropped so far because the log queue was full", dropped.get());
+            }
+
             logger.log(Level.FINEST, "+++ LogService inactive. +++");
         }
     }
 
+    /**
+     * Add the activities logged before the activity index existed
+     * to the index, unless the global log is marked as indexed
+     */
+    private void indexExistingActivities() {
+
+        final LogNodeList<AbstractNode> globalLog = getGlobalLog();
+
+        if (globalLog == null || globalLog.getBooleanProperty(ActivitiesIndexedKey)) {
+            return;
+        }
+
+        logger.log(Level.INFO, "Indexing existing activities..");
+
+        Integer count = null;
+
+        try {
+            count = indexActivities(globalLog);
+
+        } catch (UnitOfWorkFailedException e) {
+
+            logger.log(Level.SEVERE, "Could not index existing activities", e.getCause());
+            return;
+        }
+
+        logger.log(Level.INFO, "{0} existing activities indexed", count);
+    }
+
+    private Integer indexActivities(final LogNodeList<AbstractNode> globalLog) {
+
+        return (Integer) Services.command(UnitOfWorkCommand.class).execute(new StructrTransaction() {
+
+            @Override
+            public Object execute() throws Throwable {
+
+                int count = 0;
+
+                for (AbstractNode node : globalLog) {
+
+                    if (node instanceof Activity) {
+
+                        final Activity activity = (Activity) node;
+
+                        Services.command(TransactionCommand.class).execute(new StructrTransaction() {
+
+                            @Override
+                            public Object execute() throws Throwable {
+
+                                ActivityIndex.add(activity, activity.getOwnerNode());
+
+                                return null;
+                            }
+                        });
+
+                        count++;
+                    }
+                }
+
+                // in the same unit of work, so an interrupted run is repeated
+                globalLog.setProperty(ActivitiesIndexedKey, true);
+
+                return count;
+            }
+        });
+    }
+
+    /**
+     * Commit the given activities and append them to the global and
+     * user-specific logs, all in one transaction
+     */
+    private void storeActivities(final List<Activity> activities) {
+
+        // resolve (and create) the logs before the transaction starts
+        final LogNodeList<Activity> globalLog = getGlobalLog();
+        final Map<LogNodeList<Activity>, List<Activity>> userLogs = new LinkedHashMap<LogNodeList<Activity>, List<Activity>>();
+
+        for (Activity activity : activities) {
+
+            LogNodeList<Activity> userLog = getUserLog(activity.getUser());
+
+            if (userLog != null) {
+
+                List<Activity> entries = userLogs.get(userLog);
+
+                if (entries == null) {
+                    entries = new LinkedList<Activity>();
+                    userLogs.put(userLog, entries);
+                }
+
+                entries.add(activity);
+            }
+        }
+
+        // one transaction for the whole batch
+        try {
+
+            storeActivities(activities, globalLog, userLogs);
+
+        } catch (UnitOfWorkFailedException e) {
+
+            logger.log(Level.SEVERE, "Could not store " + activities.size() + " activities", e.getCause());
+            return;
+        }
+
+        logger.log(Level.FINEST, "Stored {0} activities.", activities.size());
+    }
+
+    private void storeActivities(final List<Activity> activities, final LogNodeList<Activity> globalLog, final Map<LogNodeList<Activity>, List<Activity>> userLogs) {
+
+        Services.command(UnitOfWorkCommand.class).execute(new StructrTransaction() {
+
+            @Override
+            public Object execute() throws Throwable {
+
+                for (Activity activity : activities) {
+
+                    // Commit to database so node will have id and owner
+                    activity.commit(activity.getUser());
+
+                    // index by time partition, user and type
+                    ActivityIndex.add(activity, activity.getUser());
+                }
+
+                // append to global log
+                if (globalLog != null) {
+                    globalLog.appendEntries(activities);
+                }
+
+                // append to user-specific logs
+                for (Map.Entry<LogNodeList<Activity>, List<Activity>> entry : userLogs.entrySet()) {
+                    entry.getKey().appendEntries(entry.getValue());
+                }
+
+                return null;
+            }
+        }, Integer.MAX_VALUE);
+    }
+
     public LogNodeList getUserLog(final User user) {
 
         if (user == null || user instanceof SuperUser) {
@@ -240,6 +490,9 @@ public class LogService extends RunnableNodeService {
                     // load reference node and link new node to it..
                     createRel.execute(rootNode, newGlobalLogNodeList, RelType.HAS_CHILD);
 
+                    // a new log has nothing to index
+                    newGlobalLogNodeList.setProperty(ActivitiesIndexedKey, true);
+
                     return newGlobalLogNodeList;
                 }
             });
@@ -273,6 +526,40 @@ public class LogService extends RunnableNodeService {
 
     @Override
     public void initialize(Map<String, Object> context) {
+
+        int queueSize = DefaultQueueSize;
+
+        // try to parse queue size, set to default otherwise
+        if (context.containsKey(Services.LOG_SERVICE_QUEUE_SIZE)) {
+            try {
+                queueSize = Math.max(Integer.parseInt(context.get(Services.LOG_SERVICE_QUEUE_SIZE).toString()), 1);
+
+            } catch (Throwable t) {
+                queueSize = DefaultQueueSize;
+            }
+        }
+
+        queue = new LinkedBlockingQueue<Object>(queueSize);
+        blockOnOverflow = "block".equals(Services.getConfigValue(context, Services.LOG_SERVICE_OVERFLOW, "drop"));
+
+        String store = Services.getConfigValue(context, Services.LOG_SERVICE_STORE, "graph");
+
+        storeInGraph = !"file".equals(store);
+
+        if ("file".equals(store) || "both".equals(store)) {
+
+            long rollupInterval = ActivityLogFile.DefaultRollupInterval;
+
+            try {
+                rollupInterval = Long.parseLong(Services.getConfigValue(context, Services.LOG_SERVICE_ROLLUP_INTERVAL, Long.toString(rollupInterval)));
+
+            } catch (Throwable t) {
+                rollupInterval = ActivityLogFile.DefaultRollupInterval;
+            }
+
+            logFile = new ActivityLogFile(new File(Services.getFilePath(Path.Base, "logs")), rollupInterval);
+        }
+
         // try to parse polling interval, set to default otherwise
         if (context.containsKey(Services.LOG_SERVICE_INTERVAL)) {
             try {
@@ -298,19 +585,32 @@ public class LogService extends RunnableNodeService {
     public void shutdown() {
         this.run = false;
 
+        if (!isAlive() || Thread.currentThread() == this) {
+
+            // no logging thread, flush and close here
+            flushQueue();
+
+            if (logFile != null) {
+                logFile.close();
+            }
+
+            return;
+        }
+
         // set prio to max
         this.setPriority(Thread.MAX_PRIORITY);
 
-        // flush queue
-        flushQueue();
+        // wake up the logging thread, it flushes the queue and closes the log file
+        synchronized (flushLock) {
+            flushLock.notifyAll();
+        }
 
         try {
-            // wait a little bit
-            sleep(1000);
+            join();
 
-            this.interrupt();
-
-        } catch (Throwable t) { /* ignore */ }
+        } catch (InterruptedException iex) {
+            logger.log(Level.WARNING, "Interrupted while waiting for LogService to store the remaining activities");
+        }
     }
     // </editor-fold>
 }
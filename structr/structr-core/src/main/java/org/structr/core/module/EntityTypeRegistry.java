@@ -0,0 +1,245 @@
+/*
+ *  Copyright (C) 2011 Axel Morgner, structr <structr@structr.org>
+ * 
+ *  This file is part of structr <http://structr.org>.
+ * 
+ *  structr is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ * 
+ *  structr is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ * 
+ *  You should have received a copy of the GNU General Public License
+ *  along with structr.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.structr.core.module;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Modifier;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.structr.core.entity.AbstractNode;
+
+/**
+ * An immutable mapping of entity type names to the constructors of their
+ * entity classes.
+ *
+ * <p>
+ * The registry is built by the {@see ModuleService} when modules are
+ * activated, and replaced as a whole when modules are reloaded. Type names
+ * that are not known at that time are resolved once against the entity
+ * packages; the result is added to a copy of the registry, including
+ * negative results, so a type name is never looked up twice.
+ * </p>
+ *
+ * @author amorgner
+ */
+public final class EntityTypeRegistry {
+
+    private static final Logger logger = Logger.getLogger(EntityTypeRegistry.class.getName());
+    private final Map<String, Constructor<? extends AbstractNode>> constructors;
+    private final Set<String> unknownTypes;
+    private final String[] entityPackages;
+
+    /**
+     * Create a registry for the given entity classes and packages.
+     *
+     * @param entityClasses
+     * @param entityPackages
+     */
+    public EntityTypeRegistry(final Map<String, Class> entityClasses, final Set<String> entityPackages) {
+
+        Map<String, Constructor<? extends AbstractNode>> map = new HashMap<String, Constructor<? extends AbstractNode>>();
+        Set<String> unknown = new HashSet<String>();
+
+        for (Map.Entry<String, Class> entry : entityClasses.entrySet()) {
+
+            Constructor<? extends AbstractNode> constructor = getConstructor(entry.getValue());
+
+            if (constructor != null) {
+                map.put(entry.getKey(), constructor);
+            } else {
+                unknown.add(entry.getKey());
+            }
+        }
+
+        this.constructors = Collections.unmodifiableMap(map);
+        this.unknownTypes = Collections.unmodifiableSet(unknown);
+        this.entityPackages = entityPackages.toArray(new String[entityPackages.size()]);
+    }
+
+    private EntityTypeRegistry(final Map<String, Constructor<? extends AbstractNode>> constructors, final Set<String> unknownTypes, final String[] entityPackages) {
+
+        this.constructors = Collections.unmodifiableMap(constructors);
+        this.unknownTypes = Collections.unmodifiableSet(unknownTypes);
+        this.entityPackages = entityPackages;
+    }
+
+    /**
+     * Return true if the given type has been resolved, either to an
+     * entity class or to no class at all.
+     *
+     * @param type
+     * @return
+     */
+    public boolean contains(final String type) {
+        return constructors.containsKey(type) || unknownTypes.contains(type);
+    }
+
+    /**
+     * Return the constructor for the given type from this registry,
+     * without resolving unknown types.
+     *
+     * @param type
+     * @return the constructor, or null
+     */
+    public Constructor<? extends AbstractNode> get(final String type) {
+        return constructors.get(type);
+    }
+
+    /**
+     * Return the entity class of the given type, or null if there is none.
+     *
+     * @param type
+     * @return
+     */
+    public Class<? extends AbstractNode> getEntityClass(final String type) {
+
+        Constructor<? extends AbstractNode> constructor = lookup(type);
+
+        return (constructor != null ? constructor.getDeclaringClass() : null);
+    }
+
+    /**
+     * Create a new, uninitialized instance of the entity class of the
+     * given type.
+     *
+     * @param type
+     * @return the new instance, or null if there is no entity class for the type
+     */
+    public AbstractNode newInstance(final String type) {
+
+        Constructor<? extends AbstractNode> constructor = lookup(type);
+
+        if (constructor != null) {
+
+            try {
+                return constructor.newInstance();
+
+            } catch (Throwable t) {
+                logger.log(Level.WARNING, "Could not instantiate entity of type {0}: {1}", new Object[]{type, t});
+            }
+        }
+
+        return null;
+    }
+
+    public int size() {
+        return constructors.size();
+    }
+
+    // <editor-fold defaultstate="collapsed" desc="package-private methods">
+    /**
+     * Look up the entity class of the given type in the entity packages.
+     *
+     * @param type
+     * @return the class, or null
+     */
+    Class resolve(final String type) {
+
+        for (String entityPackage : entityPackages) {
+
+            if (entityPackage != null) {
+
+                try {
+                    Class nodeClass = Class.forName(entityPackage + "." + type);
+
+                    if (AbstractNode.class.isAssignableFrom(nodeClass) && !Modifier.isAbstract(nodeClass.getModifiers())) {
+
+                        // first match wins
+                        return nodeClass;
+                    }
+
+                } catch (ClassNotFoundException ex) {
+                    // ignore
+                } catch (LinkageError err) {
+                    // ignore
+                }
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Return a copy of this registry with the given type mapped to the
+     * given class, or marked as unknown if the class is null.
+     *
+     * @param type
+     * @param nodeClass
+     * @return
+     */
+    EntityTypeRegistry with(final String type, final Class nodeClass) {
+
+        Map<String, Constructor<? extends AbstractNode>> map = new HashMap<String, Constructor<? extends AbstractNode>>(constructors);
+        Set<String> unknown = new HashSet<String>(unknownTypes);
+        Constructor<? extends AbstractNode> constructor = (nodeClass != null ? getConstructor(nodeClass) : null);
+
+        if (constructor != null) {
+            map.put(type, constructor);
+        } else {
+            unknown.add(type);
+        }
+
+        return new EntityTypeRegistry(map, unknown, entityPackages);
+    }
+    // </editor-fold>
+
+    // <editor-fold defaultstate="collapsed" desc="private methods">
+    private Constructor<? extends AbstractNode> lookup(final String type) {
+
+        if (type == null || type.length() == 0) {
+            return null;
+        }
+
+        Constructor<? extends AbstractNode> constructor = constructors.get(type);
+
+        if (constructor == null && !unknownTypes.contains(type)) {
+            constructor = ModuleService.resolveEntityType(this, type);
+        }
+
+        return constructor;
+    }
+
+    private static Constructor<? extends AbstractNode> getConstructor(final Class nodeClass) {
+
+        if (nodeClass == null || !AbstractNode.class.isAssignableFrom(nodeClass) || Modifier.isAbstract(nodeClass.getModifiers())) {
+            return null;
+        }
+
+        try {
+            Constructor<? extends AbstractNode> constructor = nodeClass.getDeclaredConstructor();
+
+            if (!constructor.isAccessible()) {
+                constructor.setAccessible(true);
+            }
+
+            return constructor;
+
+        } catch (Throwable t) {
+            logger.log(Level.FINE, "No default constructor for entity class {0}", nodeClass.getName());
+        }
+
+        return null;
+    }
+    // </editor-fold>
+}
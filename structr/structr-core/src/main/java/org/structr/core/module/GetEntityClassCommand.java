@@ -19,6 +19,8 @@
 
 package org.structr.core.module;
 
+import org.structr.core.StatelessCommand;
+
 /**
  * Command for finding entity classes by class name. This command exists because
  * the ModuleService must be initialized before entity classes can be found,
@@ -26,7 +28,7 @@ package org.structr.core.module;
  *
  * @author chrisi
  */
-public class GetEntityClassCommand extends ModuleServiceCommand
+public class GetEntityClassCommand extends ModuleServiceCommand implements StatelessCommand
 {
 	@Override
 	public Object execute(Object... parameters)
@@ -25,6 +25,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.lang.reflect.Constructor;
 import java.lang.reflect.Modifier;
 import java.util.Enumeration;
 import java.util.LinkedHashSet;
@@ -33,6 +34,7 @@ import java.util.Map.Entry;
 import java.util.Properties;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
 import java.util.logging.Level;
@@ -76,6 +78,7 @@ public class ModuleService implements SingletonService {
     private static final Set<String> entityPackages = new LinkedHashSet<String>();
     private static final Set<String> pagePackages = new LinkedHashSet<String>();
     private static final Set<String> agentPackages = new LinkedHashSet<String>();
+    private static final AtomicReference<EntityTypeRegistry> entityTypeRegistry = new AtomicReference<EntityTypeRegistry>();
     private Predicate structrPagePredicate = null;
     private ServletContext servletContext = null;
     private boolean initialized = false;
@@ -129,31 +132,66 @@ public class ModuleService implements SingletonService {
         Class ret = ArbitraryNode.class;
 
         if (name != null && name.length() > 0) {
-            ret = entityClassCache.get(name);
-            if (ret == null) {
-                for (String possiblePath : entityPackages) {
-                    if (possiblePath != null) {
-                        try {
-                            Class nodeClass = Class.forName(possiblePath + "." + name);
-			    if(!Modifier.isAbstract(nodeClass.getModifiers()))
-			    {
-				entityClassCache.put(name, nodeClass);
 
-			        // first match wins
-	                        break;
-			    }
+            EntityTypeRegistry registry = entityTypeRegistry.get();
 
-                        } catch (ClassNotFoundException ex) {
-                            // ignore
-                        }
-                    }
-                }
+            if (registry != null) {
+                ret = registry.getEntityClass(name);
+            } else {
+                ret = entityClassCache.get(name);
             }
         }
 
         return (ret);
     }
 
+    /**
+     * Return the current entity type registry, or null if the modules
+     * have not been initialized yet.
+     *
+     * @return
+     */
+    public static EntityTypeRegistry getEntityTypeRegistry() {
+        return entityTypeRegistry.get();
+    }
+
+    /**
+     * Resolve a type that is not contained in the given registry and
+     * publish a copy of the current registry containing the result.
+     *
+     * @param registry the registry the lookup started from
+     * @param type
+     * @return the constructor, or null if there is no entity class for the type
+     */
+    static Constructor<? extends AbstractNode> resolveEntityType(final EntityTypeRegistry registry, final String type) {
+
+        Class nodeClass = registry.resolve(type);
+        EntityTypeRegistry current = entityTypeRegistry.get();
+
+        while (current != null && !current.contains(type)) {
+
+            EntityTypeRegistry updated = current.with(type, nodeClass);
+
+            if (entityTypeRegistry.compareAndSet(current, updated)) {
+
+                if (nodeClass != null) {
+                    entityClassCache.put(type, nodeClass);
+                }
+
+                return updated.get(type);
+            }
+
+            current = entityTypeRegistry.get();
+        }
+
+        if (current != null) {
+            return current.get(type);
+        }
+
+        // service was shut down in the meantime
+        return registry.with(type, nodeClass).get(type);
+    }
+
     public Class getAgentClass(final String name) {
         Class ret = null;
 
@@ -183,7 +221,8 @@ public class ModuleService implements SingletonService {
     public void reload() {
         logger.log(Level.INFO, "Reloading modules..");
 
-        // reload everything..
+        // reload everything, the current entity type
+        // registry stays in use until the new one is complete
         initialized = false;
         entityClassCache.clear();
         agentClassCache.clear();
@@ -227,6 +266,10 @@ public class ModuleService implements SingletonService {
         } else {
             logger.log(Level.WARNING, "Could not write {0}", MODULES_CONF);
         }
+
+        if (initialized) {
+            updateEntityTypeRegistry();
+        }
     }
 
     /**
@@ -268,6 +311,10 @@ public class ModuleService implements SingletonService {
         } else {
             logger.log(Level.WARNING, "Could not write {0}", MODULES_CONF);
         }
+
+        if (initialized) {
+            updateEntityTypeRegistry();
+        }
     }
 
     /**
@@ -378,6 +425,7 @@ public class ModuleService implements SingletonService {
 
     @Override
     public void shutdown() {
+        entityTypeRegistry.set(null);
         entityClassCache.clear();
         agentClassCache.clear();
     }
@@ -459,6 +507,21 @@ public class ModuleService implements SingletonService {
         }
 
         initialized = true;
+
+        updateEntityTypeRegistry();
+    }
+
+    /**
+     * Replace the entity type registry with a new one built from
+     * the currently known entity classes.
+     */
+    private void updateEntityTypeRegistry() {
+
+        EntityTypeRegistry registry = new EntityTypeRegistry(entityClassCache, entityPackages);
+
+        entityTypeRegistry.set(registry);
+
+        logger.log(Level.INFO, "Entity type registry contains {0} types", registry.size());
     }
 
     /**
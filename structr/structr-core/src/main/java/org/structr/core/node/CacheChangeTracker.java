@@ -0,0 +1,101 @@
+/*
+ *  Copyright (C) 2011 Axel Morgner, structr <structr@structr.org>
+ * 
+ *  This file is part of structr <http://structr.org>.
+ * 
+ *  structr is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ * 
+ *  structr is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ * 
+ *  You should have received a copy of the GNU General Public License
+ *  along with structr.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.structr.core.node;
+
+import java.util.HashSet;
+import java.util.Set;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.NotFoundException;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.event.PropertyEntry;
+import org.neo4j.graphdb.event.TransactionData;
+import org.neo4j.graphdb.event.TransactionEventHandler;
+import org.structr.core.CommandHandle;
+import org.structr.core.Services;
+
+/**
+ * Removes all nodes changed by a transaction from the caches after the
+ * transaction has committed (see {@see RemoveFromCacheCommand}).
+ *
+ * <p>
+ * This covers writes that bypass structr nodes, e.g. raw property changes
+ * of database nodes by list bookkeeping, cloud synchronization or imports,
+ * and it makes sure that no concurrent request caches output rendered
+ * from the state before the commit.
+ * </p>
+ *
+ * @author amorgner
+ */
+public class CacheChangeTracker implements TransactionEventHandler<Set<Long>> {
+
+    private static final CommandHandle removeFromCacheHandle = Services.handle(RemoveFromCacheCommand.class);
+
+    @Override
+    public Set<Long> beforeCommit(TransactionData data) throws Exception {
+
+        Set<Long> changedNodeIds = new HashSet<Long>();
+
+        for (PropertyEntry<Node> entry : data.assignedNodeProperties()) {
+            changedNodeIds.add(entry.entity().getId());
+        }
+
+        for (PropertyEntry<Node> entry : data.removedNodeProperties()) {
+            changedNodeIds.add(entry.entity().getId());
+        }
+
+        for (Node node : data.deletedNodes()) {
+            changedNodeIds.add(node.getId());
+        }
+
+        for (Relationship rel : data.createdRelationships()) {
+            addNodes(rel, changedNodeIds);
+        }
+
+        for (Relationship rel : data.deletedRelationships()) {
+            addNodes(rel, changedNodeIds);
+        }
+
+        return changedNodeIds;
+    }
+
+    @Override
+    public void afterCommit(TransactionData data, Set<Long> changedNodeIds) {
+
+        if (changedNodeIds != null && !changedNodeIds.isEmpty()) {
+            removeFromCacheHandle.execute(changedNodeIds.toArray());
+        }
+    }
+
+    @Override
+    public void afterRollback(TransactionData data, Set<Long> changedNodeIds) {
+    }
+
+    // <editor-fold defaultstate="collapsed" desc="private methods">
+    private void addNodes(final Relationship rel, final Set<Long> changedNodeIds) {
+
+        try {
+            changedNodeIds.add(rel.getStartNode().getId());
+            changedNodeIds.add(rel.getEndNode().getId());
+
+        } catch (NotFoundException nfe) {
+            // nodes of a deleted relationship are reported as deleted nodes
+        }
+    }
+    // </editor-fold>
+}
@@ -19,7 +19,6 @@
 package org.structr.core.node;
 
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.structr.core.Command;
@@ -27,6 +26,9 @@ import org.structr.core.Services;
 import org.structr.core.SingletonService;
 
 /**
+ * Provides a bounded {@see NodeCache} for structr node instances, a
+ * {@see FragmentCache} for rendered output, and a {@see PathIndex} for
+ * resolved node paths.
  *
  * @author amorgner
  */
@@ -34,35 +36,122 @@ public class CacheService implements SingletonService {
 
     private static final Logger logger = Logger.getLogger(CacheService.class.getName());
 
-    private ConcurrentHashMap cache = null;
+    private NodeCache cache = null;
+    private FragmentCache fragmentCache = null;
+    private PathIndex pathIndex = null;
 
     // <editor-fold defaultstate="collapsed" desc="interface SingletonService">
     @Override
     public void injectArguments(Command command) {
         if (command != null) {
             command.setArgument("cache", cache);
+            command.setArgument("fragmentCache", fragmentCache);
+            command.setArgument("pathIndex", pathIndex);
         }
     }
 
     @Override
     public void initialize(Map<String, Object> context) {
 
-        String dbPath = (String) context.get(Services.DATABASE_PATH);
+        int maxSize = NodeCache.DefaultMaxSize;
+
+        // try to parse cache size, set to default otherwise
+        if (context != null && context.containsKey(Services.CACHE_MAX_SIZE)) {
+            try {
+                maxSize = Integer.parseInt(context.get(Services.CACHE_MAX_SIZE).toString());
+
+            } catch (Throwable t) {
+                maxSize = NodeCache.DefaultMaxSize;
+            }
+        }
+
+        int fragmentMaxSize = FragmentCache.DefaultMaxSize;
+        long fragmentTimeToLive = FragmentCache.DefaultTimeToLive;
+
+        // try to parse fragment cache size, set to default otherwise
+        if (context != null && context.containsKey(Services.FRAGMENT_CACHE_MAX_SIZE)) {
+            try {
+                fragmentMaxSize = Integer.parseInt(context.get(Services.FRAGMENT_CACHE_MAX_SIZE).toString());
+
+            } catch (Throwable t) {
+                fragmentMaxSize = FragmentCache.DefaultMaxSize;
+            }
+        }
+
+        // try to parse fragment time-to-live, set to default otherwise
+        if (context != null && context.containsKey(Services.FRAGMENT_CACHE_TIME_TO_LIVE)) {
+            try {
+                fragmentTimeToLive = Long.parseLong(context.get(Services.FRAGMENT_CACHE_TIME_TO_LIVE).toString());
+
+            } catch (Throwable t) {
+                fragmentTimeToLive = FragmentCache.DefaultTimeToLive;
+            }
+        }
+
+        int pathIndexMaxSize = PathIndex.DefaultMaxSize;
+        long pathIndexTimeToLive = PathIndex.DefaultTimeToLive;
+
+        // try to parse path index size, set to default otherwise
+        if (context != null && context.containsKey(Services.PATH_INDEX_MAX_SIZE)) {
+            try {
+                pathIndexMaxSize = Integer.parseInt(context.get(Services.PATH_INDEX_MAX_SIZE).toString());
+
+            } catch (Throwable t) {
+                pathIndexMaxSize = PathIndex.DefaultMaxSize;
+            }
+        }
+
+        // try to parse path index time-to-live, set to default otherwise
+        if (context != null && context.containsKey(Services.PATH_INDEX_TIME_TO_LIVE)) {
+            try {
+                pathIndexTimeToLive = Long.parseLong(context.get(Services.PATH_INDEX_TIME_TO_LIVE).toString());
+
+            } catch (Throwable t) {
+                pathIndexTimeToLive = PathIndex.DefaultTimeToLive;
+            }
+        }
 
         try {
-            logger.log(Level.INFO, "Initializing cache ...", dbPath);
-            cache = new ConcurrentHashMap();
+            logger.log(Level.INFO, "Initializing cache (max. {0} nodes per request) ...", maxSize);
+            cache = new NodeCache(maxSize);
+
+            // a maximum size of 0 disables the fragment cache
+            if (fragmentMaxSize > 0) {
+                logger.log(Level.INFO, "Initializing fragment cache (max. {0} fragments, ttl {1} ms) ...", new Object[]{fragmentMaxSize, fragmentTimeToLive});
+                fragmentCache = new FragmentCache(fragmentMaxSize, fragmentTimeToLive);
+            }
+
+            // a maximum size of 0 disables the path index
+            if (pathIndexMaxSize > 0) {
+                logger.log(Level.INFO, "Initializing path index (max. {0} paths, ttl {1} ms) ...", new Object[]{pathIndexMaxSize, pathIndexTimeToLive});
+                pathIndex = new PathIndex(pathIndexMaxSize, pathIndexTimeToLive);
+            }
+
             logger.log(Level.INFO, "Cache ready.");
 
         } catch (Exception e) {
-            logger.log(Level.SEVERE, "Database could not be initialized.{0}", e.getMessage());
+            logger.log(Level.SEVERE, "Cache could not be initialized. {0}", e.getMessage());
         }
     }
 
     @Override
     public void shutdown() {
         if (isRunning()) {
+            logger.log(Level.INFO, "Shutting down cache: {0}", cache);
+            cache.clear();
             cache = null;
+
+            if (fragmentCache != null) {
+                logger.log(Level.INFO, "Shutting down fragment cache: {0}", fragmentCache);
+                fragmentCache.clear();
+                fragmentCache = null;
+            }
+
+            if (pathIndex != null) {
+                logger.log(Level.INFO, "Shutting down path index: {0}", pathIndex);
+                pathIndex.clear();
+                pathIndex = null;
+            }
         }
     }
 
@@ -19,21 +19,31 @@
 package org.structr.core.node;
 
 import au.com.bytecode.opencsv.CSVReader;
+import java.io.BufferedReader;
 import java.io.FileReader;
+import java.io.IOException;
+import java.io.StringReader;
 import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
 import org.structr.common.RelType;
 import org.structr.core.Command;
 import org.structr.core.Services;
 import org.structr.core.UnsupportedArgumentError;
 import org.structr.core.entity.CsvFile;
-import org.structr.core.entity.File;
 import org.structr.core.entity.NodeList;
 import org.structr.core.entity.AbstractNode;
 import org.structr.core.entity.SuperUser;
@@ -43,11 +53,37 @@ import org.structr.core.entity.User;
  * Converts a CSV file to a node list. Each row will be represented
  * as a node.
  *
+ * <p>
+ * Parameters: the CSV file (a CsvFile node or its id), the target node
+ * class, and optionally the user, the field separator and quote characters
+ * (Character, in this order; auto-detected from the header line if
+ * omitted) and the batch size (Integer, defaults to the configured value
+ * of {@see Services#CSV_IMPORT_BATCH_SIZE}). The header line, which holds
+ * the column keys, must not contain line breaks.
+ * </p>
+ *
+ * <p>
+ * The file is parsed on a separate thread and handed over in batches
+ * through a bounded queue, so memory use does not depend on the size of
+ * the file. Each batch is committed in its own transaction, together with
+ * the number of rows imported so far, which is stored on the node list.
+ * Rows that can't be parsed or created are skipped. An interrupted import
+ * is resumed with the next row when the file is converted again.
+ * </p>
+ *
  * @author axel
  */
 public class ConvertCsvToNodeListCommand extends NodeServiceCommand {
 
     private static final Logger logger = Logger.getLogger(ConvertCsvToNodeListCommand.class.getName());
+    public static final String IMPORTED_ROWS_KEY = "csvImportedRows";
+    public static final String IMPORT_COMPLETE_KEY = "csvImportComplete";
+    public static final int DefaultBatchSize = 1000;
+    private static final int QueueCapacity = 4;
+    private static final int ProgressInterval = 10000;
+    private static final char DefaultSeparator = '|';
+    private static final char DefaultQuoteChar = '\"';
+    private static final char[] SeparatorCandidates = new char[]{',', ';', '\t', '|'};
 
     @Override
     public Object execute(Object... parameters) {
@@ -62,6 +98,18 @@ public class ConvertCsvToNodeListCommand extends NodeServiceCommand {
         CsvFile csvFileNode = null;
         String filePath = null;
         User user = null;
+        Character separator = null;
+        Character quoteChar = null;
+        int batchSize = DefaultBatchSize;
+
+        if (Services.getContext() != null) {
+            try {
+                batchSize = Math.max(Integer.parseInt(Services.getConfigValue(Services.getContext(), Services.CSV_IMPORT_BATCH_SIZE, String.valueOf(DefaultBatchSize))), 1);
+
+            } catch (Throwable t) {
+                logger.log(Level.WARNING, "Invalid value for {0}, using default {1}", new Object[]{Services.CSV_IMPORT_BATCH_SIZE, DefaultBatchSize});
+            }
+        }
 
         for (Object o : parameters) {
 
@@ -91,190 +139,492 @@ public class ConvertCsvToNodeListCommand extends NodeServiceCommand {
                 user = (User) o;
             }
 
+            if (o instanceof Character) {
+
+                if (separator == null) {
+                    separator = (Character) o;
+                } else {
+                    quoteChar = (Character) o;
+                }
+            }
+
+            if (o instanceof Integer) {
+                batchSize = Math.max((Integer) o, 1);
+            }
+
+        }
+
+        if (csvFileNode == null || targetClass == null) {
+            throw new UnsupportedArgumentError("CSV file and target class are required");
         }
 
         try {
 
-            // TODO: Implement auto-detection for field separator and quote characters
-            CSVReader reader = new CSVReader(new FileReader(filePath), '|', '\"');
+            BufferedReader in = new BufferedReader(new FileReader(filePath));
 
-            // Read first line, these should be the column keys
-            String[] keys = reader.readNext();
+            // the header line is used for auto-detection and read only once,
+            // regardless of its length
+            String header = in.readLine();
 
-            // Get the fields of the target node
-            Field[] fields = targetClass.getFields();
+            if (header == null) {
+                logger.log(Level.WARNING, "CSV file {0} is empty", filePath);
+                in.close();
+                return null;
+            }
 
-            // The field index stores the field name of a column
-            Map<Integer, String> fieldIndex = new HashMap<Integer, String>();
+            if (quoteChar == null) {
+                quoteChar = detectQuoteChar(header);
+            }
 
-            // Instantiate object
-            AbstractNode o = (AbstractNode) targetClass.newInstance();
+            if (separator == null) {
+                separator = detectSeparator(header, quoteChar);
+            }
 
-            int col = 0;
-            // Match with fields
-            for (String key : keys) {
+            logger.log(Level.INFO, "Converting CSV file {0}, separator ''{1}'', quote character ''{2}''", new Object[]{filePath, separator, quoteChar});
 
-                for (Field f : fields) {
+            // First line, these should be the column keys
+            String[] keys = new CSVReader(new StringReader(header), separator, quoteChar).readNext();
 
-                    String fieldName = (String) f.get(o);
+            // the reader continues with the first row after the header
+            CSVReader reader = new CSVReader(in, separator, quoteChar);
 
-                    if (fieldName.toUpperCase().equals(key.toUpperCase())) {
-                        fieldIndex.put(col, fieldName);
-                    }
+            // The property key of each column, or null if the column is ignored
+            String[] columnKeys = mapColumns(targetClass, keys);
 
-                }
-                col++;
+            NodeList<AbstractNode> nodeList = getNodeList(user, csvFileNode);
+
+            if (nodeList == null) {
+                reader.close();
+                return null;
             }
 
-            for (Entry<Integer, String> entry : fieldIndex.entrySet()) {
-                Integer i = entry.getKey();
-                String v = entry.getValue();
+            long importedRows = 0;
+            Object rows = nodeList.getProperty(IMPORTED_ROWS_KEY);
+
+            if (rows instanceof Number) {
+                importedRows = ((Number) rows).longValue();
+            }
 
-                System.out.println("v: " + v + ", i: " + i);
+            if (importedRows > 0) {
+                logger.log(Level.INFO, "Resuming import into node list {0} after row {1}", new Object[]{nodeList.getId(), importedRows});
             }
 
-//			List<String[]> lines = reader.readAll();
+            importRows(reader, nodeList, targetClass.getSimpleName(), columnKeys, importedRows, batchSize);
 
-            final User userCopy = user;
-            final AbstractNode sourceNodeCopy = csvFileNode;
+            return nodeList;
 
-            final Command transactionCommand = Services.command(TransactionCommand.class);
-            final Command createNode = Services.command(CreateNodeCommand.class);
-            final Command createRel = Services.command(CreateRelationshipCommand.class);
+        } catch (Throwable t) {
+            logger.log(Level.SEVERE, "Could not convert CSV file " + filePath, t);
+        }
 
-            final NodeList<AbstractNode> nodeListNode = (NodeList<AbstractNode>) transactionCommand.execute(new StructrTransaction() {
+        return null;
 
-                @Override
-                public Object execute() throws Throwable {
+    }
+
+    // <editor-fold defaultstate="collapsed" desc="private methods">
+    /**
+     * Returns the separator that occurs most often outside of quotes in
+     * the given line, quoted by the given quote character.
+     */
+    private char detectSeparator(final String line, final char quoteChar) {
+
+        char separator = DefaultSeparator;
+        int maxCount = 0;
+
+        for (char candidate : SeparatorCandidates) {
+
+            int count = 0;
+            boolean quoted = false;
+
+            for (int i = 0; i < line.length(); i++) {
 
-                    // If the node list node doesn't exist, create one
-                    NodeList<AbstractNode> result = (NodeList) createNode.execute(userCopy,
-                            new NodeAttribute(AbstractNode.TYPE_KEY, NodeList.class.getSimpleName()),
-                            new NodeAttribute(AbstractNode.NAME_KEY, sourceNodeCopy.getName() + " List"));
+                char c = line.charAt(i);
 
-                    createRel.execute(sourceNodeCopy, result, RelType.HAS_CHILD);
-                    return result;
+                if (c == quoteChar) {
+                    quoted = !quoted;
+
+                } else if (c == candidate && !quoted) {
+                    count++;
                 }
-            });
+            }
 
+            if (count > maxCount) {
+                separator = candidate;
+                maxCount = count;
+            }
+        }
+
+        return separator;
+    }
+
+    private char detectQuoteChar(final String line) {
+
+        if (line.indexOf('\'') >= 0 && line.indexOf('\"') < 0) {
+            return '\'';
+        }
+
+        return DefaultQuoteChar;
+    }
+
+    /**
+     * Matches the column keys with the property key constants of the
+     * target class, ignoring case.
+     */
+    private String[] mapColumns(final Class targetClass, final String[] keys) {
+
+        Map<String, String> propertyKeys = new HashMap<String, String>();
+
+        for (Field field : targetClass.getFields()) {
+
+            if (Modifier.isStatic(field.getModifiers()) && String.class.equals(field.getType())) {
 
-            final List<List<NodeAttribute>> creationList = new LinkedList<List<NodeAttribute>>();
-            String targetClassName = targetClass.getSimpleName();
-            String[] line = null;
-            do {
-                // read line, one at a time
                 try {
-                    line = reader.readNext();
+                    String key = (String) field.get(null);
+
+                    if (key != null) {
+                        propertyKeys.put(key.toUpperCase(), key);
+                    }
+
                 } catch (Throwable t) {
+                    logger.log(Level.FINE, "Could not read field {0}", field.getName());
                 }
+            }
+        }
 
-                if (line != null) {
-                    // create a new list for each item
-                    List<NodeAttribute> nodeAttributes = new LinkedList<NodeAttribute>();
-                    nodeAttributes.add(new NodeAttribute(AbstractNode.TYPE_KEY, targetClassName));
+        String[] columnKeys = new String[keys != null ? keys.length : 0];
 
-                    for (int i = 0; i < col; i++) {
-                        String csvValue = line[i];
-                        String key = fieldIndex.get(i);
+        for (int i = 0; i < columnKeys.length; i++) {
 
-                        nodeAttributes.add(new NodeAttribute(key, csvValue));
-                    }
+            columnKeys[i] = propertyKeys.get(keys[i].trim().toUpperCase());
+
+            if (columnKeys[i] == null) {
+                logger.log(Level.WARNING, "Column {0} does not match a property of {1}, ignoring", new Object[]{keys[i], targetClass.getSimpleName()});
+            }
+        }
+
+        return columnKeys;
+    }
+
+    /**
+     * Returns the node list of an unfinished import of the given file,
+     * or creates a new one.
+     */
+    private NodeList<AbstractNode> getNodeList(final User user, final CsvFile csvFileNode) {
+
+        Command nodeFactory = Services.command(NodeFactoryCommand.class);
+
+        for (Relationship rel : csvFileNode.getNode().getRelationships(RelType.HAS_CHILD, Direction.OUTGOING)) {
+
+            Node node = rel.getEndNode();
+
+            if (node.hasProperty(IMPORTED_ROWS_KEY) && !node.hasProperty(IMPORT_COMPLETE_KEY)) {
+
+                AbstractNode list = (AbstractNode) nodeFactory.execute(node);
+
+                if (list instanceof NodeList) {
+                    return (NodeList<AbstractNode>) list;
+                }
+            }
+        }
+
+        final Command createNode = Services.command(CreateNodeCommand.class);
+        final Command createRel = Services.command(CreateRelationshipCommand.class);
+
+        return (NodeList<AbstractNode>) Services.command(TransactionCommand.class).execute(new StructrTransaction() {
+
+            @Override
+            public Object execute() throws Throwable {
+
+                // If the node list node doesn't exist, create one
+                NodeList<AbstractNode> result = (NodeList) createNode.execute(user,
+                        new NodeAttribute(AbstractNode.TYPE_KEY, NodeList.class.getSimpleName()),
+                        new NodeAttribute(AbstractNode.NAME_KEY, csvFileNode.getName() + " List"),
+                        new NodeAttribute(IMPORTED_ROWS_KEY, 0L));
+
+                createRel.execute(csvFileNode, result, RelType.HAS_CHILD);
+                return result;
+            }
+        });
+    }
+
+    private void importRows(final CSVReader reader, final NodeList<AbstractNode> nodeList, final String type,
+            final String[] columnKeys, final long skipRows, final int batchSize) throws InterruptedException {
+
+        final BlockingQueue<Batch> queue = new ArrayBlockingQueue<Batch>(QueueCapacity);
+        final AtomicBoolean cancelled = new AtomicBoolean(false);
+
+        Thread parser = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                parseRows(reader, type, columnKeys, skipRows, batchSize, queue, cancelled);
+            }
+        }, "CsvParser");
+
+        parser.setDaemon(true);
+        parser.start();
+
+        long t0 = System.currentTimeMillis();
+        long createdRows = 0;
+        long skippedRows = 0;
+        long nextProgress = ProgressInterval;
+        boolean complete = false;
+
+        try {
+
+            Batch batch = queue.take();
+
+            while (!batch.end) {
+
+                int created = writeBatch(nodeList, batch);
+
+                createdRows += created;
+                skippedRows += batch.skipped + batch.rows.size() - created;
+
+                if (createdRows >= nextProgress) {
 
-                    // add node attributes to creation list
-                    creationList.add(nodeAttributes);
+                    long elapsed = Math.max(System.currentTimeMillis() - t0, 1);
+
+                    logger.log(Level.INFO, "Imported {0} rows into node list {1} ({2} rows/s)", new Object[]{createdRows, nodeList.getId(), createdRows * 1000 / elapsed});
+                    nextProgress = createdRows + ProgressInterval;
                 }
 
+                batch = queue.take();
+            }
 
-            } while (line != null);
+            skippedRows += batch.skipped;
+            complete = !batch.failed;
 
-            reader.close();
+        } finally {
+            cancelled.set(true);
+        }
 
-            // everything in one transaction
-            transactionCommand.execute(new StructrTransaction() {
+        if (complete) {
+
+            Services.command(TransactionCommand.class).execute(new StructrTransaction() {
 
                 @Override
                 public Object execute() throws Throwable {
-                    List<AbstractNode> nodesToAdd = new LinkedList<AbstractNode>();
-                    for (List<NodeAttribute> attrList : creationList) {
-                        nodesToAdd.add((AbstractNode) createNode.execute(attrList, false));  // don't index
-                    }
-
-                    // use bulk add
-                    nodeListNode.addAll(nodesToAdd);
+                    nodeList.setProperty(IMPORT_COMPLETE_KEY, true, false);
 
                     return (null);
                 }
             });
+        }
+
+        logger.log(Level.INFO, "Import into node list {0} {1}: {2} rows created, {3} rows skipped in {4} ms",
+                new Object[]{nodeList.getId(), complete ? "finished" : "incomplete, can be resumed", createdRows, skippedRows, System.currentTimeMillis() - t0});
+    }
+
+    /**
+     * Runs on the parser thread. Reads the rows after the first skipRows
+     * rows and hands them over in batches, followed by an end marker.
+     */
+    private void parseRows(final CSVReader reader, final String type, final String[] columnKeys, final long skipRows,
+            final int batchSize, final BlockingQueue<Batch> queue, final AtomicBoolean cancelled) {
+
+        Batch batch = new Batch(batchSize);
+        Batch end = new Batch(0);
+        long row = 0;
+
+        end.end = true;
+
+        try {
+
+            String[] line = reader.readNext();
+
+            while (line != null && !cancelled.get()) {
 
+                row++;
 
-            /*
-            final List<NodeAttribute> attrList = new LinkedList<NodeAttribute>();
+                if (row > skipRows) {
 
-            NodeAttribute typeAttr = new NodeAttribute(AbstractNode.TYPE_KEY, targetClass.getSimpleName());
-            attrList.add(typeAttr);
+                    if (line.length == 1 && line[0].length() == 0) {
 
-            String[] line = null;
+                        // ignore empty lines
+                        batch.skipped++;
 
-            do
-            {
-            try
-            {
-            line = reader.readNext();
+                    } else if (line.length < columnKeys.length) {
 
-            } catch(Throwable t)
-            {
-            line = null;
+                        logger.log(Level.WARNING, "Row {0} has {1} instead of {2} columns, skipping", new Object[]{row, line.length, columnKeys.length});
+                        batch.skipped++;
+
+                    } else {
+
+                        List<NodeAttribute> nodeAttributes = new LinkedList<NodeAttribute>();
+                        nodeAttributes.add(new NodeAttribute(AbstractNode.TYPE_KEY, type));
+
+                        for (int i = 0; i < columnKeys.length; i++) {
+
+                            if (columnKeys[i] != null) {
+                                nodeAttributes.add(new NodeAttribute(columnKeys[i], line[i]));
+                            }
+                        }
+
+                        batch.rows.add(nodeAttributes);
+                        batch.rowNumbers.add(row);
+                    }
+
+                    batch.lastRow = row;
+
+                    if (batch.rows.size() >= batchSize) {
+
+                        put(queue, batch, cancelled);
+                        batch = new Batch(batchSize);
+                    }
+                }
+
+                line = reader.readNext();
             }
 
-            if(line != null)
-            {
-            for(int i = 0; i < col; i++)
-            {
+        } catch (IOException ioex) {
 
-            String csvValue = line[i];
-            String key = fieldIndex.get(i);
+            logger.log(Level.SEVERE, "Could not read CSV row " + (row + 1), ioex);
+            end.failed = true;
 
-            System.out.println("Creating attribute " + key + " = '" + csvValue + "'..");
+        } catch (InterruptedException iex) {
 
-            NodeAttribute attr = new NodeAttribute(key, csvValue);
-            attrList.add(attr);
+            end.failed = true;
 
-            logger.log(Level.FINEST, "Created node attribute {0}={1}", new Object[]
-            {
-            attr.getKey(), attr.getValue()
-            });
+        } catch (Throwable t) {
+
+            logger.log(Level.SEVERE, "Could not parse CSV row " + (row + 1), t);
+            end.failed = true;
+
+        } finally {
+
+            try {
+                reader.close();
+
+            } catch (IOException ioex) {
+                logger.log(Level.FINE, "Could not close CSV reader", ioex);
             }
 
-            AbstractNode newNode = (AbstractNode)transactionCommand.execute(new StructrTransaction()
-            {
+            // the writer waits for the end marker, so it must always be queued
+            try {
+
+                if (!batch.rows.isEmpty() || batch.lastRow > 0) {
+                    put(queue, batch, cancelled);
+                }
+
+                end.failed |= cancelled.get();
+                put(queue, end, cancelled);
+
+            } catch (InterruptedException iex) {
+                logger.log(Level.WARNING, "CSV parser interrupted");
+            }
+        }
+    }
+
+    private void put(final BlockingQueue<Batch> queue, final Batch batch, final AtomicBoolean cancelled) throws InterruptedException {
+
+        // don't block forever if the writer has stopped
+        while (!cancelled.get()) {
+
+            if (queue.offer(batch, 1, TimeUnit.SECONDS)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Creates the nodes of the given batch and appends them to the node
+     * list in a single transaction. If that fails, the rows are created
+     * one transaction each, skipping the rows that fail.
+     *
+     * @return the number of nodes created
+     */
+    private int writeBatch(final NodeList<AbstractNode> nodeList, final Batch batch) {
+
+        final Command transactionCommand = Services.command(TransactionCommand.class);
+        final Command createNode = Services.command(CreateNodeCommand.class);
+
+        Object result = transactionCommand.execute(new StructrTransaction() {
+
             @Override
-            public Object execute() throws Throwable
-            {
-            Command createNode = Services.command(CreateNodeCommand.class);
-
-            // Create new node
-            AbstractNode newNode = (AbstractNode)createNode.execute(userCopy, attrList);
-            transactionCommand.setExitCode(createNode.getExitCode());
-            transactionCommand.setErrorMessage(createNode.getErrorMessage());
-            return newNode;
+            public Object execute() throws Throwable {
+
+                List<Node> nodesToAdd = new ArrayList<Node>(batch.rows.size());
+
+                for (List<NodeAttribute> attrList : batch.rows) {
+                    nodesToAdd.add(((AbstractNode) createNode.execute(new LinkedList<NodeAttribute>(attrList), false)).getNode());  // don't index
+                }
+
+                nodeList.appendNewNodes(nodesToAdd);
+                nodeList.setProperty(IMPORTED_ROWS_KEY, batch.lastRow, false);
+
+                return (Boolean.TRUE);
             }
+        });
+
+        if (result != null) {
+            return batch.rows.size();
+        }
+
+        logger.log(Level.WARNING, "Could not import rows up to {0}, retrying row by row", batch.lastRow);
+
+        int created = 0;
+
+        for (int i = 0; i < batch.rows.size(); i++) {
+
+            final List<NodeAttribute> attrList = batch.rows.get(i);
+            final long row = batch.rowNumbers.get(i);
+
+            Object rowResult = transactionCommand.execute(new StructrTransaction() {
+
+                @Override
+                public Object execute() throws Throwable {
+
+                    List<Node> nodesToAdd = new ArrayList<Node>(1);
+                    nodesToAdd.add(((AbstractNode) createNode.execute(attrList, false)).getNode());  // don't index
+
+                    nodeList.appendNewNodes(nodesToAdd);
+                    nodeList.setProperty(IMPORTED_ROWS_KEY, row, false);
+
+                    return (Boolean.TRUE);
+                }
             });
 
-            nodeListNode.add(newNode);
-            logger.log(Level.INFO, "Node {0} added to node list", newNode.getId());
+            if (rowResult != null) {
+                created++;
+            } else {
+                logger.log(Level.WARNING, "Could not import row {0}, skipping", row);
             }
+        }
 
-            } while(line != null);
-             */
+        // skip the failed rows when resuming
+        transactionCommand.execute(new StructrTransaction() {
 
-            return nodeListNode;
+            @Override
+            public Object execute() throws Throwable {
+                nodeList.setProperty(IMPORTED_ROWS_KEY, batch.lastRow, false);
 
-        } catch (Throwable t) {
-            // TODO: use logger
-            t.printStackTrace(System.out);
-        }
+                return (null);
+            }
+        });
 
-        return null;
+        return created;
+    }
+    // </editor-fold>
+
+    // <editor-fold defaultstate="collapsed" desc="private classes">
+    /**
+     * Parsed rows handed over from the parser to the writer.
+     */
+    private static class Batch {
+
+        private final List<List<NodeAttribute>> rows;
+        private final List<Long> rowNumbers;
+        private long lastRow = 0;
+        private int skipped = 0;
+        private boolean end = false;
+        private boolean failed = false;
 
+        private Batch(final int size) {
+
+            rows = new ArrayList<List<NodeAttribute>>(size);
+            rowNumbers = new ArrayList<Long>(size);
+        }
     }
+    // </editor-fold>
 }
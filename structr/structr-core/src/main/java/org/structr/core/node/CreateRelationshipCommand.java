@@ -147,6 +147,9 @@ public class CreateRelationshipCommand extends NodeServiceCommand {
             }
         });
 
+        // cached instances hold outdated relationship lists
+        Services.command(RemoveFromCacheCommand.class).execute(fromNode.getId(), toNode.getId());
+
         return newRelationship;
     }
 
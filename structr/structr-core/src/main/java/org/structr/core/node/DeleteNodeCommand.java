@@ -30,6 +30,7 @@ import org.neo4j.kernel.Traversal;
 import org.structr.core.Command;
 import org.structr.core.Services;
 import org.structr.core.entity.AbstractNode;
+import org.structr.core.entity.NodeList;
 import org.structr.common.RelType;
 import org.structr.core.entity.StructrRelationship;
 import org.structr.core.entity.User;
@@ -175,11 +176,14 @@ public class DeleteNodeCommand extends NodeServiceCommand {
                 if (node != null) {
 
                     Command findNode = Services.command(FindNodeCommand.class);
+                    Command removeFromCache = Services.command(RemoveFromCacheCommand.class);
+
                     if (parentNode == null) {
 
                         if (recursive) {
 
                             Relationship parentRel = node.getSingleRelationship(RelType.HAS_CHILD, Direction.INCOMING);
+                            removeFromCache.execute(parentRel.getStartNode().getId());
                             newParentNode = (AbstractNode) findNode.execute(user, parentRel.getStartNode().getId());
 
                             //newParentNode = structrNode.getParentNode(user);
@@ -193,6 +197,9 @@ public class DeleteNodeCommand extends NodeServiceCommand {
 //                        Relationship r = p.lastRelationship();
                                 Node n = p.endNode();
 
+                                // keep lists containing this node consistent
+                                NodeList.removeFromLists(n);
+
                                 // delete any outgoing relationships
                                 for (Relationship l : n.getRelationships(Direction.OUTGOING)) {
                                     try {
@@ -217,6 +224,7 @@ public class DeleteNodeCommand extends NodeServiceCommand {
                                 //if (r != null) r.delete();
 
                                 // delete the child node itself
+                                removeFromCache.execute(n.getId());
                                 n.delete();
                             }
 
@@ -236,14 +244,20 @@ public class DeleteNodeCommand extends NodeServiceCommand {
                             if (parentRel != null) {
                                 //newParentNode = (AbstractNode) findNode.execute(user, parentRel.getStartNode().getId());
                                 newParentNode = structrNode.getParentNode();
+                                removeFromCache.execute(parentRel.getStartNode().getId());
                                 parentRel.delete();
                             }
+                            // keep lists containing this node consistent
+                            NodeList.removeFromLists(node);
+
                             // delete other incoming relationships
                             List<StructrRelationship> incomingRels = structrNode.getIncomingRelationships();
                             for (StructrRelationship r : incomingRels) {
+                                removeFromCache.execute(r.getRelationship().getStartNode().getId());
                                 r.getRelationship().delete();
                             }
 
+                            removeFromCache.execute(node.getId());
                             node.delete();
                         }
 
@@ -254,6 +268,7 @@ public class DeleteNodeCommand extends NodeServiceCommand {
                             AbstractNode p = (AbstractNode) findNode.execute(user, r.getStartNode().getId());
                             if (p.equals(parentNode)) {
                                 r.delete();
+                                removeFromCache.execute(node.getId(), p.getId());
                             }
                         }
 
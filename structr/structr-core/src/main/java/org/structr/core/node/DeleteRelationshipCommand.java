@@ -92,6 +92,8 @@ public class DeleteRelationshipCommand extends NodeServiceCommand {
 
             final Relationship relToDelete = rel;
 
+            // cached instances hold outdated relationship lists
+            Services.command(RemoveFromCacheCommand.class).execute(rel.getStartNode().getId(), rel.getEndNode().getId());
 
             final Command transactionCommand = Services.command(TransactionCommand.class);
             transactionCommand.execute(new StructrTransaction() {
@@ -30,6 +30,7 @@ import org.structr.common.TreeHelper;
 import org.structr.core.UnsupportedArgumentError;
 import org.structr.core.entity.AbstractNode;
 import org.structr.core.entity.User;
+import org.structr.core.StatelessCommand;
 //import org.structr.common.xpath.JXPathFinder;
 
 /**
@@ -62,7 +63,7 @@ import org.structr.core.entity.User;
  *
  * @author cmorgner
  */
-public class FindNodeCommand extends NodeServiceCommand {
+public class FindNodeCommand extends NodeServiceCommand implements StatelessCommand {
 
     private static final Logger logger = Logger.getLogger(FindNodeCommand.class.getName());
 
@@ -108,12 +109,18 @@ public class FindNodeCommand extends NodeServiceCommand {
             // single long value: find node by id
             long id = ((Long) argument).longValue();
 
-            Node node = null;
-            try {
-                node = graphDb.getNodeById(id);
-                result = nodeFactory.createNode(node);
-            } catch (NotFoundException nfe) {
-                logger.log(Level.WARNING, "Node with id {0} not found in database!", id);
+            // try cache first
+            result = nodeFactory.getCachedNode(id);
+
+            if (result == null) {
+
+                Node node = null;
+                try {
+                    node = graphDb.getNodeById(id);
+                    result = nodeFactory.createNode(node);
+                } catch (NotFoundException nfe) {
+                    logger.log(Level.WARNING, "Node with id {0} not found in database!", id);
+                }
             }
 
         } else if (argument instanceof String) {
@@ -121,8 +128,13 @@ public class FindNodeCommand extends NodeServiceCommand {
             try {
                 long id = Long.parseLong((String) argument);
 
-                Node node = graphDb.getNodeById(id);
-                result = nodeFactory.createNode(node);
+                // try cache first
+                result = nodeFactory.getCachedNode(id);
+
+                if (result == null) {
+                    Node node = graphDb.getNodeById(id);
+                    result = nodeFactory.createNode(node);
+                }
 
             } catch (Exception ex) {
                 // failed :(
@@ -220,6 +232,12 @@ public class FindNodeCommand extends NodeServiceCommand {
             try {
                 long id = Long.parseLong(path);
 
+                // try cache first
+                AbstractNode cachedNode = nodeFactory.getCachedNode(id);
+                if (cachedNode != null) {
+                    return cachedNode;
+                }
+
                 Node node = graphDb.getNodeById(id);
                 return nodeFactory.createNode(node);
 
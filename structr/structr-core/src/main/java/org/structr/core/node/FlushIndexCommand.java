@@ -0,0 +1,40 @@
+/*
+ *  Copyright (C) 2011 Axel Morgner, structr <structr@structr.org>
+ * 
+ *  This file is part of structr <http://structr.org>.
+ * 
+ *  structr is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ * 
+ *  structr is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ * 
+ *  You should have received a copy of the GNU General Public License
+ *  along with structr.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.structr.core.node;
+
+/**
+ * Writes all pending index updates before returning, and
+ * returns the number of nodes written.
+ *
+ * @author amorgner
+ */
+public class FlushIndexCommand extends NodeServiceCommand {
+
+    @Override
+    public Object execute(Object... parameters) {
+
+        IndexUpdateQueue indexQueue = (IndexUpdateQueue) arguments.get("indexQueue");
+
+        if (indexQueue != null) {
+            return indexQueue.flush();
+        }
+
+        return 0;
+    }
+}
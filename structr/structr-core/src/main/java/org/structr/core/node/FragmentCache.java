@@ -0,0 +1,362 @@
+/*
+ *  Copyright (C) 2011 Axel Morgner, structr <structr@structr.org>
+ *
+ *  This file is part of structr <http://structr.org>.
+ *
+ *  structr is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  structr is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with structr.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.structr.core.node;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import org.structr.common.PermissionCache;
+
+/**
+ * A bounded, least-recently-used cache for rendered output, keyed by
+ * the rendered node, the requesting principal, the session and the
+ * request parameters.
+ *
+ * <p>
+ * While a fragment is rendered, the ids of all structr nodes instantiated
+ * by the current thread are recorded (see {@see #startRecording} and
+ * {@see StructrNodeFactory#createNode}). A fragment is discarded as soon
+ * as one of these nodes is removed from the node cache, i.e. when one of
+ * its properties or relationships changes, or when it is moved or deleted,
+ * and again after the change has been committed (see
+ * {@see CacheChangeTracker}). Fragments are also discarded when security
+ * relationships change, and after a time-to-live, which bounds the
+ * staleness of output that depends on search results.
+ * </p>
+ *
+ * <p>
+ * Every invalidation or clear starts a new generation. Output is stored
+ * with the generation that was current when rendering started (see
+ * {@see #getGeneration}), and output of an older generation is dropped,
+ * so a fragment rendered from state that changed while rendering is not
+ * stored after its invalidation has already run.
+ * </p>
+ *
+ * @author amorgner
+ */
+public class FragmentCache {
+
+    public static final int DefaultMaxSize = 1000;
+    public static final long DefaultTimeToLive = 30000L;
+    private static final ThreadLocal<Set<Long>> recordedNodes = new ThreadLocal<Set<Long>>();
+    private final AtomicLong hits = new AtomicLong(0);
+    private final AtomicLong misses = new AtomicLong(0);
+    private final AtomicLong evictions = new AtomicLong(0);
+    private final AtomicLong invalidations = new AtomicLong(0);
+    private final Map<String, Fragment> fragments;
+    private final Map<Long, Set<String>> dependents = new HashMap<Long, Set<String>>();
+    private final int maxSize;
+    private final long timeToLive;
+    private long generation = 0;
+
+    public FragmentCache(final int maxSize, final long timeToLive) {
+
+        this.maxSize = maxSize;
+        this.timeToLive = timeToLive;
+
+        // access-ordered map, the eldest entry is the least recently used one
+        this.fragments = new LinkedHashMap<String, Fragment>(Math.min(maxSize, 1024), 0.75f, true) {
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Fragment> eldest) {
+
+                if (size() > FragmentCache.this.maxSize) {
+                    evictions.incrementAndGet();
+                    unlink(eldest.getKey(), eldest.getValue());
+                    return true;
+                }
+
+                return false;
+            }
+        };
+    }
+
+    // <editor-fold defaultstate="collapsed" desc="dependency recording">
+    /**
+     * Start recording the nodes instantiated by the current thread.
+     */
+    public static void startRecording() {
+        recordedNodes.set(new HashSet<Long>());
+    }
+
+    /**
+     * Stop recording and return the ids of the nodes instantiated by the
+     * current thread since {@see #startRecording}.
+     *
+     * @return the node ids, or null if the thread was not recording
+     */
+    public static Set<Long> stopRecording() {
+
+        Set<Long> ids = recordedNodes.get();
+
+        recordedNodes.remove();
+
+        return ids;
+    }
+
+    /**
+     * Record the given node id if the current thread is recording.
+     *
+     * @param id
+     */
+    public static void record(final long id) {
+
+        Set<Long> ids = recordedNodes.get();
+
+        if (ids != null) {
+            ids.add(id);
+        }
+    }
+    // </editor-fold>
+
+    /**
+     * Return the fragment for the given key, or null if there is no
+     * valid entry.
+     *
+     * @param key
+     * @return
+     */
+    public synchronized Fragment get(final String key) {
+
+        Fragment fragment = fragments.get(key);
+
+        if (fragment == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+
+        if (!isValid(fragment)) {
+
+            remove(key);
+            misses.incrementAndGet();
+
+            return null;
+        }
+
+        hits.incrementAndGet();
+
+        return fragment;
+    }
+
+    /**
+     * Return the current generation, to be captured before rendering
+     * starts and passed to {@see #put}.
+     *
+     * @return
+     */
+    public synchronized long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * Store rendered output under the given key.
+     *
+     * @param key the fragment key
+     * @param content the rendered output
+     * @param dependencies the ids of the nodes the output was rendered from
+     * @param securityVersion the security version at the time rendering started
+     * @param renderGeneration the generation at the time rendering started
+     * @return the new fragment
+     */
+    public synchronized Fragment put(final String key, final String content, final Set<Long> dependencies, final long securityVersion, final long renderGeneration) {
+
+        remove(key);
+
+        Fragment fragment = new Fragment(content, dependencies, securityVersion);
+
+        // don't cache output that was rendered while permissions or nodes changed
+        if (securityVersion != PermissionCache.getSecurityVersion() || renderGeneration != generation) {
+            return fragment;
+        }
+
+        fragments.put(key, fragment);
+
+        for (Long id : fragment.dependencies) {
+
+            Set<String> keys = dependents.get(id);
+
+            if (keys == null) {
+                keys = new HashSet<String>();
+                dependents.put(id, keys);
+            }
+
+            keys.add(key);
+        }
+
+        return fragment;
+    }
+
+    /**
+     * Discard all fragments that were rendered from the node with the given id.
+     *
+     * @param id
+     */
+    public synchronized void invalidate(final long id) {
+
+        // renderings in progress may have read the old state of the node
+        generation++;
+
+        Set<String> keys = dependents.remove(id);
+
+        if (keys != null) {
+
+            for (String key : keys.toArray(new String[keys.size()])) {
+
+                if (remove(key)) {
+                    invalidations.incrementAndGet();
+                }
+            }
+        }
+    }
+
+    public synchronized void clear() {
+
+        generation++;
+        fragments.clear();
+        dependents.clear();
+    }
+
+    // <editor-fold defaultstate="collapsed" desc="metrics">
+    public synchronized int size() {
+        return fragments.size();
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    public long getEvictionCount() {
+        return evictions.get();
+    }
+
+    public long getInvalidationCount() {
+        return invalidations.get();
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public long getTimeToLive() {
+        return timeToLive;
+    }
+
+    @Override
+    public String toString() {
+
+        StringBuilder out = new StringBuilder();
+
+        out.append("FragmentCache [size=").append(size());
+        out.append(", hits=").append(hits.get());
+        out.append(", misses=").append(misses.get());
+        out.append(", evictions=").append(evictions.get());
+        out.append(", invalidations=").append(invalidations.get());
+        out.append("]");
+
+        return out.toString();
+    }
+    // </editor-fold>
+
+    // <editor-fold defaultstate="collapsed" desc="private methods">
+    private boolean isValid(final Fragment fragment) {
+
+        if (fragment.securityVersion != PermissionCache.getSecurityVersion()) {
+            return false;
+        }
+
+        return (timeToLive <= 0 || System.currentTimeMillis() - fragment.created < timeToLive);
+    }
+
+    private boolean remove(final String key) {
+
+        Fragment fragment = fragments.remove(key);
+
+        if (fragment != null) {
+            unlink(key, fragment);
+            return true;
+        }
+
+        return false;
+    }
+
+    private void unlink(final String key, final Fragment fragment) {
+
+        for (Long id : fragment.dependencies) {
+
+            Set<String> keys = dependents.get(id);
+
+            if (keys != null) {
+
+                keys.remove(key);
+
+                if (keys.isEmpty()) {
+                    dependents.remove(id);
+                }
+            }
+        }
+    }
+    // </editor-fold>
+
+    // <editor-fold defaultstate="collapsed" desc="public classes">
+    /**
+     * Rendered output together with its entity tag.
+     */
+    public static class Fragment {
+
+        private final String content;
+        private final String etag;
+        private final Set<Long> dependencies;
+        private final long securityVersion;
+        private final long created;
+
+        private Fragment(final String content, final Set<Long> dependencies, final long securityVersion) {
+
+            this.content = content;
+            this.dependencies = (dependencies != null ? dependencies : new HashSet<Long>());
+            this.securityVersion = securityVersion;
+            this.created = System.currentTimeMillis();
+            this.etag = "\"" + Integer.toHexString(content.hashCode()) + "-" + Integer.toHexString(content.length()) + "\"";
+        }
+
+        public String getContent() {
+            return content;
+        }
+
+        /**
+         * Return the quoted entity tag, derived from the content.
+         *
+         * @return
+         */
+        public String getETag() {
+            return etag;
+        }
+
+        public long getCreated() {
+            return created;
+        }
+    }
+    // </editor-fold>
+}
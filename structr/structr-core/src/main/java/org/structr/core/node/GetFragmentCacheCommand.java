@@ -0,0 +1,35 @@
+/*
+ *  Copyright (C) 2011 Axel Morgner, structr <structr@structr.org>
+ * 
+ *  This file is part of structr <http://structr.org>.
+ * 
+ *  structr is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ * 
+ *  structr is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ * 
+ *  You should have received a copy of the GNU General Public License
+ *  along with structr.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.structr.core.node;
+
+import org.structr.core.StatelessCommand;
+
+/**
+ * Returns the {@see FragmentCache} instance of the cache service, or null
+ * if the fragment cache is disabled.
+ *
+ * @author amorgner
+ */
+public class GetFragmentCacheCommand extends CacheServiceCommand implements StatelessCommand {
+
+    @Override
+    public Object execute(Object... parameters) {
+        return arguments.get("fragmentCache");
+    }
+}
@@ -18,8 +18,6 @@
  */
 package org.structr.core.node;
 
-import java.util.concurrent.ConcurrentHashMap;
-
 /**
  *
  * @author cmorgner
@@ -28,7 +26,7 @@ public class GetFromCacheCommand extends CacheServiceCommand {
 
     @Override
     public Object execute(Object... parameters) {
-        ConcurrentHashMap cache = (ConcurrentHashMap) arguments.get("cache");
+        NodeCache cache = (NodeCache) arguments.get("cache");
         
         Long key = null;
         if (parameters != null && parameters.length == 1 && parameters[0] instanceof Long) {
@@ -36,7 +34,7 @@ public class GetFromCacheCommand extends CacheServiceCommand {
         }
 
         if (cache != null && key != null) {
-            return cache.get(key);
+            return cache.get(key.longValue());
         }
 
         return null;
@@ -19,11 +19,13 @@
 
 package org.structr.core.node;
 
+import org.structr.core.StatelessCommand;
+
 /**
  *
  * @author cmorgner
  */
-public class GraphDatabaseCommand extends NodeServiceCommand
+public class GraphDatabaseCommand extends NodeServiceCommand implements StatelessCommand
 {
 	@Override
 	public Object execute(Object... parameters)
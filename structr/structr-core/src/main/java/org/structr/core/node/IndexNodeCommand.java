@@ -34,13 +34,12 @@ import org.structr.core.entity.AbstractNode;
 public class IndexNodeCommand extends NodeServiceCommand {
 
     private static final Logger logger = Logger.getLogger(IndexNodeCommand.class.getName());
-    private Index<Node> index;
 
     @Override
     public Object execute(Object... parameters) {
 
         GraphDatabaseService graphDb = (GraphDatabaseService) arguments.get("graphDb");
-        index = (Index<Node>) arguments.get("index");
+        Index<Node> index = (Index<Node>) arguments.get("index");
 
         if (graphDb != null) {
             long id = 0;
@@ -65,7 +64,7 @@ public class IndexNodeCommand extends NodeServiceCommand {
 
                     node = graphDb.getNodeById(id);
 
-                    indexNode(node);
+                    indexNode(index, node);
 
                     break;
 
@@ -88,7 +87,7 @@ public class IndexNodeCommand extends NodeServiceCommand {
                         key = (String) parameters[1];
                     }
 
-                    indexProperty(node, key);
+                    indexProperty(index, node, key);
 
                     break;
 
@@ -105,15 +104,23 @@ public class IndexNodeCommand extends NodeServiceCommand {
 
     }
 
-    private void indexNode(final Node node) {
+    /**
+     * Index all properties of the given node. Must be called
+     * within a transaction.
+     */
+    static void indexNode(final Index<Node> index, final Node node) {
 
         for (String key : node.getPropertyKeys()) {
-            indexProperty(node, key);
+            indexProperty(index, node, key);
         }
 
     }
 
-    private void indexProperty(final Node node, final String key) {
+    /**
+     * Index the given property of the given node. Must be called
+     * within a transaction.
+     */
+    static void indexProperty(final Index<Node> index, final Node node, final String key) {
 
 
         if (key == null) {
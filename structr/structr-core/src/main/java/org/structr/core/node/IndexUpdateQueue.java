@@ -0,0 +1,607 @@
+/*
+ *  Copyright (C) 2011 Axel Morgner, structr <structr@structr.org>
+ *
+ *  This file is part of structr <http://structr.org>.
+ *
+ *  structr is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  structr is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with structr.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.structr.core.node;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.NotFoundException;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.graphdb.event.TransactionData;
+import org.neo4j.graphdb.event.TransactionEventHandler;
+import org.neo4j.graphdb.index.Index;
+
+/**
+ * Asynchronous index maintenance for node properties.
+ *
+ * <p>
+ * Index updates are collected per thread and handed over to the queue when
+ * the surrounding transaction commits (they are discarded on rollback).
+ * Multiple updates of the same node are coalesced, and a background writer
+ * applies them in batched transactions, re-reading the current property
+ * values when writing.
+ * </p>
+ *
+ * <p>
+ * Threads that need to see their own changes in search results call
+ * {@see #flushOwnUpdates} before querying the index, which writes only
+ * the updates handed over by the calling thread.
+ * </p>
+ *
+ * <p>
+ * If a batch can't be written, its updates are written one transaction
+ * each. An update that still fails is re-queued, and dropped after
+ * {@see #MaxAttempts} attempts.
+ * </p>
+ *
+ * @author amorgner
+ */
+public class IndexUpdateQueue implements TransactionEventHandler<Object> {
+
+    private static final Logger logger = Logger.getLogger(IndexUpdateQueue.class.getName());
+    public static final int DefaultBatchSize = 500;
+    public static final long DefaultInterval = 100L;
+    public static final int MaxAttempts = 3;
+    private final GraphDatabaseService graphDb;
+    private final Index<Node> index;
+    private final int batchSize;
+    private final long interval;
+    private final Object writeLock = new Object();
+    private final LinkedHashMap<Long, Update> pending = new LinkedHashMap<Long, Update>();
+    private final ThreadLocal<Map<Long, Update>> staged = new ThreadLocal<Map<Long, Update>>();
+    private final Set<Long> inFlight = new HashSet<Long>();
+    private final ThreadLocal<Set<Long>> ownUpdates = new ThreadLocal<Set<Long>>();
+    private final AtomicLong enqueued = new AtomicLong(0);
+    private final AtomicLong coalesced = new AtomicLong(0);
+    private final AtomicLong indexed = new AtomicLong(0);
+    private final AtomicLong batches = new AtomicLong(0);
+    private final AtomicLong failures = new AtomicLong(0);
+    private final AtomicLong retries = new AtomicLong(0);
+    private volatile long lastBatchDuration = 0;
+    private volatile boolean running = false;
+    private Thread writer = null;
+
+    public IndexUpdateQueue(final GraphDatabaseService graphDb, final Index<Node> index, final int batchSize, final long interval) {
+
+        this.graphDb = graphDb;
+        this.index = index;
+        this.batchSize = Math.max(batchSize, 1);
+        this.interval = Math.max(interval, 0);
+    }
+
+    /**
+     * Register with the database and start the background writer.
+     */
+    public void start() {
+
+        graphDb.registerTransactionEventHandler(this);
+
+        running = true;
+
+        writer = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                writeLoop();
+            }
+        }, "IndexUpdateQueue");
+
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Stop the background writer and write all pending updates.
+     */
+    public void stop() {
+
+        running = false;
+
+        if (writer != null) {
+
+            synchronized (pending) {
+                pending.notifyAll();
+            }
+
+            try {
+                writer.join(10000);
+
+            } catch (InterruptedException iex) {
+            }
+
+            writer = null;
+        }
+
+        flush();
+
+        graphDb.unregisterTransactionEventHandler(this);
+    }
+
+    /**
+     * Add an index update for the given node to the current transaction.
+     *
+     * @param id the node id
+     * @param key the property key, or null to index all properties
+     */
+    public void add(final long id, final String key) {
+
+        Map<Long, Update> updates = staged.get();
+
+        if (updates == null) {
+            updates = new LinkedHashMap<Long, Update>();
+            staged.set(updates);
+        }
+
+        enqueued.incrementAndGet();
+
+        Update update = updates.get(id);
+
+        if (update == null) {
+            updates.put(id, new Update(id, key));
+        } else {
+            update.merge(key);
+            coalesced.incrementAndGet();
+        }
+    }
+
+    /**
+     * Write all pending updates, including the batch currently being written
+     * by the background writer, before returning.
+     *
+     * @return the number of nodes written by this call
+     */
+    public int flush() {
+
+        int count = 0;
+
+        while (true) {
+
+            // lock per batch, so threads waiting for the batch in flight
+            // don't have to wait for the whole queue
+            synchronized (writeLock) {
+
+                List<Update> batch = drain(batchSize);
+
+                if (batch.isEmpty()) {
+                    break;
+                }
+
+                try {
+                    write(batch);
+
+                } finally {
+
+                    synchronized (pending) {
+                        inFlight.clear();
+                    }
+                }
+
+                count += batch.size();
+            }
+        }
+
+        return count;
+    }
+
+    /**
+     * Write the updates the current thread has handed over since its last
+     * flush (read-your-writes). Updates of other threads are left to the
+     * background writer. If one of the own updates is part of the batch
+     * currently being written, wait for that batch.
+     */
+    public void flushOwnUpdates() {
+
+        Set<Long> ids = ownUpdates.get();
+
+        if (ids == null) {
+            return;
+        }
+
+        ownUpdates.remove();
+
+        List<Update> own = new LinkedList<Update>();
+        boolean waitForBatch = false;
+
+        synchronized (pending) {
+
+            for (Long id : ids) {
+
+                Update update = pending.remove(id);
+
+                if (update != null) {
+                    own.add(update);
+                } else if (inFlight.contains(id)) {
+                    waitForBatch = true;
+                }
+            }
+        }
+
+        if (!own.isEmpty()) {
+            write(own);
+        }
+
+        if (waitForBatch) {
+
+            synchronized (writeLock) {
+                // the batch in flight has been written
+            }
+        }
+    }
+
+    // <editor-fold defaultstate="collapsed" desc="interface TransactionEventHandler">
+    @Override
+    public Object beforeCommit(TransactionData data) throws Exception {
+        return null;
+    }
+
+    @Override
+    public void afterCommit(TransactionData data, Object state) {
+
+        Map<Long, Update> updates = staged.get();
+
+        if (updates == null || updates.isEmpty()) {
+            return;
+        }
+
+        staged.remove();
+
+        synchronized (pending) {
+
+            for (Update update : updates.values()) {
+
+                Update existing = pending.get(update.id);
+
+                if (existing == null) {
+                    pending.put(update.id, update);
+                } else {
+                    existing.merge(update);
+                    coalesced.incrementAndGet();
+                }
+            }
+
+            pending.notifyAll();
+        }
+
+        Set<Long> ids = ownUpdates.get();
+
+        if (ids == null) {
+            ids = new HashSet<Long>();
+            ownUpdates.set(ids);
+        }
+
+        ids.addAll(updates.keySet());
+    }
+
+    @Override
+    public void afterRollback(TransactionData data, Object state) {
+        staged.remove();
+    }
+    // </editor-fold>
+
+    // <editor-fold defaultstate="collapsed" desc="metrics">
+    /**
+     * Return the number of nodes waiting to be indexed.
+     *
+     * @return
+     */
+    public int getQueueSize() {
+
+        synchronized (pending) {
+            return pending.size();
+        }
+    }
+
+    /**
+     * Return the age of the oldest pending update in milliseconds,
+     * or 0 if the queue is empty.
+     *
+     * @return
+     */
+    public long getLag() {
+
+        synchronized (pending) {
+
+            if (pending.isEmpty()) {
+                return 0;
+            }
+
+            return System.currentTimeMillis() - pending.values().iterator().next().created;
+        }
+    }
+
+    public long getEnqueuedCount() {
+        return enqueued.get();
+    }
+
+    public long getCoalescedCount() {
+        return coalesced.get();
+    }
+
+    public long getIndexedCount() {
+        return indexed.get();
+    }
+
+    public long getBatchCount() {
+        return batches.get();
+    }
+
+    public long getFailureCount() {
+        return failures.get();
+    }
+
+    public long getRetryCount() {
+        return retries.get();
+    }
+
+    public long getLastBatchDuration() {
+        return lastBatchDuration;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    public long getInterval() {
+        return interval;
+    }
+
+    @Override
+    public String toString() {
+
+        StringBuilder out = new StringBuilder();
+
+        out.append("IndexUpdateQueue [queued=").append(getQueueSize());
+        out.append(", lag=").append(getLag()).append(" ms");
+        out.append(", enqueued=").append(enqueued.get());
+        out.append(", coalesced=").append(coalesced.get());
+        out.append(", indexed=").append(indexed.get());
+        out.append(", batches=").append(batches.get());
+        out.append(", retries=").append(retries.get());
+        out.append(", failures=").append(failures.get());
+        out.append("]");
+
+        return out.toString();
+    }
+    // </editor-fold>
+
+    // <editor-fold defaultstate="collapsed" desc="private methods">
+    private void writeLoop() {
+
+        while (running) {
+
+            try {
+
+                synchronized (pending) {
+
+                    while (running && pending.isEmpty()) {
+                        pending.wait(1000);
+                    }
+                }
+
+                // give concurrent updates of the same nodes a chance to be coalesced
+                if (interval > 0) {
+                    Thread.sleep(interval);
+                }
+
+                flush();
+
+            } catch (InterruptedException iex) {
+                // stop() will write the remaining updates
+            } catch (Throwable t) {
+                logger.log(Level.SEVERE, "Error in index writer", t);
+            }
+        }
+    }
+
+    private List<Update> drain(final int max) {
+
+        List<Update> batch = new LinkedList<Update>();
+
+        synchronized (pending) {
+
+            Iterator<Update> it = pending.values().iterator();
+
+            while (it.hasNext() && batch.size() < max) {
+
+                Update update = it.next();
+
+                batch.add(update);
+                inFlight.add(update.id);
+                it.remove();
+            }
+        }
+
+        return batch;
+    }
+
+    private void write(final List<Update> batch) {
+
+        long t0 = System.currentTimeMillis();
+
+        if (writeBatch(batch)) {
+
+            indexed.addAndGet(batch.size());
+            batches.incrementAndGet();
+
+        } else {
+
+            logger.log(Level.WARNING, "Could not write index batch of {0} nodes, retrying node by node", batch.size());
+
+            for (Update update : batch) {
+
+                if (writeBatch(Collections.singletonList(update))) {
+
+                    indexed.incrementAndGet();
+
+                } else {
+
+                    requeue(update);
+                }
+            }
+        }
+
+        lastBatchDuration = System.currentTimeMillis() - t0;
+        logger.log(Level.FINE, "Indexed {0} nodes in {1} ms", new Object[]{batch.size(), lastBatchDuration});
+    }
+
+    /**
+     * Write the given updates in one transaction.
+     *
+     * @return true if the transaction was committed
+     */
+    private boolean writeBatch(final List<Update> updates) {
+
+        boolean committed = false;
+        Transaction tx = graphDb.beginTx();
+
+        try {
+
+            for (Update update : updates) {
+
+                Node node = null;
+
+                try {
+                    node = graphDb.getNodeById(update.id);
+
+                } catch (NotFoundException nfe) {
+                    logger.log(Level.FINE, "Node {0} was deleted, skipping index update", update.id);
+                    continue;
+                }
+
+                if (update.keys == null) {
+
+                    IndexNodeCommand.indexNode(index, node);
+
+                } else {
+
+                    for (String key : update.keys) {
+                        IndexNodeCommand.indexProperty(index, node, key);
+                    }
+                }
+            }
+
+            tx.success();
+            committed = true;
+
+        } catch (RuntimeException rex) {
+
+            logger.log(Level.FINE, "Could not write index updates", rex);
+            tx.failure();
+
+        } finally {
+
+            try {
+                tx.finish();
+
+            } catch (RuntimeException rex) {
+
+                logger.log(Level.WARNING, "Could not commit index updates", rex);
+                committed = false;
+            }
+        }
+
+        return committed;
+    }
+
+    /**
+     * Put a failed update back into the queue, or drop it after
+     * {@see #MaxAttempts} attempts.
+     */
+    private void requeue(final Update update) {
+
+        update.attempts++;
+
+        if (update.attempts >= MaxAttempts) {
+
+            logger.log(Level.SEVERE, "Could not index node {0} after {1} attempts, dropping update", new Object[]{update.id, update.attempts});
+            failures.incrementAndGet();
+
+            return;
+        }
+
+        retries.incrementAndGet();
+
+        synchronized (pending) {
+
+            Update existing = pending.get(update.id);
+
+            if (existing == null) {
+                pending.put(update.id, update);
+            } else {
+                existing.merge(update);
+            }
+        }
+    }
+    // </editor-fold>
+
+    // <editor-fold defaultstate="collapsed" desc="private classes">
+    private static class Update {
+
+        private final long id;
+        private final long created;
+        private Set<String> keys;
+        private int attempts = 0;
+
+        private Update(final long id, final String key) {
+
+            this.id = id;
+            this.created = System.currentTimeMillis();
+
+            if (key != null) {
+                keys = new HashSet<String>();
+                keys.add(key);
+            }
+        }
+
+        /**
+         * A null key means all properties.
+         */
+        private void merge(final String key) {
+
+            if (keys != null) {
+
+                if (key == null) {
+                    keys = null;
+                } else {
+                    keys.add(key);
+                }
+            }
+        }
+
+        private void merge(final Update other) {
+
+            if (other.keys == null) {
+                keys = null;
+            } else if (keys != null) {
+                keys.addAll(other.keys);
+            }
+        }
+    }
+    // </editor-fold>
+}
@@ -130,15 +130,20 @@ public class MoveNodeCommand extends NodeServiceCommand {
                 relType = RelType.LINK;
             }
 
+            Command removeFromCache = Services.command(RemoveFromCacheCommand.class);
+
             // delete parent relationship
             Relationship parentRel = node.getNode().getSingleRelationship(relType, Direction.INCOMING);
             if (parentRel != null) {
+                removeFromCache.execute(parentRel.getStartNode().getId());
                 parentRel.delete();
             }
 
             // create relationship between new parent node and node
             newParentNode.getNode().createRelationshipTo(node.getNode(), relType);
 
+            removeFromCache.execute(node, newParentNode);
+
         }
 
     }
@@ -0,0 +1,193 @@
+/*
+ *  Copyright (C) 2011 Axel Morgner, structr <structr@structr.org>
+ *
+ *  This file is part of structr <http://structr.org>.
+ *
+ *  structr is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  structr is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with structr.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.structr.core.node;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import org.structr.common.CurrentRequest;
+import org.structr.core.entity.AbstractNode;
+
+/**
+ * A bounded, least-recently-used cache for structr node instances, keyed
+ * by node id.
+ *
+ * <p>
+ * Node instances carry request-specific state (the current user, the
+ * template and the calling node used while rendering, cached relationship
+ * lists), so they can not be shared between requests. The instances are
+ * kept in a map private to the current request (see
+ * {@see CurrentRequest#getCachedNodes}), which is dropped when the request
+ * ends or the user changes. Threads without a servlet request bypass the
+ * cache.
+ * </p>
+ *
+ * @author amorgner
+ */
+public class NodeCache {
+
+    public static final int DefaultMaxSize = 10000;
+    private final AtomicLong hits = new AtomicLong(0);
+    private final AtomicLong misses = new AtomicLong(0);
+    private final AtomicLong evictions = new AtomicLong(0);
+    private final AtomicLong invalidations = new AtomicLong(0);
+    private final int maxSize;
+
+    /**
+     * @param maxSize the maximum number of nodes cached per request
+     */
+    public NodeCache(final int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Return the cached node with the given id, or null if the node
+     * was not instantiated in the current request yet.
+     *
+     * @param id
+     * @return
+     */
+    public AbstractNode get(final long id) {
+
+        Map<Long, AbstractNode> nodes = CurrentRequest.getCachedNodes(false);
+
+        if (nodes == null) {
+            return null;
+        }
+
+        AbstractNode node = null;
+
+        synchronized (nodes) {
+            node = nodes.get(id);
+        }
+
+        if (node != null) {
+            hits.incrementAndGet();
+
+        } else {
+            misses.incrementAndGet();
+        }
+
+        return node;
+    }
+
+    /**
+     * Store the given node in the cache of the current request. Dirty
+     * (uncommitted) nodes are ignored.
+     *
+     * @param node
+     */
+    public void put(final AbstractNode node) {
+
+        if (node == null || node.getNode() == null || node.getId() < 0) {
+            return;
+        }
+
+        Map<Long, AbstractNode> nodes = CurrentRequest.getCachedNodes(true);
+
+        if (nodes == null) {
+            return;
+        }
+
+        synchronized (nodes) {
+
+            nodes.put(node.getId(), node);
+
+            // access-ordered map, the first entry is the least recently used one
+            if (nodes.size() > maxSize) {
+
+                Iterator<Long> it = nodes.keySet().iterator();
+                it.next();
+                it.remove();
+
+                evictions.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Remove the node with the given id from the caches of all current
+     * requests.
+     *
+     * @param id
+     */
+    public void invalidate(final long id) {
+
+        if (CurrentRequest.removeCachedNode(id)) {
+            invalidations.incrementAndGet();
+        }
+    }
+
+    public void clear() {
+        CurrentRequest.clearCachedNodes();
+    }
+
+    /**
+     * Returns the number of nodes cached for the current request.
+     *
+     * @return
+     */
+    public int size() {
+
+        Map<Long, AbstractNode> nodes = CurrentRequest.getCachedNodes(false);
+
+        if (nodes == null) {
+            return 0;
+        }
+
+        synchronized (nodes) {
+            return nodes.size();
+        }
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    public long getEvictionCount() {
+        return evictions.get();
+    }
+
+    public long getInvalidationCount() {
+        return invalidations.get();
+    }
+
+    @Override
+    public String toString() {
+
+        StringBuilder out = new StringBuilder();
+
+        out.append("NodeCache [max. size per request=").append(maxSize);
+        out.append(", hits=").append(hits.get());
+        out.append(", misses=").append(misses.get());
+        out.append(", evictions=").append(evictions.get());
+        out.append(", invalidations=").append(invalidations.get());
+        out.append("]");
+
+        return out.toString();
+    }
+}
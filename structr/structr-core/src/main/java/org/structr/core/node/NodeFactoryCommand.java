@@ -26,12 +26,13 @@ import org.neo4j.graphdb.GraphDatabaseService;
 import org.neo4j.graphdb.Node;
 import org.structr.core.cloud.NodeDataContainer;
 import org.structr.core.entity.AbstractNode;
+import org.structr.core.StatelessCommand;
 
 /**
  *
  * @author cmorgner
  */
-public class NodeFactoryCommand extends NodeServiceCommand {
+public class NodeFactoryCommand extends NodeServiceCommand implements StatelessCommand {
 
     private static final Logger logger = Logger.getLogger(NodeFactoryCommand.class.getName());
 
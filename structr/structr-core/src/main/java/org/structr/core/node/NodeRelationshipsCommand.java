@@ -29,6 +29,7 @@ import org.neo4j.graphdb.Relationship;
 import org.neo4j.graphdb.RelationshipType;
 import org.structr.core.entity.StructrRelationship;
 import org.structr.core.entity.AbstractNode;
+import org.structr.core.StatelessCommand;
 
 /**
  * Returns a List of Relationships for the given node.
@@ -38,7 +39,7 @@ import org.structr.core.entity.AbstractNode;
  *
  * @author amorgner
  */
-public class NodeRelationshipsCommand extends NodeServiceCommand {
+public class NodeRelationshipsCommand extends NodeServiceCommand implements StatelessCommand {
 
     private static final Logger logger = Logger.getLogger(NodeRelationshipsCommand.class.getName());
 
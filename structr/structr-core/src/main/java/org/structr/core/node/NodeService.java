@@ -33,6 +33,8 @@ import org.structr.core.Command;
 import org.structr.core.RunnableService;
 import org.structr.core.Services;
 import org.structr.core.SingletonService;
+import org.structr.common.PermissionChangeTracker;
+import org.structr.core.cloud.ChangeTracker;
 
 /**
  *
@@ -45,6 +47,11 @@ public class NodeService implements SingletonService {
     private GraphDatabaseService graphDb = null;
 //    private LuceneFulltextQueryIndexService index = null;
     private Index<Node> index = null;
+    private IndexUpdateQueue indexQueue = null;
+    private ChangeTracker changeTracker = null;
+    private PermissionChangeTracker permissionChangeTracker = null;
+    private CacheChangeTracker cacheChangeTracker = null;
+    private int transactionBatchSize = UnitOfWork.DefaultBatchSize;
     /** Dependent services */
     private Set<RunnableService> registeredServices = new HashSet<RunnableService>();
 
@@ -54,6 +61,8 @@ public class NodeService implements SingletonService {
         if (command != null) {
             command.setArgument("graphDb", graphDb);
             command.setArgument("index", index);
+            command.setArgument("indexQueue", indexQueue);
+            command.setArgument("transactionBatchSize", transactionBatchSize);
             command.setArgument("nodeFactory", nodeFactory);
             command.setArgument("filesPath", Services.getFilesPath());
         }
@@ -96,6 +105,56 @@ public class NodeService implements SingletonService {
             index = graphDb.index().forNodes("fulltextAllNodes", MapUtil.stringMap("provider", "lucene", "type", "fulltext"));
             logger.log(Level.FINE, "Index ready.");
 
+            int indexBatchSize = IndexUpdateQueue.DefaultBatchSize;
+            long indexInterval = IndexUpdateQueue.DefaultInterval;
+
+            // try to parse index batch size, set to default otherwise
+            if (context != null && context.containsKey(Services.INDEX_BATCH_SIZE)) {
+                try {
+                    indexBatchSize = Integer.parseInt(context.get(Services.INDEX_BATCH_SIZE).toString());
+
+                } catch (Throwable t) {
+                    indexBatchSize = IndexUpdateQueue.DefaultBatchSize;
+                }
+            }
+
+            // try to parse index interval, set to default otherwise
+            if (context != null && context.containsKey(Services.INDEX_INTERVAL)) {
+                try {
+                    indexInterval = Long.parseLong(context.get(Services.INDEX_INTERVAL).toString());
+
+                } catch (Throwable t) {
+                    indexInterval = IndexUpdateQueue.DefaultInterval;
+                }
+            }
+
+            // try to parse transaction batch size, set to default otherwise
+            if (context != null && context.containsKey(Services.TRANSACTION_BATCH_SIZE)) {
+                try {
+                    transactionBatchSize = Integer.parseInt(context.get(Services.TRANSACTION_BATCH_SIZE).toString());
+
+                } catch (Throwable t) {
+                    transactionBatchSize = UnitOfWork.DefaultBatchSize;
+                }
+            }
+
+            logger.log(Level.FINE, "Initializing index update queue (batch size {0}, interval {1} ms) ...", new Object[]{indexBatchSize, indexInterval});
+            indexQueue = new IndexUpdateQueue(graphDb, index, indexBatchSize, indexInterval);
+            indexQueue.start();
+            logger.log(Level.FINE, "Index update queue ready.");
+
+            // record changes for incremental sync with other instances
+            changeTracker = new ChangeTracker();
+            graphDb.registerTransactionEventHandler(changeTracker);
+
+            // invalidate cached permissions after security changes
+            permissionChangeTracker = new PermissionChangeTracker();
+            graphDb.registerTransactionEventHandler(permissionChangeTracker);
+
+            // discard cached nodes and fragments after every change
+            cacheChangeTracker = new CacheChangeTracker();
+            graphDb.registerTransactionEventHandler(cacheChangeTracker);
+
             logger.log(Level.FINE, "Initializing node factory...");
             nodeFactory = new StructrNodeFactory();
             logger.log(Level.FINE, "Node factory ready.");
@@ -117,6 +176,27 @@ public class NodeService implements SingletonService {
             // Wait for all registered services to end
             waitFor(registeredServices.isEmpty());
 
+            if (indexQueue != null) {
+                logger.log(Level.INFO, "Shutting down index update queue: {0}", indexQueue);
+                indexQueue.stop();
+                indexQueue = null;
+            }
+
+            if (changeTracker != null) {
+                graphDb.unregisterTransactionEventHandler(changeTracker);
+                changeTracker = null;
+            }
+
+            if (permissionChangeTracker != null) {
+                graphDb.unregisterTransactionEventHandler(permissionChangeTracker);
+                permissionChangeTracker = null;
+            }
+
+            if (cacheChangeTracker != null) {
+                graphDb.unregisterTransactionEventHandler(cacheChangeTracker);
+                cacheChangeTracker = null;
+            }
+
             graphDb.shutdown();
             graphDb = null;
         }
@@ -0,0 +1,355 @@
+/*
+ *  Copyright (C) 2011 Axel Morgner, structr <structr@structr.org>
+ * 
+ *  This file is part of structr <http://structr.org>.
+ * 
+ *  structr is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ * 
+ *  structr is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ * 
+ *  You should have received a copy of the GNU General Public License
+ *  along with structr.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.structr.core.node;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import org.structr.core.entity.User;
+
+/**
+ * A bounded, least-recently-used index of resolved node paths.
+ *
+ * <p>
+ * The index maps a path below a start node to the ids of the nodes along
+ * that path, and a node id to the ids of the node and its ancestors up to
+ * the root node, so both directions of path resolution can be answered
+ * without walking the HAS_CHILD and LINK relationships level by level.
+ * </p>
+ *
+ * <p>
+ * The resolution of a path depends on the read permissions of the
+ * current user, so entries are kept per principal. Only node ids are
+ * stored, callers re-check the nodes of an entry (see
+ * {@see org.structr.common.TreeHelper}). An entry is discarded
+ * as soon as one of the nodes along its path is removed from the node
+ * cache, i.e. when it is renamed, moved or deleted, or when its
+ * relationships change. Entries also expire after a time-to-live, which
+ * bounds the staleness of changes made without structr commands.
+ * </p>
+ *
+ * <p>
+ * Every invalidation starts a new generation. Paths are stored with the
+ * generation that was current when resolving started (see
+ * {@see #getGeneration}), and stores of an older generation are dropped,
+ * so a walk that raced with a change never enters the index.
+ * </p>
+ *
+ * @author amorgner
+ */
+public class PathIndex {
+
+    public static final int DefaultMaxSize = 10000;
+    public static final long DefaultTimeToLive = 60000L;
+    private final AtomicLong hits = new AtomicLong(0);
+    private final AtomicLong misses = new AtomicLong(0);
+    private final AtomicLong evictions = new AtomicLong(0);
+    private final AtomicLong invalidations = new AtomicLong(0);
+    private final Map<Object, Entry> entries;
+    private final Map<Long, Set<Object>> dependents = new HashMap<Long, Set<Object>>();
+    private final int maxSize;
+    private final long timeToLive;
+    private long generation = 0;
+
+    public PathIndex(final int maxSize, final long timeToLive) {
+
+        this.maxSize = maxSize;
+        this.timeToLive = timeToLive;
+
+        // access-ordered map, the eldest entry is the least recently used one
+        this.entries = new LinkedHashMap<Object, Entry>(Math.min(maxSize, 1024), 0.75f, true) {
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Object, Entry> eldest) {
+
+                if (size() > PathIndex.this.maxSize) {
+                    evictions.incrementAndGet();
+                    unlink(eldest.getKey(), eldest.getValue());
+                    return true;
+                }
+
+                return false;
+            }
+        };
+    }
+
+    // <editor-fold defaultstate="collapsed" desc="path to node">
+    /**
+     * Return the ids of the nodes along the given path below the start
+     * node, as resolved for the given principal, or null if the path is
+     * not indexed.
+     *
+     * @param principal the current user, or null
+     * @param startNodeId the id of the start node
+     * @param path the normalized path
+     * @param includeLinks true if the path was resolved following LINK relationships, too
+     * @return the node ids, the last one being the id of the node at the given path
+     */
+    public synchronized long[] getPath(final User principal, final long startNodeId, final String path, final boolean includeLinks) {
+        return get(pathKey(principal, startNodeId, path, includeLinks));
+    }
+
+    /**
+     * Index the ids of the nodes along the given path below the start node,
+     * unless the index was invalidated since the given generation.
+     *
+     * @param principal the user the path was resolved for, or null
+     * @param startNodeId the id of the start node
+     * @param path the normalized path
+     * @param includeLinks true if the path was resolved following LINK relationships, too
+     * @param ids the ids of the nodes along the path
+     * @param resolveGeneration the generation before resolving started
+     */
+    public synchronized void putPath(final User principal, final long startNodeId, final String path, final boolean includeLinks, final long[] ids, final long resolveGeneration) {
+
+        if (resolveGeneration != generation) {
+            return;
+        }
+
+        long[] dependencies = new long[ids.length + 1];
+
+        dependencies[0] = startNodeId;
+        System.arraycopy(ids, 0, dependencies, 1, ids.length);
+
+        put(pathKey(principal, startNodeId, path, includeLinks), new Entry(ids, dependencies));
+    }
+    // </editor-fold>
+
+    // <editor-fold defaultstate="collapsed" desc="node to path">
+    /**
+     * Return the ids of the given node and its ancestors up to (excluding)
+     * the root node, as resolved for the given principal, or null if the
+     * node is not indexed.
+     *
+     * @param principal the current user, or null
+     * @param nodeId
+     * @return the node ids, starting with the given node
+     */
+    public synchronized long[] getAncestors(final User principal, final long nodeId) {
+        return get(ancestorsKey(principal, nodeId));
+    }
+
+    /**
+     * Index the ids of the given node and its ancestors up to (excluding)
+     * the root node, unless the index was invalidated since the given
+     * generation.
+     *
+     * @param principal the user the ancestors were resolved for, or null
+     * @param nodeId
+     * @param ids the node ids, starting with the given node
+     * @param resolveGeneration the generation before resolving started
+     */
+    public synchronized void putAncestors(final User principal, final long nodeId, final long[] ids, final long resolveGeneration) {
+
+        if (resolveGeneration != generation) {
+            return;
+        }
+
+        put(ancestorsKey(principal, nodeId), new Entry(ids, ids));
+    }
+    // </editor-fold>
+
+    /**
+     * Return the current generation, to be passed to {@see #putPath} or
+     * {@see #putAncestors} for a path that is resolved now.
+     *
+     * @return
+     */
+    public synchronized long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * Discard all entries whose path contains the node with the given id.
+     *
+     * @param id
+     */
+    public synchronized void invalidate(final long id) {
+
+        generation++;
+
+        Set<Object> keys = dependents.remove(id);
+
+        if (keys != null) {
+
+            for (Object key : keys.toArray()) {
+
+                if (remove(key)) {
+                    invalidations.incrementAndGet();
+                }
+            }
+        }
+    }
+
+    public synchronized void clear() {
+
+        generation++;
+
+        entries.clear();
+        dependents.clear();
+    }
+
+    // <editor-fold defaultstate="collapsed" desc="metrics">
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    public long getEvictionCount() {
+        return evictions.get();
+    }
+
+    public long getInvalidationCount() {
+        return invalidations.get();
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public long getTimeToLive() {
+        return timeToLive;
+    }
+
+    @Override
+    public String toString() {
+
+        StringBuilder out = new StringBuilder();
+
+        out.append("PathIndex [size=").append(size());
+        out.append(", hits=").append(hits.get());
+        out.append(", misses=").append(misses.get());
+        out.append(", evictions=").append(evictions.get());
+        out.append(", invalidations=").append(invalidations.get());
+        out.append("]");
+
+        return out.toString();
+    }
+    // </editor-fold>
+
+    // <editor-fold defaultstate="collapsed" desc="private methods">
+    private static String pathKey(final User principal, final long startNodeId, final String path, final boolean includeLinks) {
+        return principalKey(principal) + ":" + startNodeId + (includeLinks ? "+" : "-") + path;
+    }
+
+    private static String ancestorsKey(final User principal, final long nodeId) {
+        return principalKey(principal) + ":" + nodeId;
+    }
+
+    private static String principalKey(final User principal) {
+        return (principal != null ? String.valueOf(principal.getId()) : "anonymous");
+    }
+
+    private long[] get(final Object key) {
+
+        Entry entry = entries.get(key);
+
+        if (entry == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+
+        if (timeToLive > 0 && System.currentTimeMillis() - entry.created >= timeToLive) {
+
+            remove(key);
+            misses.incrementAndGet();
+
+            return null;
+        }
+
+        hits.incrementAndGet();
+
+        return entry.ids;
+    }
+
+    private void put(final Object key, final Entry entry) {
+
+        remove(key);
+
+        entries.put(key, entry);
+
+        for (long id : entry.dependencies) {
+
+            Set<Object> keys = dependents.get(id);
+
+            if (keys == null) {
+                keys = new HashSet<Object>();
+                dependents.put(id, keys);
+            }
+
+            keys.add(key);
+        }
+    }
+
+    private boolean remove(final Object key) {
+
+        Entry entry = entries.remove(key);
+
+        if (entry != null) {
+            unlink(key, entry);
+            return true;
+        }
+
+        return false;
+    }
+
+    private void unlink(final Object key, final Entry entry) {
+
+        for (long id : entry.dependencies) {
+
+            Set<Object> keys = dependents.get(id);
+
+            if (keys != null) {
+
+                keys.remove(key);
+
+                if (keys.isEmpty()) {
+                    dependents.remove(id);
+                }
+            }
+        }
+    }
+    // </editor-fold>
+
+    // <editor-fold defaultstate="collapsed" desc="private classes">
+    private static class Entry {
+
+        private final long[] ids;
+        private final long[] dependencies;
+        private final long created;
+
+        private Entry(final long[] ids, final long[] dependencies) {
+
+            this.ids = ids;
+            this.dependencies = dependencies;
+            this.created = System.currentTimeMillis();
+        }
+    }
+    // </editor-fold>
+}
@@ -18,7 +18,7 @@
  */
 package org.structr.core.node;
 
-import java.util.concurrent.ConcurrentHashMap;
+import org.structr.core.entity.AbstractNode;
 
 /**
  *
@@ -28,19 +28,19 @@ public class PutToCacheCommand extends CacheServiceCommand {
 
     @Override
     public Object execute(Object... parameters) {
-        ConcurrentHashMap cache = (ConcurrentHashMap) arguments.get("cache");
+        NodeCache cache = (NodeCache) arguments.get("cache");
         
         Long key = null;
-        Object obj = null;
+        AbstractNode obj = null;
         if (parameters != null && parameters.length == 2
                 && parameters[0] instanceof Long // first parameter is node id (Long)
-                && parameters[1] instanceof Object) {
+                && parameters[1] instanceof AbstractNode) {
             key = (Long) parameters[0];
-            obj = (Object) parameters[1];
+            obj = (AbstractNode) parameters[1];
         }
 
-        if (cache != null && key != null && obj != null) {
-            return cache.put(key, obj);
+        if (cache != null && key != null && obj != null && key.longValue() == obj.getId()) {
+            cache.put(obj);
         }
 
         return null;
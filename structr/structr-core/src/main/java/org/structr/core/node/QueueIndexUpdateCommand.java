@@ -0,0 +1,95 @@
+/*
+ *  Copyright (C) 2011 Axel Morgner, structr <structr@structr.org>
+ * 
+ *  This file is part of structr <http://structr.org>.
+ * 
+ *  structr is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ * 
+ *  structr is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ * 
+ *  You should have received a copy of the GNU General Public License
+ *  along with structr.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.structr.core.node;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.index.Index;
+import org.structr.core.entity.AbstractNode;
+import org.structr.core.StatelessCommand;
+
+/**
+ * Queues an index update for a node, to be written asynchronously
+ * after the current transaction was committed.
+ * <p>
+ * Parameters: node (id or {@see AbstractNode}) and, optionally, the key of
+ * the property to index. Without a key, all properties are indexed.
+ * <p>
+ * Must be called within a transaction. If the index update queue is not
+ * available, the node is indexed immediately.
+ *
+ * @author amorgner
+ */
+public class QueueIndexUpdateCommand extends NodeServiceCommand implements StatelessCommand {
+
+    private static final Logger logger = Logger.getLogger(QueueIndexUpdateCommand.class.getName());
+
+    @Override
+    public Object execute(Object... parameters) {
+
+        GraphDatabaseService graphDb = (GraphDatabaseService) arguments.get("graphDb");
+        Index<Node> index = (Index<Node>) arguments.get("index");
+        IndexUpdateQueue indexQueue = (IndexUpdateQueue) arguments.get("indexQueue");
+
+        if (parameters == null || parameters.length < 1 || parameters.length > 2) {
+            logger.log(Level.SEVERE, "Wrong number of parameters for the queue index update command: {0}", parameters);
+            return null;
+        }
+
+        long id = -1;
+
+        if (parameters[0] instanceof Long) {
+            id = ((Long) parameters[0]).longValue();
+        } else if (parameters[0] instanceof String) {
+            id = Long.parseLong((String) parameters[0]);
+        } else if (parameters[0] instanceof AbstractNode) {
+            id = ((AbstractNode) parameters[0]).getId();
+        }
+
+        String key = null;
+
+        if (parameters.length == 2 && parameters[1] instanceof String) {
+            key = (String) parameters[1];
+        }
+
+        if (id < 0) {
+            logger.log(Level.WARNING, "No node given for index update");
+            return null;
+        }
+
+        if (indexQueue != null) {
+
+            indexQueue.add(id, key);
+
+        } else if (graphDb != null) {
+
+            Node node = graphDb.getNodeById(id);
+
+            if (key != null) {
+                IndexNodeCommand.indexProperty(index, node, key);
+            } else {
+                IndexNodeCommand.indexNode(index, node);
+            }
+        }
+
+        return null;
+    }
+}
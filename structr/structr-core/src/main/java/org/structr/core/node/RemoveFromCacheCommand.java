@@ -0,0 +1,71 @@
+/*
+ *  Copyright (C) 2011 Axel Morgner, structr <structr@structr.org>
+ * 
+ *  This file is part of structr <http://structr.org>.
+ * 
+ *  structr is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ * 
+ *  structr is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ * 
+ *  You should have received a copy of the GNU General Public License
+ *  along with structr.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.structr.core.node;
+
+import org.structr.core.entity.AbstractNode;
+import org.structr.core.StatelessCommand;
+
+/**
+ * Removes one or more nodes from the node cache, and discards all rendered
+ * fragments and indexed paths depending on them. Parameters can be node ids (Long) or
+ * structr nodes.
+ *
+ * @author amorgner
+ */
+public class RemoveFromCacheCommand extends CacheServiceCommand implements StatelessCommand {
+
+    @Override
+    public Object execute(Object... parameters) {
+        NodeCache cache = (NodeCache) arguments.get("cache");
+        FragmentCache fragmentCache = (FragmentCache) arguments.get("fragmentCache");
+        PathIndex pathIndex = (PathIndex) arguments.get("pathIndex");
+
+        if (parameters != null) {
+
+            for (Object o : parameters) {
+
+                long id;
+
+                if (o instanceof Long) {
+                    id = ((Long) o).longValue();
+
+                } else if (o instanceof AbstractNode) {
+                    id = ((AbstractNode) o).getId();
+
+                } else {
+                    continue;
+                }
+
+                if (cache != null) {
+                    cache.invalidate(id);
+                }
+
+                if (fragmentCache != null) {
+                    fragmentCache.invalidate(id);
+                }
+
+                if (pathIndex != null) {
+                    pathIndex.invalidate(id);
+                }
+            }
+        }
+
+        return null;
+    }
+}
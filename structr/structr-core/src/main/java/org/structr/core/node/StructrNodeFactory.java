@@ -27,6 +27,7 @@ import org.apache.commons.io.FileUtils;
 import org.neo4j.graphdb.Node;
 import org.structr.common.CurrentSession;
 import org.structr.core.Adapter;
+import org.structr.core.CommandHandle;
 import org.structr.core.Services;
 import org.structr.core.cloud.FileNodeDataContainer;
 import org.structr.core.cloud.NodeDataContainer;
@@ -34,7 +35,9 @@ import org.structr.core.entity.ArbitraryNode;
 import org.structr.core.entity.AbstractNode;
 import org.structr.core.entity.File;
 import org.structr.core.entity.User;
+import org.structr.core.module.EntityTypeRegistry;
 import org.structr.core.module.GetEntityClassCommand;
+import org.structr.core.module.ModuleService;
 
 /**
  * A factory for structr nodes. This class exists because we need a fast
@@ -47,32 +50,69 @@ public class StructrNodeFactory<T extends AbstractNode> implements Adapter<Node,
 
     private static final Logger logger = Logger.getLogger(StructrNodeFactory.class.getName());
     //private Map<String, Class> nodeTypeCache = new ConcurrentHashMap<String, Class>();
+    private static final CommandHandle nodeCacheHandle = Services.handle(GetNodeCacheCommand.class);
 
     public StructrNodeFactory() {
     }
 
+    /**
+     * Create a structr node from the given database node, or return the
+     * cached instance if the node was already instantiated for the current
+     * request.
+     *
+     * @param node
+     * @return
+     */
     public AbstractNode createNode(final Node node) {
 
+        NodeCache cache = getNodeCache();
+
+        FragmentCache.record(node.getId());
+
+        if (cache != null) {
+
+            AbstractNode cachedNode = cache.get(node.getId());
+
+            if (cachedNode != null) {
+                return cachedNode;
+            }
+        }
+
         String nodeType = node.hasProperty(AbstractNode.TYPE_KEY) ? (String) node.getProperty(AbstractNode.TYPE_KEY) : "";
-        return createNode(node, nodeType);
+        AbstractNode ret = createNode(node, nodeType);
 
-    }
+        if (cache != null) {
+            cache.put(ret);
+        }
 
-    public AbstractNode createNode(final Node node, final String nodeType) {
+        return ret;
 
-        Class nodeClass = (Class) Services.command(GetEntityClassCommand.class).execute(nodeType);
-        AbstractNode ret = null;
+    }
+
+    /**
+     * Return the cached structr node with the given id, or null if
+     * the node is not in the cache.
+     *
+     * @param id
+     * @return
+     */
+    public AbstractNode getCachedNode(final long id) {
 
-        if (nodeClass != null) {
-            try {
-                ret = (AbstractNode) nodeClass.newInstance();
+        NodeCache cache = getNodeCache();
 
-	    } catch (Throwable t) {
-                ret = null;
-            }
+        FragmentCache.record(id);
 
+        if (cache != null) {
+            return cache.get(id);
         }
 
+        return null;
+    }
+
+    public AbstractNode createNode(final Node node, final String nodeType) {
+
+        AbstractNode ret = newInstance(nodeType);
+
         if (ret == null) {
             ret = new ArbitraryNode();
         }
@@ -152,6 +192,39 @@ public class StructrNodeFactory<T extends AbstractNode> implements Adapter<Node,
         return createNodes(input, true);
     }
 
+    /**
+     * Create a new instance of the entity class of the given type
+     * using the entity type registry.
+     *
+     * @param nodeType
+     * @return the new instance, or null if the type is unknown
+     */
+    private AbstractNode newInstance(final String nodeType) {
+
+        EntityTypeRegistry registry = ModuleService.getEntityTypeRegistry();
+
+        if (registry == null) {
+
+            // requesting a module service command initializes the modules
+            Services.command(GetEntityClassCommand.class);
+            registry = ModuleService.getEntityTypeRegistry();
+        }
+
+        if (registry != null) {
+            return registry.newInstance(nodeType);
+        }
+
+        return null;
+    }
+
+    /**
+     * Look up the node cache on each call, the cache service may have
+     * been restarted since the last call.
+     */
+    private NodeCache getNodeCache() {
+        return (NodeCache) nodeCacheHandle.execute();
+    }
+
 //    @Override
 //    protected void finalize() throws Throwable {
 //        nodeTypeCache.clear();
@@ -173,18 +246,7 @@ public class StructrNodeFactory<T extends AbstractNode> implements Adapter<Node,
 
         String nodeType = properties.containsKey(AbstractNode.TYPE_KEY) ? (String) properties.get(AbstractNode.TYPE_KEY) : null;
 
-        Class nodeClass = (Class) Services.command(GetEntityClassCommand.class).execute(nodeType);
-        AbstractNode newNode = null;
-
-        if (nodeClass != null) {
-            try {
-                newNode = (AbstractNode) nodeClass.newInstance();
-
-            } catch (Throwable t) {
-                newNode = null;
-            }
-
-        }
+        AbstractNode newNode = newInstance(nodeType);
 
         if (newNode == null) {
             newNode = new ArbitraryNode();
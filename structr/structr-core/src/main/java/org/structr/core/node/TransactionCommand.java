@@ -36,6 +36,35 @@ public class TransactionCommand extends NodeServiceCommand {
         if (parameters.length > 0 && parameters[0] instanceof StructrTransaction) {
 
             StructrTransaction transaction = (StructrTransaction) parameters[0];
+            UnitOfWork unitOfWork = UnitOfWork.getCurrent();
+
+            if (unitOfWork != null) {
+
+                // join the unit of work bound to this thread
+                unitOfWork.enter();
+
+                try {
+                    ret = transaction.execute();
+
+                } catch (UnitOfWorkFailedException e) {
+
+                    // already aborted by a nested operation
+                    unitOfWork.failure(e.getCause());
+                    throw e;
+
+                } catch (Throwable t) {
+
+                    // abort the whole unit of work
+                    unitOfWork.failure(t);
+                    throw new UnitOfWorkFailedException(t);
+
+                } finally {
+                    unitOfWork.exit();
+                }
+
+                return ret;
+            }
+
             Transaction tx = graphDb.beginTx();
             try {
                 ret = transaction.execute();
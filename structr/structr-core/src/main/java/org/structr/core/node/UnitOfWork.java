@@ -0,0 +1,224 @@
+/*
+ *  Copyright (C) 2011 Axel Morgner, structr <structr@structr.org>
+ * 
+ *  This file is part of structr <http://structr.org>.
+ * 
+ *  structr is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ * 
+ *  structr is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ * 
+ *  You should have received a copy of the GNU General Public License
+ *  along with structr.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.structr.core.node;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Transaction;
+
+/**
+ * A thread-bound unit of work that combines many write operations
+ * into as few database transactions as possible.
+ *
+ * <p>
+ * While a unit of work is bound to the current thread,
+ * {@see TransactionCommand} executes its {@see StructrTransaction}s
+ * within the unit's transaction instead of starting a new one. The unit
+ * commits after every <code>batchSize</code> operations and when it ends.
+ * </p>
+ *
+ * <p>
+ * Batches that were already committed can not be rolled back, so a unit of
+ * work is not atomic. Once an operation has failed, the current batch is
+ * rolled back, no further batch is committed and the unit is aborted:
+ * every following operation fails with a {@see UnitOfWorkFailedException},
+ * which {@see UnitOfWorkCommand} rethrows to its caller. Operations that
+ * have to be atomic (e.g. {@see org.structr.core.entity.AbstractNode#commit}
+ * and the edits of a {@see org.structr.core.entity.NodeList}) run as a unit
+ * of work with a batch size of <code>Integer.MAX_VALUE</code>, or, within
+ * an enclosing unit of work, as one of its operations.
+ * </p>
+ *
+ * <p>
+ * Use {@see UnitOfWorkCommand} to run code within a unit of work.
+ * </p>
+ *
+ * @author amorgner
+ */
+public class UnitOfWork {
+
+    private static final Logger logger = Logger.getLogger(UnitOfWork.class.getName());
+    public static final int DefaultBatchSize = 1000;
+    private static final ThreadLocal<UnitOfWork> current = new ThreadLocal<UnitOfWork>();
+    private final GraphDatabaseService graphDb;
+    private final int batchSize;
+    private Transaction tx = null;
+    private boolean failed = false;
+    private Throwable cause = null;
+    private int depth = 0;
+    private int operations = 0;
+    private long committedBatches = 0;
+    private long failedBatches = 0;
+
+    private UnitOfWork(final GraphDatabaseService graphDb, final int batchSize) {
+        this.graphDb = graphDb;
+        this.batchSize = Math.max(batchSize, 1);
+    }
+
+    /**
+     * Return the unit of work bound to the current thread, or null.
+     *
+     * @return
+     */
+    public static UnitOfWork getCurrent() {
+        return current.get();
+    }
+
+    /**
+     * Bind a new unit of work to the current thread and start its
+     * transaction. Must be ended with {@see #end}.
+     *
+     * @param graphDb
+     * @param batchSize
+     * @return
+     */
+    static UnitOfWork begin(final GraphDatabaseService graphDb, final int batchSize) {
+
+        UnitOfWork unitOfWork = new UnitOfWork(graphDb, batchSize);
+
+        unitOfWork.tx = graphDb.beginTx();
+        current.set(unitOfWork);
+
+        return unitOfWork;
+    }
+
+    /**
+     * Commit (or roll back, if an operation failed) the last batch
+     * and unbind this unit of work from the current thread.
+     */
+    void end() {
+
+        current.remove();
+
+        finishBatch();
+        tx = null;
+
+        logger.log(Level.FINE, "Unit of work ended, {0} batches committed, {1} rolled back", new Object[]{committedBatches, failedBatches});
+    }
+
+    /**
+     * Mark the beginning of an operation.
+     *
+     * @throws UnitOfWorkFailedException if an earlier operation failed
+     */
+    void enter() {
+
+        if (failed) {
+            throw new UnitOfWorkFailedException(cause);
+        }
+
+        depth++;
+    }
+
+    /**
+     * Mark the end of an operation. Commits the current batch if
+     * <code>batchSize</code> top-level operations were executed.
+     */
+    void exit() {
+
+        depth--;
+
+        // only commit between top-level operations, and never after a failure
+        if (depth == 0 && !failed) {
+
+            operations++;
+
+            if (operations >= batchSize) {
+
+                finishBatch();
+                tx = graphDb.beginTx();
+            }
+        }
+    }
+
+    /**
+     * Mark the current batch for rollback and abort this unit of work.
+     */
+    public void failure() {
+        failure(null);
+    }
+
+    /**
+     * Mark the current batch for rollback and abort this unit of work
+     * because of the given error.
+     *
+     * @param t
+     */
+    public void failure(final Throwable t) {
+
+        failed = true;
+
+        if (cause == null) {
+            cause = t;
+        }
+    }
+
+    /**
+     * Return true if an operation of this unit of work has failed.
+     *
+     * @return
+     */
+    public boolean isFailed() {
+        return failed;
+    }
+
+    /**
+     * Return the error that caused the first failure, or null.
+     *
+     * @return
+     */
+    public Throwable getCause() {
+        return cause;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    public long getCommittedBatchCount() {
+        return committedBatches;
+    }
+
+    public long getFailedBatchCount() {
+        return failedBatches;
+    }
+
+    // <editor-fold defaultstate="collapsed" desc="private methods">
+    private void finishBatch() {
+
+        try {
+
+            if (failed) {
+                tx.failure();
+                failedBatches++;
+            } else {
+                tx.success();
+                committedBatches++;
+            }
+
+        } finally {
+
+            tx.finish();
+
+            operations = 0;
+        }
+    }
+    // </editor-fold>
+}
@@ -0,0 +1,103 @@
+/*
+ *  Copyright (C) 2011 Axel Morgner, structr <structr@structr.org>
+ * 
+ *  This file is part of structr <http://structr.org>.
+ * 
+ *  structr is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ * 
+ *  structr is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ * 
+ *  You should have received a copy of the GNU General Public License
+ *  along with structr.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.structr.core.node;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.structr.core.Services;
+
+/**
+ * Executes a {@see StructrTransaction} within a {@see UnitOfWork}, so that
+ * all nested {@see TransactionCommand}s share one database transaction,
+ * which is committed every <code>batchSize</code> operations.
+ * <p>
+ * Parameters: the {@see StructrTransaction} and, optionally, the batch size
+ * (defaults to the configured value of {@see Services#TRANSACTION_BATCH_SIZE}).
+ * <p>
+ * If a unit of work is already bound to the current thread, the
+ * transaction joins it.
+ * <p>
+ * If an operation fails, the unit of work is aborted and a
+ * {@see UnitOfWorkFailedException} is thrown to the caller. Batches
+ * committed before the failure are not rolled back.
+ *
+ * @author amorgner
+ */
+public class UnitOfWorkCommand extends NodeServiceCommand {
+
+    private static final Logger logger = Logger.getLogger(UnitOfWorkCommand.class.getName());
+
+    @Override
+    public Object execute(Object... parameters) {
+
+        GraphDatabaseService graphDb = (GraphDatabaseService) arguments.get("graphDb");
+
+        if (parameters == null || parameters.length < 1 || !(parameters[0] instanceof StructrTransaction)) {
+            logger.log(Level.SEVERE, "A StructrTransaction is required for a unit of work");
+            return null;
+        }
+
+        StructrTransaction transaction = (StructrTransaction) parameters[0];
+
+        if (UnitOfWork.getCurrent() != null) {
+
+            // join the current unit of work
+            return Services.command(TransactionCommand.class).execute(transaction);
+        }
+
+        int batchSize = UnitOfWork.DefaultBatchSize;
+
+        if (parameters.length > 1 && parameters[1] instanceof Integer) {
+            batchSize = (Integer) parameters[1];
+
+        } else if (arguments.get("transactionBatchSize") instanceof Integer) {
+            batchSize = (Integer) arguments.get("transactionBatchSize");
+        }
+
+        Object ret = null;
+        UnitOfWork unitOfWork = UnitOfWork.begin(graphDb, batchSize);
+
+        try {
+
+            ret = transaction.execute();
+
+        } catch (UnitOfWorkFailedException e) {
+
+            unitOfWork.failure(e.getCause());
+
+        } catch (Throwable t) {
+
+            unitOfWork.failure(t);
+
+        } finally {
+
+            unitOfWork.end();
+        }
+
+        if (unitOfWork.isFailed()) {
+
+            logger.log(Level.SEVERE, "Unit of work aborted, {0} batches were committed before the failure", unitOfWork.getCommittedBatchCount());
+
+            throw new UnitOfWorkFailedException(unitOfWork.getCause());
+        }
+
+        return ret;
+    }
+}
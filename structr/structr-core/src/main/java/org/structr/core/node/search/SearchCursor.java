@@ -0,0 +1,358 @@
+/*
+ *  Copyright (C) 2011 Axel Morgner, structr <structr@structr.org>
+ *
+ *  This file is part of structr <http://structr.org>.
+ *
+ *  structr is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  structr is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with structr.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.structr.core.node.search;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.index.IndexHits;
+import org.structr.core.entity.AbstractNode;
+import org.structr.core.node.StructrNodeFactory;
+
+/**
+ * A lazy, forward-only view on the result of a {@see SearchNodeCommand}.
+ *
+ * <p>
+ * Database nodes are only instantiated and checked (permissions, deleted
+ * and public flags, boolean search attributes) when the cursor advances,
+ * and iteration stops as soon as <code>offset + limit</code> nodes were
+ * accepted. The underlying index hits are closed when the cursor is
+ * exhausted, or when {@see #close} is called.
+ * </p>
+ *
+ * @author amorgner
+ */
+public class SearchCursor implements Iterator<AbstractNode>, Iterable<AbstractNode> {
+
+    private final Iterator<Node> source;
+    private final IndexHits<Node> hits;
+    private final StructrNodeFactory nodeFactory;
+    private final boolean readableOnly;
+    private final boolean includeDeleted;
+    private final boolean publicOnly;
+    private final List<BooleanSearchAttribute> booleanAttributes;
+    private final int offset;
+    private final int limit;
+    private AbstractNode nextNode = null;
+    private int skipped = 0;
+    private int returned = 0;
+    private boolean closed = false;
+
+    /**
+     * Create a new cursor.
+     *
+     * @param source the database nodes to iterate
+     * @param hits the index hits to close when done, can be null
+     * @param nodeFactory
+     * @param readableOnly if true, return only nodes readable by the current user
+     * @param includeDeleted if true, return deleted nodes as well
+     * @param publicOnly if true, return only public nodes
+     * @param booleanAttributes boolean attributes to filter by
+     * @param offset number of accepted nodes to skip
+     * @param limit maximum number of nodes to return, 0 means no limit
+     */
+    public SearchCursor(final Iterator<Node> source, final IndexHits<Node> hits, final StructrNodeFactory nodeFactory,
+            final boolean readableOnly, final boolean includeDeleted, final boolean publicOnly,
+            final List<BooleanSearchAttribute> booleanAttributes, final int offset, final int limit) {
+
+        this.source = source;
+        this.hits = hits;
+        this.nodeFactory = nodeFactory;
+        this.readableOnly = readableOnly;
+        this.includeDeleted = includeDeleted;
+        this.publicOnly = publicOnly;
+        this.booleanAttributes = booleanAttributes != null ? booleanAttributes : new LinkedList<BooleanSearchAttribute>();
+        this.offset = Math.max(offset, 0);
+        this.limit = Math.max(limit, 0);
+    }
+
+    /**
+     * Return the number of raw index hits, before any filtering.
+     * Returns -1 if this cursor is not backed by index hits.
+     *
+     * @return
+     */
+    public int getHitCount() {
+        return (hits != null ? hits.size() : -1);
+    }
+
+    /**
+     * Close the underlying index hits. Calling this method
+     * more than once has no effect.
+     */
+    public void close() {
+
+        if (!closed) {
+
+            closed = true;
+            nextNode = null;
+
+            if (hits != null) {
+                hits.close();
+            }
+        }
+    }
+
+    @Override
+    public Iterator<AbstractNode> iterator() {
+        return this;
+    }
+
+    @Override
+    public boolean hasNext() {
+
+        if (nextNode != null) {
+            return true;
+        }
+
+        if (closed) {
+            return false;
+        }
+
+        if (limit > 0 && returned >= limit) {
+            close();
+            return false;
+        }
+
+        while (source.hasNext()) {
+
+            AbstractNode node = nodeFactory.createNode(source.next());
+
+            if (accept(node)) {
+
+                if (skipped < offset) {
+                    skipped++;
+                    continue;
+                }
+
+                nextNode = node;
+                return true;
+            }
+        }
+
+        close();
+        return false;
+    }
+
+    @Override
+    public AbstractNode next() {
+
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+
+        AbstractNode node = nextNode;
+        nextNode = null;
+        returned++;
+
+        return node;
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException("Search results can not be removed.");
+    }
+
+    /**
+     * Collect the remaining nodes of this cursor into a list (in index order)
+     * and close the cursor.
+     *
+     * @return
+     */
+    public List<AbstractNode> toList() {
+
+        List<AbstractNode> result = new LinkedList<AbstractNode>();
+
+        try {
+            while (hasNext()) {
+                result.add(next());
+            }
+
+        } finally {
+            close();
+        }
+
+        return result;
+    }
+
+    /**
+     * Return the window of <code>offset</code> and <code>limit</code>
+     * of all accepted nodes, sorted by name (@see AbstractNode#compareTo),
+     * and close the cursor. Must be called on a fresh cursor.
+     *
+     * <p>
+     * If a limit is given, only the first <code>offset + limit</code> nodes
+     * are kept in a bounded heap, and nodes whose name can not make it into
+     * the heap are skipped without being instantiated.
+     * </p>
+     *
+     * @return
+     */
+    public List<AbstractNode> toSortedList() {
+
+        try {
+
+            if (limit == 0) {
+
+                List<AbstractNode> result = new ArrayList<AbstractNode>();
+
+                while (source.hasNext()) {
+
+                    AbstractNode node = nodeFactory.createNode(source.next());
+
+                    if (accept(node)) {
+                        result.add(node);
+                    }
+                }
+
+                Collections.sort(result);
+
+                return (offset > 0 ? window(result) : result);
+            }
+
+            int capacity = offset + limit;
+
+            // max heap: the head is the last node in sort order
+            PriorityQueue<Candidate> heap = new PriorityQueue<Candidate>(capacity + 1, new Comparator<Candidate>() {
+
+                @Override
+                public int compare(Candidate one, Candidate two) {
+                    return two.name.compareTo(one.name);
+                }
+            });
+
+            while (source.hasNext()) {
+
+                Node dbNode = source.next();
+                String name = getName(dbNode);
+
+                if (heap.size() == capacity && name.compareTo(heap.peek().name) >= 0) {
+                    continue;
+                }
+
+                AbstractNode node = nodeFactory.createNode(dbNode);
+
+                if (accept(node)) {
+
+                    heap.add(new Candidate(name, node));
+
+                    if (heap.size() > capacity) {
+                        heap.poll();
+                    }
+                }
+            }
+
+            List<AbstractNode> result = new ArrayList<AbstractNode>(heap.size());
+
+            while (!heap.isEmpty()) {
+                result.add(heap.poll().node);
+            }
+
+            Collections.reverse(result);
+
+            return window(result);
+
+        } finally {
+            close();
+        }
+    }
+
+    // <editor-fold defaultstate="collapsed" desc="private methods">
+    private List<AbstractNode> window(final List<AbstractNode> sortedNodes) {
+
+        if (offset >= sortedNodes.size()) {
+            return new LinkedList<AbstractNode>();
+        }
+
+        int end = (limit > 0 ? Math.min(offset + limit, sortedNodes.size()) : sortedNodes.size());
+
+        return new ArrayList<AbstractNode>(sortedNodes.subList(offset, end));
+    }
+
+    private boolean accept(final AbstractNode node) {
+
+        if (node == null) {
+            return false;
+        }
+
+        if (readableOnly && !node.readAllowed()) {
+            return false;
+        }
+
+        if (!includeDeleted && node.isDeleted()) {
+            return false;
+        }
+
+        if (publicOnly && !node.isPublic()) {
+            return false;
+        }
+
+        for (BooleanSearchAttribute attr : booleanAttributes) {
+
+            Object nodeValue = node.getProperty(attr.getKey());
+            Boolean searchValue = attr.getValue();
+
+            boolean matches = (nodeValue == null ? searchValue == null : nodeValue.equals(searchValue));
+            SearchOperator op = attr.getSearchOperator();
+
+            if (SearchOperator.AND.equals(op) && !matches) {
+                return false;
+            }
+
+            if (SearchOperator.NOT.equals(op) && matches) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Same fallback as {@see AbstractNode#getName}, but without
+     * instantiating a structr node.
+     */
+    private String getName(final Node dbNode) {
+
+        if (dbNode.hasProperty(AbstractNode.NAME_KEY)) {
+            return dbNode.getProperty(AbstractNode.NAME_KEY).toString();
+        }
+
+        return Long.toString(dbNode.getId());
+    }
+    // </editor-fold>
+
+    // <editor-fold defaultstate="collapsed" desc="private classes">
+    private static class Candidate {
+
+        private final String name;
+        private final AbstractNode node;
+
+        private Candidate(final String name, final AbstractNode node) {
+            this.name = name;
+            this.node = node;
+        }
+    }
+    // </editor-fold>
+}
@@ -19,24 +19,23 @@
 package org.structr.core.node.search;
 
 import java.util.Collections;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import org.apache.commons.collections.ListUtils;
-import org.apache.commons.lang.StringUtils;
-import org.apache.lucene.index.Term;
-import org.apache.lucene.search.BooleanClause;
-import org.apache.lucene.search.BooleanQuery;
-import org.apache.lucene.search.Query;
-import org.apache.lucene.search.TermQuery;
+import org.neo4j.graphdb.Direction;
 import org.neo4j.graphdb.GraphDatabaseService;
 import org.neo4j.graphdb.Node;
 import org.neo4j.graphdb.index.Index;
 import org.neo4j.graphdb.index.IndexHits;
+import org.neo4j.graphdb.traversal.Evaluators;
 import org.neo4j.index.lucene.QueryContext;
+import org.neo4j.kernel.Traversal;
+import org.structr.common.RelType;
 import org.structr.core.entity.AbstractNode;
 import org.structr.core.entity.User;
+import org.structr.core.node.IndexUpdateQueue;
 import org.structr.core.node.NodeServiceCommand;
 import org.structr.core.node.StructrNodeFactory;
 
@@ -50,332 +49,160 @@ import org.structr.core.node.StructrNodeFactory;
  * <li>{@see User} user: return nodes only if readable for the user
  *     <p>if null, don't filter by user
  * <li>{@see AbstractNode} top node: search only below this node
- *     <p>if null, search everywhere (top node = root node)
+ *     <p>if null, search everywhere (top node = root node). The nodes below
+ *     a top node are always filtered by readability, the top node itself
+ *     is not returned.
  * <li>boolean include deleted: if true, return deleted nodes as well
  * <li>boolean public only: if true, return only public nodes
  * <li>List<{@see TextualSearchAttribute}> search attributes: key/value pairs with search operator
  *    <p>if no TextualSearchAttribute is given, return any node matching the other
  *       search criteria
  * </ol>
+ * <p>
+ * Optionally, two more parameters can be given:
+ * <p>
+ * <ol>
+ * <li>int offset: number of matching nodes to skip
+ * <li>int limit: maximum number of nodes to return, 0 means no limit
+ * </ol>
+ * <p>
+ * The result is a list sorted by name. Use {@see SearchNodeCursorCommand}
+ * to iterate over the matching nodes lazily.
  *
  * @author amorgner
  */
 public class SearchNodeCommand extends NodeServiceCommand {
 
     private static final Logger logger = Logger.getLogger(SearchNodeCommand.class.getName());
-    private static String IMPROBABLE_SEARCH_VALUE = "xeHfc6OG30o3YQzX57_8____r-Wx-RW_70r84_71D-g--P9-3K";
 
     @Override
     public Object execute(Object... parameters) {
-        GraphDatabaseService graphDb = (GraphDatabaseService) arguments.get("graphDb");
-        Index<Node> index = (Index<Node>) arguments.get("index");
-        StructrNodeFactory nodeFactory = (StructrNodeFactory) arguments.get("nodeFactory");
-
-        List<AbstractNode> finalResult = new LinkedList<AbstractNode>();
-
-        if (graphDb != null) {
-
-            if (parameters == null || parameters.length != 5) {
-                logger.log(Level.WARNING, "Exactly 5 parameters are required for advanced search.");
-                return Collections.emptyList();
-            }
-
-            User user = null;
-            if (parameters[0] instanceof User) {
-                user = (User) parameters[0];
-            }
-
-            // FIXME: filtering by top node is experimental
-            AbstractNode topNode = null;
-            if (parameters[1] instanceof AbstractNode) {
-                topNode = (AbstractNode) parameters[1];
-            }
-
-            boolean includeDeleted = false;
-            if (parameters[2] instanceof Boolean) {
-                includeDeleted = (Boolean) parameters[2];
-            }
-
-            boolean publicOnly = false;
-            if (parameters[3] instanceof Boolean) {
-                publicOnly = (Boolean) parameters[3];
-            }
-
-            List<SearchAttribute> searchAttrs = new LinkedList<SearchAttribute>();
-            if (parameters[4] instanceof List) {
-                searchAttrs = (List<SearchAttribute>) parameters[4];
-            }
-
-            for (int i = 4; i < parameters.length; i++) {
-
-                Object o = parameters[i];
-                if (o instanceof SearchAttribute) {
-                    searchAttrs.add((SearchAttribute) o);
-                }
-
-            }
-
-            // At this point, all search attributes are ready
-
-            BooleanQuery query = new BooleanQuery();
-
-            List<BooleanSearchAttribute> booleanAttributes = new LinkedList<BooleanSearchAttribute>();
-
-            String textualQueryString = "";
-
-            for (SearchAttribute attr : searchAttrs) {
-
-                if (attr instanceof SearchAttributeGroup) {
-
-                    SearchAttributeGroup attributeGroup = (SearchAttributeGroup) attr;
-                    List<SearchAttribute> groupedAttributes = attributeGroup.getSearchAttributes();
-
-                    String subQueryString = "";
-
-                    if (!(groupedAttributes.isEmpty())) {
-
-                        BooleanQuery subQuery = new BooleanQuery();
-
-                        String subQueryPrefix = (StringUtils.isBlank(textualQueryString) ? "" : attributeGroup.getSearchOperator()) + " ( ";
-
-                        for (SearchAttribute groupedAttr : groupedAttributes) {
-
-                            // TODO: support other than textual search attributes
-                            if (groupedAttr instanceof TextualSearchAttribute) {
-
-                                subQuery.add(toQuery((TextualSearchAttribute) groupedAttr), translateToBooleanClauseOccur(groupedAttr.getSearchOperator()));
-                                subQueryString += toQueryString((TextualSearchAttribute) groupedAttr, StringUtils.isBlank(subQueryString));
-
-                            }
-                        }
-                        query.add(subQuery, translateToBooleanClauseOccur(attributeGroup.getSearchOperator()));
-                        String subQuerySuffix = " ) ";
-
-                        // Add sub query only if not blank
-                        if (StringUtils.isNotBlank(subQueryString)) {
-                            textualQueryString += subQueryPrefix + subQueryString + subQuerySuffix;
-                        }
-
-                    }
-
-                } else if (attr instanceof TextualSearchAttribute) {
-
-                    query.add(toQuery((TextualSearchAttribute) attr), translateToBooleanClauseOccur(attr.getSearchOperator()));
-                    textualQueryString += toQueryString((TextualSearchAttribute) attr, StringUtils.isBlank(textualQueryString));
-
-                } else if (attr instanceof BooleanSearchAttribute) {
-
-                    booleanAttributes.add((BooleanSearchAttribute) attr);
-
-                }
-
-            }
-
-            List<AbstractNode> intermediateResult;
-            if (searchAttrs.isEmpty() || StringUtils.isBlank(textualQueryString)) {
-
-                if (topNode != null) {
-                    intermediateResult = topNode.getAllChildren();
-                } else {
-                    intermediateResult = new LinkedList<AbstractNode>();
-
-                }
-            } else {
-
-                long t0 = System.currentTimeMillis();
-                logger.log(Level.FINE, "Textual Query String: {0}", textualQueryString);
-
-                IndexHits hits = index.query(new QueryContext(textualQueryString));//.sort("name"));
-
-                long t1 = System.currentTimeMillis();
-                logger.log(Level.FINE, "Querying index took {0} ms, {1} results retrieved.", new Object[]{t1 - t0, hits.size()});
-
 
-//            IndexHits hits = index.query(new QueryContext(query.toString()));//.sort("name"));
-                intermediateResult = nodeFactory.createNodes(hits, user, includeDeleted, publicOnly);
-
-//                hits.close();
-
-                long t2 = System.currentTimeMillis();
-                logger.log(Level.FINE, "Creating structr nodes took {0} ms, {1} nodes made.", new Object[]{t2 - t1, intermediateResult.size()});
-            }
-
-            long t2 = System.currentTimeMillis();
-
-            if (booleanAttributes.isEmpty()) {
-
-                // if no further boolean attributes, the final result equals the intermediate result
-
-                finalResult.addAll(intermediateResult);
-
-            } else {
-
-                // Filter intermediate result
-                for (AbstractNode node : intermediateResult) {
-
-                    for (BooleanSearchAttribute attr : booleanAttributes) {
-
-                        String key = attr.getKey();
-                        Boolean searchValue = attr.getValue();
-                        SearchOperator op = attr.getSearchOperator();
-
-                        Object nodeValue = node.getProperty(key);
-
-                        if (op.equals(SearchOperator.NOT)) {
-
-                            if (nodeValue != null && !(nodeValue.equals(searchValue))) {
-                                attr.addToResult(node);
-                            }
-
-                        } else {
-
-                            if (nodeValue == null && searchValue == null) {
-                                attr.addToResult(node);
-                            }
-
-                            if (nodeValue != null && nodeValue.equals(searchValue)) {
-                                attr.addToResult(node);
-                            }
-                        }
-
-
-                    }
-                }
-
-                // now sum, intersect or substract all partly results
-
-                for (BooleanSearchAttribute attr : booleanAttributes) {
-                    SearchOperator op = attr.getSearchOperator();
-                    List<AbstractNode> result = attr.getResult();
-
-                    if (op.equals(SearchOperator.AND)) {
-
-                        intermediateResult = ListUtils.intersection(intermediateResult, result);
-
-                    } else if (op.equals(SearchOperator.AND)) {
-
-                        intermediateResult = ListUtils.sum(intermediateResult, result);
-
-                    } else if (op.equals(SearchOperator.NOT)) {
-
-                        intermediateResult = ListUtils.subtract(intermediateResult, result);
-
-                    }
-
-                }
-                finalResult.addAll(intermediateResult);
-
-
-            }
-            long t3 = System.currentTimeMillis();
-            logger.log(Level.FINE, "Filtering nodes took {0} ms. Result size now {1}.", new Object[]{t3 - t2, finalResult.size()});
+        SearchCursor cursor = createCursor(parameters);
 
+        if (cursor == null) {
+            return Collections.emptyList();
         }
 
-        long t4 = System.currentTimeMillis();
+        long t0 = System.currentTimeMillis();
 
         // sort search results; defaults to name, (@see AbstractNode.compareTo())
-        Collections.sort(finalResult);
+        List<AbstractNode> finalResult = cursor.toSortedList();
 
-        long t5 = System.currentTimeMillis();
-        logger.log(Level.FINE, "Sorting nodes took {0} ms.", new Object[]{t5 - t4});
+        long t1 = System.currentTimeMillis();
+        logger.log(Level.FINE, "Filtering and sorting nodes took {0} ms, {1} nodes returned.", new Object[]{t1 - t0, finalResult.size()});
 
         return finalResult;
 
     }
 
-    private String toQueryString(final TextualSearchAttribute singleAttribute, final boolean isFirst) {
+    /**
+     * Parse the given parameters and open a cursor on the matching nodes.
+     *
+     * @param parameters
+     * @return the cursor, or null if the parameters are invalid
+     */
+    protected SearchCursor createCursor(Object... parameters) {
 
-        String key = singleAttribute.getKey();
-        String value = singleAttribute.getValue();
-        SearchOperator op = singleAttribute.getSearchOperator();
+        GraphDatabaseService graphDb = (GraphDatabaseService) arguments.get("graphDb");
+        Index<Node> index = (Index<Node>) arguments.get("index");
+        StructrNodeFactory nodeFactory = (StructrNodeFactory) arguments.get("nodeFactory");
 
-        if (StringUtils.isBlank(value) || value.equals("\"\"")) {
-            return " " + key + ":" + IMPROBABLE_SEARCH_VALUE + "";
+        if (graphDb == null) {
+            return null;
         }
 
-        // NOT operator should always be applied
-        return (isFirst && !(op.equals(SearchOperator.NOT)) ? "" : " " + op + " ") + expand(key, value);
+        if (parameters == null || (parameters.length != 5 && parameters.length != 7)) {
+            logger.log(Level.WARNING, "Exactly 5 (or 7, with offset and limit) parameters are required for advanced search.");
+            return null;
+        }
 
-    }
+        User user = null;
+        if (parameters[0] instanceof User) {
+            user = (User) parameters[0];
+        }
 
-    private Query toQuery(final TextualSearchAttribute singleAttribute) {
+        // FIXME: filtering by top node is experimental
+        AbstractNode topNode = null;
+        if (parameters[1] instanceof AbstractNode) {
+            topNode = (AbstractNode) parameters[1];
+        }
 
-        String key = singleAttribute.getKey();
-        Object value = singleAttribute.getValue();
-//            SearchOperator op = singleAttribute.getSearchOperator();
+        boolean includeDeleted = false;
+        if (parameters[2] instanceof Boolean) {
+            includeDeleted = (Boolean) parameters[2];
+        }
 
-        if (key == null || value == null) {
-            return null;
+        boolean publicOnly = false;
+        if (parameters[3] instanceof Boolean) {
+            publicOnly = (Boolean) parameters[3];
         }
 
-        boolean valueIsNoStringAndNotNull = (value != null && !(value instanceof String));
-        boolean valueIsNoBlankString = (value != null && value instanceof String && StringUtils.isNotBlank((String) value));
+        List<SearchAttribute> searchAttrs = new LinkedList<SearchAttribute>();
+        if (parameters[4] instanceof List) {
+            searchAttrs = (List<SearchAttribute>) parameters[4];
+        }
 
-        if (StringUtils.isNotBlank(key) && (valueIsNoBlankString || valueIsNoStringAndNotNull)) {
-            return new TermQuery(new Term(key, value.toString()));
+        if (parameters[4] instanceof SearchAttribute) {
+            searchAttrs.add((SearchAttribute) parameters[4]);
         }
 
-        return null;
-    }
+        int offset = 0;
+        int limit = 0;
+        if (parameters.length == 7) {
 
-    private BooleanClause.Occur translateToBooleanClauseOccur(final SearchOperator searchOp) {
+            if (parameters[5] instanceof Integer) {
+                offset = (Integer) parameters[5];
+            }
 
-        if (searchOp.equals(SearchOperator.AND)) {
-            return BooleanClause.Occur.MUST;
+            if (parameters[6] instanceof Integer) {
+                limit = (Integer) parameters[6];
+            }
+        }
 
-        } else if (searchOp.equals(SearchOperator.OR)) {
-            return BooleanClause.Occur.SHOULD;
+        // At this point, all search attributes are ready
 
-        } else if (searchOp.equals(SearchOperator.NOT)) {
-            return BooleanClause.Occur.MUST_NOT;
+        // make index updates of the current thread visible
+        IndexUpdateQueue indexQueue = (IndexUpdateQueue) arguments.get("indexQueue");
+        if (indexQueue != null) {
+            indexQueue.flushOwnUpdates();
         }
 
-        // Default
-        return BooleanClause.Occur.MUST;
-
-    }
+        SearchQueryPlan plan = SearchQueryPlan.getPlan(searchAttrs);
 
-    private String expand(final String key, final Object value) {
+        Iterator<Node> source = null;
+        IndexHits<Node> hits = null;
+        boolean readableOnly = (user != null);
 
-        if (StringUtils.isBlank(key)) {
-            return "";
-        }
+        if (plan.isEmpty()) {
 
-        String stringValue = null;
-        if (value instanceof String) {
+            if (topNode != null) {
 
-            stringValue = (String) value;
+                // complete node tree below top node, readable nodes only
+                source = Traversal.description().breadthFirst().relationships(RelType.HAS_CHILD, Direction.OUTGOING).evaluator(Evaluators.excludeStartPosition()).traverse(topNode.getNode()).nodes().iterator();
+                readableOnly = true;
 
-            if (StringUtils.isBlank(stringValue)) {
-                return "";
-            }
-        }
+            } else {
 
-        // If value is not a string or starts with operator (exact match, range query, or search operator word),
-        // don't expand
-        if (stringValue == null || stringValue.startsWith("\"") || stringValue.startsWith("[") || stringValue.startsWith("NOT") || stringValue.startsWith("AND") || stringValue.startsWith("OR")) {
-            return " " + key + ":" + value + " ";
-        }
+                source = Collections.<Node>emptyList().iterator();
 
-        String result = "( ";
+            }
 
-        // Split string into words
-        String[] words = StringUtils.split(stringValue, " ");
+        } else {
 
-        // Expand key,word to ' (key:word* OR key:"word") '
+            long t0 = System.currentTimeMillis();
+            Object queryObject = plan.getQueryObject(searchAttrs);
 
-        int i = 1;
-        for (String word : words) {
+            logger.log(Level.FINE, "Query: {0}", queryObject);
 
-//            String cleanWord = Search.normalize(word);
+            hits = index.query(new QueryContext(queryObject));
+            source = hits;
 
-//            result += " (" + key + ":" + cleanWord + "* OR " + key + ":\"" + cleanWord + "\")" + (i<words.length ? " AND " : " ) ");
-            result += " (" + key + ":" + word + "* OR " + key + ":\"" + word + "\")" + (i < words.length ? " AND " : " ) ");
-            i++;
+            long t1 = System.currentTimeMillis();
+            logger.log(Level.FINE, "Querying index took {0} ms, {1} results retrieved.", new Object[]{t1 - t0, hits.size()});
 
         }
 
-        return result;
+        return new SearchCursor(source, hits, nodeFactory, readableOnly, includeDeleted, publicOnly, plan.getBooleanAttributes(searchAttrs), offset, limit);
     }
 }
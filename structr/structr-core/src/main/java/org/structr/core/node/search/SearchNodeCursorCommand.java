@@ -0,0 +1,38 @@
+/*
+ *  Copyright (C) 2011 Axel Morgner, structr <structr@structr.org>
+ *
+ *  This file is part of structr <http://structr.org>.
+ *
+ *  structr is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  structr is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with structr.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.structr.core.node.search;
+
+/**
+ * <b>Search for nodes by attributes, lazily</b>
+ * <p>
+ * Takes the same parameters as {@see SearchNodeCommand}, but returns a
+ * {@see SearchCursor} (or null if the parameters are invalid) which
+ * instantiates and filters the matching nodes in index order while it
+ * is iterated. The cursor closes the index hits when it is exhausted;
+ * callers that stop early must call {@see SearchCursor#close}.
+ *
+ * @author amorgner
+ */
+public class SearchNodeCursorCommand extends SearchNodeCommand {
+
+    @Override
+    public Object execute(Object... parameters) {
+        return createCursor(parameters);
+    }
+}
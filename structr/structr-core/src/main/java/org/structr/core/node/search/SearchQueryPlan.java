@@ -0,0 +1,636 @@
+/*
+ *  Copyright (C) 2011 Axel Morgner, structr <structr@structr.org>
+ *
+ *  This file is part of structr <http://structr.org>.
+ *
+ *  structr is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  structr is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with structr.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.structr.core.node.search;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.apache.commons.lang.StringUtils;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.PhraseQuery;
+import org.apache.lucene.search.PrefixQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TermRangeQuery;
+import org.apache.lucene.search.WildcardQuery;
+
+/**
+ * The shape of the index query for a list of search attributes, as used
+ * by {@see SearchNodeCommand}.
+ *
+ * <p>
+ * Textual search attributes are translated into a Lucene query object
+ * directly, with the same clause semantics the query parser applies to
+ * the equivalent query string. Values using raw query syntax (starting
+ * with AND, OR or NOT) fall back to the query string. Boolean search
+ * attributes are always checked on the loaded nodes: stale boolean terms
+ * are not removed from the index when a value changes, and index updates
+ * are applied asynchronously, so the index can't be trusted for them.
+ * </p>
+ *
+ * <p>
+ * Plans are cached by the shape of their attribute list, i.e. the types,
+ * keys and operators of the attributes and the kind of each textual value
+ * (blank, translatable into a query object or not), never by the values
+ * themselves. A plan holds the arrangement of the query clauses, and the
+ * query for a concrete attribute list with the same shape is built from it
+ * (see {@see #getQueryObject}). Plans don't keep references to the search
+ * attributes they were created for.
+ * </p>
+ *
+ * @author amorgner
+ */
+public class SearchQueryPlan {
+
+    private static final Logger logger = Logger.getLogger(SearchQueryPlan.class.getName());
+    private static final String IMPROBABLE_SEARCH_VALUE = "xeHfc6OG30o3YQzX57_8____r-Wx-RW_70r84_71D-g--P9-3K";
+    private static final Pattern RANGE_PATTERN = Pattern.compile("^([\\[{])\\s*(\\S+)\\s+TO\\s+(\\S+)\\s*([\\]}])$");
+    private static final int MaxCachedPlans = 500;
+    private static final Map<String, SearchQueryPlan> planCache = new LinkedHashMap<String, SearchQueryPlan>(64, 0.75f, true) {
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, SearchQueryPlan> eldest) {
+            return size() > MaxCachedPlans;
+        }
+    };
+    private final boolean empty;
+    private final List<Clause> clauses;
+    private final String shape;
+
+    private SearchQueryPlan(final boolean empty, final List<Clause> clauses, final String shape) {
+        this.empty = empty;
+        this.clauses = clauses;
+        this.shape = shape;
+    }
+
+    /**
+     * Return the (cached) plan for the shape of the given search attributes.
+     *
+     * @param searchAttrs
+     * @return
+     */
+    public static SearchQueryPlan getPlan(final List<SearchAttribute> searchAttrs) {
+
+        String shape = shape(searchAttrs);
+        SearchQueryPlan plan = null;
+
+        synchronized (planCache) {
+            plan = planCache.get(shape);
+        }
+
+        if (plan == null) {
+
+            plan = createPlan(searchAttrs, shape);
+
+            synchronized (planCache) {
+                planCache.put(shape, plan);
+            }
+        }
+
+        return plan;
+    }
+
+    /**
+     * Return true if there is no textual part, so the index
+     * can not be queried.
+     *
+     * @return
+     */
+    public boolean isEmpty() {
+        return empty;
+    }
+
+    /**
+     * Return the query object for the given search attributes, or the
+     * query string if the attributes can not be translated into a query
+     * object. The attributes must have the shape of this plan.
+     *
+     * @param searchAttrs
+     * @return
+     */
+    public Object getQueryObject(final List<SearchAttribute> searchAttrs) {
+
+        if (empty) {
+            return null;
+        }
+
+        if (clauses == null) {
+
+            String queryString = toQueryString(searchAttrs);
+
+            logger.log(Level.FINE, "Using query string {0}", queryString);
+            return queryString;
+        }
+
+        List<TextualSearchAttribute> textualAttrs = new ArrayList<TextualSearchAttribute>();
+        collectAttributes(searchAttrs, textualAttrs, null);
+
+        Query query = toQuery(clauses, textualAttrs);
+
+        logger.log(Level.FINE, "Using query {0}", query);
+        return query;
+    }
+
+    /**
+     * Return copies of the boolean search attributes, which have to be
+     * checked on the loaded nodes.
+     *
+     * @param searchAttrs
+     * @return
+     */
+    public List<BooleanSearchAttribute> getBooleanAttributes(final List<SearchAttribute> searchAttrs) {
+
+        List<BooleanSearchAttribute> booleanAttrs = new LinkedList<BooleanSearchAttribute>();
+        collectAttributes(searchAttrs, null, booleanAttrs);
+
+        List<BooleanSearchAttribute> copies = new ArrayList<BooleanSearchAttribute>(booleanAttrs.size());
+
+        for (BooleanSearchAttribute attr : booleanAttrs) {
+            copies.add(new BooleanSearchAttribute(attr.getKey(), attr.getValue(), attr.getSearchOperator()));
+        }
+
+        return Collections.unmodifiableList(copies);
+    }
+
+    @Override
+    public String toString() {
+        return shape;
+    }
+
+    // <editor-fold defaultstate="collapsed" desc="private methods">
+    /**
+     * Arrange the clauses of the query like the query parser does for the
+     * equivalent query string. Each textual attribute takes the next slot,
+     * in the order of {@see #collectAttributes}. Conjunctions only depend
+     * on the shape, so the arrangement fits all attribute lists of it.
+     */
+    private static SearchQueryPlan createPlan(final List<SearchAttribute> searchAttrs, final String shape) {
+
+        List<Clause> textualClauses = new LinkedList<Clause>();
+        boolean structured = true;
+        boolean hasText = false;
+        int slot = 0;
+
+        for (SearchAttribute attr : searchAttrs) {
+
+            if (attr instanceof SearchAttributeGroup) {
+
+                SearchAttributeGroup attributeGroup = (SearchAttributeGroup) attr;
+                List<Clause> subClauses = new LinkedList<Clause>();
+                boolean subHasText = false;
+
+                for (SearchAttribute groupedAttr : attributeGroup.getSearchAttributes()) {
+
+                    // TODO: support other than textual search attributes
+                    if (groupedAttr instanceof TextualSearchAttribute) {
+
+                        TextualSearchAttribute textualAttr = (TextualSearchAttribute) groupedAttr;
+
+                        if (isTranslatable(textualAttr)) {
+                            addClause(subClauses, new Clause(slot), getConjunction(textualAttr, !subHasText));
+                        } else {
+                            structured = false;
+                        }
+
+                        slot++;
+                        subHasText = true;
+                    }
+                }
+
+                // Add sub query only if not blank
+                if (subHasText) {
+
+                    addClause(textualClauses, new Clause(subClauses), hasText ? attributeGroup.getSearchOperator() : null);
+                    hasText = true;
+                }
+
+            } else if (attr instanceof TextualSearchAttribute) {
+
+                TextualSearchAttribute textualAttr = (TextualSearchAttribute) attr;
+
+                if (isTranslatable(textualAttr)) {
+                    addClause(textualClauses, new Clause(slot), getConjunction(textualAttr, !hasText));
+                } else {
+                    structured = false;
+                }
+
+                slot++;
+                hasText = true;
+            }
+        }
+
+        // whether the query string is blank only depends on the shape, too
+        if (StringUtils.isBlank(toQueryString(searchAttrs))) {
+
+            // nothing to query, boolean attributes have to be checked on the nodes
+            return new SearchQueryPlan(true, null, shape);
+        }
+
+        return new SearchQueryPlan(false, structured ? textualClauses : null, shape);
+    }
+
+    /**
+     * Collect the textual and boolean attributes of the given list, in the
+     * order their slots are assigned by {@see #createPlan}.
+     */
+    private static void collectAttributes(final List<SearchAttribute> searchAttrs, final List<TextualSearchAttribute> textualAttrs, final List<BooleanSearchAttribute> booleanAttrs) {
+
+        for (SearchAttribute attr : searchAttrs) {
+
+            if (attr instanceof SearchAttributeGroup) {
+
+                for (SearchAttribute groupedAttr : ((SearchAttributeGroup) attr).getSearchAttributes()) {
+
+                    if (groupedAttr instanceof TextualSearchAttribute && textualAttrs != null) {
+                        textualAttrs.add((TextualSearchAttribute) groupedAttr);
+                    }
+                }
+
+            } else if (attr instanceof TextualSearchAttribute) {
+
+                if (textualAttrs != null) {
+                    textualAttrs.add((TextualSearchAttribute) attr);
+                }
+
+            } else if (attr instanceof BooleanSearchAttribute) {
+
+                if (booleanAttrs != null) {
+                    booleanAttrs.add((BooleanSearchAttribute) attr);
+                }
+            }
+        }
+    }
+
+    private static Query toQuery(final List<Clause> clauses, final List<TextualSearchAttribute> textualAttrs) {
+
+        BooleanQuery query = new BooleanQuery();
+
+        for (Clause clause : clauses) {
+
+            Query clauseQuery = (clause.subClauses != null ? toQuery(clause.subClauses, textualAttrs) : toQuery(textualAttrs.get(clause.slot)));
+
+            query.add(clauseQuery, clause.occur);
+        }
+
+        return query;
+    }
+
+    private static String toQueryString(final List<SearchAttribute> searchAttrs) {
+
+        String textualQueryString = "";
+
+        for (SearchAttribute attr : searchAttrs) {
+
+            if (attr instanceof SearchAttributeGroup) {
+
+                SearchAttributeGroup attributeGroup = (SearchAttributeGroup) attr;
+                List<SearchAttribute> groupedAttributes = attributeGroup.getSearchAttributes();
+
+                String subQueryString = "";
+
+                if (!(groupedAttributes.isEmpty())) {
+
+                    String subQueryPrefix = (StringUtils.isBlank(textualQueryString) ? "" : attributeGroup.getSearchOperator()) + " ( ";
+
+                    for (SearchAttribute groupedAttr : groupedAttributes) {
+
+                        // TODO: support other than textual search attributes
+                        if (groupedAttr instanceof TextualSearchAttribute) {
+                            subQueryString += toQueryString((TextualSearchAttribute) groupedAttr, StringUtils.isBlank(subQueryString));
+                        }
+                    }
+
+                    String subQuerySuffix = " ) ";
+
+                    // Add sub query only if not blank
+                    if (StringUtils.isNotBlank(subQueryString)) {
+                        textualQueryString += subQueryPrefix + subQueryString + subQuerySuffix;
+                    }
+
+                }
+
+            } else if (attr instanceof TextualSearchAttribute) {
+
+                textualQueryString += toQueryString((TextualSearchAttribute) attr, StringUtils.isBlank(textualQueryString));
+            }
+        }
+
+        return textualQueryString;
+    }
+
+    /**
+     * Add a clause to the given query like the query parser does for
+     * the given conjunction (null means no conjunction).
+     */
+    private static void addClause(final List<Clause> clauses, final Clause clause, final SearchOperator conjunction) {
+
+        Clause previous = (clauses.isEmpty() ? null : clauses.get(clauses.size() - 1));
+        BooleanClause.Occur occur = BooleanClause.Occur.SHOULD;
+
+        if (SearchOperator.AND.equals(conjunction)) {
+
+            if (previous != null && !BooleanClause.Occur.MUST_NOT.equals(previous.occur)) {
+                previous.occur = BooleanClause.Occur.MUST;
+            }
+
+            occur = BooleanClause.Occur.MUST;
+
+        } else if (SearchOperator.OR.equals(conjunction)) {
+
+            if (previous != null && !BooleanClause.Occur.MUST_NOT.equals(previous.occur)) {
+                previous.occur = BooleanClause.Occur.SHOULD;
+            }
+
+        } else if (SearchOperator.NOT.equals(conjunction)) {
+
+            occur = BooleanClause.Occur.MUST_NOT;
+        }
+
+        clause.occur = occur;
+        clauses.add(clause);
+    }
+
+    /**
+     * Return the conjunction that {@see #toQueryString} writes
+     * in front of the given attribute.
+     */
+    private static SearchOperator getConjunction(final TextualSearchAttribute attr, final boolean isFirst) {
+
+        String value = attr.getValue();
+        SearchOperator op = attr.getSearchOperator();
+
+        if (StringUtils.isBlank(value) || value.equals("\"\"")) {
+            return null;
+        }
+
+        // NOT operator should always be applied
+        return (isFirst && !(SearchOperator.NOT.equals(op)) ? null : op);
+    }
+
+    /**
+     * Return true if {@see #toQuery} can translate the given attribute
+     * into a query object.
+     */
+    private static boolean isTranslatable(final TextualSearchAttribute attr) {
+
+        String key = attr.getKey();
+        String value = attr.getValue();
+
+        if (StringUtils.isBlank(key)) {
+            return false;
+        }
+
+        if (isBlankValue(value)) {
+            return true;
+        }
+
+        if (value.startsWith("NOT") || value.startsWith("AND") || value.startsWith("OR")) {
+            return false;
+        }
+
+        if (!value.startsWith("\"") && (value.startsWith("[") || value.startsWith("{"))) {
+            return RANGE_PATTERN.matcher(value.trim()).matches();
+        }
+
+        return true;
+    }
+
+    private static boolean isBlankValue(final String value) {
+        return (StringUtils.isBlank(value) || value.equals("\"\""));
+    }
+
+    /**
+     * Translate a textual search attribute into a query object. Returns
+     * null if the value contains query syntax that is only supported by
+     * the query parser.
+     */
+    private static Query toQuery(final TextualSearchAttribute attr) {
+
+        String key = attr.getKey();
+        String value = attr.getValue();
+
+        if (StringUtils.isBlank(key)) {
+            return null;
+        }
+
+        if (isBlankValue(value)) {
+            return new TermQuery(new Term(key, IMPROBABLE_SEARCH_VALUE.toLowerCase()));
+        }
+
+        if (value.startsWith("NOT") || value.startsWith("AND") || value.startsWith("OR")) {
+            return null;
+        }
+
+        if (value.startsWith("\"")) {
+
+            // exact match: phrase of all words
+            String[] words = StringUtils.split(Search.unquoteExactMatch(value).toLowerCase());
+
+            if (words.length == 0) {
+                return new TermQuery(new Term(key, IMPROBABLE_SEARCH_VALUE.toLowerCase()));
+            }
+
+            if (words.length == 1) {
+                return new TermQuery(new Term(key, words[0]));
+            }
+
+            PhraseQuery phraseQuery = new PhraseQuery();
+
+            for (String word : words) {
+                phraseQuery.add(new Term(key, word));
+            }
+
+            return phraseQuery;
+        }
+
+        if (value.startsWith("[") || value.startsWith("{")) {
+
+            // range query
+            Matcher matcher = RANGE_PATTERN.matcher(value.trim());
+
+            if (!matcher.matches()) {
+                return null;
+            }
+
+            String lower = matcher.group(2).toLowerCase();
+            String upper = matcher.group(3).toLowerCase();
+
+            return new TermRangeQuery(key,
+                    (SearchAttribute.WILDCARD.equals(lower) ? null : lower),
+                    (SearchAttribute.WILDCARD.equals(upper) ? null : upper),
+                    "[".equals(matcher.group(1)), "]".equals(matcher.group(4)));
+        }
+
+        // Expand key,word to a prefix query for each word
+        String[] words = StringUtils.split(value.toLowerCase(), " ");
+
+        if (words.length == 1) {
+            return toWordQuery(key, words[0]);
+        }
+
+        BooleanQuery wordsQuery = new BooleanQuery();
+
+        for (String word : words) {
+            wordsQuery.add(toWordQuery(key, word), BooleanClause.Occur.MUST);
+        }
+
+        return wordsQuery;
+    }
+
+    private static Query toWordQuery(final String key, final String word) {
+
+        String prefix = StringUtils.stripEnd(word, SearchAttribute.WILDCARD);
+
+        if (prefix.length() > 0 && prefix.indexOf('*') < 0 && prefix.indexOf('?') < 0) {
+
+            // key:word* includes key:word
+            return new PrefixQuery(new Term(key, prefix));
+        }
+
+        return new WildcardQuery(new Term(key, word));
+    }
+
+    private static String toQueryString(final TextualSearchAttribute singleAttribute, final boolean isFirst) {
+
+        String key = singleAttribute.getKey();
+        String value = singleAttribute.getValue();
+        SearchOperator op = singleAttribute.getSearchOperator();
+
+        if (StringUtils.isBlank(value) || value.equals("\"\"")) {
+            return " " + key + ":" + IMPROBABLE_SEARCH_VALUE + "";
+        }
+
+        // NOT operator should always be applied
+        return (isFirst && !(op.equals(SearchOperator.NOT)) ? "" : " " + op + " ") + expand(key, value);
+
+    }
+
+    private static String expand(final String key, final Object value) {
+
+        if (StringUtils.isBlank(key)) {
+            return "";
+        }
+
+        String stringValue = null;
+        if (value instanceof String) {
+
+            stringValue = (String) value;
+
+            if (StringUtils.isBlank(stringValue)) {
+                return "";
+            }
+        }
+
+        // If value is not a string or starts with operator (exact match, range query, or search operator word),
+        // don't expand
+        if (stringValue == null || stringValue.startsWith("\"") || stringValue.startsWith("[") || stringValue.startsWith("NOT") || stringValue.startsWith("AND") || stringValue.startsWith("OR")) {
+            return " " + key + ":" + value + " ";
+        }
+
+        String result = "( ";
+
+        // Split string into words
+        String[] words = StringUtils.split(stringValue, " ");
+
+        // Expand key,word to ' (key:word* OR key:"word") '
+
+        int i = 1;
+        for (String word : words) {
+
+            result += " (" + key + ":" + word + "* OR " + key + ":\"" + word + "\")" + (i < words.length ? " AND " : " ) ");
+            i++;
+
+        }
+
+        return result;
+    }
+
+    private static String shape(final List<SearchAttribute> searchAttrs) {
+
+        StringBuilder shape = new StringBuilder();
+
+        for (SearchAttribute attr : searchAttrs) {
+            appendShape(shape, attr);
+        }
+
+        return shape.toString();
+    }
+
+    private static void appendShape(final StringBuilder shape, final SearchAttribute attr) {
+
+        shape.append(attr.getClass().getSimpleName()).append('\u0000').append(attr.getSearchOperator()).append('\u0000');
+
+        if (attr instanceof SearchAttributeGroup) {
+
+            shape.append('(');
+
+            for (SearchAttribute groupedAttr : ((SearchAttributeGroup) attr).getSearchAttributes()) {
+                appendShape(shape, groupedAttr);
+            }
+
+            shape.append(')');
+
+        } else if (attr instanceof TextualSearchAttribute) {
+
+            TextualSearchAttribute textualAttr = (TextualSearchAttribute) attr;
+            String kind = (isBlankValue(textualAttr.getValue()) ? "blank" : (isTranslatable(textualAttr) ? "query" : "string"));
+
+            shape.append(textualAttr.getKey()).append('\u0000').append(kind);
+
+        } else if (attr instanceof BooleanSearchAttribute) {
+
+            shape.append(((BooleanSearchAttribute) attr).getKey());
+        }
+
+        shape.append('\u0001');
+    }
+    // </editor-fold>
+
+    // <editor-fold defaultstate="collapsed" desc="private classes">
+    /**
+     * A clause of the planned query: either the query of the textual
+     * attribute in the given slot, or a sub query.
+     */
+    private static class Clause {
+
+        private final int slot;
+        private final List<Clause> subClauses;
+        private BooleanClause.Occur occur = BooleanClause.Occur.SHOULD;
+
+        private Clause(final int slot) {
+            this.slot = slot;
+            this.subClauses = null;
+        }
+
+        private Clause(final List<Clause> subClauses) {
+            this.slot = -1;
+            this.subClauses = subClauses;
+        }
+    }
+    // </editor-fold>
+}
@@ -29,6 +29,7 @@ import org.structr.core.Command;
 import org.structr.core.Services;
 import org.structr.core.entity.AbstractNode;
 import org.structr.core.node.FindNodeCommand;
+import org.structr.core.node.IndexUpdateQueue;
 import org.structr.core.node.NodeServiceCommand;
 import org.structr.core.node.XPath;
 
@@ -57,6 +58,12 @@ public class SearchUserCommand extends NodeServiceCommand {
 
                         String userName = (String) parameters[0];
 
+                        // make index updates of the current thread visible
+                        IndexUpdateQueue indexQueue = (IndexUpdateQueue) arguments.get("indexQueue");
+                        if (indexQueue != null) {
+                            indexQueue.flushOwnUpdates();
+                        }
+
                         for (Node n : index.get(AbstractNode.NAME_KEY, userName)) {
 
                             AbstractNode s = (AbstractNode) findNode.execute(n);
@@ -18,7 +18,9 @@
  */
 package org.structr.ui.page;
 
+import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
 import org.structr.core.entity.Image;
 import org.structr.core.entity.File;
 import org.structr.core.entity.PlainText;
@@ -30,11 +32,19 @@ import java.util.Calendar;
 import java.util.Date;
 import java.util.GregorianCalendar;
 import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
 import java.util.TimeZone;
+import java.util.TreeMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.apache.click.util.Bindable;
 import org.apache.click.Page;
+import org.structr.common.CurrentRequest;
+import org.structr.common.PermissionCache;
+import org.structr.core.Services;
+import org.structr.core.node.FragmentCache;
+import org.structr.core.node.GetFragmentCacheCommand;
 
 /**
  * 
@@ -173,14 +183,160 @@ public class View extends StructrPage {
 
             } else {
 
-                StringBuilder out = new StringBuilder();
-                s.renderView(out, s, editUrl, editNodeId);
+                HttpServletRequest request = getContext().getRequest();
+                HttpServletResponse response = getContext().getResponse();
+
+                FragmentCache fragmentCache = null;
+                FragmentCache.Fragment fragment = null;
+                String fragmentKey = null;
+
+                if (isCacheable(request)) {
+                    fragmentCache = (FragmentCache) Services.command(GetFragmentCacheCommand.class).execute();
+                }
+
+                if (fragmentCache != null) {
+                    fragmentKey = getFragmentKey(s, request);
+                    fragment = fragmentCache.get(fragmentKey);
+                }
+
+                if (fragment == null) {
+
+                    long securityVersion = PermissionCache.getSecurityVersion();
+                    long generation = 0;
+                    int listenerCount = CurrentRequest.getRequestCycleListenerCount();
+                    boolean hadSession = (request.getSession(false) != null);
+                    StringBuilder out = new StringBuilder();
+                    Set<Long> dependencies = null;
+
+                    if (fragmentCache != null) {
+                        generation = fragmentCache.getGeneration();
+                        FragmentCache.startRecording();
+                    }
+
+                    try {
+                        s.renderView(out, s, editUrl, editNodeId);
+
+                    } finally {
+                        if (fragmentCache != null) {
+                            dependencies = FragmentCache.stopRecording();
+                        }
+                    }
+
+                    if (fragmentCache == null || !isCacheable(request, response, listenerCount, hadSession)) {
+
+                        // enable outbound url rewriting rules
+                        output = new StringBuilder(response.encodeURL(out.toString()));
+                        return;
+                    }
+
+                    // the requested node was instantiated before recording started
+                    dependencies.add(s.getId());
+
+                    fragment = fragmentCache.put(fragmentKey, out.toString(), dependencies, securityVersion, generation);
+                }
+
+                // let clients revalidate their copy on every request
+                response.setHeader("ETag", fragment.getETag());
+                response.setHeader("Cache-Control", (user != null ? "private, " : "").concat("no-cache"));
+
+                if (matchesETag(request.getHeader("If-None-Match"), fragment.getETag())) {
+
+                    response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+
+                    // don't render a response body
+                    setPath(null);
+                    return;
+                }
 
                 // enable outbound url rewriting rules
-                output = new StringBuilder(getContext().getResponse().encodeURL(out.toString()));
+                output = new StringBuilder(response.encodeURL(fragment.getContent()));
+
+            }
+        }
+    }
+
+    // <editor-fold defaultstate="collapsed" desc="private methods">
+    /**
+     * Only plain GET requests of regular users are served from the fragment
+     * cache. Edit mode, superuser requests and requests carrying one-off
+     * status messages are always rendered.
+     */
+    private boolean isCacheable(final HttpServletRequest request) {
+
+        if (!"GET".equals(request.getMethod())) {
+            return false;
+        }
 
+        if (editNodeId != null || isSuperUser) {
+            return false;
+        }
+
+        return (request.getParameter(OK_MSG_KEY) == null && request.getParameter(ERROR_MSG_KEY) == null);
+    }
+
+    /**
+     * Output is not cached if rendering had side effects a cache hit would
+     * skip: registered request cycle listeners, a redirect, or a session
+     * created by rendering (the output depends on a session the fragment
+     * key doesn't contain).
+     */
+    private boolean isCacheable(final HttpServletRequest request, final HttpServletResponse response, final int listenerCount, final boolean hadSession) {
+
+        if (CurrentRequest.getRequestCycleListenerCount() != listenerCount) {
+            return false;
+        }
+
+        // e.g. by a redirect
+        if (response.isCommitted()) {
+            return false;
+        }
+
+        return (hadSession || request.getSession(false) == null);
+    }
+
+    /**
+     * Build the fragment key from the node id, the requesting user, the
+     * session and the (sorted) request parameters. Output may depend on
+     * session attributes, so fragments are only shared by visitors
+     * without a session.
+     */
+    private String getFragmentKey(final AbstractNode node, final HttpServletRequest request) {
 
+        StringBuilder key = new StringBuilder(64);
+        HttpSession session = request.getSession(false);
+
+        key.append(node.getId()).append('/');
+        key.append(user != null ? user.getIdString() : "anonymous").append('/');
+        key.append(session != null ? session.getId() : "-").append('?');
+
+        Map<String, String[]> parameters = new TreeMap<String, String[]>(request.getParameterMap());
+
+        for (Map.Entry<String, String[]> entry : parameters.entrySet()) {
+
+            for (String value : entry.getValue()) {
+                key.append(entry.getKey()).append('=').append(value).append('&');
             }
         }
+
+        return key.toString();
+    }
+
+    private boolean matchesETag(final String ifNoneMatch, final String etag) {
+
+        if (ifNoneMatch == null) {
+            return false;
+        }
+
+        for (String candidate : ifNoneMatch.split(",")) {
+
+            candidate = candidate.trim();
+
+            if (candidate.equals(etag) || candidate.equals("*")) {
+                return true;
+            }
+        }
+
+        return false;
     }
+    // </editor-fold>
 }
@@ -37,6 +37,7 @@ import org.apache.click.control.Decorator;
 import org.apache.click.control.PageLink;
 import org.apache.click.control.Table;
 import org.apache.click.dataprovider.DataProvider;
+import org.apache.click.dataprovider.PagingDataProvider;
 import org.apache.click.service.ConfigService;
 import org.apache.click.util.Bindable;
 import org.apache.commons.lang.RandomStringUtils;
@@ -46,7 +47,9 @@ import org.structr.context.SessionMonitor.Session;
 import org.structr.core.Command;
 import org.structr.core.Service;
 import org.structr.core.Services;
+import org.structr.core.agent.ListTaskMetricsCommand;
 import org.structr.core.agent.ProcessTaskCommand;
+import org.structr.core.agent.TaskMetrics;
 import org.structr.core.agent.RebuildIndexTask;
 import org.structr.core.agent.UpdateImageMetadataTask;
 import org.structr.core.entity.Image;
@@ -55,9 +58,9 @@ import org.structr.core.entity.StructrRelationship;
 import org.structr.core.entity.SuperUser;
 import org.structr.core.entity.User;
 import org.structr.core.entity.log.Activity;
-import org.structr.core.entity.log.LogNodeList;
-import org.structr.core.entity.log.PageRequest;
-import org.structr.core.log.GetGlobalLogCommand;
+import org.structr.core.log.CountActivitiesCommand;
+import org.structr.core.log.GetActivitiesCommand;
+import org.structr.core.log.GetDailyActivityCountsCommand;
 import org.structr.core.module.GetEntitiesCommand;
 import org.structr.core.module.ListModulesCommand;
 import org.structr.core.module.ReloadModulesCommand;
@@ -90,7 +93,11 @@ public class Maintenance extends Admin {
     @Bindable
     protected Table activitiesTable = new Table("activitiesTable");
     @Bindable
+    protected Table activityCountsTable = new Table("activityCountsTable");
+    @Bindable
     protected Table servicesTable = new Table("servicesTable");
+    @Bindable
+    protected Table taskMetricsTable = new Table("taskMetricsTable");
 //    @Bindable
 //    protected Table taskQueueTable = new Table("taskQueueTable");
     @Bindable
@@ -192,19 +199,36 @@ public class Maintenance extends Admin {
         endTimestampColumn.setFormat("{0,date,medium} {0,time,medium}");
         activitiesTable.addColumn(endTimestampColumn);
         activitiesTable.addColumn(new Column(Activity.ACTIVITY_TEXT_KEY));
-        activitiesTable.setSortedColumn(Activity.START_TIMESTAMP_KEY);
-        activitiesTable.setSortable(true);
-        activitiesTable.setSortedAscending(false);
+        // activities are returned newest first
+        activitiesTable.setSortable(false);
         activitiesTable.setPageSize(15);
         activitiesTable.setHoverRows(true);
         activitiesTable.setShowBanner(true);
         activitiesTable.setClass(TABLE_CLASS);
 
+        activityCountsTable.addColumn(new Column("key", "Day"));
+        activityCountsTable.addColumn(new Column("value", "Activities"));
+        activityCountsTable.setClass(TABLE_CLASS);
+
         servicesTable.addColumn(new Column("Name"));
         servicesTable.addColumn(new Column("isRunning", "Running"));
         servicesTable.setSortable(true);
         servicesTable.setClass(TABLE_CLASS);
 
+        taskMetricsTable.addColumn(new Column("name", "Task Type"));
+        taskMetricsTable.addColumn(new Column("count", "Count"));
+        taskMetricsTable.addColumn(new Column("failureCount", "Failures"));
+        taskMetricsTable.addColumn(new Column("retryCount", "Retries"));
+        taskMetricsTable.addColumn(new Column("throughput", "Tasks/s"));
+        taskMetricsTable.addColumn(new Column("latencyP50", "p50 [ms]"));
+        taskMetricsTable.addColumn(new Column("latencyP95", "p95 [ms]"));
+        taskMetricsTable.addColumn(new Column("latencyP99", "p99 [ms]"));
+        taskMetricsTable.addColumn(new Column("queueWaitP50", "Wait p50 [ms]"));
+        taskMetricsTable.addColumn(new Column("queueWaitP95", "Wait p95 [ms]"));
+        taskMetricsTable.addColumn(new Column("queueWaitP99", "Wait p99 [ms]"));
+        taskMetricsTable.setSortable(true);
+        taskMetricsTable.setClass(TABLE_CLASS);
+
 //        taskQueueTable.addColumn(new Column("type"));
 //        taskQueueTable.addColumn(new Column("user"));
 //        taskQueueTable.addColumn(new Column("priority"));
@@ -283,33 +307,38 @@ public class Maintenance extends Admin {
             return;
         }
 
-        // fill table with logged activities
-        activitiesTable.setDataProvider(new DataProvider() {
+        // fill table with logged activities, one page at a time
+        activitiesTable.setDataProvider(new PagingDataProvider() {
 
             @Override
             public List<Activity> getData() {
 
-                List<Activity> result = new LinkedList<Activity>();
+                int offset = activitiesTable.getPageNumber() * activitiesTable.getPageSize();
 
-                LogNodeList<AbstractNode> globalLog = (LogNodeList<AbstractNode>) Services.command(GetGlobalLogCommand.class).execute();
+                return (List<Activity>) Services.command(GetActivitiesCommand.class).execute(offset, activitiesTable.getPageSize());
+            }
 
-                if (globalLog != null) {
+            @Override
+            public int size() {
+                return (Integer) Services.command(CountActivitiesCommand.class).execute();
+            }
+        });
 
-                    for (AbstractNode s : globalLog) {
+        // fill table with activity counts of the last days
+        activityCountsTable.setDataProvider(new DataProvider() {
 
-                        if (s instanceof PageRequest) {
-//                            PageRequest p = new PageRequest();
-//                            p.init(s);
-                            result.add((PageRequest) s);
-                        } else {
-//                            Activity a = new Activity();
-//                            a.init(s);
-                            result.add((Activity) s);
-                        }
-                    }
+            @Override
+            public List<Entry<String, Integer>> getData() {
+
+                List<Entry<String, Integer>> counts = new LinkedList<Entry<String, Integer>>();
+
+                Map<String, Integer> dailyCounts = (Map<String, Integer>) Services.command(GetDailyActivityCountsCommand.class).execute(7);
+
+                for (Entry<String, Integer> entry : dailyCounts.entrySet()) {
+                    counts.add(new AbstractMap.SimpleEntry<String, Integer>(entry.getKey(), entry.getValue()));
                 }
-                return result;
 
+                return counts;
             }
         });
 
@@ -346,6 +375,18 @@ public class Maintenance extends Admin {
             }
         });
 
+        // fill table with execution metrics per task type
+        taskMetricsTable.setDataProvider(new DataProvider() {
+
+            @Override
+            public List<TaskMetrics> getData() {
+
+                List<TaskMetrics> metrics = (List<TaskMetrics>) Services.command(ListTaskMetricsCommand.class).execute();
+
+                return (metrics != null ? metrics : new LinkedList<TaskMetrics>());
+            }
+        });
+
         // assemble data for parameter tables
         initValuesTable.setDataProvider(new DataProvider() {
 
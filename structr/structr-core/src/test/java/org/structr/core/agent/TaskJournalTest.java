@@ -0,0 +1,250 @@
+/*
+ *  Copyright (C) 2011 Axel Morgner, structr <structr@structr.org>
+ * 
+ *  This file is part of structr <http://structr.org>.
+ * 
+ *  structr is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ * 
+ *  structr is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ * 
+ *  You should have received a copy of the GNU General Public License
+ *  along with structr.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.structr.core.agent;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import junit.framework.TestCase;
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Tests the failure and recovery paths of {@see TaskJournal}.
+ *
+ * @author amorgner
+ */
+public class TaskJournalTest extends TestCase {
+
+    private File directory = null;
+    private TaskJournal journal = null;
+
+    @Override
+    protected void setUp() throws Exception {
+
+        directory = File.createTempFile("structr-task-journal", "");
+        directory.delete();
+        directory.mkdirs();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+
+        if (journal != null) {
+            journal.close();
+        }
+
+        FileUtils.deleteDirectory(directory);
+    }
+
+    public void testUnacknowledgedTasksAreRestored() throws IOException {
+
+        journal = open();
+
+        long done = journal.append(new RebuildIndexTask(true));
+        journal.append(new RebuildIndexTask(false));
+        journal.ack(done);
+
+        // simulate a restart
+        journal.close();
+        journal = new TaskJournal(directory, TaskJournal.DefaultSyncInterval, TaskJournal.DefaultSegmentSize);
+
+        Map<Long, PersistentTask> restored = journal.open();
+
+        assertEquals(1, restored.size());
+        assertEquals(1, journal.size());
+
+        PersistentTask task = restored.values().iterator().next();
+
+        assertTrue(task instanceof RebuildIndexTask);
+        assertFalse(((RebuildIndexTask) task).isResume());
+    }
+
+    public void testRestoredTasksSurviveAnotherRestart() throws IOException {
+
+        journal = open();
+        journal.append(new RebuildIndexTask(true));
+        journal.close();
+
+        // restored, but not processed before the next restart
+        journal = open();
+        assertEquals(1, journal.size());
+        journal.close();
+
+        journal = new TaskJournal(directory, TaskJournal.DefaultSyncInterval, TaskJournal.DefaultSegmentSize);
+        Map<Long, PersistentTask> restored = journal.open();
+
+        assertEquals(1, restored.size());
+
+        // processed now, nothing left after the next restart
+        journal.ack(restored.keySet().iterator().next());
+        journal.close();
+
+        journal = open();
+        assertEquals(0, journal.size());
+    }
+
+    public void testCorruptRecordsAreSkipped() throws IOException {
+
+        journal = open();
+        journal.append(new RebuildIndexTask(true));
+        journal.close();
+
+        // a record of an unknown task type and a torn record, as left by a crash
+        File[] segments = getSegmentFiles();
+        assertEquals(1, segments.length);
+
+        Writer writer = new OutputStreamWriter(new FileOutputStream(segments[0], true), "UTF-8");
+        writer.write("+100\torg.structr.NoSuchTask\tresume=true\n");
+        writer.write("-1x");
+        writer.close();
+
+        journal = new TaskJournal(directory, TaskJournal.DefaultSyncInterval, TaskJournal.DefaultSegmentSize);
+        Map<Long, PersistentTask> restored = journal.open();
+
+        assertEquals(1, restored.size());
+        assertTrue(((RebuildIndexTask) restored.values().iterator().next()).isResume());
+    }
+
+    public void testAcknowledgedSegmentsAreDeleted() throws IOException {
+
+        // smallest segment size, to roll over segments quickly
+        journal = new TaskJournal(directory, TaskJournal.DefaultSyncInterval, 0);
+        journal.open();
+
+        List<Long> ids = new ArrayList<Long>();
+
+        for (int i = 0; i < 200; i++) {
+            ids.add(journal.append(new RebuildIndexTask(true)));
+        }
+
+        assertTrue(getSegmentFiles().length > 1);
+
+        for (Long id : ids) {
+            journal.ack(id);
+        }
+
+        assertEquals(0, journal.size());
+
+        // only the current segment is left
+        assertEquals(1, getSegmentFiles().length);
+    }
+
+    public void testAcknowledgementsSurviveSegmentRoll() throws IOException {
+
+        // smallest segment size, to roll over segments quickly
+        journal = new TaskJournal(directory, TaskJournal.DefaultSyncInterval, 0);
+        journal.open();
+
+        long first = journal.append(new RebuildIndexTask(true));
+        journal.append(new RebuildIndexTask(false));
+        List<Long> ids = fillSegment();
+
+        // the second segment holds a task and the acknowledgements of the first one
+        long second = journal.append(new RebuildIndexTask(true));
+
+        journal.ack(first);
+
+        for (Long id : ids) {
+            journal.ack(id);
+        }
+
+        ids = fillSegment();
+
+        // all tasks of the second segment are done, but the first one is still live
+        journal.ack(second);
+
+        for (Long id : ids) {
+            journal.ack(id);
+        }
+
+        // simulate a restart
+        journal.close();
+        journal = new TaskJournal(directory, TaskJournal.DefaultSyncInterval, TaskJournal.DefaultSegmentSize);
+
+        Map<Long, PersistentTask> restored = journal.open();
+
+        assertEquals(1, restored.size());
+        assertFalse(((RebuildIndexTask) restored.values().iterator().next()).isResume());
+
+        // the remaining task is acknowledged, nothing is left after the next restart
+        journal.ack(restored.keySet().iterator().next());
+        journal.close();
+
+        journal = open();
+        assertEquals(0, journal.size());
+    }
+
+    public void testAppendToClosedJournalFails() throws IOException {
+
+        journal = open();
+        journal.close();
+
+        try {
+            journal.append(new RebuildIndexTask(true));
+            fail("Appending to a closed journal must fail");
+
+        } catch (IOException expected) {
+        }
+    }
+
+    // <editor-fold defaultstate="collapsed" desc="private methods">
+    private TaskJournal open() throws IOException {
+
+        TaskJournal newJournal = new TaskJournal(directory, TaskJournal.DefaultSyncInterval, TaskJournal.DefaultSegmentSize);
+        newJournal.open();
+
+        return newJournal;
+    }
+
+    /**
+     * Appends tasks until the journal rolls over to a new segment. The
+     * last task returned is the first one in the new segment.
+     */
+    private List<Long> fillSegment() throws IOException {
+
+        List<Long> ids = new ArrayList<Long>();
+        int segments = getSegmentFiles().length;
+
+        for (int i = 0; i < 200 && getSegmentFiles().length == segments; i++) {
+            ids.add(journal.append(new RebuildIndexTask(true)));
+        }
+
+        return ids;
+    }
+
+    private File[] getSegmentFiles() {
+
+        List<File> segments = new ArrayList<File>();
+
+        for (File file : directory.listFiles()) {
+
+            if (file.getName().endsWith(".journal")) {
+                segments.add(file);
+            }
+        }
+
+        return segments.toArray(new File[segments.size()]);
+    }
+    // </editor-fold>
+}
@@ -0,0 +1,211 @@
+/*
+ *  Copyright (C) 2011 Axel Morgner, structr <structr@structr.org>
+ * 
+ *  This file is part of structr <http://structr.org>.
+ * 
+ *  structr is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ * 
+ *  structr is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ * 
+ *  You should have received a copy of the GNU General Public License
+ *  along with structr.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.structr.core.entity;
+
+import java.io.File;
+import junit.framework.TestCase;
+import org.apache.commons.io.FileUtils;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+import org.structr.common.RelType;
+import org.structr.common.StandaloneTestHelper;
+import org.structr.core.Command;
+import org.structr.core.Services;
+import org.structr.core.node.DeleteNodeCommand;
+import org.structr.core.node.GraphDatabaseCommand;
+import org.structr.core.node.NodeFactoryCommand;
+import org.structr.core.node.StructrTransaction;
+import org.structr.core.node.TransactionCommand;
+
+/**
+ * Tests that the stored size of a {@see NodeList} stays consistent with its
+ * chain when members are deleted.
+ *
+ * @author amorgner
+ */
+public class NodeListSizeTest extends TestCase {
+
+    private File databaseDir = null;
+    private GraphDatabaseService graphDb = null;
+    private Command factory = null;
+    private Command transaction = null;
+
+    @Override
+    protected void setUp() throws Exception {
+
+        databaseDir = File.createTempFile("structr-node-list", "");
+        databaseDir.delete();
+        databaseDir.mkdirs();
+
+        StandaloneTestHelper.prepareStandaloneTest(databaseDir.getAbsolutePath() + File.separator);
+
+        graphDb = (GraphDatabaseService) Services.command(GraphDatabaseCommand.class).execute();
+        factory = Services.command(NodeFactoryCommand.class);
+        transaction = Services.command(TransactionCommand.class);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+
+        StandaloneTestHelper.finishStandaloneTest();
+
+        FileUtils.deleteDirectory(databaseDir);
+    }
+
+    public void testDeletedMemberIsRemovedFromList() {
+
+        NodeList<AbstractNode> list = createList();
+        AbstractNode first = createNode("PlainText");
+        AbstractNode second = createNode("PlainText");
+        AbstractNode third = createNode("PlainText");
+
+        list.add(first);
+        list.add(second);
+        list.add(third);
+
+        assertEquals(3, list.size());
+
+        Services.command(DeleteNodeCommand.class).execute(second, null);
+
+        assertEquals(2, list.size());
+        assertEquals(first.getId(), list.get(0).getId());
+        assertEquals(third.getId(), list.get(1).getId());
+        assertFalse(list.contains(second));
+
+        Services.command(DeleteNodeCommand.class).execute(first, null);
+        Services.command(DeleteNodeCommand.class).execute(third, null);
+
+        assertEquals(0, list.size());
+        assertTrue(list.isEmpty());
+    }
+
+    public void testStaleSizeIsCountedAgain() {
+
+        NodeList<AbstractNode> list = createList();
+        AbstractNode member = createNode("PlainText");
+
+        list.add(member);
+
+        assertEquals(1, list.size());
+
+        // delete the member behind the list's back, leaving the stored size stale
+        deleteRaw(member);
+
+        assertTrue(list.isEmpty());
+        assertEquals(0, list.size());
+
+        // the recounted size is stored and used for further modifications
+        AbstractNode other = createNode("PlainText");
+
+        list.add(other);
+
+        assertEquals(1, list.size());
+        assertEquals(other.getId(), list.getFirstNode().getId());
+    }
+
+    public void testSizeIsCorrectedAfterMiddleMemberDeleted() {
+
+        NodeList<AbstractNode> list = createList();
+        AbstractNode[] members = new AbstractNode[5];
+
+        for (int i = 0; i < members.length; i++) {
+            members[i] = createNode("PlainText");
+            list.add(members[i]);
+        }
+
+        assertEquals(5, list.size());
+
+        // delete a middle member behind the list's back, which cuts the chain
+        deleteRaw(members[2]);
+
+        // the list is not empty, so the stored size is not checked yet
+        assertEquals(5, list.size());
+
+        // a walk over the whole list finds two elements and corrects the size
+        Object[] elements = list.toArray();
+
+        assertEquals(2, elements.length);
+        assertEquals(2, list.size());
+        assertEquals(members[0].getId(), list.get(0).getId());
+        assertEquals(members[1].getId(), list.get(1).getId());
+    }
+
+    public void testPositionalAccessRecountsAfterMiddleMemberDeleted() {
+
+        NodeList<AbstractNode> list = createList();
+        AbstractNode[] members = new AbstractNode[5];
+
+        for (int i = 0; i < members.length; i++) {
+            members[i] = createNode("PlainText");
+            list.add(members[i]);
+        }
+
+        deleteRaw(members[2]);
+
+        // walks back from the last element and runs into the gap
+        list.get(2);
+
+        assertEquals(2, list.size());
+    }
+
+    private NodeList<AbstractNode> createList() {
+        return ((NodeList<AbstractNode>) createNode("NodeList"));
+    }
+
+    /**
+     * Deletes the given node and its relationships without going
+     * through {@see DeleteNodeCommand}.
+     */
+    private void deleteRaw(final AbstractNode node) {
+
+        final Node dbNode = node.getNode();
+
+        transaction.execute(new StructrTransaction() {
+
+            @Override
+            public Object execute() throws Throwable {
+
+                for (Relationship rel : dbNode.getRelationships()) {
+                    rel.delete();
+                }
+
+                dbNode.delete();
+
+                return (null);
+            }
+        });
+    }
+
+    private AbstractNode createNode(final String type) {
+
+        return ((AbstractNode) transaction.execute(new StructrTransaction() {
+
+            @Override
+            public Object execute() throws Throwable {
+
+                Node node = graphDb.createNode();
+                node.setProperty(AbstractNode.TYPE_KEY, type);
+                graphDb.getReferenceNode().createRelationshipTo(node, RelType.HAS_CHILD);
+
+                return (factory.execute(node));
+            }
+        }));
+    }
+}
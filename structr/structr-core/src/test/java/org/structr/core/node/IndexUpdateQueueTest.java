@@ -0,0 +1,220 @@
+/*
+ *  Copyright (C) 2011 Axel Morgner, structr <structr@structr.org>
+ * 
+ *  This file is part of structr <http://structr.org>.
+ * 
+ *  structr is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ * 
+ *  structr is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ * 
+ *  You should have received a copy of the GNU General Public License
+ *  along with structr.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.structr.core.node;
+
+import java.io.File;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+import junit.framework.TestCase;
+import org.apache.commons.io.FileUtils;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.graphdb.index.Index;
+import org.neo4j.kernel.EmbeddedGraphDatabase;
+
+/**
+ * Tests the failure and recovery paths of {@see IndexUpdateQueue}.
+ *
+ * @author amorgner
+ */
+public class IndexUpdateQueueTest extends TestCase {
+
+    private static final String KEY = "name";
+    private final Map<Long, Integer> failingNodes = new HashMap<Long, Integer>();
+    private File databaseDir = null;
+    private GraphDatabaseService graphDb = null;
+    private Index<Node> realIndex = null;
+    private IndexUpdateQueue queue = null;
+
+    @Override
+    protected void setUp() throws Exception {
+
+        databaseDir = File.createTempFile("structr-index-queue", "");
+        databaseDir.delete();
+        databaseDir.mkdirs();
+
+        graphDb = new EmbeddedGraphDatabase(databaseDir.getAbsolutePath());
+        realIndex = graphDb.index().forNodes("test");
+
+        // no background writer, the tests flush explicitly
+        queue = new IndexUpdateQueue(graphDb, createFailingIndex(), 100, 0);
+        graphDb.registerTransactionEventHandler(queue);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+
+        graphDb.unregisterTransactionEventHandler(queue);
+        graphDb.shutdown();
+
+        FileUtils.deleteDirectory(databaseDir);
+    }
+
+    public void testFailedBatchIsRetriedNodeByNode() {
+
+        Node a = createNode("a");
+        Node b = createNode("b");
+        Node c = createNode("c");
+
+        // b fails once, i.e. the batch fails, but b succeeds on retry
+        failingNodes.put(b.getId(), 1);
+
+        queueUpdates(a, b, c);
+        queue.flush();
+
+        assertEquals(0, queue.getQueueSize());
+        assertEquals(3, queue.getIndexedCount());
+        assertEquals(0, queue.getFailureCount());
+        assertIndexed(a, "a");
+        assertIndexed(b, "b");
+        assertIndexed(c, "c");
+    }
+
+    public void testFailingUpdateIsDroppedAfterMaxAttempts() {
+
+        Node a = createNode("a");
+        Node b = createNode("b");
+        Node c = createNode("c");
+
+        failingNodes.put(b.getId(), Integer.MAX_VALUE);
+
+        queueUpdates(a, b, c);
+        queue.flush();
+
+        // only the update that really failed is lost
+        assertEquals(0, queue.getQueueSize());
+        assertEquals(1, queue.getFailureCount());
+        assertEquals(IndexUpdateQueue.MaxAttempts - 1, queue.getRetryCount());
+        assertIndexed(a, "a");
+        assertIndexed(c, "c");
+        assertNull(realIndex.get(KEY, "b").getSingle());
+    }
+
+    public void testFlushOwnUpdatesLeavesOtherUpdatesQueued() throws InterruptedException {
+
+        final Node a = createNode("a");
+        final Node b = createNode("b");
+
+        Thread other = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                queueUpdates(b);
+            }
+        });
+
+        other.start();
+        other.join();
+
+        queueUpdates(a);
+        queue.flushOwnUpdates();
+
+        assertIndexed(a, "a");
+        assertNull(realIndex.get(KEY, "b").getSingle());
+        assertEquals(1, queue.getQueueSize());
+
+        queue.flush();
+
+        assertIndexed(b, "b");
+        assertEquals(0, queue.getQueueSize());
+    }
+
+    // <editor-fold defaultstate="collapsed" desc="private methods">
+    private Node createNode(final String name) {
+
+        Transaction tx = graphDb.beginTx();
+
+        try {
+            Node node = graphDb.createNode();
+            node.setProperty(KEY, name);
+
+            tx.success();
+
+            return node;
+
+        } finally {
+            tx.finish();
+        }
+    }
+
+    /**
+     * Touch the given nodes and add index updates for them in one transaction.
+     */
+    private void queueUpdates(final Node... nodes) {
+
+        Transaction tx = graphDb.beginTx();
+
+        try {
+
+            for (Node node : nodes) {
+
+                node.setProperty(KEY, node.getProperty(KEY));
+                queue.add(node.getId(), KEY);
+            }
+
+            tx.success();
+
+        } finally {
+            tx.finish();
+        }
+    }
+
+    private void assertIndexed(final Node node, final String value) {
+        assertEquals(node, realIndex.get(KEY, value).getSingle());
+    }
+
+    /**
+     * Returns an index that fails to add the nodes in failingNodes
+     * as often as configured, and delegates to the real index otherwise.
+     */
+    private Index<Node> createFailingIndex() {
+
+        return (Index<Node>) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[]{Index.class}, new InvocationHandler() {
+
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+
+                if ("add".equals(method.getName()) && args[0] instanceof Node) {
+
+                    long id = ((Node) args[0]).getId();
+                    Integer failures = failingNodes.get(id);
+
+                    if (failures != null && failures > 0) {
+
+                        failingNodes.put(id, failures - 1);
+                        throw new IllegalStateException("Simulated index failure for node " + id);
+                    }
+                }
+
+                try {
+                    return method.invoke(realIndex, args);
+
+                } catch (InvocationTargetException itex) {
+                    throw itex.getCause();
+                }
+            }
+        });
+    }
+    // </editor-fold>
+}
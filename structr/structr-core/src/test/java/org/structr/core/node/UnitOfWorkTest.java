@@ -0,0 +1,216 @@
+/*
+ *  Copyright (C) 2011 Axel Morgner, structr <structr@structr.org>
+ * 
+ *  This file is part of structr <http://structr.org>.
+ * 
+ *  structr is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ * 
+ *  structr is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ * 
+ *  You should have received a copy of the GNU General Public License
+ *  along with structr.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.structr.core.node;
+
+import java.io.File;
+import java.util.HashSet;
+import java.util.Set;
+import junit.framework.TestCase;
+import org.apache.commons.io.FileUtils;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.kernel.EmbeddedGraphDatabase;
+
+/**
+ * Tests the failure paths of {@see UnitOfWork} and {@see UnitOfWorkCommand}.
+ *
+ * @author amorgner
+ */
+public class UnitOfWorkTest extends TestCase {
+
+    private static final String KEY = "name";
+    private File databaseDir = null;
+    private GraphDatabaseService graphDb = null;
+    private TransactionCommand transactionCommand = null;
+    private UnitOfWorkCommand unitOfWorkCommand = null;
+
+    @Override
+    protected void setUp() throws Exception {
+
+        databaseDir = File.createTempFile("structr-unit-of-work", "");
+        databaseDir.delete();
+        databaseDir.mkdirs();
+
+        graphDb = new EmbeddedGraphDatabase(databaseDir.getAbsolutePath());
+
+        transactionCommand = new TransactionCommand();
+        transactionCommand.setArgument("graphDb", graphDb);
+
+        unitOfWorkCommand = new UnitOfWorkCommand();
+        unitOfWorkCommand.setArgument("graphDb", graphDb);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+
+        graphDb.shutdown();
+
+        FileUtils.deleteDirectory(databaseDir);
+    }
+
+    public void testAllBatchesAreCommitted() {
+
+        unitOfWorkCommand.execute(new StructrTransaction() {
+
+            @Override
+            public Object execute() throws Throwable {
+
+                for (int i = 0; i < 5; i++) {
+                    createNode("node" + i);
+                }
+
+                return null;
+            }
+        }, 2);
+
+        assertNull(UnitOfWork.getCurrent());
+        assertEquals(5, getNames().size());
+    }
+
+    public void testFailedOperationAbortsUnitOfWork() {
+
+        final IllegalStateException error = new IllegalStateException("test");
+
+        try {
+
+            unitOfWorkCommand.execute(new StructrTransaction() {
+
+                @Override
+                public Object execute() throws Throwable {
+
+                    // first batch is committed
+                    createNode("a");
+                    createNode("b");
+
+                    // second batch is rolled back
+                    createNode("c");
+                    failingOperation(error);
+
+                    // never executed
+                    createNode("d");
+
+                    return null;
+                }
+            }, 2);
+
+            fail("Failed unit of work must throw");
+
+        } catch (UnitOfWorkFailedException e) {
+
+            assertSame(error, e.getCause());
+        }
+
+        assertNull(UnitOfWork.getCurrent());
+
+        Set<String> names = getNames();
+
+        assertEquals(2, names.size());
+        assertTrue(names.contains("a"));
+        assertTrue(names.contains("b"));
+    }
+
+    public void testSwallowedFailureIsRethrownToCaller() {
+
+        final IllegalStateException error = new IllegalStateException("test");
+        final boolean[] rejected = new boolean[1];
+
+        try {
+
+            unitOfWorkCommand.execute(new StructrTransaction() {
+
+                @Override
+                public Object execute() throws Throwable {
+
+                    createNode("a");
+
+                    try {
+                        failingOperation(error);
+
+                    } catch (UnitOfWorkFailedException e) {
+                        // ignored by the caller
+                    }
+
+                    // the unit of work is aborted, no further operation runs
+                    try {
+                        createNode("b");
+
+                    } catch (UnitOfWorkFailedException e) {
+                        rejected[0] = true;
+                    }
+
+                    return null;
+                }
+            }, 100);
+
+            fail("Failed unit of work must throw");
+
+        } catch (UnitOfWorkFailedException e) {
+
+            assertSame(error, e.getCause());
+        }
+
+        assertTrue(rejected[0]);
+        assertTrue(getNames().isEmpty());
+    }
+
+    // <editor-fold defaultstate="collapsed" desc="private methods">
+    private void createNode(final String name) {
+
+        transactionCommand.execute(new StructrTransaction() {
+
+            @Override
+            public Object execute() throws Throwable {
+
+                Node node = graphDb.createNode();
+                node.setProperty(KEY, name);
+
+                return node;
+            }
+        });
+    }
+
+    private void failingOperation(final Throwable error) {
+
+        transactionCommand.execute(new StructrTransaction() {
+
+            @Override
+            public Object execute() throws Throwable {
+
+                graphDb.createNode().setProperty(KEY, "failed");
+
+                throw error;
+            }
+        });
+    }
+
+    private Set<String> getNames() {
+
+        Set<String> names = new HashSet<String>();
+
+        for (Node node : graphDb.getAllNodes()) {
+
+            if (node.hasProperty(KEY)) {
+                names.add((String) node.getProperty(KEY));
+            }
+        }
+
+        return names;
+    }
+    // </editor-fold>
+}
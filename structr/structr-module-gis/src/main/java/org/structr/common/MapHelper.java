@@ -51,13 +51,16 @@ import java.awt.Rectangle;
 import java.awt.RenderingHints;
 import java.awt.Shape;
 import java.awt.Stroke;
+import java.io.IOException;
 import java.io.StringWriter;
+import java.io.Writer;
+import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.HashMap;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Level;
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
+import org.apache.batik.dom.GenericDOMImplementation;
 import org.apache.batik.svggen.DOMGroupManager;
 import org.apache.batik.svggen.SVGGeneratorContext;
 import org.apache.batik.svggen.SVGGraphics2D;
@@ -89,10 +92,17 @@ import org.opengis.filter.FilterFactory;
 import org.opengis.filter.expression.Expression;
 import org.structr.core.entity.geo.GeoObject;
 import org.structr.core.entity.geo.MetaDataShape;
+import org.w3c.dom.DOMImplementation;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 
 /**
+ * Helper methods for map rendering.
+ *
+ * All methods are thread-safe, so maps can be rendered concurrently.
+ * Symbolizers and styles are cached by their parameters and must not be
+ * modified by the caller, and the spatial data store is shared for the
+ * lifetime of the graph database.
  *
  * @author axel
  */
@@ -102,8 +112,13 @@ public abstract class MapHelper {
     public static FilterFactory filterFactory = CommonFactoryFinder.getFilterFactory(null);
     public static StyleFactory styleFactory = CommonFactoryFinder.getStyleFactory(null);
     public static FilterFactory featureFactory = CommonFactoryFinder.getFilterFactory(null);
-
-
+    private static final int MaxCacheSize = 1000;
+    private static final Map<String, Symbolizer> symbolizerCache = new ConcurrentHashMap<String, Symbolizer>();
+    private static final Map<List<Symbolizer>, Style> styleCache = new ConcurrentHashMap<List<Symbolizer>, Style>();
+    private static final DOMImplementation domImplementation = GenericDOMImplementation.getDOMImplementation();
+    private static GraphDatabaseService spatialGraphDb = null;
+    private static Neo4jSpatialDataStore spatialDataStore = null;
+    private static SpatialDatabaseService spatialService = null;
 
     /**
      * Create a Symbolizer to draw polygon features with given line and fill style
@@ -111,6 +126,20 @@ public abstract class MapHelper {
     public static Symbolizer createPolygonSymbolizer(final String lineColor, final int lineWidth, final double lineOpacity,
             final String fillColor, final double fillOpacity) {
 
+        String key = cacheKey("polygon", lineColor, lineWidth, lineOpacity, fillColor, fillOpacity);
+        Symbolizer sym = symbolizerCache.get(key);
+
+        if (sym == null) {
+            sym = buildPolygonSymbolizer(lineColor, lineWidth, lineOpacity, fillColor, fillOpacity);
+            cacheSymbolizer(key, sym);
+        }
+
+        return sym;
+    }
+
+    private static Symbolizer buildPolygonSymbolizer(final String lineColor, final int lineWidth, final double lineOpacity,
+            final String fillColor, final double fillOpacity) {
+
         // create a partially opaque outline stroke
         org.geotools.styling.Stroke stroke = styleFactory.createStroke(
                 filterFactory.literal(Color.decode(lineColor)),
@@ -138,15 +167,7 @@ public abstract class MapHelper {
     public static Style createPolygonStyle(final String lineColor, final int lineWidth, final double lineOpacity,
             final String fillColor, final double fillOpacity) {
 
-        Symbolizer sym = createPolygonSymbolizer(lineColor, lineWidth, lineOpacity, fillColor, fillOpacity);
-
-        Rule rule = styleFactory.createRule();
-        rule.symbolizers().add(sym);
-        FeatureTypeStyle fts = styleFactory.createFeatureTypeStyle(new Rule[]{rule});
-        Style style = styleFactory.createStyle();
-        style.featureTypeStyles().add(fts);
-
-        return style;
+        return createStyle(createPolygonSymbolizer(lineColor, lineWidth, lineOpacity, fillColor, fillOpacity));
     }
 
 
@@ -165,6 +186,19 @@ public abstract class MapHelper {
      */
     public static Symbolizer createPointSymbolizer(final String shape, final int diam, final String strokeColor, final int lineWidth, final String fillColor, final double fillOpacity) {
 
+        String key = cacheKey("point", shape, diam, strokeColor, lineWidth, fillColor, fillOpacity);
+        Symbolizer sym = symbolizerCache.get(key);
+
+        if (sym == null) {
+            sym = buildPointSymbolizer(shape, diam, strokeColor, lineWidth, fillColor, fillOpacity);
+            cacheSymbolizer(key, sym);
+        }
+
+        return sym;
+    }
+
+    private static Symbolizer buildPointSymbolizer(final String shape, final int diam, final String strokeColor, final int lineWidth, final String fillColor, final double fillOpacity) {
+
         Mark mark = styleFactory.createMark();
 
         mark.setWellKnownName(filterFactory.literal(shape));
@@ -205,15 +239,7 @@ public abstract class MapHelper {
      */
     public static Style createPointStyle(final String shape, final int diam, final String strokeColor, final int lineWidth, final String fillColor, final double fillOpacity) {
 
-        Symbolizer sym = createPointSymbolizer(shape, diam, strokeColor, lineWidth, fillColor, fillOpacity);
-
-        Rule rule = styleFactory.createRule();
-        rule.symbolizers().add(sym);
-        FeatureTypeStyle fts = styleFactory.createFeatureTypeStyle(new Rule[]{rule});
-        Style style = styleFactory.createStyle();
-        style.featureTypeStyles().add(fts);
-
-        return style;
+        return createStyle(createPointSymbolizer(shape, diam, strokeColor, lineWidth, fillColor, fillOpacity));
     }
 
     /**
@@ -222,6 +248,20 @@ public abstract class MapHelper {
     public static Symbolizer createTextSymbolizer(final String fontName, final double fontSize, final String fontColor, final double fontOpacity,
             final double anchorX, final double anchorY, final double displacementX, final double displacementY) {
 
+        String key = cacheKey("text", fontName, fontSize, fontColor, fontOpacity, anchorX, anchorY, displacementX, displacementY);
+        Symbolizer sym = symbolizerCache.get(key);
+
+        if (sym == null) {
+            sym = buildTextSymbolizer(fontName, fontSize, fontColor, fontOpacity, anchorX, anchorY, displacementX, displacementY);
+            cacheSymbolizer(key, sym);
+        }
+
+        return sym;
+    }
+
+    private static Symbolizer buildTextSymbolizer(final String fontName, final double fontSize, final String fontColor, final double fontOpacity,
+            final double anchorX, final double anchorY, final double displacementX, final double displacementY) {
+
         Font gtFont = styleFactory.createFont(
                 filterFactory.literal(fontName),
                 filterFactory.literal(Font.Style.NORMAL),
@@ -260,17 +300,82 @@ public abstract class MapHelper {
     public static Style createTextStyle(final String fontName, final double fontSize,
             final String fontColor, final double fontOpacity, final double anchorX, final double anchorY, final double displacementX, final double displacementY) {
 
-        Symbolizer sym = createTextSymbolizer(fontName, fontSize, fontColor, fontOpacity, anchorX, anchorY, displacementX, displacementY);
+        return createStyle(createTextSymbolizer(fontName, fontSize, fontColor, fontOpacity, anchorX, anchorY, displacementX, displacementY));
+    }
+
+    /**
+     * Return a Style with a single rule containing the given symbolizers
+     *
+     * @param symbolizers
+     * @return
+     */
+    public static Style createStyle(final Symbolizer... symbolizers) {
+
+        List<Symbolizer> key = Arrays.asList(symbolizers);
+        Style style = styleCache.get(key);
+
+        if (style == null) {
+
+            Rule rule = styleFactory.createRule();
+            rule.symbolizers().addAll(key);
+            FeatureTypeStyle fts = styleFactory.createFeatureTypeStyle(new Rule[]{rule});
+            style = styleFactory.createStyle();
+            style.featureTypeStyles().add(fts);
+
+            if (styleCache.size() >= MaxCacheSize) {
+                styleCache.clear();
+            }
 
-        Rule rule = styleFactory.createRule();
-        rule.symbolizers().add(sym);
-        FeatureTypeStyle fts = styleFactory.createFeatureTypeStyle(new Rule[]{rule});
-        Style style = styleFactory.createStyle();
-        style.featureTypeStyles().add(fts);
+            styleCache.put(key, style);
+        }
 
         return style;
     }
 
+    /**
+     * Return the spatial data store for the given database. The data store
+     * is created once and shared by all threads.
+     *
+     * @param graphDb
+     * @return
+     */
+    public static synchronized Neo4jSpatialDataStore getDataStore(final GraphDatabaseService graphDb) {
+
+        if (spatialDataStore == null || spatialGraphDb != graphDb) {
+
+            spatialDataStore = new Neo4jSpatialDataStore(graphDb);
+            spatialService = new SpatialDatabaseService(graphDb);
+            spatialGraphDb = graphDb;
+        }
+
+        return spatialDataStore;
+    }
+
+    /**
+     * Return the feature source of the given layer from the shared
+     * spatial data store
+     *
+     * @param graphDb
+     * @param layerName
+     * @return
+     */
+    public static SimpleFeatureSource getFeatureSource(final GraphDatabaseService graphDb, final String layerName) throws IOException {
+
+        Neo4jSpatialDataStore dataStore = getDataStore(graphDb);
+
+        // the data store caches feature types internally
+        synchronized (dataStore) {
+            return dataStore.getFeatureSource(layerName);
+        }
+    }
+
+    private static synchronized SpatialDatabaseService getSpatialService(final GraphDatabaseService graphDb) {
+
+        getDataStore(graphDb);
+
+        return spatialService;
+    }
+
     /**
      * Convert a BoundingBox to Envelope
      *
@@ -357,17 +462,14 @@ public abstract class MapHelper {
      */
     public static SimpleFeatureCollection getIntersectingFeatures(final GraphDatabaseService graphDb, final Envelope envelope, final String layerName) {
 
-        // open data store from neo4j database
-        Neo4jSpatialDataStore n4jstore = new Neo4jSpatialDataStore(graphDb);
         SimpleFeatureSource featureSource = null;
 
         try {
 
-            featureSource = n4jstore.getFeatureSource(layerName);
+            featureSource = getFeatureSource(graphDb, layerName);
 
             // search all features within this bounding
-            SpatialDatabaseService spatialService = new SpatialDatabaseService(graphDb);
-            Layer layer = spatialService.getLayer(layerName);
+            Layer layer = getSpatialService(graphDb).getLayer(layerName);
             SpatialIndexReader spatialIndex = layer.getIndex();
 
             Search searchQuery = new SearchIntersectWindow(envelope);
@@ -399,15 +501,36 @@ public abstract class MapHelper {
      * @param optimizeFtsRendering
      * @param lineWidthOptimization
      */
-    synchronized public static void renderSVGDocument(StringBuilder out, final MapContext mapContext,
+    public static void renderSVGDocument(StringBuilder out, final MapContext mapContext,
             final ReferencedEnvelope envelope, final int canvasX, final int canvasY,
             final Boolean optimizeFtsRendering, final Boolean lineWidthOptimization) {
 
-        DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
+        StringWriter sw = new StringWriter();
+
+        renderSVGDocument(sw, mapContext, envelope, canvasX, canvasY, optimizeFtsRendering, lineWidthOptimization);
+        out.append(sw.getBuffer());
+    }
+
+    /**
+     * Render map to SVG document and stream it to the given writer.
+     *
+     * Every call uses its own SVG document and generator context,
+     * so maps can be rendered concurrently.
+     *
+     * @param out           output
+     * @param mapContext    context with map data
+     * @param envelope      map extent
+     * @param canvasX       x coordinate of paint area
+     * @param canvasY       y coordinate of paint area
+     * @param optimizeFtsRendering
+     * @param lineWidthOptimization
+     */
+    public static void renderSVGDocument(Writer out, final MapContext mapContext,
+            final ReferencedEnvelope envelope, final int canvasX, final int canvasY,
+            final Boolean optimizeFtsRendering, final Boolean lineWidthOptimization) {
 
         try {
-            DocumentBuilder db = dbf.newDocumentBuilder();
-            Document document = db.getDOMImplementation().createDocument(
+            Document document = domImplementation.createDocument(
                     "http://www.w3.org/2000/svg", "svg", null);
             SVGGeneratorContext context = SVGGeneratorContext.createDefault(document);
             SVGGraphics2D g = new SVGGraphics2D(context, false) {
@@ -500,14 +623,31 @@ public abstract class MapHelper {
             //renderer.paint(g, rect, mapContext.getAreaOfInterest());
             renderer.paint(g, rect, envelope);
 
-            StringWriter sw = new StringWriter();
-
-            g.stream(sw);
-            out.append(sw.getBuffer());
-            sw.flush();
+            g.stream(out);
+            g.dispose();
 
         } catch (Throwable t) {
             logger.log(Level.SEVERE, "Error creating SVG document", t);
         }
     }
+
+    private static String cacheKey(final Object... parameters) {
+
+        StringBuilder key = new StringBuilder();
+
+        for (Object parameter : parameters) {
+            key.append(parameter).append("|");
+        }
+
+        return key.toString();
+    }
+
+    private static void cacheSymbolizer(final String key, final Symbolizer sym) {
+
+        if (symbolizerCache.size() >= MaxCacheSize) {
+            symbolizerCache.clear();
+        }
+
+        symbolizerCache.put(key, sym);
+    }
 }
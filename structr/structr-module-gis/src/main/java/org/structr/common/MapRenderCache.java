@@ -0,0 +1,687 @@
+/*
+ *  Copyright (C) 2011 Axel Morgner, structr <structr@structr.org>
+ * 
+ *  This file is part of structr <http://structr.org>.
+ * 
+ *  structr is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ * 
+ *  structr is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ * 
+ *  You should have received a copy of the GNU General Public License
+ *  along with structr.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.structr.common;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.apache.commons.io.FileUtils;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.NotFoundException;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.event.PropertyEntry;
+import org.neo4j.graphdb.event.TransactionData;
+import org.neo4j.graphdb.event.TransactionEventHandler;
+import org.neo4j.graphdb.Node;
+import org.structr.core.Services;
+import org.structr.core.entity.AbstractNode;
+import org.structr.core.entity.geo.GeoObject;
+import org.structr.core.module.GetEntityClassCommand;
+
+/**
+ * A bounded cache for rendered SVG maps, keyed by map, layer, envelope,
+ * canvas size, style and feature name.
+ *
+ * <p>
+ * The least recently used entries are kept in memory up to a total size
+ * (see {@see Services#MAP_CACHE_MAX_MEMORY}). Entries evicted from memory
+ * are moved to a disk tier in the temp directory, which is bounded by the
+ * number of entries (see {@see Services#MAP_CACHE_MAX_DISK_ENTRIES}), and
+ * are moved back to memory when they are requested again.
+ * </p>
+ *
+ * <p>
+ * The cache is cleared as soon as a transaction changes a node of the
+ * types a rendering reads: the geometry nodes of any spatial layer (with
+ * their names), and the {@see GeoObject}s whose labels and points are
+ * drawn, including the links between them. The entries of a single map
+ * can be discarded with
+ * {@see #invalidate}. The disk tier is cleared on startup since the spatial
+ * data may have changed in the meantime.
+ * </p>
+ *
+ * <p>
+ * Every clear or invalidation starts a new generation. Renderings are
+ * stored with the generation that was current when rendering started
+ * (see {@see #getGeneration}), and entries promoted from disk or spilled to
+ * disk carry the generation of their lookup or eviction. Stores of an
+ * older generation are dropped, so output rendered from data that changed
+ * in the meantime never enters the cache.
+ * </p>
+ *
+ * @author axel
+ */
+public class MapRenderCache implements TransactionEventHandler<Boolean> {
+
+    private static final Logger logger = Logger.getLogger(MapRenderCache.class.getName());
+    public static final long DefaultMaxMemory = 32L * 1024 * 1024;
+    public static final int DefaultMaxDiskEntries = 10000;
+    public static final long DefaultTimeToLive = 60L * 60 * 1000;
+    private static final String[] SpatialKeys = new String[]{"bbox", "gtype", "layer_bbox"};
+    private static MapRenderCache instance = null;
+    private static final Map<String, Boolean> geoTypes = new ConcurrentHashMap<String, Boolean>();
+    private final AtomicLong hits = new AtomicLong(0);
+    private final AtomicLong diskHits = new AtomicLong(0);
+    private final AtomicLong misses = new AtomicLong(0);
+    private final AtomicLong invalidations = new AtomicLong(0);
+    private final LinkedHashMap<String, Entry> memory = new LinkedHashMap<String, Entry>(64, 0.75f, true);
+    private final LinkedHashMap<String, Entry> disk = new LinkedHashMap<String, Entry>(64, 0.75f, true);
+    private final GraphDatabaseService graphDb;
+    private final File directory;
+    private final long maxMemory;
+    private final int maxDiskEntries;
+    private final long timeToLive;
+    private long memorySize = 0;
+    private long generation = 0;
+
+    private MapRenderCache(final GraphDatabaseService graphDb, final File directory, final long maxMemory, final int maxDiskEntries, final long timeToLive) {
+
+        this.graphDb = graphDb;
+        this.directory = directory;
+        this.maxMemory = maxMemory;
+        this.maxDiskEntries = (directory != null ? maxDiskEntries : 0);
+        this.timeToLive = timeToLive;
+    }
+
+    /**
+     * Return the render cache for the given database, creating it
+     * on first use.
+     *
+     * @param graphDb
+     * @return
+     */
+    public static synchronized MapRenderCache getInstance(final GraphDatabaseService graphDb) {
+
+        if (instance == null || instance.graphDb != graphDb) {
+
+            if (instance != null) {
+                instance.close();
+            }
+
+            Map<String, Object> context = Services.getContext();
+
+            long maxMemory = DefaultMaxMemory;
+            int maxDiskEntries = DefaultMaxDiskEntries;
+            long ttl = DefaultTimeToLive;
+
+            if (context != null) {
+
+                try {
+                    maxMemory = Long.parseLong(Services.getConfigValue(context, Services.MAP_CACHE_MAX_MEMORY, String.valueOf(DefaultMaxMemory)));
+                    maxDiskEntries = Integer.parseInt(Services.getConfigValue(context, Services.MAP_CACHE_MAX_DISK_ENTRIES, String.valueOf(DefaultMaxDiskEntries)));
+                    ttl = Long.parseLong(Services.getConfigValue(context, Services.MAP_CACHE_TTL, String.valueOf(DefaultTimeToLive)));
+
+                } catch (Throwable t) {
+                    logger.log(Level.WARNING, "Invalid map cache configuration, using defaults", t);
+                }
+            }
+
+            File directory = null;
+
+            if (maxDiskEntries > 0) {
+
+                try {
+                    directory = new File(Services.getFilePath(Path.Temp, "mapcache"));
+
+                    // entries from a previous run may be stale
+                    if (directory.exists()) {
+                        FileUtils.cleanDirectory(directory);
+                    } else {
+                        directory.mkdirs();
+                    }
+
+                } catch (Throwable t) {
+                    logger.log(Level.WARNING, "Could not initialize map cache directory, disk tier disabled", t);
+                    directory = null;
+                }
+            }
+
+            instance = new MapRenderCache(graphDb, directory, maxMemory, maxDiskEntries, ttl);
+            graphDb.registerTransactionEventHandler(instance);
+        }
+
+        return instance;
+    }
+
+    /**
+     * Build a cache key from the given parts.
+     *
+     * @param parts
+     * @return
+     */
+    public static String createKey(final Object... parts) {
+
+        StringBuilder key = new StringBuilder();
+
+        for (Object part : parts) {
+            key.append(part).append("|");
+        }
+
+        return key.toString();
+    }
+
+    /**
+     * Return the rendered map for the given key, or null if there is
+     * no valid entry.
+     *
+     * @param key
+     * @return
+     */
+    public String get(final String key) {
+
+        Entry entry = null;
+        boolean fromDisk = false;
+        long currentGeneration = 0;
+
+        synchronized (this) {
+
+            currentGeneration = generation;
+            entry = memory.get(key);
+
+            if (entry == null) {
+
+                entry = disk.remove(key);
+                fromDisk = (entry != null);
+            }
+
+            if (entry != null && isExpired(entry)) {
+
+                removeFromMemory(key);
+                deleteFile(entry);
+                entry = null;
+            }
+        }
+
+        if (entry == null) {
+
+            misses.incrementAndGet();
+            return null;
+        }
+
+        if (!fromDisk) {
+
+            hits.incrementAndGet();
+            return entry.content;
+        }
+
+        // promote entry from disk to memory
+        try {
+
+            String content = FileUtils.readFileToString(entry.file, "UTF-8");
+
+            deleteFile(entry);
+            diskHits.incrementAndGet();
+
+            // not promoted if the cache was cleared while reading
+            store(key, content, entry.created, currentGeneration);
+
+            return content;
+
+        } catch (IOException ioex) {
+
+            logger.log(Level.WARNING, "Could not read cached map {0}", entry.file);
+            misses.incrementAndGet();
+        }
+
+        return null;
+    }
+
+    /**
+     * Return the current generation, to be passed to {@see #put} for a
+     * map that is rendered now.
+     *
+     * @return
+     */
+    public synchronized long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * Store the rendered map under the given key, unless the cache was
+     * cleared or invalidated since the given generation.
+     *
+     * @param key
+     * @param content
+     * @param renderGeneration the generation before rendering started
+     */
+    public void put(final String key, final String content, final long renderGeneration) {
+        store(key, content, System.currentTimeMillis(), renderGeneration);
+    }
+
+    /**
+     * Discard all entries whose key starts with the given prefix,
+     * e.g. all renderings of a map.
+     *
+     * @param prefix
+     */
+    public void invalidate(final String prefix) {
+
+        List<Entry> removed = new LinkedList<Entry>();
+
+        synchronized (this) {
+
+            generation++;
+
+            for (Iterator<Map.Entry<String, Entry>> it = memory.entrySet().iterator(); it.hasNext();) {
+
+                Map.Entry<String, Entry> e = it.next();
+
+                if (e.getKey().startsWith(prefix)) {
+
+                    memorySize -= e.getValue().size();
+                    it.remove();
+                }
+            }
+
+            for (Iterator<Map.Entry<String, Entry>> it = disk.entrySet().iterator(); it.hasNext();) {
+
+                Map.Entry<String, Entry> e = it.next();
+
+                if (e.getKey().startsWith(prefix)) {
+
+                    removed.add(e.getValue());
+                    it.remove();
+                }
+            }
+        }
+
+        for (Entry entry : removed) {
+            deleteFile(entry);
+        }
+
+        invalidations.incrementAndGet();
+    }
+
+    /**
+     * Discard all entries.
+     */
+    public void clear() {
+
+        List<Entry> removed = null;
+
+        synchronized (this) {
+
+            generation++;
+            removed = new LinkedList<Entry>(disk.values());
+
+            memory.clear();
+            disk.clear();
+            memorySize = 0;
+        }
+
+        for (Entry entry : removed) {
+            deleteFile(entry);
+        }
+
+        invalidations.incrementAndGet();
+    }
+
+    // <editor-fold defaultstate="collapsed" desc="interface TransactionEventHandler">
+    @Override
+    public Boolean beforeCommit(TransactionData data) throws Exception {
+
+        // geometry nodes of spatial layers carry a bounding box and a geometry type
+        if (containsSpatialKey(data.assignedNodeProperties()) || containsSpatialKey(data.removedNodeProperties())) {
+            return Boolean.TRUE;
+        }
+
+        // other properties of rendered nodes, e.g. feature names and coordinates
+        if (containsRenderedNode(data.assignedNodeProperties()) || containsRenderedNode(data.removedNodeProperties())) {
+            return Boolean.TRUE;
+        }
+
+        // linked nodes of features are drawn as points
+        if (containsRenderedNode(data.createdRelationships()) || containsRenderedNode(data.deletedRelationships())) {
+            return Boolean.TRUE;
+        }
+
+        return Boolean.FALSE;
+    }
+
+    @Override
+    public void afterCommit(TransactionData data, Boolean spatialChange) {
+
+        if (Boolean.TRUE.equals(spatialChange)) {
+
+            logger.log(Level.FINE, "Spatial data changed, clearing map render cache");
+            clear();
+        }
+    }
+
+    @Override
+    public void afterRollback(TransactionData data, Boolean spatialChange) {
+    }
+    // </editor-fold>
+
+    // <editor-fold defaultstate="collapsed" desc="metrics">
+    public synchronized int size() {
+        return memory.size() + disk.size();
+    }
+
+    public synchronized long getMemorySize() {
+        return memorySize;
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getDiskHitCount() {
+        return diskHits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    public long getInvalidationCount() {
+        return invalidations.get();
+    }
+
+    @Override
+    public String toString() {
+
+        StringBuilder out = new StringBuilder();
+
+        synchronized (this) {
+            out.append("MapRenderCache [memory=").append(memory.size());
+            out.append(" (").append(memorySize).append(" bytes)");
+            out.append(", disk=").append(disk.size());
+        }
+
+        out.append(", hits=").append(hits.get());
+        out.append(", diskHits=").append(diskHits.get());
+        out.append(", misses=").append(misses.get());
+        out.append(", invalidations=").append(invalidations.get());
+        out.append("]");
+
+        return out.toString();
+    }
+    // </editor-fold>
+
+    // <editor-fold defaultstate="collapsed" desc="private methods">
+    private void store(final String key, final String content, final long created, final long storeGeneration) {
+
+        List<Map.Entry<String, Entry>> evicted = new LinkedList<Map.Entry<String, Entry>>();
+        Entry entry = new Entry(content, created);
+        Entry onDisk = null;
+        long currentGeneration = 0;
+
+        synchronized (this) {
+
+            // rendered or read before the last clear, may be stale
+            if (storeGeneration != generation) {
+                return;
+            }
+
+            currentGeneration = generation;
+
+            removeFromMemory(key);
+
+            onDisk = disk.remove(key);
+
+            memory.put(key, entry);
+            memorySize += entry.size();
+
+            // evict least recently used entries
+            Iterator<Map.Entry<String, Entry>> it = memory.entrySet().iterator();
+
+            while (memorySize > maxMemory && it.hasNext()) {
+
+                Map.Entry<String, Entry> eldest = it.next();
+
+                memorySize -= eldest.getValue().size();
+                it.remove();
+
+                evicted.add(eldest);
+            }
+        }
+
+        if (onDisk != null) {
+            deleteFile(onDisk);
+        }
+
+        // move evicted entries to disk outside of the lock
+        for (Map.Entry<String, Entry> e : evicted) {
+            spill(e.getKey(), e.getValue(), currentGeneration);
+        }
+    }
+
+    private void spill(final String key, final Entry entry, final long spillGeneration) {
+
+        if (maxDiskEntries <= 0 || isExpired(entry)) {
+            return;
+        }
+
+        File file = new File(directory, digest(key) + ".svg");
+
+        try {
+
+            FileUtils.writeStringToFile(file, entry.content, "UTF-8");
+
+        } catch (IOException ioex) {
+
+            logger.log(Level.WARNING, "Could not write cached map {0}", file);
+            return;
+        }
+
+        Entry onDisk = new Entry(file, entry.created);
+        List<Entry> removed = new LinkedList<Entry>();
+
+        synchronized (this) {
+
+            // entry may have been stored again or cleared in the meantime
+            if (spillGeneration != generation || memory.containsKey(key)) {
+
+                removed.add(onDisk);
+
+            } else {
+
+                disk.put(key, onDisk);
+
+                Iterator<Entry> it = disk.values().iterator();
+
+                while (disk.size() > maxDiskEntries && it.hasNext()) {
+
+                    removed.add(it.next());
+                    it.remove();
+                }
+            }
+        }
+
+        for (Entry e : removed) {
+            deleteFile(e);
+        }
+    }
+
+    private void removeFromMemory(final String key) {
+
+        Entry entry = memory.remove(key);
+
+        if (entry != null) {
+            memorySize -= entry.size();
+        }
+    }
+
+    private boolean isExpired(final Entry entry) {
+        return timeToLive > 0 && (System.currentTimeMillis() - entry.created) > timeToLive;
+    }
+
+    private void deleteFile(final Entry entry) {
+
+        if (entry.file != null && !entry.file.delete() && entry.file.exists()) {
+            logger.log(Level.FINE, "Could not delete cached map {0}", entry.file);
+        }
+    }
+
+    private boolean containsSpatialKey(final Iterable<PropertyEntry<Node>> entries) {
+
+        for (PropertyEntry<Node> entry : entries) {
+
+            String key = entry.key();
+
+            for (String spatialKey : SpatialKeys) {
+
+                if (spatialKey.equals(key)) {
+                    return true;
+                }
+            }
+        }
+
+        return false;
+    }
+
+    private boolean containsRenderedNode(final Iterable<PropertyEntry<Node>> entries) {
+
+        for (PropertyEntry<Node> entry : entries) {
+
+            // nodes created, deleted or retyped
+            if (AbstractNode.TYPE_KEY.equals(entry.key()) && (isGeoType(entry.value()) || isGeoType(entry.previouslyCommitedValue()))) {
+                return true;
+            }
+
+            if (isRenderedNode(entry.entity())) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private boolean containsRenderedNode(final Iterable<Relationship> relationships) {
+
+        for (Relationship rel : relationships) {
+
+            if (isRenderedNode(rel.getStartNode()) || isRenderedNode(rel.getEndNode())) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private boolean isRenderedNode(final Node node) {
+
+        try {
+
+            for (String spatialKey : SpatialKeys) {
+
+                if (node.hasProperty(spatialKey)) {
+                    return true;
+                }
+            }
+
+            return isGeoType(node.getProperty(AbstractNode.TYPE_KEY, null));
+
+        } catch (NotFoundException nfe) {
+
+            // deleted nodes are recognized by their removed properties
+            return false;
+
+        } catch (IllegalStateException ise) {
+            return false;
+        }
+    }
+
+    private static boolean isGeoType(final Object type) {
+
+        if (!(type instanceof String)) {
+            return false;
+        }
+
+        Boolean geoType = geoTypes.get((String) type);
+
+        if (geoType == null) {
+
+            Class entityClass = (Class) Services.command(GetEntityClassCommand.class).execute(type);
+
+            geoType = (entityClass != null && GeoObject.class.isAssignableFrom(entityClass));
+            geoTypes.put((String) type, geoType);
+        }
+
+        return geoType;
+    }
+
+    private void close() {
+
+        try {
+            graphDb.unregisterTransactionEventHandler(this);
+
+        } catch (Throwable t) {
+            logger.log(Level.FINE, "Could not unregister map render cache", t);
+        }
+
+        clear();
+    }
+
+    private static String digest(final String key) {
+
+        try {
+
+            MessageDigest md = MessageDigest.getInstance("MD5");
+            StringBuilder hex = new StringBuilder();
+
+            for (byte b : md.digest(key.getBytes("UTF-8"))) {
+                hex.append(String.format("%02x", b));
+            }
+
+            return hex.toString();
+
+        } catch (Throwable t) {
+            return Integer.toHexString(key.hashCode());
+        }
+    }
+    // </editor-fold>
+
+    // <editor-fold defaultstate="collapsed" desc="private classes">
+    private static class Entry {
+
+        private final String content;
+        private final File file;
+        private final long created;
+
+        private Entry(final String content, final long created) {
+
+            this.content = content;
+            this.file = null;
+            this.created = created;
+        }
+
+        private Entry(final File file, final long created) {
+
+            this.content = null;
+            this.file = file;
+            this.created = created;
+        }
+
+        private long size() {
+            return (content != null ? content.length() * 2L : 0);
+        }
+    }
+    // </editor-fold>
+}
@@ -19,11 +19,16 @@
 package org.structr.core.entity.geo;
 
 import java.io.File;
+import java.util.Collections;
 import java.util.List;
 import java.util.logging.Level;
 import java.awt.Color;
 import java.io.IOException;
+import java.io.BufferedWriter;
 import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.Writer;
 import java.util.LinkedList;
 import java.util.logging.Logger;
 import javax.servlet.http.HttpServletRequest;
@@ -39,17 +44,15 @@ import org.geotools.geometry.jts.ReferencedEnvelope;
 import org.geotools.map.DefaultMapContext;
 import org.geotools.map.MapContext;
 import org.geotools.map.MapLayer;
-import org.geotools.styling.FeatureTypeStyle;
-import org.geotools.styling.Rule;
 import org.geotools.styling.Style;
 import org.geotools.styling.StyleBuilder;
 import org.geotools.styling.Symbolizer;
-import org.neo4j.gis.spatial.geotools.data.Neo4jSpatialDataStore;
 import org.neo4j.graphdb.GraphDatabaseService;
 import org.opengis.feature.simple.SimpleFeature;
 import org.opengis.filter.Filter;
 import org.structr.core.entity.AbstractNode;
 import org.structr.common.MapHelper;
+import org.structr.common.MapRenderCache;
 import org.structr.common.CurrentRequest;
 import org.structr.core.Command;
 import org.structr.core.Services;
@@ -74,23 +77,16 @@ public class Map extends AbstractNode {
 
             if (isVisible()) {
 
+                String featureName = getRequestedFeatureName();
+
                 if (getDontCache() == Boolean.TRUE) {
-                    renderSVGMap(out);
+                    StringWriter svg = new StringWriter();
+                    renderSVGMap(svg, featureName);
+                    out.append(svg.getBuffer());
                     return;
                 }
 
-                String cachedSVGMap = getSvgContent();
-
-                if (StringUtils.isBlank(cachedSVGMap)) {
-
-                    StringBuilder cache = new StringBuilder();
-                    renderSVGMap(cache);
-                    setSvgContent(cache.toString());
-                    out.append(cache);
-
-                } else {
-                    out.append(cachedSVGMap);
-                }
+                out.append(getCachedSVGMap(featureName));
             }
         }
     }
@@ -104,47 +100,194 @@ public class Map extends AbstractNode {
 
         try {
             if (isVisible()) {
-                StringBuilder svgString = new StringBuilder();
-                renderSVGMap(svgString);
-                out.write(svgString.toString().getBytes());
+
+                String featureName = getRequestedFeatureName();
+                Writer writer = new BufferedWriter(new OutputStreamWriter(out, "UTF-8"));
+
+                if (getDontCache() == Boolean.TRUE) {
+
+                    // stream SVG content without building an intermediate string
+                    renderSVGMap(writer, featureName);
+
+                } else {
+                    writer.write(getCachedSVGMap(featureName));
+                }
+
+                writer.flush();
             }
         } catch (IOException e) {
             logger.log(Level.SEVERE, "Could not write SVG content to output stream: {0}", e.getStackTrace());
         }
     }
 
-    private void renderSVGMap(StringBuilder out) {
+    /**
+     * Render the map for each of the configured prewarm feature names
+     * (or the static feature name) into the render cache.
+     *
+     * @return the number of renderings added to the cache
+     */
+    public int prewarmCache() {
 
-        Command graphDbCommand = Services.command(GraphDatabaseCommand.class);
-        GraphDatabaseService graphDb = (GraphDatabaseService) graphDbCommand.execute();
+        List<String> featureNames = new LinkedList<String>();
+        String prewarmFeatureNames = getPrewarmFeatureNames();
 
-        MapContext mapContext = null;
-        try {
+        if (StringUtils.isNotBlank(prewarmFeatureNames)) {
 
-            long t0 = System.currentTimeMillis();
+            for (String name : StringUtils.split(prewarmFeatureNames, ",")) {
 
-            String featureName = null;
+                if (StringUtils.isNotBlank(name)) {
+                    featureNames.add(name.trim());
+                }
+            }
 
-            String staticFeatureName = getStaticFeatureName();
+        } else {
+            featureNames.add(getStaticFeatureName());
+        }
 
-            if (StringUtils.isNotBlank(staticFeatureName)) {
-                featureName = staticFeatureName;
-            } else {
+        MapRenderCache cache = getRenderCache();
+        int count = 0;
 
-                HttpServletRequest request = CurrentRequest.getRequest();
+        for (String featureName : featureNames) {
 
-                String featureNameParamName = getFeatureNameParamName();
-                if (featureNameParamName == null) {
-                    featureNameParamName = defaultFeatureParamName;
-                }
+            String key = getCacheKey(featureName);
+
+            if (cache.get(key) == null) {
 
-                // get the feature name from the request
-                if (request != null) {
-                    featureName = request.getParameter(featureNameParamName);
+                long generation = cache.getGeneration();
+                StringWriter svg = new StringWriter();
+                renderSVGMap(svg, featureName);
+
+                if (svg.getBuffer().length() > 0) {
+                    cache.put(key, svg.toString(), generation);
+                    count++;
                 }
+            }
+        }
+
+        return count;
+    }
 
+    /**
+     * Discard all cached renderings of this map
+     */
+    public void clearCache() {
+        getRenderCache().invalidate(getCacheKeyPrefix());
+    }
+
+    /**
+     * Return the name of the feature to display, either the static feature
+     * name or the value of the feature name request parameter.
+     *
+     * @return
+     */
+    private String getRequestedFeatureName() {
+
+        String featureName = null;
+
+        String staticFeatureName = getStaticFeatureName();
+
+        if (StringUtils.isNotBlank(staticFeatureName)) {
+            featureName = staticFeatureName;
+        } else {
+
+            HttpServletRequest request = CurrentRequest.getRequest();
+
+            String featureNameParamName = getFeatureNameParamName();
+            if (featureNameParamName == null) {
+                featureNameParamName = defaultFeatureParamName;
             }
 
+            // get the feature name from the request
+            if (request != null) {
+                featureName = request.getParameter(featureNameParamName);
+            }
+
+        }
+
+        return featureName;
+    }
+
+    /**
+     * Return the rendered map for the given feature from the render cache,
+     * rendering and caching it if necessary.
+     */
+    private String getCachedSVGMap(final String featureName) {
+
+        MapRenderCache cache = getRenderCache();
+        String key = getCacheKey(featureName);
+        long generation = cache.getGeneration();
+        String svg = cache.get(key);
+
+        if (svg == null) {
+
+            StringWriter out = new StringWriter();
+            renderSVGMap(out, featureName);
+            svg = out.toString();
+
+            // don't cache failed renderings
+            if (svg.length() > 0) {
+                cache.put(key, svg, generation);
+            }
+        }
+
+        return svg;
+    }
+
+    private MapRenderCache getRenderCache() {
+
+        GraphDatabaseService graphDb = (GraphDatabaseService) Services.command(GraphDatabaseCommand.class).execute();
+
+        return MapRenderCache.getInstance(graphDb);
+    }
+
+    private String getCacheKeyPrefix() {
+        return getId() + "|";
+    }
+
+    /**
+     * The key consists of map, layer, envelope, canvas size, a hash of all
+     * other properties (which determine the style) and the feature name.
+     */
+    private String getCacheKey(final String featureName) {
+
+        List<String> keys = new LinkedList<String>();
+
+        for (String key : getPropertyKeys()) {
+
+            if (!SVG_CONTENT_KEY.equals(key)) {
+                keys.add(key);
+            }
+        }
+
+        Collections.sort(keys);
+
+        int styleHash = 17;
+
+        for (String key : keys) {
+
+            Object value = getProperty(key);
+
+            styleHash = 31 * styleHash + key.hashCode();
+            styleHash = 31 * styleHash + (value != null ? value.hashCode() : 0);
+        }
+
+        String envelope = (getAutoEnvelope()
+                ? "auto"
+                : getEnvelopeMinX() + "," + getEnvelopeMinY() + "," + getEnvelopeMaxX() + "," + getEnvelopeMaxY());
+
+        return getCacheKeyPrefix() + MapRenderCache.createKey(getLayer(), envelope, getCanvasX() + "x" + getCanvasY(), Integer.toHexString(styleHash), featureName);
+    }
+
+    private void renderSVGMap(Writer out, final String featureName) {
+
+        Command graphDbCommand = Services.command(GraphDatabaseCommand.class);
+        GraphDatabaseService graphDb = (GraphDatabaseService) graphDbCommand.execute();
+
+        MapContext mapContext = null;
+        try {
+
+            long t0 = System.currentTimeMillis();
+
             int cx = getCanvasX();
             int cy = getCanvasY();
 
@@ -169,15 +312,13 @@ public class Map extends AbstractNode {
 
             }
 
-            // open data store from neo4j database
-            Neo4jSpatialDataStore n4jstore = new Neo4jSpatialDataStore(graphDb);
-
             String layerName = getLayer();
             if (StringUtils.isEmpty(layerName)) {
                 logger.log(Level.SEVERE, "No layer name!");
             }
 
-            SimpleFeatureSource featureSource = n4jstore.getFeatureSource(layerName);
+            // get feature source from the shared neo4j data store
+            SimpleFeatureSource featureSource = MapHelper.getFeatureSource(graphDb, layerName);
 
             GeoObject featureNode = null;
 
@@ -252,13 +393,7 @@ public class Map extends AbstractNode {
             Symbolizer polygonSymbolizer = MapHelper.createPolygonSymbolizer(getLineColor(), getLineWidth(), getLineOpacity(), getFillColor(), getFillOpacity());
             Symbolizer textSymbolizer = MapHelper.createTextSymbolizer(getFontName(), getFontSize(), getFontColor(), getFontOpacity(), getAnchorX(), getAnchorY(), getDisplacementX(), getDisplacementY());
 
-
-            Rule rule = MapHelper.styleFactory.createRule();
-            rule.symbolizers().add(polygonSymbolizer);
-            rule.symbolizers().add(textSymbolizer);
-            FeatureTypeStyle fts = MapHelper.styleFactory.createFeatureTypeStyle(new Rule[]{rule});
-            Style style = MapHelper.styleFactory.createStyle();
-            style.featureTypeStyles().add(fts);
+            Style style = MapHelper.createStyle(polygonSymbolizer, textSymbolizer);
 
             // add features and style as a map layer to the list of map layers
             layers.add(new MapLayer(features, style));
@@ -305,14 +440,7 @@ public class Map extends AbstractNode {
                 Symbolizer cityPointSym = MapHelper.createPointSymbolizer(getPointShape(), getPointDiameter(), getPointStrokeColor(), getPointStrokeLineWidth(), getPointFillColor(), this.getPointFillOpacity());
 //            Symbolizer cityPolygonSymbolizer = MapHelper.createPolygonSymbolizer("#000000", 1, 1, "#000000", 1);
 
-                Rule rule2 = MapHelper.styleFactory.createRule();
-                rule2.symbolizers().add(cityTextSym);
-//            rule2.symbolizers().add(cityPolygonSymbolizer);
-                rule2.symbolizers().add(cityPointSym);
-
-                FeatureTypeStyle fts2 = MapHelper.styleFactory.createFeatureTypeStyle(new Rule[]{rule2});
-                Style style2 = MapHelper.styleFactory.createStyle();
-                style2.featureTypeStyles().add(fts2);
+                Style style2 = MapHelper.createStyle(cityTextSym, cityPointSym);
 
                 SimpleFeatureSource source = DataUtilities.source(collection);
                 SimpleFeatureCollection subFeatures = source.getFeatures();
@@ -491,6 +619,10 @@ public class Map extends AbstractNode {
         return (String) getProperty(SVG_CONTENT_KEY);
     }
 
+    public String getPrewarmFeatureNames() {
+        return (String) getProperty(PREWARM_FEATURE_NAMES_KEY);
+    }
+
     public double getLabelAnchorX() {
         return getDoubleProperty(LABEL_ANCHOR_X_KEY);
     }
@@ -656,6 +788,10 @@ public class Map extends AbstractNode {
         setProperty(SVG_CONTENT_KEY, svgContent);
     }
 
+    public void setPrewarmFeatureNames(final String value) {
+        setProperty(PREWARM_FEATURE_NAMES_KEY, value);
+    }
+
     public void setLabelAnchorX(final double value) {
         setProperty(LABEL_ANCHOR_X_KEY, value);
     }
@@ -757,6 +893,7 @@ public class Map extends AbstractNode {
     public static final String STATIC_FEATURE_NAME_KEY = "staticFeatureName";
     public static final String STATIC_KEY = "static"; // Don't take request parameters into account
     public static final String DONT_CACHE_KEY = "dontCache";
+    public static final String PREWARM_FEATURE_NAMES_KEY = "prewarmFeatureNames";
     public static final String DISPLAY_CITIES_KEY = "displayCities";
     // </editor-fold>
 }
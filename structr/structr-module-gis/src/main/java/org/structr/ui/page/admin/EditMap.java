@@ -39,6 +39,8 @@ public class EditMap extends EditGeoObject {
     protected Map map;
     @Bindable
     protected ActionLink clearCacheLink = new ActionLink("Clear Cache", this, "onClearCache");
+    @Bindable
+    protected ActionLink prewarmCacheLink = new ActionLink("Prewarm Cache", this, "onPrewarmCache");
 
     public EditMap() {
 
@@ -53,6 +55,8 @@ public class EditMap extends EditGeoObject {
         generalFields.add(new TextField(Map.FEATURE_NAME_PARAM_NAME_KEY));
         generalFields.add(new Checkbox(Map.DONT_CACHE_KEY));
         generalFields.add(clearCacheLink);
+        generalFields.add(new TextField(Map.PREWARM_FEATURE_NAMES_KEY, "Prewarm Feature Names (comma-separated)", 30));
+        generalFields.add(prewarmCacheLink);
         generalFields.add(new TextField(Map.CONTENT_TYPE_KEY, "Internet Media Type (Content-Type)", 30));
         editPropertiesForm.add(generalFields);
 
@@ -132,6 +136,7 @@ public class EditMap extends EditGeoObject {
 
         if (node != null) {
             clearCacheLink.setParameter(AbstractNode.NODE_ID_KEY, getNodeId());
+            prewarmCacheLink.setParameter(AbstractNode.NODE_ID_KEY, getNodeId());
             map = (Map) node;
         }
 
@@ -151,7 +156,7 @@ public class EditMap extends EditGeoObject {
     }
 
     /**
-     * Clear map cache by setting the SVG content to null
+     * Clear map cache by discarding all cached renderings of this map
      * 
      * @return
      */
@@ -162,10 +167,28 @@ public class EditMap extends EditGeoObject {
 
     }
 
+    /**
+     * Render the map for the configured prewarm feature names
+     * into the render cache
+     *
+     * @return
+     */
+    public boolean onPrewarmCache() {
+
+        if (node != null) {
+            map = (Map) node;
+            int count = map.prewarmCache();
+            okMsg = count + " map renderings added to cache";
+        }
+
+        return redirect();
+
+    }
+
     private void clearCache() {
         if (node != null) {
             map = (Map) node;
-            map.setSvgContent(null);
+            map.clearCache();
         }
     }
 }
@@ -18,17 +18,16 @@
  */
 package org.structr.core.entity.web;
 
+import java.util.Collections;
 import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.apache.commons.lang.StringUtils;
 import org.structr.common.CurrentRequest;
 import org.structr.common.RenderMode;
-import org.structr.core.Command;
-import org.structr.core.Services;
+import org.structr.common.TreeHelper;
 import org.structr.core.entity.AbstractNode;
 import org.structr.core.entity.ArbitraryNode;
-import org.structr.core.node.NodeFactoryCommand;
 
 /**
  *
@@ -105,12 +104,12 @@ public class WebNode extends ArbitraryNode {
 
         if (RenderMode.PUBLIC.equals(renderMode)) {
 
-            // create bean node
-            Command nodeFactory = Services.command(NodeFactoryCommand.class);
-            AbstractNode node = (AbstractNode) nodeFactory.execute(this);
+            List<AbstractNode> pathNodes = TreeHelper.getPathNodes(this);
 
-            // stop at root node
-            while (node != null && node.getId() > 0) {
+            // walk up from this node, stop at root node
+            Collections.reverse(pathNodes);
+
+            for (AbstractNode node : pathNodes) {
 
                 String urlPart = node.getName();
                 
@@ -124,8 +123,6 @@ public class WebNode extends ArbitraryNode {
                     }
                 }
 
-                // check parent nodes
-                node = node.getParentNode();
 //                StructrRelationship r = node.getRelationships(RelType.HAS_CHILD, Direction.INCOMING).get(0);
 //                if (r != null) {
 //                    node = r.getStartNode();
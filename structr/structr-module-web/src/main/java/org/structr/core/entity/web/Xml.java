@@ -19,16 +19,13 @@
 package org.structr.core.entity.web;
 
 import org.structr.core.entity.PlainText;
-import org.structr.core.Command;
-import org.structr.core.Services;
-import org.structr.core.node.NodeFactoryCommand;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.StringReader;
+import java.util.LinkedList;
 import java.util.List;
 import org.apache.commons.io.IOUtils;
 import org.neo4j.graphdb.Direction;
-import org.structr.core.node.NodeRelationshipsCommand;
 import org.structr.common.RelType;
 import org.structr.core.entity.AbstractNode;
 import org.structr.core.entity.StructrRelationship;
@@ -68,6 +65,8 @@ public class Xml extends PlainText {
         if (isVisible()) {
             StringBuilder xml = new StringBuilder(getXml());
 
+            List<AbstractNode> subNodes = null;
+
             // start with first occurrence of key prefix
             int start = xml.indexOf(keyPrefix);
 
@@ -87,33 +86,27 @@ public class Xml extends PlainText {
 
                 } else {
 
-                    Command nodeFactory = Services.command(NodeFactoryCommand.class);
-                    Command relsCommand = Services.command(NodeRelationshipsCommand.class);
-
-                    List<StructrRelationship> rels = (List<StructrRelationship>) relsCommand.execute(this, RelType.HAS_CHILD, Direction.OUTGOING);
-                    for (StructrRelationship r : rels) {
+                    // load child and linked nodes once for all keys
+                    if (subNodes == null) {
 
-                        AbstractNode s = (AbstractNode) nodeFactory.execute(r.getEndNode());
+                        subNodes = new LinkedList<AbstractNode>();
 
-                        if (key.equals(s.getName())) {
-                            s.renderView(replacement, startNode, editUrl, editNodeId);
+                        for (StructrRelationship r : getRelationships(RelType.HAS_CHILD, Direction.OUTGOING)) {
+                            subNodes.add(r.getEndNode());
                         }
 
-
+                        for (StructrRelationship r : getRelationships(RelType.LINK, Direction.OUTGOING)) {
+                            subNodes.add(r.getEndNode());
+                        }
                     }
 
-                    rels = (List<StructrRelationship>) relsCommand.execute(this, RelType.LINK, Direction.OUTGOING);
-                    for (StructrRelationship r : rels) {
-
-                        AbstractNode s = (AbstractNode) nodeFactory.execute(r.getEndNode());
+                    for (AbstractNode s : subNodes) {
 
                         if (key.equals(s.getName())) {
                             s.renderView(replacement, startNode, editUrl, editNodeId);
                         }
-
                     }
 
-
                 }
 
                 xml.replace(start, end + keySuffix.length(), replacement.toString());